@@ -105,6 +105,35 @@ public class CertificateServiceImpl
     /** Hash algorithm for the cert thumbprint*/
     private final static String THUMBPRINT_HASH_ALGORITHM = "SHA1";
 
+    /** Hash algorithm for the keys of the validation cache */
+    private final static String CACHE_HASH_ALGORITHM = "SHA-256";
+
+    /**
+     * The maximum number of chains whose validation is cached.
+     */
+    private final static int VALIDATION_CACHE_SIZE = 256;
+
+    /**
+     * The number of milliseconds a successful validation is cached at most,
+     * which bounds the time a revoked certificate can still be accepted.
+     */
+    private final static long VALIDATION_CACHE_TTL = 30 * 60 * 1000;
+
+    /**
+     * The maximum number of AIA retrievals cached.
+     */
+    private final static int AIA_CACHE_SIZE = 128;
+
+    /**
+     * The number of milliseconds a downloaded certificate is cached at most.
+     */
+    private final static long AIA_CACHE_TTL = 24 * 60 * 60 * 1000;
+
+    /**
+     * The number of milliseconds a failed download is cached.
+     */
+    private final static long AIA_FAILURE_CACHE_TTL = 10 * 60 * 1000;
+
     // ------------------------------------------------------------------------
     // fields
     // ------------------------------------------------------------------------
@@ -117,8 +146,15 @@ public class CertificateServiceImpl
     /**
      * Caches retrievals of AIA information (downloaded certs or failures).
      */
-    private Map<URI, AiaCacheEntry> aiaCache =
-        new HashMap<URI, AiaCacheEntry>();
+    private final ExpiringCache<URI, X509Certificate> aiaCache =
+        new ExpiringCache<URI, X509Certificate>(AIA_CACHE_SIZE);
+
+    /**
+     * Caches the chains the default trust manager accepted, until the
+     * expiry of their first certificate to expire. The value is that time.
+     */
+    private final ExpiringCache<String, Long> validationCache =
+        new ExpiringCache<String, Long>(VALIDATION_CACHE_SIZE);
 
     // ------------------------------------------------------------------------
     // Map access helpers
@@ -142,20 +178,6 @@ public class CertificateServiceImpl
         return entry;
     }
 
-    /**
-     * AIA cache retrieval entry.
-     */
-    private static class AiaCacheEntry
-    {
-        Date cacheDate;
-        X509Certificate cert;
-        AiaCacheEntry(Date cacheDate, X509Certificate cert)
-        {
-            this.cacheDate = cacheDate;
-            this.cert = cert;
-        }
-    }
-
     // ------------------------------------------------------------------------
     // Truststore configuration
     // ------------------------------------------------------------------------
@@ -178,6 +200,9 @@ public class CertificateServiceImpl
     public void propertyChange(PropertyChangeEvent evt)
     {
         setTrustStore();
+
+        // the chains are to be validated against the new store
+        validationCache.clear();
     }
 
     private void setTrustStore()
@@ -751,10 +776,7 @@ public class CertificateServiceImpl
                     catch (Exception e)
                     {} // don't care and take the chain as is
 
-                    if(serverCheck)
-                        tm.checkServerTrusted(chain, authType);
-                    else
-                        tm.checkClientTrusted(chain, authType);
+                    checkChainTrusted(tm, chain, authType, serverCheck);
 
                     if(identitiesToTest == null
                         || !identitiesToTest.iterator().hasNext())
@@ -904,7 +926,7 @@ public class CertificateServiceImpl
                 }
 
                 // search from the topmost certificate upwards
-                CertificateFactory certFactory =
+                final CertificateFactory certFactory =
                     CertificateFactory.getInstance("X.509");
                 X509Certificate current = chain[chain.length - 1];
                 boolean foundParent;
@@ -940,7 +962,7 @@ public class CertificateServiceImpl
                             && gn.getName() instanceof DERIA5String))
                             continue;
 
-                        URI uri =
+                        final URI uri =
                             new URI(((DERIA5String) gn.getName()).getString());
                         // only http(s) urls; LDAP is taken care of in the
                         // default implementation
@@ -948,42 +970,32 @@ public class CertificateServiceImpl
                             .getScheme().equals("https")))
                             continue;
 
-                        X509Certificate cert = null;
+                        final X509Certificate child = current;
 
                         // try to get cert from cache first to avoid consecutive
-                        // (slow) http lookups
-                        AiaCacheEntry cache = aiaCache.get(uri);
-                        if (cache != null && cache.cacheDate.after(new Date()))
-                        {
-                            cert = cache.cert;
-                        }
-                        else
-                        {
-                            // download if no cache entry or if it is expired
-                            if (logger.isDebugEnabled())
-                                logger
-                                    .debug("Downloading parent certificate for <"
-                                        + current.getSubjectDN()
-                                        + "> from <"
-                                        + uri + ">");
-                            try
+                        // (slow) http lookups, parallel lookups wait for the
+                        // first one
+                        X509Certificate cert = aiaCache.get(uri,
+                            new ExpiringCache.Loader<X509Certificate>()
                             {
-                                InputStream is =
-                                    HttpUtils.openURLConnection(uri.toString())
-                                        .getContent();
-                                cert =
-                                    (X509Certificate) certFactory
-                                        .generateCertificate(is);
-                            }
-                            catch (Exception e)
-                            {
-                                logger.debug("Could not download from <" + uri
-                                    + ">");
-                            }
-                            // cache for 10mins
-                            aiaCache.put(uri, new AiaCacheEntry(new Date(
-                                new Date().getTime() + 10 * 60 * 1000), cert));
-                        }
+                                X509Certificate load()
+                                {
+                                    return downloadCertificate(
+                                        uri, child, certFactory);
+                                }
+
+                                long getExpiry(X509Certificate cert)
+                                {
+                                    long now = System.currentTimeMillis();
+
+                                    // cache failures for 10mins
+                                    if (cert == null)
+                                        return now + AIA_FAILURE_CACHE_TTL;
+                                    return Math.min(
+                                        now + AIA_CACHE_TTL,
+                                        cert.getNotAfter().getTime());
+                                }
+                            });
                         if (cert != null)
                         {
                             if (!cert.getIssuerDN().equals(cert.getSubjectDN()))
@@ -1006,6 +1018,85 @@ public class CertificateServiceImpl
         };
     }
 
+    /**
+     * Downloads the issuer certificate of a certificate.
+     *
+     * @param uri the location of the issuer certificate
+     * @param child the certificate whose issuer is downloaded
+     * @param certFactory the factory parsing the downloaded certificate
+     * @return the issuer certificate or <tt>null</tt> if it could not be
+     * downloaded
+     */
+    private static X509Certificate downloadCertificate(URI uri,
+        X509Certificate child, CertificateFactory certFactory)
+    {
+        if (logger.isDebugEnabled())
+            logger.debug("Downloading parent certificate for <"
+                + child.getSubjectDN() + "> from <" + uri + ">");
+        try
+        {
+            InputStream is =
+                HttpUtils.openURLConnection(uri.toString()).getContent();
+            try
+            {
+                return (X509Certificate) certFactory.generateCertificate(is);
+            }
+            finally
+            {
+                is.close();
+            }
+        }
+        catch (Exception e)
+        {
+            logger.debug("Could not download from <" + uri + ">");
+            return null;
+        }
+    }
+
+    /**
+     * Checks a chain with the default trust manager, unless it already
+     * accepted it recently. Parallel checks of the same chain wait for the
+     * first one.
+     *
+     * @param tm the default trust manager
+     * @param chain the chain to check
+     * @param authType the authentication type
+     * @param serverCheck <tt>true</tt> to check a server certificate,
+     * <tt>false</tt> for a client one
+     * @throws CertificateException if the trust manager rejects the chain
+     */
+    private void checkChainTrusted(final X509TrustManager tm,
+        final X509Certificate[] chain, final String authType,
+        final boolean serverCheck) throws CertificateException
+    {
+        StringBuilder key = new StringBuilder(serverCheck ? "server" : "client")
+            .append(':').append(authType);
+        for (X509Certificate cert : chain)
+            key.append(':').append(getThumbprint(cert, CACHE_HASH_ALGORITHM));
+
+        validationCache.get(key.toString(), new ExpiringCache.Loader<Long>()
+        {
+            Long load() throws CertificateException
+            {
+                if(serverCheck)
+                    tm.checkServerTrusted(chain, authType);
+                else
+                    tm.checkClientTrusted(chain, authType);
+
+                long expiry =
+                    System.currentTimeMillis() + VALIDATION_CACHE_TTL;
+                for (X509Certificate cert : chain)
+                    expiry = Math.min(expiry, cert.getNotAfter().getTime());
+                return expiry;
+            }
+
+            long getExpiry(Long expiry)
+            {
+                return expiry;
+            }
+        });
+    }
+
     protected class BrowserLikeHostnameMatcher
         implements CertificateMatcher
     {
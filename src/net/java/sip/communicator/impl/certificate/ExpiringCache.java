@@ -0,0 +1,277 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.certificate;
+
+import java.security.cert.*;
+import java.util.*;
+
+/**
+ * A thread-safe cache of a bounded number of values, each expiring at its own
+ * time. The threads asking for a value which is being loaded wait for it
+ * instead of loading it again, so that parallel connections to the same
+ * server cost a single validation or download.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+class ExpiringCache<K, V>
+{
+    /**
+     * Loads a missing or expired value.
+     *
+     * @param <V> the type of the value
+     */
+    static abstract class Loader<V>
+    {
+        /**
+         * Loads the value.
+         *
+         * @return the value, can be <tt>null</tt>
+         * @throws CertificateException if the value cannot be loaded, the
+         * failure is not cached
+         */
+        abstract V load()
+            throws CertificateException;
+
+        /**
+         * Returns the time until which a loaded value can be used.
+         *
+         * @param value the loaded value
+         * @return the expiry time in milliseconds since the epoch
+         */
+        abstract long getExpiry(V value);
+    }
+
+    /**
+     * The entries by key, the least recently used first.
+     */
+    private final Map<K, CacheEntry<V>> entries;
+
+    /**
+     * Creates a cache.
+     *
+     * @param maxSize the number of entries above which the least recently
+     * used ones are dropped
+     */
+    ExpiringCache(final int maxSize)
+    {
+        entries = new LinkedHashMap<K, CacheEntry<V>>(16, 0.75f, true)
+        {
+            /**
+             * Serial version UID.
+             */
+            private static final long serialVersionUID = 0L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                Map.Entry<K, CacheEntry<V>> eldest)
+            {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Returns the value of a key, loading it if it is missing or expired. If
+     * another thread is loading it, waits for its result.
+     *
+     * @param key the key
+     * @param loader loads the value if needed
+     * @return the value
+     * @throws CertificateException if the value could not be loaded
+     */
+    V get(K key, Loader<V> loader)
+        throws CertificateException
+    {
+        CacheEntry<V> entry;
+        boolean load = false;
+
+        synchronized (this)
+        {
+            entry = entries.get(key);
+            if ((entry != null) && entry.isExpired())
+            {
+                entry = null;
+            }
+            if (entry == null)
+            {
+                entry = new CacheEntry<V>();
+                entries.put(key, entry);
+                load = true;
+            }
+        }
+
+        if (load)
+        {
+            CertificateException failure = null;
+
+            try
+            {
+                V value = loader.load();
+
+                entry.loaded(value, loader.getExpiry(value));
+            }
+            catch (CertificateException e)
+            {
+                failure = e;
+            }
+            catch (RuntimeException e)
+            {
+                failure = new CertificateException(e);
+            }
+            finally
+            {
+                if (!entry.isDone())
+                {
+                    // loader.load() threw an Error or one of the above
+                    entry.failed(
+                        (failure == null)
+                            ? new CertificateException("Loading failed")
+                            : failure);
+                    remove(key, entry);
+                }
+            }
+        }
+
+        return entry.getValue();
+    }
+
+    /**
+     * Removes the entry of a key if it was not replaced meanwhile.
+     *
+     * @param key the key
+     * @param entry the entry to remove
+     */
+    private synchronized void remove(K key, CacheEntry<V> entry)
+    {
+        if (entries.get(key) == entry)
+            entries.remove(key);
+    }
+
+    /**
+     * Removes all the entries.
+     */
+    synchronized void clear()
+    {
+        entries.clear();
+    }
+
+    /**
+     * A value being loaded or loaded.
+     *
+     * @param <V> the type of the value
+     */
+    private static class CacheEntry<V>
+    {
+        /**
+         * Whether the loading is over.
+         */
+        private boolean done = false;
+
+        /**
+         * The loaded value.
+         */
+        private V value;
+
+        /**
+         * The reason the loading failed, <tt>null</tt> if it did not.
+         */
+        private CertificateException failure;
+
+        /**
+         * The time until which the value can be used.
+         */
+        private long expiry;
+
+        /**
+         * Sets the loaded value and wakes the waiting threads.
+         *
+         * @param value the value
+         * @param expiry the time until which the value can be used
+         */
+        synchronized void loaded(V value, long expiry)
+        {
+            this.value = value;
+            this.expiry = expiry;
+            done = true;
+            notifyAll();
+        }
+
+        /**
+         * Sets the reason the loading failed and wakes the waiting threads.
+         *
+         * @param failure the reason the loading failed
+         */
+        synchronized void failed(CertificateException failure)
+        {
+            this.failure = failure;
+            done = true;
+            notifyAll();
+        }
+
+        /**
+         * Determines whether the loading is over.
+         *
+         * @return <tt>true</tt> if the loading is over
+         */
+        synchronized boolean isDone()
+        {
+            return done;
+        }
+
+        /**
+         * Determines whether the value was loaded and cannot be used anymore.
+         *
+         * @return <tt>true</tt> if the value expired
+         */
+        synchronized boolean isExpired()
+        {
+            return done && (expiry <= System.currentTimeMillis());
+        }
+
+        /**
+         * Waits for the loading to be over and returns its result.
+         *
+         * @return the value
+         * @throws CertificateException if the loading failed
+         */
+        synchronized V getValue()
+            throws CertificateException
+        {
+            boolean interrupted = false;
+
+            while (!done)
+            {
+                try
+                {
+                    wait();
+                }
+                catch (InterruptedException e)
+                {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+
+            if (failure != null)
+                throw failure;
+            return value;
+        }
+    }
+}
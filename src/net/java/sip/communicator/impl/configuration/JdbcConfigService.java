@@ -22,6 +22,7 @@ import java.io.*;
 import java.sql.*;
 import java.sql.Statement;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.regex.Pattern;
 
 import org.jitsi.service.configuration.*;
@@ -32,6 +33,11 @@ import com.google.common.collect.*;
 
 /**
  * Implementation of the {@link ConfigurationService} based on JDBC.
+ * <p>
+ * The whole table is kept in memory, so that reading a property never
+ * touches the database. Changes are applied to the memory at once and
+ * written to the database by a background thread, in one transaction for
+ * all the changes made within {@link #WRITE_DELAY} milliseconds.
  * 
  * @author Ingo Bauersachs
  */
@@ -57,6 +63,18 @@ public final class JdbcConfigService
     private static final String DEFAULT_OVERRIDES_PROPS_FILE_NAME
         = "jitsi-default-overrides.properties";
 
+    /**
+     * The number of milliseconds the changes are collected before being
+     * written to the database in one transaction.
+     */
+    private static final long WRITE_DELAY = 100;
+
+    /**
+     * The maximum number of milliseconds between two attempts to write the
+     * changes while the database keeps failing.
+     */
+    private static final long MAX_RETRY_DELAY = 60000;
+
     /**
      * A set of immutable properties deployed with the application during
      * install time. The properties in this file will be impossible to override
@@ -76,6 +94,83 @@ public final class JdbcConfigService
     private Map<String, String> defaultProperties
         = new HashMap<String, String>();
 
+    /**
+     * The properties stored in the database, sorted by name so that the
+     * properties with a given prefix are next to each other.
+     */
+    private final ConcurrentNavigableMap<String, String> storedProperties
+        = new ConcurrentSkipListMap<String, String>();
+
+    /**
+     * The names of the stored properties by the part of their name following
+     * the last dot. Modified only while holding the lock of this instance.
+     */
+    private final ConcurrentMap<String, Set<String>> namesBySuffix
+        = new ConcurrentHashMap<String, Set<String>>();
+
+    /**
+     * The changes not written to the database yet, a <tt>null</tt> value
+     * deleting the property. Guarded by the lock of this instance.
+     */
+    private Map<String, String> pendingWrites
+        = new LinkedHashMap<String, String>();
+
+    /**
+     * Whether a write of the pending changes is scheduled. Guarded by the
+     * lock of this instance.
+     */
+    private boolean writeScheduled = false;
+
+    /**
+     * The number of milliseconds before the next attempt to write the
+     * changes after the last one failed, <tt>0</tt> if it succeeded. Guarded
+     * by the lock of this instance.
+     */
+    private long retryDelay = 0;
+
+    /**
+     * The lock protecting the use of the connection. It is acquired before
+     * the lock of this instance when both are needed.
+     */
+    private final Object databaseLock = new Object();
+
+    /**
+     * The thread writing the changes to the database.
+     */
+    private final ScheduledExecutorService writeExecutor
+        = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory()
+            {
+                public Thread newThread(Runnable runnable)
+                {
+                    Thread thread
+                        = new Thread(runnable, "JdbcConfigService writer");
+
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * The task writing the pending changes.
+     */
+    private final Runnable writeTask = new Runnable()
+    {
+        public void run()
+        {
+            try
+            {
+                writePendingChanges();
+            }
+            catch (Throwable t)
+            {
+                logger.error("Failed to store configuration changes", t);
+                if (t instanceof ThreadDeath)
+                    throw (ThreadDeath) t;
+            }
+        }
+    };
+
     /**
      * Registered property change listeners that may veto a change.
      */
@@ -94,8 +189,6 @@ public final class JdbcConfigService
     private Connection connection;
 
     // SQL statements for queries against the database
-    private PreparedStatement selectExact;
-    private PreparedStatement selectLike;
     private PreparedStatement selectAll;
     private PreparedStatement insertOrUpdate;
     private PreparedStatement delete;
@@ -128,9 +221,10 @@ public final class JdbcConfigService
             migrate = true;
         }
 
-        // open the connection
+        // open the connection and read what it contains
         Class.forName("org.hsqldb.jdbc.JDBCDriver");
         checkConnection();
+        loadStoredProperties();
 
         // then do the actual migration
         if (migrate)
@@ -138,14 +232,12 @@ public final class JdbcConfigService
             Properties p = new Properties();
             p.load(new FileInputStream(oldProps));
 
-            this.connection.setAutoCommit(false);
             for (Map.Entry<Object, Object> e : p.entrySet())
             {
                 this.setProperty(e.getKey().toString(), e.getValue(), false);
             }
 
-            this.connection.commit();
-            this.connection.setAutoCommit(true);
+            writePendingChanges();
         }
 
         // and finally load the (mandatory) system properties
@@ -203,10 +295,6 @@ public final class JdbcConfigService
             + "k LONGVARCHAR UNIQUE, v LONGVARCHAR"
             + ")");
 
-        this.selectExact = this.connection.prepareStatement(
-            "SELECT v FROM Props WHERE k=?");
-        this.selectLike = this.connection.prepareStatement(
-            "SELECT k, v FROM Props WHERE k LIKE ?");
         this.selectAll = this.connection.prepareStatement(
             "SELECT k, v FROM Props");
         this.insertOrUpdate = this.connection.prepareStatement(
@@ -218,6 +306,172 @@ public final class JdbcConfigService
             "DELETE FROM Props WHERE k=?");
     }
 
+    /**
+     * Reads all the properties stored in the database into memory.
+     * 
+     * @throws SQLException
+     */
+    private synchronized void loadStoredProperties() throws SQLException
+    {
+        ResultSet q = this.selectAll.executeQuery();
+        while (q.next())
+        {
+            this.cacheProperty(q.getString(1), q.getString(2));
+        }
+    }
+
+    /**
+     * Updates the in-memory copy of a stored property and the index of the
+     * property names by suffix. Must be called while holding the lock of
+     * this instance.
+     * 
+     * @param propertyName the name of the property
+     * @param value the new value or <tt>null</tt> if the property is deleted
+     */
+    private void cacheProperty(String propertyName, String value)
+    {
+        int ix = propertyName.lastIndexOf('.');
+        String suffix = (ix == -1) ? null : propertyName.substring(ix + 1);
+
+        if (value == null)
+        {
+            this.storedProperties.remove(propertyName);
+            if (suffix != null)
+            {
+                Set<String> names = this.namesBySuffix.get(suffix);
+                if (names != null)
+                {
+                    names.remove(propertyName);
+                }
+            }
+        }
+        else
+        {
+            this.storedProperties.put(propertyName, value);
+            if (suffix != null)
+            {
+                Set<String> names = this.namesBySuffix.get(suffix);
+                if (names == null)
+                {
+                    names = new ConcurrentSkipListSet<String>();
+                    this.namesBySuffix.put(suffix, names);
+                }
+                names.add(propertyName);
+            }
+        }
+    }
+
+    /**
+     * Queues the write of a changed property to the database. Must be called
+     * while holding the lock of this instance.
+     * 
+     * @param propertyName the name of the property
+     * @param value the new value or <tt>null</tt> if the property is deleted
+     */
+    private void scheduleWrite(String propertyName, String value)
+    {
+        this.pendingWrites.put(propertyName, value);
+        if (!this.writeScheduled)
+        {
+            this.writeScheduled = true;
+            this.writeExecutor.schedule(
+                this.writeTask, WRITE_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writes the pending changes to the database in one transaction. If the
+     * transaction fails, the changes are kept and written again later, the
+     * delay doubling with each failure up to {@link #MAX_RETRY_DELAY}.
+     * 
+     * @throws SQLException
+     */
+    private void writePendingChanges() throws SQLException
+    {
+        synchronized (this.databaseLock)
+        {
+            Map<String, String> writes;
+            synchronized (this)
+            {
+                writes = this.pendingWrites;
+                this.pendingWrites = new LinkedHashMap<String, String>();
+                this.writeScheduled = false;
+            }
+
+            if (writes.isEmpty())
+            {
+                return;
+            }
+
+            try
+            {
+                this.checkConnection();
+                this.connection.setAutoCommit(false);
+                try
+                {
+                    for (Map.Entry<String, String> e : writes.entrySet())
+                    {
+                        if (e.getValue() == null)
+                        {
+                            this.delete.setString(1, e.getKey());
+                            this.delete.addBatch();
+                        }
+                        else
+                        {
+                            this.insertOrUpdate.setString(1, e.getKey());
+                            this.insertOrUpdate.setString(2, e.getValue());
+                            this.insertOrUpdate.addBatch();
+                        }
+                    }
+
+                    // each property is written once, the order of the
+                    // deletes and updates does not matter
+                    this.delete.executeBatch();
+                    this.insertOrUpdate.executeBatch();
+                    this.connection.commit();
+                    synchronized (this)
+                    {
+                        this.retryDelay = 0;
+                    }
+                }
+                catch (SQLException e)
+                {
+                    this.delete.clearBatch();
+                    this.insertOrUpdate.clearBatch();
+                    this.connection.rollback();
+                    throw e;
+                }
+                finally
+                {
+                    this.connection.setAutoCommit(true);
+                }
+            }
+            catch (SQLException e)
+            {
+                // keep the changes, unless they were made again meanwhile, and
+                // try again later
+                synchronized (this)
+                {
+                    writes.putAll(this.pendingWrites);
+                    this.pendingWrites = writes;
+                    this.retryDelay
+                        = (this.retryDelay == 0)
+                            ? WRITE_DELAY
+                            : Math.min(2 * this.retryDelay, MAX_RETRY_DELAY);
+                    if (!this.writeScheduled)
+                    {
+                        this.writeScheduled = true;
+                        this.writeExecutor.schedule(
+                            this.writeTask,
+                            this.retryDelay,
+                            TimeUnit.MILLISECONDS);
+                    }
+                }
+                throw e;
+            }
+        }
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -266,29 +520,14 @@ public final class JdbcConfigService
                 return;
             }
 
-            try
-            {
-                this.checkConnection();
-                Object oldValue = this.getProperty(propertyName);
-                this.fireVetoableChange(propertyName, oldValue, property);
-                if (property == null)
-                {
-                    this.delete.setString(1, propertyName);
-                    this.delete.execute();
-                }
-                else
-                {
-                    this.insertOrUpdate.setString(1, propertyName);
-                    this.insertOrUpdate.setString(2, property.toString());
-                    this.insertOrUpdate.execute();
-                }
+            Object oldValue = this.getProperty(propertyName);
+            this.fireVetoableChange(propertyName, oldValue, property);
 
-                this.fireChange(propertyName, oldValue, property);
-            }
-            catch (SQLException e)
-            {
-                throw new RuntimeException(e);
-            }
+            String value = (property == null) ? null : property.toString();
+            this.cacheProperty(propertyName, value);
+            this.scheduleWrite(propertyName, value);
+
+            this.fireChange(propertyName, oldValue, property);
         }
     }
 
@@ -302,21 +541,10 @@ public final class JdbcConfigService
     @Override
     public synchronized void setProperties(Map<String, Object> properties)
     {
-        try
+        // the changes are written together with the next batch
+        for (Map.Entry<String, Object> e : properties.entrySet())
         {
-            checkConnection();
-            this.connection.setAutoCommit(false);
-            for (Map.Entry<String, Object> e : properties.entrySet())
-            {
-                this.setProperty(e.getKey(), e.getValue(), false);
-            }
-
-            this.connection.commit();
-            this.connection.setAutoCommit(true);
-        }
-        catch (SQLException e1)
-        {
-            throw new RuntimeException(e1);
+            this.setProperty(e.getKey(), e.getValue(), false);
         }
     }
 
@@ -328,7 +556,7 @@ public final class JdbcConfigService
      * .lang.String)
      */
     @Override
-    public synchronized Object getProperty(String propertyName)
+    public Object getProperty(String propertyName)
     {
         Object value = immutableDefaultProperties.get(propertyName);
         if (value != null)
@@ -336,22 +564,7 @@ public final class JdbcConfigService
             return value;
         }
 
-        try
-        {
-            this.checkConnection();
-            this.selectExact.setString(1, propertyName);
-            ResultSet q = this.selectExact.executeQuery();
-            if (q.next())
-            {
-                value = q.getString(1);
-            }
-        }
-        catch (SQLException e)
-        {
-            logger.error(e);
-            throw new RuntimeException(e);
-        }
-
+        value = this.storedProperties.get(propertyName);
         if (value != null)
         {
             return value;
@@ -398,21 +611,7 @@ public final class JdbcConfigService
         List<String> data = new ArrayList<String>(
             immutableDefaultProperties.keySet());
         data.addAll(defaultProperties.keySet());
-        try
-        {
-            this.checkConnection();
-            ResultSet q = this.selectAll.executeQuery();
-            while (q.next())
-            {
-                data.add(q.getString(1));
-            }
-        }
-        catch (SQLException e)
-        {
-            logger.error(e);
-            throw new RuntimeException(e);
-        }
-
+        data.addAll(this.storedProperties.keySet());
         return data;
     }
 
@@ -427,46 +626,38 @@ public final class JdbcConfigService
     public List<String> getPropertyNamesByPrefix(String prefix,
         boolean exactPrefixMatch)
     {
-        try
+        List<String> resultSet = new ArrayList<String>(50);
+
+        // the names starting with the prefix follow it in the sorted map
+        for (String key : this.storedProperties.tailMap(prefix).keySet())
         {
-            List<String> resultSet = new ArrayList<String>(50);
-            this.checkConnection();
-            this.selectLike.setString(1, prefix + "%");
-            ResultSet q = this.selectLike.executeQuery();
-            while (q.next())
+            if (!key.startsWith(prefix))
             {
-                String key = q.getString(1);
+                break;
+            }
 
-                if(exactPrefixMatch)
+            if(exactPrefixMatch)
+            {
+                int ix = key.lastIndexOf('.');
+                if(ix == -1)
                 {
-                    int ix = key.lastIndexOf('.');
-                    if(ix == -1)
-                    {
-                        continue;
-                    }
+                    continue;
+                }
 
-                    String keyPrefix = key.substring(0, ix);
+                String keyPrefix = key.substring(0, ix);
 
-                    if(prefix.equals(keyPrefix))
-                    {
-                        resultSet.add(key);
-                    }
-                }
-                else
+                if(prefix.equals(keyPrefix))
                 {
-                    if(key.startsWith(prefix))
-                    {
-                        resultSet.add(key);
-                    }
+                    resultSet.add(key);
                 }
             }
-
-            return resultSet;
-        }
-        catch (SQLException e)
-        {
-            throw new RuntimeException(e);
+            else
+            {
+                resultSet.add(key);
+            }
         }
+
+        return resultSet;
     }
 
     /*
@@ -479,26 +670,13 @@ public final class JdbcConfigService
     @Override
     public List<String> getPropertyNamesBySuffix(String suffix)
     {
-        try
-        {
-            List<String> resultKeySet = new ArrayList<String>(20);
-            this.checkConnection();
-            this.selectLike.setString(1, "%" + suffix);
-            ResultSet q = this.selectLike.executeQuery();
-            while (q.next())
-            {
-                String key = q.getString(1);
-                int ix = key.lastIndexOf('.');
-                if (ix != -1 && suffix.equals(key.substring(ix + 1)))
-                    resultKeySet.add(key);
-            }
-
-            return resultKeySet;
-        }
-        catch (SQLException e)
+        Set<String> names = this.namesBySuffix.get(suffix);
+        if (names == null)
         {
-            throw new RuntimeException(e);
+            return new ArrayList<String>(0);
         }
+
+        return new ArrayList<String>(names);
     }
 
     /*
@@ -736,17 +914,34 @@ public final class JdbcConfigService
     @Override
     public void storeConfiguration() throws IOException
     {
-        try
-        {
-            this.connection.close();
-        }
-        catch (SQLException e)
-        {
-            logger.error(e);
-        }
-        finally
+        synchronized (this.databaseLock)
         {
-            this.connection = null;
+            try
+            {
+                this.writePendingChanges();
+            }
+            catch (SQLException e)
+            {
+                logger.error("Failed to store configuration changes", e);
+            }
+
+            if (this.connection == null)
+            {
+                return;
+            }
+
+            try
+            {
+                this.connection.close();
+            }
+            catch (SQLException e)
+            {
+                logger.error(e);
+            }
+            finally
+            {
+                this.connection = null;
+            }
         }
     }
 
@@ -769,16 +964,26 @@ public final class JdbcConfigService
     @Override
     public void purgeStoredConfiguration()
     {
-        try
-        {
-            this.checkConnection();
-            Statement st = this.connection.createStatement();
-            st.executeUpdate("TRUNCATE TABLE Props");
-        }
-        catch (SQLException e)
+        synchronized (this.databaseLock)
         {
-            logger.error(e);
-            throw new RuntimeException(e);
+            synchronized (this)
+            {
+                this.pendingWrites.clear();
+                this.storedProperties.clear();
+                this.namesBySuffix.clear();
+            }
+
+            try
+            {
+                this.checkConnection();
+                Statement st = this.connection.createStatement();
+                st.executeUpdate("TRUNCATE TABLE Props");
+            }
+            catch (SQLException e)
+            {
+                logger.error(e);
+                throw new RuntimeException(e);
+            }
         }
     }
 
@@ -0,0 +1,573 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.service.contactlist.event.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * Delivers the events of the meta contact list to its listeners.
+ * <p>
+ * Plain <tt>MetaContactListListener</tt>s are notified in the thread firing
+ * the event, as they always were. Every
+ * <tt>AsynchronousMetaContactListListener</tt> gets a queue of its own, which
+ * a thread of a shared pool drains in order, so a slow listener only delays
+ * its own events. An event replacing one which is still waiting in a queue,
+ * such as another reordering of the same group, takes the place of the
+ * waiting one in the queue.
+ */
+public class MclEventDispatcher
+{
+    /**
+     * Our logger.
+     */
+    private static final Logger logger
+        = Logger.getLogger(MclEventDispatcher.class);
+
+    /**
+     * The queues of the asynchronous listeners.
+     */
+    private final Map<MetaContactListListener, ListenerQueue> queues
+        = new HashMap<MetaContactListListener, ListenerQueue>();
+
+    /**
+     * The threads draining the queues.
+     */
+    private final ExecutorService executor
+        = Executors.newCachedThreadPool(new ThreadFactory()
+        {
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "MclEventDispatcher");
+
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    /**
+     * Delivers an event to listeners.
+     *
+     * @param event the event
+     * @param listeners the listeners
+     */
+    void fireEvent(EventObject event, MetaContactListListener[] listeners)
+    {
+        Object key = getCoalescingKey(event);
+
+        for (MetaContactListListener listener : listeners)
+        {
+            if (listener instanceof AsynchronousMetaContactListListener)
+                getQueue(listener).add(event, key);
+            else
+                deliver(listener, event);
+        }
+    }
+
+    /**
+     * Forgets the queue of a listener once the events fired before its
+     * removal have been delivered.
+     *
+     * @param listener the removed listener
+     */
+    void listenerRemoved(MetaContactListListener listener)
+    {
+        synchronized (queues)
+        {
+            ListenerQueue queue = queues.get(listener);
+
+            if (queue != null)
+            {
+                synchronized (queue)
+                {
+                    if (queue.scheduled)
+                        queue.removed = true;
+                    else
+                        queues.remove(listener);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of events waiting to be delivered to a listener.
+     *
+     * @param listener the listener
+     * @return the number of events waiting to be delivered to
+     * <tt>listener</tt>
+     */
+    public int getBacklog(MetaContactListListener listener)
+    {
+        ListenerQueue queue = findQueue(listener);
+
+        if (queue == null)
+            return 0;
+        synchronized (queue)
+        {
+            return queue.backlog;
+        }
+    }
+
+    /**
+     * Returns the number of events delivered to a listener.
+     *
+     * @param listener the listener
+     * @return the number of events delivered to <tt>listener</tt>
+     */
+    public long getDeliveredCount(MetaContactListListener listener)
+    {
+        ListenerQueue queue = findQueue(listener);
+
+        if (queue == null)
+            return 0;
+        synchronized (queue)
+        {
+            return queue.deliveredCount;
+        }
+    }
+
+    /**
+     * Returns the number of events of a listener which were replaced by a
+     * later event before being delivered.
+     *
+     * @param listener the listener
+     * @return the number of events of <tt>listener</tt> which were replaced
+     */
+    public long getCoalescedCount(MetaContactListListener listener)
+    {
+        ListenerQueue queue = findQueue(listener);
+
+        if (queue == null)
+            return 0;
+        synchronized (queue)
+        {
+            return queue.coalescedCount;
+        }
+    }
+
+    /**
+     * Returns the average time in milliseconds between the firing of an
+     * event and the end of its delivery to a listener.
+     *
+     * @param listener the listener
+     * @return the average delivery latency of <tt>listener</tt>
+     */
+    public long getAverageLatency(MetaContactListListener listener)
+    {
+        ListenerQueue queue = findQueue(listener);
+
+        if (queue == null)
+            return 0;
+        synchronized (queue)
+        {
+            return (queue.deliveredCount == 0)
+                ? 0
+                : queue.totalLatency / queue.deliveredCount;
+        }
+    }
+
+    /**
+     * Returns the longest time in milliseconds between the firing of an
+     * event and the end of its delivery to a listener.
+     *
+     * @param listener the listener
+     * @return the maximum delivery latency of <tt>listener</tt>
+     */
+    public long getMaxLatency(MetaContactListListener listener)
+    {
+        ListenerQueue queue = findQueue(listener);
+
+        if (queue == null)
+            return 0;
+        synchronized (queue)
+        {
+            return queue.maxLatency;
+        }
+    }
+
+    /**
+     * Returns the queue of an asynchronous listener, creating it if needed.
+     *
+     * @param listener the listener
+     * @return the queue of <tt>listener</tt>
+     */
+    private ListenerQueue getQueue(MetaContactListListener listener)
+    {
+        synchronized (queues)
+        {
+            ListenerQueue queue = queues.get(listener);
+
+            if (queue == null)
+            {
+                queue = new ListenerQueue(listener);
+                queues.put(listener, queue);
+            }
+            else
+            {
+                // the listener has been added again
+                synchronized (queue)
+                {
+                    queue.removed = false;
+                }
+            }
+            return queue;
+        }
+    }
+
+    /**
+     * Returns the queue of a listener if it has one.
+     *
+     * @param listener the listener
+     * @return the queue of <tt>listener</tt> or <tt>null</tt>
+     */
+    private ListenerQueue findQueue(MetaContactListListener listener)
+    {
+        synchronized (queues)
+        {
+            return queues.get(listener);
+        }
+    }
+
+    /**
+     * Returns the key identifying the events which a later event with the
+     * same key makes redundant.
+     *
+     * @param event the event
+     * @return the key of <tt>event</tt> or <tt>null</tt> if the event is to
+     * be delivered in any case
+     */
+    private static Object getCoalescingKey(EventObject event)
+    {
+        if (event instanceof MetaContactGroupEvent)
+        {
+            MetaContactGroupEvent evt = (MetaContactGroupEvent) event;
+
+            // the listeners re-sort the group whatever the provider
+            if (evt.getEventID()
+                    == MetaContactGroupEvent.CHILD_CONTACTS_REORDERED)
+            {
+                return Arrays.<Object>asList(
+                    MetaContactGroupEvent.CHILD_CONTACTS_REORDERED,
+                    evt.getSourceMetaContactGroup());
+            }
+        }
+        else if (event instanceof ProtoContactEvent)
+        {
+            ProtoContactEvent evt = (ProtoContactEvent) event;
+
+            if (ProtoContactEvent.PROTO_CONTACT_MODIFIED.equals(
+                    evt.getPropertyName()))
+            {
+                return Arrays.<Object>asList(
+                    ProtoContactEvent.PROTO_CONTACT_MODIFIED,
+                    evt.getProtoContact(),
+                    evt.getNewParent());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Calls the method of a listener handling an event.
+     *
+     * @param listener the listener
+     * @param event the event
+     */
+    private static void deliver(MetaContactListListener listener,
+                                EventObject event)
+    {
+        if (event instanceof MetaContactEvent)
+        {
+            MetaContactEvent evt = (MetaContactEvent) event;
+
+            switch (evt.getEventID())
+            {
+                case MetaContactEvent.META_CONTACT_ADDED:
+                    listener.metaContactAdded(evt);
+                    break;
+                case MetaContactEvent.META_CONTACT_REMOVED:
+                    listener.metaContactRemoved(evt);
+                    break;
+                default:
+                    logger.error("Unknown event type " + evt.getEventID());
+            }
+        }
+        else if (event instanceof MetaContactGroupEvent)
+        {
+            MetaContactGroupEvent evt = (MetaContactGroupEvent) event;
+
+            switch (evt.getEventID())
+            {
+                case MetaContactGroupEvent.META_CONTACT_GROUP_ADDED:
+                    listener.metaContactGroupAdded(evt);
+                    break;
+                case MetaContactGroupEvent.META_CONTACT_GROUP_REMOVED:
+                    listener.metaContactGroupRemoved(evt);
+                    break;
+                case MetaContactGroupEvent.CHILD_CONTACTS_REORDERED:
+                    listener.childContactsReordered(evt);
+                    break;
+                case MetaContactGroupEvent
+                    .META_CONTACT_GROUP_RENAMED:
+                case MetaContactGroupEvent
+                    .CONTACT_GROUP_RENAMED_IN_META_GROUP:
+                case MetaContactGroupEvent
+                    .CONTACT_GROUP_REMOVED_FROM_META_GROUP:
+                case MetaContactGroupEvent
+                    .CONTACT_GROUP_ADDED_TO_META_GROUP:
+                    listener.metaContactGroupModified(evt);
+                    break;
+                default:
+                    logger.error("Unknown event type (" + evt.getEventID()
+                                 + ") for event: " + evt);
+            }
+        }
+        else if (event instanceof MetaContactMovedEvent)
+        {
+            listener.metaContactMoved((MetaContactMovedEvent) event);
+        }
+        else if (event instanceof MetaContactRenamedEvent)
+        {
+            listener.metaContactRenamed((MetaContactRenamedEvent) event);
+        }
+        else if (event instanceof MetaContactModifiedEvent)
+        {
+            listener.metaContactModified((MetaContactModifiedEvent) event);
+        }
+        else if (event instanceof MetaContactAvatarUpdateEvent)
+        {
+            listener.metaContactAvatarUpdated(
+                (MetaContactAvatarUpdateEvent) event);
+        }
+        else if (event instanceof ProtoContactEvent)
+        {
+            ProtoContactEvent evt = (ProtoContactEvent) event;
+            String eventName = evt.getPropertyName();
+
+            if (eventName.equals(ProtoContactEvent.PROTO_CONTACT_ADDED))
+                listener.protoContactAdded(evt);
+            else if (eventName.equals(ProtoContactEvent.PROTO_CONTACT_MOVED))
+                listener.protoContactMoved(evt);
+            else if (eventName.equals(ProtoContactEvent.PROTO_CONTACT_REMOVED))
+                listener.protoContactRemoved(evt);
+            else if (eventName.equals(
+                        ProtoContactEvent.PROTO_CONTACT_MODIFIED))
+                listener.protoContactModified(evt);
+        }
+    }
+
+    /**
+     * An event waiting in a queue.
+     */
+    private static class PendingEvent
+    {
+        /**
+         * The event, replaced in place by the later events with the same
+         * key while it waits.
+         */
+        EventObject event;
+
+        /**
+         * The coalescing key of the event, <tt>null</tt> if it has none.
+         */
+        final Object key;
+
+        /**
+         * The time the first of the events was fired, in nanoseconds.
+         */
+        final long firedTime = System.nanoTime();
+
+        /**
+         * Creates a pending event.
+         *
+         * @param event the event
+         * @param key the coalescing key of the event
+         */
+        PendingEvent(EventObject event, Object key)
+        {
+            this.event = event;
+            this.key = key;
+        }
+    }
+
+    /**
+     * The events waiting to be delivered to an asynchronous listener, and
+     * the task delivering them.
+     */
+    private class ListenerQueue
+        implements Runnable
+    {
+        /**
+         * The listener.
+         */
+        final MetaContactListListener listener;
+
+        /**
+         * The events waiting to be delivered.
+         */
+        final LinkedList<PendingEvent> events = new LinkedList<PendingEvent>();
+
+        /**
+         * The waiting events which have a coalescing key, by key.
+         */
+        final Map<Object, PendingEvent> eventsByKey
+            = new HashMap<Object, PendingEvent>();
+
+        /**
+         * Whether a thread of the pool is draining the queue or is about to.
+         */
+        boolean scheduled = false;
+
+        /**
+         * Whether the listener has been removed, the queue is then
+         * forgotten once drained.
+         */
+        boolean removed = false;
+
+        /**
+         * The number of events waiting to be delivered.
+         */
+        int backlog = 0;
+
+        /**
+         * The number of events delivered.
+         */
+        long deliveredCount = 0;
+
+        /**
+         * The number of events replaced by a later one.
+         */
+        long coalescedCount = 0;
+
+        /**
+         * The sum of the delivery latencies in milliseconds.
+         */
+        long totalLatency = 0;
+
+        /**
+         * The longest delivery latency in milliseconds.
+         */
+        long maxLatency = 0;
+
+        /**
+         * Creates the queue of a listener.
+         *
+         * @param listener the listener
+         */
+        ListenerQueue(MetaContactListListener listener)
+        {
+            this.listener = listener;
+        }
+
+        /**
+         * Queues an event, or replaces the waiting one with the same key in
+         * its place in the queue.
+         *
+         * @param event the event
+         * @param key the coalescing key of the event or <tt>null</tt>
+         */
+        synchronized void add(EventObject event, Object key)
+        {
+            if (key != null)
+            {
+                PendingEvent waiting = eventsByKey.get(key);
+
+                if (waiting != null)
+                {
+                    waiting.event = event;
+                    coalescedCount++;
+                    return;
+                }
+            }
+
+            PendingEvent pending = new PendingEvent(event, key);
+
+            if (key != null)
+                eventsByKey.put(key, pending);
+            events.add(pending);
+            backlog++;
+
+            if (!scheduled)
+            {
+                scheduled = true;
+                executor.execute(this);
+            }
+        }
+
+        /**
+         * Delivers the waiting events until the queue is empty.
+         */
+        public void run()
+        {
+            while (true)
+            {
+                PendingEvent pending;
+                EventObject event;
+
+                synchronized (this)
+                {
+                    pending = events.poll();
+                    if (pending == null)
+                    {
+                        scheduled = false;
+                        break;
+                    }
+                    if (pending.key != null)
+                        eventsByKey.remove(pending.key);
+                    event = pending.event;
+                    backlog--;
+                }
+
+                try
+                {
+                    deliver(listener, event);
+                }
+                catch (Throwable t)
+                {
+                    logger.error("Error delivering " + event + " to "
+                        + listener, t);
+                    if (t instanceof ThreadDeath)
+                        throw (ThreadDeath) t;
+                }
+
+                long latency
+                    = (System.nanoTime() - pending.firedTime) / 1000000;
+
+                synchronized (this)
+                {
+                    deliveredCount++;
+                    totalLatency += latency;
+                    if (latency > maxLatency)
+                        maxLatency = latency;
+                }
+            }
+
+            synchronized (queues)
+            {
+                synchronized (this)
+                {
+                    if (removed && !scheduled && queues.get(listener) == this)
+                        queues.remove(listener);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.io.*;
+import java.util.*;
+
+import javax.xml.parsers.*;
+import javax.xml.transform.*;
+import javax.xml.transform.dom.*;
+import javax.xml.transform.stream.*;
+
+import net.java.sip.communicator.util.*;
+
+import org.jitsi.util.xml.XMLUtils;
+import org.w3c.dom.*;
+import org.xml.sax.*;
+
+/**
+ * The journal of the changes made to the meta contact list since the
+ * contact list file was last written. Every entry replaces or removes the
+ * node of a single meta contact or meta contact group, so storing a change
+ * costs the size of that node instead of the size of the whole list. The
+ * entries are appended to a file next to the contact list file and replayed
+ * on top of it when the list is loaded, until the list is written again and
+ * the journal is cleared.
+ */
+public class MclJournal
+{
+    /**
+     * Our logger.
+     */
+    private static final Logger logger = Logger.getLogger(MclJournal.class);
+
+    /**
+     * The extension added to the name of the contact list file to get the
+     * name of the journal file.
+     */
+    static final String JOURNAL_FILE_SUFFIX = ".journal";
+
+    /**
+     * The operation adding or replacing a meta contact node.
+     */
+    static final byte OP_PUT_CONTACT = 1;
+
+    /**
+     * The operation adding or replacing a meta contact group node.
+     */
+    static final byte OP_PUT_GROUP = 2;
+
+    /**
+     * The operation removing a meta contact node.
+     */
+    static final byte OP_REMOVE_CONTACT = 3;
+
+    /**
+     * The operation removing a meta contact group node.
+     */
+    static final byte OP_REMOVE_GROUP = 4;
+
+    /**
+     * The journal file.
+     */
+    private final File file;
+
+    /**
+     * Serializes the nodes of the entries.
+     */
+    private Transformer transformer = null;
+
+    /**
+     * Parses the nodes of the entries.
+     */
+    private DocumentBuilder builder = null;
+
+    /**
+     * Creates the journal of <tt>contactlistFile</tt>.
+     *
+     * @param contactlistFile the contact list file
+     */
+    MclJournal(File contactlistFile)
+    {
+        this.file = new File(contactlistFile.getPath() + JOURNAL_FILE_SUFFIX);
+    }
+
+    /**
+     * Returns the length in bytes of the journal.
+     *
+     * @return the length in bytes of the journal
+     */
+    long length()
+    {
+        return file.length();
+    }
+
+    /**
+     * Reads the entries of the journal. Entries the application could not
+     * finish writing are ignored.
+     *
+     * @return the entries of the journal, in order
+     * @throws IOException if reading the journal fails
+     */
+    List<Entry> read()
+        throws IOException
+    {
+        List<Entry> entries = new ArrayList<Entry>();
+
+        if (!file.exists())
+            return entries;
+
+        DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(file)));
+        try
+        {
+            while (true)
+            {
+                int op = in.read();
+
+                if (op == -1)
+                    break;
+
+                try
+                {
+                    String uid = in.readUTF();
+
+                    if (op == OP_REMOVE_CONTACT || op == OP_REMOVE_GROUP)
+                    {
+                        entries.add(new Entry((byte) op, uid, null, null, null));
+                    }
+                    else if (op == OP_PUT_CONTACT || op == OP_PUT_GROUP)
+                    {
+                        String parentUID = in.readUTF();
+                        String nextUID = in.readUTF();
+                        byte[] xml = new byte[in.readInt()];
+
+                        in.readFully(xml);
+                        entries.add(new Entry((byte) op, uid, parentUID,
+                            nextUID, new String(xml, "UTF-8")));
+                    }
+                    else
+                    {
+                        throw new IOException("Unknown operation " + op);
+                    }
+                }
+                catch (EOFException e)
+                {
+                    logger.warn("Ignoring truncated entry in " + file);
+                    break;
+                }
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        return entries;
+    }
+
+    /**
+     * Appends entries to the journal and waits for them to reach the disk.
+     *
+     * @param entries the entries
+     * @throws IOException if writing the journal fails
+     */
+    void append(List<Entry> entries)
+        throws IOException
+    {
+        if (entries.isEmpty())
+            return;
+
+        // the entries are written at once, a crash may only cut the last one
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        for (Entry entry : entries)
+        {
+            out.writeByte(entry.op);
+            out.writeUTF(entry.uid);
+            if (entry.xml != null)
+            {
+                byte[] xml = entry.xml.getBytes("UTF-8");
+
+                out.writeUTF(entry.parentUID);
+                out.writeUTF(entry.nextUID);
+                out.writeInt(xml.length);
+                out.write(xml);
+            }
+        }
+        out.flush();
+
+        FileOutputStream stream = new FileOutputStream(file, true);
+        try
+        {
+            bytes.writeTo(stream);
+            stream.getFD().sync();
+        }
+        finally
+        {
+            stream.close();
+        }
+    }
+
+    /**
+     * Deletes the journal once the contact list file holds all its changes.
+     */
+    void clear()
+    {
+        if (file.exists() && !file.delete())
+            logger.error("Failed to delete " + file);
+    }
+
+    /**
+     * Serializes the node of an entry.
+     *
+     * @param element the node
+     * @return the XML of the node
+     * @throws IOException if serializing fails
+     */
+    String toXml(Element element)
+        throws IOException
+    {
+        try
+        {
+            if (transformer == null)
+            {
+                transformer = TransformerFactory.newInstance().newTransformer();
+                transformer.setOutputProperty(
+                    OutputKeys.OMIT_XML_DECLARATION, "yes");
+            }
+
+            StringWriter writer = new StringWriter();
+
+            transformer.transform(
+                new DOMSource(element), new StreamResult(writer));
+            return writer.toString();
+        }
+        catch (TransformerException e)
+        {
+            throw new IOException("Failed to serialize " + element, e);
+        }
+    }
+
+    /**
+     * Parses the node of an entry into <tt>document</tt>.
+     *
+     * @param xml the XML of the node
+     * @param document the document the node is to be added to
+     * @return the node, owned by <tt>document</tt>
+     * @throws IOException if parsing fails
+     */
+    Element fromXml(String xml, Document document)
+        throws IOException
+    {
+        try
+        {
+            if (builder == null)
+            {
+                builder = XMLUtils.newDocumentBuilderFactory()
+                    .newDocumentBuilder();
+            }
+
+            Document parsed = builder.parse(
+                new InputSource(new StringReader(xml)));
+
+            return (Element) document.importNode(
+                parsed.getDocumentElement(), true);
+        }
+        catch (ParserConfigurationException e)
+        {
+            throw new IOException("Failed to parse journal entry", e);
+        }
+        catch (SAXException e)
+        {
+            throw new IOException("Failed to parse journal entry", e);
+        }
+    }
+
+    /**
+     * An entry of the journal.
+     */
+    static class Entry
+    {
+        /**
+         * The operation of the entry.
+         */
+        final byte op;
+
+        /**
+         * The UID of the meta contact or group.
+         */
+        final String uid;
+
+        /**
+         * The UID of the parent meta group, empty for the root group.
+         */
+        final String parentUID;
+
+        /**
+         * The UID of the next sibling, empty for the last child.
+         */
+        final String nextUID;
+
+        /**
+         * The XML of the node for put operations, <tt>null</tt> otherwise.
+         */
+        final String xml;
+
+        /**
+         * Creates an entry.
+         *
+         * @param op the operation
+         * @param uid the UID of the meta contact or group
+         * @param parentUID the UID of the parent group
+         * @param nextUID the UID of the next sibling
+         * @param xml the XML of the node
+         */
+        Entry(byte op, String uid, String parentUID, String nextUID,
+            String xml)
+        {
+            this.op = op;
+            this.uid = uid;
+            this.parentUID = parentUID;
+            this.nextUID = nextUID;
+            this.xml = xml;
+        }
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.util.*;
+
+import net.java.sip.communicator.service.protocol.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * Collects the presence status changes of the meta contacts during bursts,
+ * such as the one following the login of an account with a large roster, so
+ * that the meta contact list re-sorts every group once per batch and fires a
+ * single reordering event for it instead of one per status change.
+ * <p>
+ * Changes are applied at once by the thread reporting them until more than
+ * <tt>BURST_THRESHOLD</tt> of them arrive within <tt>BATCH_WINDOW</tt>
+ * milliseconds. From then on they are collected and applied every
+ * <tt>BATCH_WINDOW</tt> milliseconds, until a window passes without any.
+ */
+public class MclPresenceBatcher
+{
+    /**
+     * Our logger.
+     */
+    private static final Logger logger
+        = Logger.getLogger(MclPresenceBatcher.class);
+
+    /**
+     * The time in milliseconds during which changes are counted to detect a
+     * burst, and collected once one is detected.
+     */
+    static final long BATCH_WINDOW = 250;
+
+    /**
+     * The number of changes within <tt>BATCH_WINDOW</tt> milliseconds which
+     * starts the batching.
+     */
+    static final int BURST_THRESHOLD = 20;
+
+    /**
+     * The meta contact list whose changes we collect.
+     */
+    private final MetaContactListServiceImpl mclServiceImpl;
+
+    /**
+     * The meta contacts whose status changed since the last batch, with the
+     * provider of the last change.
+     */
+    private Map<MetaContactImpl, ProtocolProviderService> pending
+        = new LinkedHashMap<MetaContactImpl, ProtocolProviderService>();
+
+    /**
+     * The time the current counting window started.
+     */
+    private long windowStart = 0;
+
+    /**
+     * The number of changes in the current counting window.
+     */
+    private int windowCount = 0;
+
+    /**
+     * The thread applying the batches, <tt>null</tt> unless a burst is
+     * going on.
+     */
+    private Thread batchThread = null;
+
+    /**
+     * Whether the batcher is stopped, changes are then applied at once.
+     */
+    private boolean stopped = false;
+
+    /**
+     * Creates a batcher for the changes of <tt>mclServiceImpl</tt>.
+     *
+     * @param mclServiceImpl the meta contact list
+     */
+    MclPresenceBatcher(MetaContactListServiceImpl mclServiceImpl)
+    {
+        this.mclServiceImpl = mclServiceImpl;
+    }
+
+    /**
+     * Collects the status change of a meta contact if a burst is going on.
+     *
+     * @param metaContact the meta contact
+     * @param provider the provider of the protocol contact whose status
+     * changed
+     * @return <tt>true</tt> if the change will be applied with the next
+     * batch, <tt>false</tt> if the caller is to apply it
+     */
+    synchronized boolean offer(MetaContactImpl metaContact,
+                               ProtocolProviderService provider)
+    {
+        if (stopped)
+            return false;
+
+        if (batchThread == null)
+        {
+            long now = System.currentTimeMillis();
+
+            if (now - windowStart > BATCH_WINDOW)
+            {
+                windowStart = now;
+                windowCount = 0;
+            }
+            if (++windowCount <= BURST_THRESHOLD)
+                return false;
+
+            if (logger.isDebugEnabled())
+                logger.debug("Batching the presence changes of a burst");
+            startBatchThread();
+        }
+
+        pending.put(metaContact, provider);
+        return true;
+    }
+
+    /**
+     * Applies the collected changes and stops the batching.
+     */
+    void stop()
+    {
+        synchronized (this)
+        {
+            stopped = true;
+            notifyAll();
+        }
+        apply(takeBatch());
+    }
+
+    /**
+     * Takes the collected changes.
+     *
+     * @return the meta contacts whose status changed with their providers
+     */
+    private synchronized Map<MetaContactImpl, ProtocolProviderService>
+        takeBatch()
+    {
+        Map<MetaContactImpl, ProtocolProviderService> batch = pending;
+
+        pending = new LinkedHashMap<MetaContactImpl, ProtocolProviderService>();
+        return batch;
+    }
+
+    /**
+     * Applies a batch of changes, one group at a time.
+     *
+     * @param batch the meta contacts whose status changed with their
+     * providers
+     */
+    private void apply(Map<MetaContactImpl, ProtocolProviderService> batch)
+    {
+        if (batch.isEmpty())
+            return;
+
+        Map<MetaContactGroupImpl, List<MetaContactImpl>> byGroup
+            = new LinkedHashMap<MetaContactGroupImpl, List<MetaContactImpl>>();
+        Map<MetaContactGroupImpl, ProtocolProviderService> providers
+            = new HashMap<MetaContactGroupImpl, ProtocolProviderService>();
+
+        for (Map.Entry<MetaContactImpl, ProtocolProviderService> entry
+                : batch.entrySet())
+        {
+            MetaContactGroupImpl group = entry.getKey().getParentGroup();
+
+            // removed since its status changed
+            if (group == null)
+                continue;
+
+            List<MetaContactImpl> metaContacts = byGroup.get(group);
+
+            if (metaContacts == null)
+            {
+                metaContacts = new ArrayList<MetaContactImpl>();
+                byGroup.put(group, metaContacts);
+            }
+            metaContacts.add(entry.getKey());
+            providers.put(group, entry.getValue());
+        }
+
+        for (Map.Entry<MetaContactGroupImpl, List<MetaContactImpl>> entry
+                : byGroup.entrySet())
+        {
+            MetaContactGroupImpl group = entry.getKey();
+
+            if (group.reevalContacts(entry.getValue()))
+                mclServiceImpl.childContactsReordered(
+                    group, providers.get(group));
+        }
+
+        if (logger.isDebugEnabled())
+            logger.debug("Applied " + batch.size()
+                + " presence changes in " + byGroup.size() + " groups");
+    }
+
+    /**
+     * Starts the thread applying the batches.
+     */
+    private void startBatchThread()
+    {
+        batchThread = new Thread("MclPresenceBatcher")
+        {
+            @Override
+            public void run()
+            {
+                runBatches();
+            }
+        };
+        batchThread.setDaemon(true);
+        batchThread.start();
+    }
+
+    /**
+     * Applies a batch every <tt>BATCH_WINDOW</tt> milliseconds until a
+     * window passes without changes.
+     */
+    private void runBatches()
+    {
+        while (true)
+        {
+            Map<MetaContactImpl, ProtocolProviderService> batch;
+
+            synchronized (this)
+            {
+                if (!stopped)
+                {
+                    try
+                    {
+                        wait(BATCH_WINDOW);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        // apply what we have
+                    }
+                }
+
+                batch = takeBatch();
+                if (batch.isEmpty() || stopped)
+                {
+                    // the burst is over, count the changes again
+                    batchThread = null;
+                    windowStart = 0;
+                }
+            }
+
+            try
+            {
+                apply(batch);
+            }
+            catch (Throwable t)
+            {
+                logger.error("Failed to apply presence changes", t);
+                if (t instanceof ThreadDeath)
+                    throw (ThreadDeath) t;
+            }
+
+            synchronized (this)
+            {
+                if (batchThread != Thread.currentThread())
+                    return;
+            }
+        }
+    }
+}
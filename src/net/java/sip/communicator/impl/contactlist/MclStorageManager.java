@@ -19,6 +19,7 @@ package net.java.sip.communicator.impl.contactlist;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import javax.xml.parsers.*;
 
@@ -49,6 +50,12 @@ import org.w3c.dom.*;
  * belonging to this new provider. Unresolved proto groups and contacts will be
  * created for every one of them.
  * <p>
+ * Changes are not written by rewriting the whole file. The nodes of the meta
+ * contacts and groups changed since the last write are appended to a
+ * <tt>MclJournal</tt>, which is replayed when the file is loaded. The file
+ * itself is only rewritten, and the journal cleared, once the journal grows
+ * bigger than the file.
+ * <p>
  *
  * @author Emil Ivov
  */
@@ -88,6 +95,42 @@ public class MclStorageManager
      */
     private boolean isModified = false;
 
+    /**
+     * The meta contacts and groups changed since they were last stored,
+     * mapping their UIDs to whether they are groups.
+     */
+    private final Map<String, Boolean> changedNodes
+        = new LinkedHashMap<String, Boolean>();
+
+    /**
+     * Indicates whether the contact list changed in a way the journal cannot
+     * record, so that the whole file has to be written.
+     */
+    private boolean isCompactionNeeded = false;
+
+    /**
+     * The journal of the changes not yet written to the contact list file.
+     */
+    private MclJournal journal = null;
+
+    /**
+     * The minimum length in bytes the journal may reach before the contact
+     * list file is rewritten, whatever the size of the file.
+     */
+    private static final long MIN_COMPACTION_SIZE = 64 * 1024;
+
+    /**
+     * The nodes of the meta contacts by UID.
+     */
+    private final Map<String, Element> metaContactNodes
+        = new ConcurrentHashMap<String, Element>();
+
+    /**
+     * The nodes of the meta contact groups by UID.
+     */
+    private final Map<String, Element> metaContactGroupNodes
+        = new ConcurrentHashMap<String, Element>();
+
     /**
      * A currently valid reference to the OSGI bundle context,
      */
@@ -338,6 +381,8 @@ public class MclStorageManager
         multiTenantMode = configurationService.getBoolean(
             MULTI_TENANT_MODE_PROP, multiTenantMode);
 
+        journal = new MclJournal(contactlistFile);
+
         // create the failsafe transaction and restore the file if needed
         try
         {
@@ -373,6 +418,7 @@ public class MclStorageManager
                 try
                 {
                     contactListDocument = builder.parse(contactlistFile);
+                    indexNodes(contactListDocument.getDocumentElement());
                 }
                 catch (Throwable ex)
                 {
@@ -388,6 +434,10 @@ public class MclStorageManager
                     // write the contact list so that it is there for the parser
                     storeContactList0();
                 }
+
+                // apply the changes stored since the file was last written
+                if (contactListDocument.getDocumentElement() != null)
+                    replayJournal();
             }
         }
         catch (ParserConfigurationException ex)
@@ -420,6 +470,254 @@ public class MclStorageManager
         }
     }
 
+    /**
+     * Records that a meta contact changed and schedules the storage of the
+     * change.
+     *
+     * @param metaContact the meta contact
+     * @throws IOException if writing fails.
+     */
+    private void scheduleContactListStorage(MetaContact metaContact)
+        throws IOException
+    {
+        synchronized (contactListRWLock)
+        {
+            changedNodes.put(metaContact.getMetaUID(), Boolean.FALSE);
+        }
+        scheduleContactListStorage();
+    }
+
+    /**
+     * Records that a meta contact group changed and schedules the storage of
+     * the change.
+     *
+     * @param metaGroup the meta contact group
+     * @throws IOException if writing fails.
+     */
+    private void scheduleContactListStorage(MetaContactGroup metaGroup)
+        throws IOException
+    {
+        synchronized (contactListRWLock)
+        {
+            changedNodes.put(metaGroup.getMetaUID(), Boolean.TRUE);
+        }
+        scheduleContactListStorage();
+    }
+
+    /**
+     * Records that the node of a meta contact or group was changed while
+     * loading the contact list.
+     *
+     * @param node the node of the meta contact or group
+     */
+    private void nodeChanged(Node node)
+    {
+        String uid = (node instanceof Element)
+            ? ((Element) node).getAttribute(UID_ATTR_NAME)
+            : null;
+
+        synchronized (contactListRWLock)
+        {
+            if (uid == null || uid.length() == 0)
+            {
+                isCompactionNeeded = true;
+            }
+            else
+            {
+                changedNodes.put(uid,
+                    GROUP_NODE_NAME.equals(node.getNodeName()));
+            }
+        }
+    }
+
+    /**
+     * Writes the changes made to the contact list since it was last stored.
+     * The changed nodes are appended to the journal, unless the journal has
+     * grown bigger than the contact list file, in which case the whole file
+     * is written instead.
+     *
+     * @throws IOException in case writing fails.
+     */
+    private void storeContactListChanges() throws IOException
+    {
+        if (!isStarted())
+            return;
+
+        if (isCompactionNeeded
+            || journal.length()
+                > Math.max(MIN_COMPACTION_SIZE, contactlistFile.length()))
+        {
+            storeContactList0();
+            return;
+        }
+
+        List<MclJournal.Entry> entries = new ArrayList<MclJournal.Entry>();
+
+        for (Map.Entry<String, Boolean> changedNode : changedNodes.entrySet())
+        {
+            entries.add(createJournalEntry(
+                changedNode.getKey(), changedNode.getValue()));
+        }
+        journal.append(entries);
+        changedNodes.clear();
+    }
+
+    /**
+     * Creates the journal entry storing the current state of a meta contact
+     * or group.
+     *
+     * @param uid the UID of the meta contact or group
+     * @param isGroup whether <tt>uid</tt> is the UID of a group
+     * @return the journal entry
+     * @throws IOException if the node cannot be serialized
+     */
+    private MclJournal.Entry createJournalEntry(String uid, boolean isGroup)
+        throws IOException
+    {
+        Element node = isGroup
+            ? findMetaContactGroupNode(uid)
+            : findMetaContactNode(uid);
+
+        if (node == null)
+        {
+            return new MclJournal.Entry(
+                isGroup ? MclJournal.OP_REMOVE_GROUP
+                        : MclJournal.OP_REMOVE_CONTACT,
+                uid, null, null, null);
+        }
+
+        // the parent group is the closest group ancestor, there is none for
+        // the root group
+        String parentUID = "";
+        for (Node parent = node.getParentNode();
+                parent instanceof Element;
+                parent = parent.getParentNode())
+        {
+            if (GROUP_NODE_NAME.equals(parent.getNodeName()))
+            {
+                parentUID = ((Element) parent).getAttribute(UID_ATTR_NAME);
+                break;
+            }
+        }
+
+        String nextUID = "";
+        for (Node next = node.getNextSibling();
+                next != null;
+                next = next.getNextSibling())
+        {
+            if (next.getNodeType() == Node.ELEMENT_NODE
+                && next.getNodeName().equals(node.getNodeName()))
+            {
+                nextUID = ((Element) next).getAttribute(UID_ATTR_NAME);
+                break;
+            }
+        }
+
+        return new MclJournal.Entry(
+            isGroup ? MclJournal.OP_PUT_GROUP : MclJournal.OP_PUT_CONTACT,
+            uid, parentUID, nextUID, journal.toXml(node));
+    }
+
+    /**
+     * Applies the journal to the freshly parsed contact list document.
+     */
+    private void replayJournal()
+    {
+        List<MclJournal.Entry> entries;
+
+        try
+        {
+            entries = journal.read();
+        }
+        catch (IOException ex)
+        {
+            logger.error("Failed to read the contact list journal", ex);
+            return;
+        }
+
+        for (MclJournal.Entry entry : entries)
+        {
+            try
+            {
+                applyJournalEntry(entry);
+            }
+            catch (IOException ex)
+            {
+                logger.error("Ignoring contact list journal entry for "
+                    + entry.uid, ex);
+            }
+        }
+
+        if (logger.isDebugEnabled() && !entries.isEmpty())
+            logger.debug("Replayed " + entries.size()
+                + " contact list journal entries");
+    }
+
+    /**
+     * Applies a journal entry to the contact list document.
+     *
+     * @param entry the journal entry
+     * @throws IOException if the node of the entry cannot be parsed
+     */
+    private void applyJournalEntry(MclJournal.Entry entry)
+        throws IOException
+    {
+        boolean isGroup = entry.op == MclJournal.OP_PUT_GROUP
+            || entry.op == MclJournal.OP_REMOVE_GROUP;
+        Element existing = isGroup
+            ? findMetaContactGroupNode(entry.uid)
+            : findMetaContactNode(entry.uid);
+
+        if (entry.xml == null)
+        {
+            if (existing != null)
+                existing.getParentNode().removeChild(existing);
+            return;
+        }
+
+        Element container;
+        if (entry.parentUID.length() == 0)
+        {
+            container = contactListDocument.getDocumentElement();
+        }
+        else
+        {
+            Element parent = findMetaContactGroupNode(entry.parentUID);
+
+            container = (parent == null)
+                ? null
+                : XMLUtils.findChild(parent,
+                    isGroup ? SUBGROUPS_NODE_NAME : CHILD_CONTACTS_NODE_NAME);
+        }
+
+        if (container == null)
+        {
+            logger.warn("Ignoring contact list journal entry for " + entry.uid
+                + ", parent not found: " + entry.parentUID);
+            return;
+        }
+
+        Element node = journal.fromXml(entry.xml, contactListDocument);
+
+        if (existing != null)
+            existing.getParentNode().removeChild(existing);
+
+        Element next = null;
+        if (entry.nextUID.length() != 0)
+        {
+            next = isGroup
+                ? findMetaContactGroupNode(entry.nextUID)
+                : findMetaContactNode(entry.nextUID);
+        }
+
+        if (next != null && next.getParentNode() == container)
+            container.insertBefore(node, next);
+        else
+            container.appendChild(node);
+
+        indexNodes(node);
+    }
+
     /**
      * Writes the contact list on the hard disk.
      *
@@ -459,6 +757,11 @@ public class MclStorageManager
             {
                 logger.error("the contactlist file is missing", e);
             }
+
+            // the file now holds all the changes
+            journal.clear();
+            changedNodes.clear();
+            isCompactionNeeded = false;
         }
     }
 
@@ -483,7 +786,7 @@ public class MclStorageManager
                             contactListRWLock.wait(5000);
                             if (isModified)
                             {
-                                storeContactList0();
+                                storeContactListChanges();
                                 isModified = false;
                             }
                         }
@@ -514,21 +817,21 @@ public class MclStorageManager
             if (!isStarted())
                 return;
 
-            started = false;
-
-            // make sure everyone gets released after we finish.
-            contactListRWLock.notifyAll();
-
-            // write the contact list ourselves before we go out..
+            // write the pending changes ourselves before we go out..
             try
             {
-                storeContactList0();
+                storeContactListChanges();
             }
             catch (IOException ex)
             {
                 logger
                     .debug("Failed to store contact list before stopping", ex);
             }
+
+            started = false;
+
+            // make sure everyone gets released after we finish.
+            contactListRWLock.notifyAll();
         }
     }
 
@@ -593,6 +896,15 @@ public class MclStorageManager
 
         contactListDoc.appendChild(root);
 
+        // the nodes and changes of the previous document are gone
+        metaContactNodes.clear();
+        metaContactGroupNodes.clear();
+        if (journal != null)
+            journal.clear();
+
+        // the journal needs the file to hold a document to be replayed on
+        isCompactionNeeded = true;
+
         // create the rootGroup
         Element rootGroup =
             createMetaContactGroupNode(mclServImpl.getRoot());
@@ -652,7 +964,7 @@ public class MclStorageManager
                 // contacts
                 processGroupXmlNode(mclServiceImpl, accountID, root, null, null);
 
-                // now save the contact list in case it has changed
+                // now save the nodes which were changed while parsing
                 scheduleContactListStorage();
             }
 
@@ -903,6 +1215,7 @@ public class MclStorageManager
                     {
                         currentMetaContactNode.getParentNode().removeChild(
                             currentMetaContactNode);
+                        nodeChanged(currentMetaContactNode);
                     }
                     catch (Throwable throwable)
                     {
@@ -954,6 +1267,7 @@ public class MclStorageManager
                     {
                         currentGroupNode.getParentNode().removeChild(
                             currentGroupNode);
+                        nodeChanged(currentGroupNode);
                     }
                     catch (Throwable thr)
                     {
@@ -1051,6 +1365,8 @@ public class MclStorageManager
         {
             metaContactNode.removeChild(node);
         }
+        if (!duplicates.isEmpty())
+            nodeChanged(metaContactNode);
         return protoContacts;
     }
 
@@ -1171,6 +1487,7 @@ public class MclStorageManager
 
         metaContactElement
             .setAttribute(UID_ATTR_NAME, metaContact.getMetaUID());
+        metaContactNodes.put(metaContact.getMetaUID(), metaContactElement);
 
         // create the display name node
         Element displayNameNode =
@@ -1217,6 +1534,7 @@ public class MclStorageManager
             .getGroupName());
 
         metaGroupElement.setAttribute(UID_ATTR_NAME, metaGroup.getMetaUID());
+        metaContactGroupNodes.put(metaGroup.getMetaUID(), metaGroupElement);
 
         // create and fill the proto groups node
         Element protoGroupsElement =
@@ -1310,7 +1628,7 @@ public class MclStorageManager
 
         try
         {
-            scheduleContactListStorage();
+            scheduleContactListStorage(evt.getSourceMetaContact());
         }
         catch (IOException ex)
         {
@@ -1364,7 +1682,7 @@ public class MclStorageManager
 
         try
         {
-            scheduleContactListStorage();
+            scheduleContactListStorage(evt.getSourceMetaContactGroup());
         }
         catch (IOException ex)
         {
@@ -1400,10 +1718,12 @@ public class MclStorageManager
 
         // remove the meta contact node.
         metaContactGroupNode.getParentNode().removeChild(metaContactGroupNode);
+        metaContactGroupNodes.remove(
+            evt.getSourceMetaContactGroup().getMetaUID());
 
         try
         {
-            scheduleContactListStorage();
+            scheduleContactListStorage(evt.getSourceMetaContactGroup());
         }
         catch (IOException ex)
         {
@@ -1462,7 +1782,7 @@ public class MclStorageManager
 
         try
         {
-            scheduleContactListStorage();
+            scheduleContactListStorage(evt.getSourceMetaContact());
         }
         catch (IOException ex)
         {
@@ -1545,10 +1865,11 @@ public class MclStorageManager
 
         // remove the meta contact node.
         metaContactNode.getParentNode().removeChild(metaContactNode);
+        metaContactNodes.remove(evt.getSourceMetaContact().getMetaUID());
 
         try
         {
-            scheduleContactListStorage();
+            scheduleContactListStorage(evt.getSourceMetaContact());
         }
         catch (IOException ex)
         {
@@ -1603,7 +1924,7 @@ public class MclStorageManager
 
         try
         {
-            scheduleContactListStorage();
+            scheduleContactListStorage(evt.getSourceMetaContact());
         }
         catch (IOException ex)
         {
@@ -1643,7 +1964,7 @@ public class MclStorageManager
 
         try
         {
-            scheduleContactListStorage();
+            scheduleContactListStorage(evt.getParent());
         }
         catch (IOException ex)
         {
@@ -1789,7 +2110,7 @@ public class MclStorageManager
 
         try
         {
-            scheduleContactListStorage();
+            scheduleContactListStorage(evt.getSourceMetaContact());
         }
         catch (IOException ex)
         {
@@ -1831,7 +2152,7 @@ public class MclStorageManager
 
         try
         {
-            scheduleContactListStorage();
+            scheduleContactListStorage(evt.getOldParent());
         }
         catch (IOException ex)
         {
@@ -1899,7 +2220,7 @@ public class MclStorageManager
 
             try
             {
-                scheduleContactListStorage();
+                scheduleContactListStorage(mcGroup);
             }
             catch (IOException ex)
             {
@@ -1922,7 +2243,7 @@ public class MclStorageManager
 
         try
         {
-            scheduleContactListStorage();
+            scheduleContactListStorage(mcGroup);
         }
         catch (IOException ex)
         {
@@ -1971,7 +2292,7 @@ public class MclStorageManager
 
         try
         {
-            scheduleContactListStorage();
+            scheduleContactListStorage(evt.getParent());
         }
         catch (IOException ex)
         {
@@ -2029,7 +2350,8 @@ public class MclStorageManager
 
         try
         {
-            scheduleContactListStorage();
+            scheduleContactListStorage(evt.getOldParent());
+            scheduleContactListStorage(evt.getNewParent());
         }
         catch (IOException ex)
         {
@@ -2055,10 +2377,7 @@ public class MclStorageManager
      */
     private Element findMetaContactNode(String metaContactUID)
     {
-        Element root = (Element) contactListDocument.getFirstChild();
-
-        return XMLUtils.locateElement(root, META_CONTACT_NODE_NAME,
-            UID_ATTR_NAME, metaContactUID);
+        return findIndexedNode(metaContactNodes, metaContactUID);
     }
 
     /**
@@ -2073,10 +2392,63 @@ public class MclStorageManager
      */
     private Element findMetaContactGroupNode(String metaContactGroupUID)
     {
-        Element root = (Element) contactListDocument.getFirstChild();
+        return findIndexedNode(metaContactGroupNodes, metaContactGroupUID);
+    }
+
+    /**
+     * Returns the node with the specified UID if it is part of the contact
+     * list document. Nodes are kept in the index when they are detached with
+     * their ancestors or before being attached, so they are checked here.
+     *
+     * @param nodes the index of the nodes by UID
+     * @param uid the UID of the node
+     * @return the node or <tt>null</tt> if no such node is in the document
+     */
+    private Element findIndexedNode(Map<String, Element> nodes, String uid)
+    {
+        Element node = nodes.get(uid);
+
+        if (node == null)
+            return null;
 
-        return XMLUtils.locateElement(root, GROUP_NODE_NAME, UID_ATTR_NAME,
-            metaContactGroupUID);
+        Node root = contactListDocument.getDocumentElement();
+        for (Node n = node; n != null; n = n.getParentNode())
+        {
+            if (n == root)
+                return node;
+        }
+        return null;
+    }
+
+    /**
+     * Adds the meta contact and group nodes found under <tt>element</tt> to
+     * the index of the nodes by UID.
+     *
+     * @param element the element to index
+     */
+    private void indexNodes(Element element)
+    {
+        String name = element.getNodeName();
+
+        if (META_CONTACT_NODE_NAME.equals(name))
+        {
+            // meta contacts are not nested
+            metaContactNodes.put(element.getAttribute(UID_ATTR_NAME), element);
+            return;
+        }
+        if (GROUP_NODE_NAME.equals(name))
+        {
+            metaContactGroupNodes.put(
+                element.getAttribute(UID_ATTR_NAME), element);
+        }
+
+        for (Node child = element.getFirstChild();
+                child != null;
+                child = child.getNextSibling())
+        {
+            if (child.getNodeType() == Node.ELEMENT_NODE)
+                indexNodes((Element) child);
+        }
     }
 
     /**
@@ -2085,6 +2457,8 @@ public class MclStorageManager
     void removeContactListFile()
     {
         this.contactlistFile.delete();
+        if (journal != null)
+            journal.clear();
     }
 
     /**
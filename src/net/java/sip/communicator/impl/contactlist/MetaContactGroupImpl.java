@@ -710,6 +710,7 @@ public class MetaContactGroupImpl
         metaContact.setParentGroup(this);
 
         lightAddMetaContact(metaContact);
+        mclServiceImpl.index.metaContactAdded(metaContact);
     }
 
     /**
@@ -758,6 +759,59 @@ public class MetaContactGroupImpl
     }
 
 
+    /**
+     * Removes <tt>metaContact</tt> from the sorted child contacts without
+     * regenerating the ordered copy, which {@link #reevalContacts(Collection)}
+     * does once for a whole batch.
+     *
+     * @param metaContact the <tt>MetaContact</tt> to remove
+     */
+    void batchRemoveMetaContact(MetaContactImpl metaContact)
+    {
+        synchronized(childContacts)
+        {
+            this.childContacts.remove(metaContact);
+        }
+    }
+
+    /**
+     * Adds <tt>metaContact</tt> back to the sorted child contacts without
+     * regenerating the ordered copy, which {@link #reevalContacts(Collection)}
+     * does once for a whole batch.
+     *
+     * @param metaContact the <tt>MetaContact</tt> to add
+     */
+    void batchAddMetaContact(MetaContactImpl metaContact)
+    {
+        synchronized(childContacts)
+        {
+            this.childContacts.add(metaContact);
+        }
+    }
+
+    /**
+     * Re-evaluates the status of several child contacts whose protocol
+     * contacts have changed their presence status and places them according
+     * to it, regenerating the ordered copy of child contacts only once.
+     *
+     * @param metaContacts the child contacts to re-evaluate
+     * @return <tt>true</tt> if the order of the child contacts has changed
+     */
+    boolean reevalContacts(Collection<MetaContactImpl> metaContacts)
+    {
+        List<MetaContact> oldOrder = childContactsOrderedCopy;
+
+        for (MetaContactImpl metaContact : metaContacts)
+            metaContact.reevalContactInBatch(this);
+
+        synchronized(childContacts)
+        {
+            childContactsOrderedCopy
+                = new LinkedList<MetaContact>(childContacts);
+            return !childContactsOrderedCopy.equals(oldOrder);
+        }
+    }
+
     /**
      * Removes the specified <tt>metaContact</tt> from the local list of
      * contacts.
@@ -767,6 +821,7 @@ public class MetaContactGroupImpl
     {
         metaContact.unsetParentGroup(this);
         lightRemoveMetaContact(metaContact);
+        mclServiceImpl.index.metaContactRemoved(metaContact);
     }
 
     /**
@@ -977,6 +1032,8 @@ public class MetaContactGroupImpl
 
         this.subgroupsOrderedCopy =
             new LinkedList<MetaContactGroup>(subgroups);
+
+        mclServiceImpl.index.groupAdded((MetaContactGroupImpl)subgroup);
     }
 
     /**
@@ -994,6 +1051,7 @@ public class MetaContactGroupImpl
 
         subgroupsOrderedCopy = new LinkedList<MetaContactGroup>(subgroups);
 
+        mclServiceImpl.index.groupRemoved(subgroup);
         return subgroup;
     }
 
@@ -698,7 +698,11 @@ public class MetaContactImpl
             }
 
             if (parentGroup != null)
+            {
                 parentGroup.lightAddMetaContact(this);
+                parentGroup.getMclServiceImpl().index.contactAdded(
+                    this, contact);
+            }
 
             ProtocolProviderService contactProvider
                 = contact.getProtocolProvider();
@@ -736,22 +740,8 @@ public class MetaContactImpl
                 parentGroup.lightRemoveMetaContact(this);
             }
 
-            this.contactsOnline = 0;
-            int maxContactStatus = 0;
-
-            for (Contact contact : protoContacts)
-            {
-                int contactStatus = contact.getPresenceStatus()
-                        .getStatus();
+            reevalStatus();
 
-                if(maxContactStatus < contactStatus)
-                {
-                    maxContactStatus = contactStatus;
-                    this.defaultContact = contact;
-                }
-                if (contact.getPresenceStatus().isOnline())
-                    contactsOnline++;
-            }
             //now read it and the contact would be automatically placed
             //properly by the containing group
             if (parentGroup != null)
@@ -763,6 +753,51 @@ public class MetaContactImpl
         return -1;
     }
 
+    /**
+     * Does what {@link #reevalContact()} does for one of the meta contacts
+     * of a batch of status changes in <tt>group</tt>, leaving the group to
+     * regenerate its ordered copy of child contacts once for the whole batch.
+     *
+     * @param group the group the batch applies to
+     */
+    void reevalContactInBatch(MetaContactGroupImpl group)
+    {
+        synchronized (getParentGroupModLock())
+        {
+            // the contact has moved since its status changed
+            if (parentGroup != group)
+                return;
+
+            group.batchRemoveMetaContact(this);
+            reevalStatus();
+            group.batchAddMetaContact(this);
+        }
+    }
+
+    /**
+     * Counts the online protocol contacts and elects the most connected one
+     * as default contact.
+     */
+    private void reevalStatus()
+    {
+        this.contactsOnline = 0;
+        int maxContactStatus = 0;
+
+        for (Contact contact : protoContacts)
+        {
+            int contactStatus = contact.getPresenceStatus()
+                    .getStatus();
+
+            if(maxContactStatus < contactStatus)
+            {
+                maxContactStatus = contactStatus;
+                this.defaultContact = contact;
+            }
+            if (contact.getPresenceStatus().isOnline())
+                contactsOnline++;
+        }
+    }
+
     /**
      * Removes the specified protocol specific contact from the contacts
      * encapsulated in this <code>MetaContact</code>. The method also updates
@@ -791,7 +826,11 @@ public class MetaContactImpl
             }
 
             if (parentGroup != null)
+            {
                 parentGroup.lightAddMetaContact(this);
+                parentGroup.getMclServiceImpl().index.contactRemoved(
+                    this, contact);
+            }
 
             ProtocolProviderService contactProvider
                 = contact.getProtocolProvider();
@@ -0,0 +1,550 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.service.contactlist.*;
+import net.java.sip.communicator.service.protocol.*;
+
+/**
+ * Indexes the meta contacts and groups of a
+ * <tt>MetaContactListServiceImpl</tt> so that they can be found without
+ * walking the whole tree.
+ * <p>
+ * Entries are added when meta contacts, protocol contacts and groups join
+ * the tree, which makes the index complete: a lookup which finds nothing in
+ * it has no match in the tree. Removed meta contacts and protocol contacts
+ * and former display names are removed from the index. The entries of the
+ * content of removed groups are left, they are detected when they are
+ * looked up, as every entry found is checked against the tree before being
+ * returned.
+ */
+public class MetaContactListIndex
+{
+    /**
+     * The root of the indexed tree.
+     */
+    private MetaContactGroupImpl root = null;
+
+    /**
+     * The meta contacts by meta UID.
+     */
+    private final ConcurrentMap<String, MetaContactImpl> metaContactsByUID
+        = new ConcurrentHashMap<String, MetaContactImpl>();
+
+    /**
+     * The meta contact groups by meta UID.
+     */
+    private final ConcurrentMap<String, MetaContactGroupImpl> groupsByUID
+        = new ConcurrentHashMap<String, MetaContactGroupImpl>();
+
+    /**
+     * The meta contacts by account unique ID and then by address of their
+     * protocol contacts.
+     */
+    private final ConcurrentMap<String, ConcurrentMap<String, MetaContactImpl>>
+        metaContactsByAccount
+            = new ConcurrentHashMap<String,
+                ConcurrentMap<String, MetaContactImpl>>();
+
+    /**
+     * The meta contacts by address and by display name of their protocol
+     * contacts, whatever their account.
+     */
+    private final ConcurrentMap<String, Set<MetaContactImpl>>
+        metaContactsByAddress
+            = new ConcurrentHashMap<String, Set<MetaContactImpl>>();
+
+    /**
+     * Sets the root of the indexed tree and indexes it.
+     *
+     * @param root the root meta contact group
+     */
+    void setRoot(MetaContactGroupImpl root)
+    {
+        this.root = root;
+        groupAdded(root);
+    }
+
+    /**
+     * Indexes a group which joined the tree, along with its subgroups and
+     * meta contacts.
+     *
+     * @param group the group
+     */
+    void groupAdded(MetaContactGroupImpl group)
+    {
+        groupsByUID.put(group.getMetaUID(), group);
+
+        Iterator<MetaContact> metaContacts = group.getChildContacts();
+        while (metaContacts.hasNext())
+            metaContactAdded((MetaContactImpl) metaContacts.next());
+
+        Iterator<MetaContactGroup> subgroups = group.getSubgroups();
+        while (subgroups.hasNext())
+            groupAdded((MetaContactGroupImpl) subgroups.next());
+    }
+
+    /**
+     * Removes a group which left the tree. The entries of its content are
+     * left for the lookups to detect.
+     *
+     * @param group the group
+     */
+    void groupRemoved(MetaContactGroupImpl group)
+    {
+        groupsByUID.remove(group.getMetaUID(), group);
+    }
+
+    /**
+     * Indexes a meta contact which joined the tree along with its protocol
+     * contacts.
+     *
+     * @param metaContact the meta contact
+     */
+    void metaContactAdded(MetaContactImpl metaContact)
+    {
+        metaContactsByUID.put(metaContact.getMetaUID(), metaContact);
+
+        Iterator<Contact> contacts = metaContact.getContacts();
+        while (contacts.hasNext())
+            contactAdded(metaContact, contacts.next());
+    }
+
+    /**
+     * Removes a meta contact which left the tree along with its protocol
+     * contacts.
+     *
+     * @param metaContact the meta contact
+     */
+    void metaContactRemoved(MetaContactImpl metaContact)
+    {
+        metaContactsByUID.remove(metaContact.getMetaUID(), metaContact);
+
+        Iterator<Contact> contacts = metaContact.getContacts();
+        while (contacts.hasNext())
+            contactRemoved(metaContact, contacts.next());
+    }
+
+    /**
+     * Indexes a protocol contact added to a meta contact. Also used to index
+     * the new display name of a protocol contact.
+     *
+     * @param metaContact the meta contact
+     * @param contact the protocol contact
+     */
+    void contactAdded(MetaContactImpl metaContact, Contact contact)
+    {
+        String accountID = getAccountID(contact);
+        ConcurrentMap<String, MetaContactImpl> byAddress
+            = metaContactsByAccount.get(accountID);
+
+        if (byAddress == null)
+        {
+            ConcurrentMap<String, MetaContactImpl> newByAddress
+                = new ConcurrentHashMap<String, MetaContactImpl>();
+
+            byAddress
+                = metaContactsByAccount.putIfAbsent(accountID, newByAddress);
+            if (byAddress == null)
+                byAddress = newByAddress;
+        }
+        byAddress.put(contact.getAddress(), metaContact);
+
+        addByAddress(contact.getAddress(), metaContact);
+        if (contact.getDisplayName() != null)
+            addByAddress(contact.getDisplayName(), metaContact);
+    }
+
+    /**
+     * Removes a protocol contact removed from a meta contact.
+     *
+     * @param metaContact the meta contact
+     * @param contact the protocol contact
+     */
+    void contactRemoved(MetaContactImpl metaContact, Contact contact)
+    {
+        ConcurrentMap<String, MetaContactImpl> byAddress
+            = metaContactsByAccount.get(getAccountID(contact));
+
+        if (byAddress != null)
+            byAddress.remove(contact.getAddress(), metaContact);
+
+        removeByAddress(contact.getAddress(), metaContact, contact);
+        if (contact.getDisplayName() != null)
+            removeByAddress(contact.getDisplayName(), metaContact, contact);
+    }
+
+    /**
+     * Indexes the new display name of a protocol contact in place of its
+     * former one.
+     *
+     * @param metaContact the meta contact of the protocol contact
+     * @param contact the protocol contact
+     * @param oldDisplayName the former display name of the contact
+     */
+    void contactRenamed(MetaContactImpl metaContact,
+                        Contact contact,
+                        String oldDisplayName)
+    {
+        if (oldDisplayName != null
+            && !oldDisplayName.equals(contact.getDisplayName()))
+        {
+            removeByAddress(oldDisplayName, metaContact, null);
+        }
+        contactAdded(metaContact, contact);
+    }
+
+    /**
+     * Returns the meta contact with the specified meta UID.
+     *
+     * @param metaUID the meta UID
+     * @return the meta contact or <tt>null</tt> if there is none
+     */
+    MetaContactImpl findMetaContactByMetaUID(String metaUID)
+    {
+        MetaContactImpl metaContact = metaContactsByUID.get(metaUID);
+
+        if (metaContact != null && !isInTree(metaContact))
+        {
+            metaContactsByUID.remove(metaUID, metaContact);
+            return null;
+        }
+        return metaContact;
+    }
+
+    /**
+     * Returns the meta contact group with the specified meta UID.
+     *
+     * @param metaUID the meta UID
+     * @return the meta contact group or <tt>null</tt> if there is none
+     */
+    MetaContactGroupImpl findMetaContactGroupByMetaUID(String metaUID)
+    {
+        MetaContactGroupImpl group = groupsByUID.get(metaUID);
+
+        if (group != null && !isInTree(group))
+        {
+            groupsByUID.remove(metaUID, group);
+            return null;
+        }
+        return group;
+    }
+
+    /**
+     * Returns the meta contact holding the specified protocol contact.
+     *
+     * @param contact the protocol contact
+     * @return the meta contact or <tt>null</tt> if there is none
+     */
+    MetaContactImpl findMetaContactByContact(Contact contact)
+    {
+        ConcurrentMap<String, MetaContactImpl> byAddress
+            = metaContactsByAccount.get(getAccountID(contact));
+
+        if (byAddress == null)
+            return null;
+
+        MetaContactImpl metaContact = byAddress.get(contact.getAddress());
+
+        if (metaContact == null)
+            return null;
+
+        if (metaContact.getContact(
+                    contact.getAddress(), contact.getProtocolProvider())
+                == null
+            || !isInTree(metaContact))
+        {
+            return null;
+        }
+        return metaContact;
+    }
+
+    /**
+     * Returns the meta contact holding a protocol contact with the specified
+     * address and account.
+     *
+     * @param contactAddress the address of the protocol contact
+     * @param accountID the unique ID of the account of the protocol contact
+     * @return the meta contact or <tt>null</tt> if there is none
+     */
+    MetaContactImpl findMetaContactByContact(String contactAddress,
+                                             String accountID)
+    {
+        ConcurrentMap<String, MetaContactImpl> byAddress
+            = metaContactsByAccount.get(accountID);
+
+        if (byAddress == null)
+            return null;
+
+        MetaContactImpl metaContact = byAddress.get(contactAddress);
+
+        if (metaContact == null)
+            return null;
+
+        if (metaContact.getContact(contactAddress, accountID) == null
+            || !isInTree(metaContact))
+        {
+            return null;
+        }
+        return metaContact;
+    }
+
+    /**
+     * Returns the meta contacts holding a protocol contact with the specified
+     * address or display name, whatever its account.
+     *
+     * @param contactAddress the address or display name
+     * @return the meta contacts
+     */
+    List<MetaContact> findAllMetaContactsForAddress(String contactAddress)
+    {
+        List<MetaContact> result = new LinkedList<MetaContact>();
+        Set<MetaContactImpl> metaContacts
+            = metaContactsByAddress.get(contactAddress);
+
+        if (metaContacts == null)
+            return result;
+
+        // in the order of the tree, as the tree walk found them
+        final Map<MetaContactImpl, List<Integer>> positions
+            = new HashMap<MetaContactImpl, List<Integer>>();
+
+        for (MetaContactImpl metaContact : metaContacts)
+        {
+            if (!isInTree(metaContact))
+            {
+                metaContacts.remove(metaContact);
+                continue;
+            }
+            if (hasProtoGroups(metaContact.getParentGroup()))
+                positions.put(metaContact, getTreePosition(metaContact));
+        }
+
+        List<MetaContactImpl> found
+            = new ArrayList<MetaContactImpl>(positions.keySet());
+        if (found.size() > 1)
+        {
+            Collections.sort(found, new Comparator<MetaContactImpl>()
+            {
+                public int compare(MetaContactImpl mc1, MetaContactImpl mc2)
+                {
+                    return comparePositions(
+                        positions.get(mc1), positions.get(mc2));
+                }
+            });
+        }
+
+        for (MetaContactImpl metaContact : found)
+        {
+            Iterator<Contact> contacts = metaContact.getContacts();
+            while (contacts.hasNext())
+            {
+                Contact contact = contacts.next();
+
+                // one entry per matching contact, as the tree walk did
+                if (contact.getAddress().equals(contactAddress)
+                    || contactAddress.equals(contact.getDisplayName()))
+                {
+                    result.add(metaContact);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the position of a meta contact in the order of a walk of the
+     * tree visiting the meta contacts of a group before its subgroups: the
+     * index of every group in its parent, plus one, and then 0 and the index
+     * of the meta contact in its group.
+     *
+     * @param metaContact the meta contact
+     * @return the position of the meta contact
+     */
+    private List<Integer> getTreePosition(MetaContactImpl metaContact)
+    {
+        LinkedList<Integer> position = new LinkedList<Integer>();
+        MetaContactGroup group = metaContact.getParentGroup();
+
+        position.addFirst(group.indexOf(metaContact));
+        position.addFirst(0);
+        while (group != root && group != null)
+        {
+            MetaContactGroup parent = group.getParentMetaContactGroup();
+
+            if (parent != null)
+                position.addFirst(parent.indexOf(group) + 1);
+            group = parent;
+        }
+        return position;
+    }
+
+    /**
+     * Compares two positions returned by <tt>getTreePosition</tt>.
+     *
+     * @param position1 the first position
+     * @param position2 the second position
+     * @return a negative integer, zero, or a positive integer as the first
+     * position comes before, is the same as, or comes after the second
+     */
+    private static int comparePositions(List<Integer> position1,
+                                        List<Integer> position2)
+    {
+        Iterator<Integer> iter1 = position1.iterator();
+        Iterator<Integer> iter2 = position2.iterator();
+
+        while (iter1.hasNext() && iter2.hasNext())
+        {
+            int result = iter1.next().compareTo(iter2.next());
+
+            if (result != 0)
+                return result;
+        }
+        return position1.size() - position2.size();
+    }
+
+    /**
+     * Adds a meta contact to the ones matching an address or display name.
+     *
+     * @param key the address or display name
+     * @param metaContact the meta contact
+     */
+    private void addByAddress(String key, MetaContactImpl metaContact)
+    {
+        // the lookups only read, the changes are serialized so that a set
+        // dropped as empty is never added to
+        synchronized (metaContactsByAddress)
+        {
+            Set<MetaContactImpl> metaContacts
+                = metaContactsByAddress.get(key);
+
+            if (metaContacts == null)
+            {
+                metaContacts = Collections.newSetFromMap(
+                    new ConcurrentHashMap<MetaContactImpl, Boolean>());
+                metaContactsByAddress.put(key, metaContacts);
+            }
+            metaContacts.add(metaContact);
+        }
+    }
+
+    /**
+     * Removes a meta contact from the ones matching an address or display
+     * name, unless it is in the tree and another of its protocol contacts
+     * still matches.
+     *
+     * @param key the address or display name
+     * @param metaContact the meta contact
+     * @param removed the protocol contact which no longer matches or
+     * <tt>null</tt>
+     */
+    private void removeByAddress(String key,
+                                 MetaContactImpl metaContact,
+                                 Contact removed)
+    {
+        if (isInTree(metaContact))
+        {
+            Iterator<Contact> contacts = metaContact.getContacts();
+            while (contacts.hasNext())
+            {
+                Contact contact = contacts.next();
+
+                if (contact != removed
+                    && (contact.getAddress().equals(key)
+                        || key.equals(contact.getDisplayName())))
+                    return;
+            }
+        }
+
+        synchronized (metaContactsByAddress)
+        {
+            Set<MetaContactImpl> metaContacts
+                = metaContactsByAddress.get(key);
+
+            if (metaContacts != null)
+            {
+                metaContacts.remove(metaContact);
+                if (metaContacts.isEmpty())
+                    metaContactsByAddress.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Determines whether a meta contact is currently part of the tree.
+     *
+     * @param metaContact the meta contact
+     * @return <tt>true</tt> if the meta contact is part of the tree
+     */
+    private boolean isInTree(MetaContactImpl metaContact)
+    {
+        MetaContactGroupImpl parent = metaContact.getParentGroup();
+
+        return parent != null && isInTree(parent);
+    }
+
+    /**
+     * Determines whether a meta contact group is currently part of the tree.
+     *
+     * @param group the meta contact group
+     * @return <tt>true</tt> if the group is part of the tree
+     */
+    private boolean isInTree(MetaContactGroup group)
+    {
+        while (group != null)
+        {
+            if (group == root)
+                return true;
+            group = group.getParentMetaContactGroup();
+        }
+        return false;
+    }
+
+    /**
+     * Determines whether a group and all its parents but the root have
+     * protocol groups. The search by address has always skipped the groups
+     * which have none.
+     *
+     * @param group the meta contact group
+     * @return <tt>true</tt> if the group and its parents have protocol groups
+     */
+    private boolean hasProtoGroups(MetaContactGroup group)
+    {
+        for (; group != root; group = group.getParentMetaContactGroup())
+        {
+            if (!group.getContactGroups().hasNext())
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the unique ID of the account of a protocol contact.
+     *
+     * @param contact the protocol contact
+     * @return the unique ID of the account of the contact
+     */
+    private static String getAccountID(Contact contact)
+    {
+        return contact.getProtocolProvider().getAccountID()
+            .getAccountUniqueID();
+    }
+}
@@ -66,6 +66,26 @@ public class MetaContactListServiceImpl
      */
     final MetaContactGroupImpl rootMetaGroup;
 
+    /**
+     * The index of the meta contacts and groups of the list, used by the
+     * <tt>find</tt> methods instead of walking the tree.
+     */
+    final MetaContactListIndex index = new MetaContactListIndex();
+
+    /**
+     * Delivers the events of the list to the
+     * <tt>MetaContactListListener</tt>s.
+     */
+    private final MclEventDispatcher eventDispatcher
+        = new MclEventDispatcher();
+
+    /**
+     * Collects the presence status changes of bursts so that they are
+     * applied one group at a time.
+     */
+    private final MclPresenceBatcher presenceBatcher
+        = new MclPresenceBatcher(this);
+
     /**
      * The event handler that will be handling our subscription events.
      */
@@ -134,6 +154,7 @@ public class MetaContactListServiceImpl
             = new MetaContactGroupImpl(
                     this, ContactlistActivator.getResources().getI18NString(
                         "service.gui.CONTACTS"), "RootMetaContactGroup");
+        index.setRoot(rootMetaGroup);
     }
 
     /**
@@ -245,6 +266,7 @@ public class MetaContactListServiceImpl
             }
         }
         currentlyInstalledProviders.clear();
+        presenceBatcher.stop();
         storageManager.stop();
     }
 
@@ -1378,6 +1400,7 @@ public class MetaContactListServiceImpl
         {
             this.metaContactListListeners.remove(listener);
         }
+        eventDispatcher.listenerRemoved(listener);
     }
 
     /**
@@ -1644,7 +1667,7 @@ public class MetaContactListServiceImpl
      */
     public MetaContact findMetaContactByContact(Contact contact)
     {
-        return rootMetaGroup.findMetaContactByContact(contact);
+        return index.findMetaContactByContact(contact);
     }
 
     /**
@@ -1667,8 +1690,7 @@ public class MetaContactListServiceImpl
     public MetaContact findMetaContactByContact(String contactAddress,
                                                 String accountID)
     {
-        return rootMetaGroup.findMetaContactByContact(contactAddress
-                                                      , accountID);
+        return index.findMetaContactByContact(contactAddress, accountID);
     }
 
     /**
@@ -1681,8 +1703,7 @@ public class MetaContactListServiceImpl
      */
     public MetaContact findMetaContactByMetaUID(String metaContactID)
     {
-
-        return rootMetaGroup.findMetaContactByMetaUID(metaContactID);
+        return index.findMetaContactByMetaUID(metaContactID);
     }
 
     /**
@@ -1696,7 +1717,7 @@ public class MetaContactListServiceImpl
      */
     public MetaContactGroup findMetaContactGroupByMetaUID(String metaGroupID)
     {
-        return rootMetaGroup.findMetaContactGroupByMetaUID(metaGroupID);
+        return index.findMetaContactGroupByMetaUID(metaGroupID);
     }
 
     /**
@@ -1756,63 +1777,7 @@ public class MetaContactListServiceImpl
     public Iterator<MetaContact> findAllMetaContactsForAddress(
         String contactAddress)
     {
-        List<MetaContact> resultList = new LinkedList<MetaContact>();
-
-        findAllMetaContactsForAddress(rootMetaGroup, contactAddress, resultList);
-
-        return resultList.iterator();
-    }
-
-    /**
-     * Returns a list of all <tt>MetaContact</tt>s containing a protocol contact
-     * corresponding to the given <tt>contactAddress</tt> string.
-     *
-     * @param contactAddress the contact address for which we're looking for
-     * a parent <tt>MetaContact</tt>.
-     * @param metaContactGroup the parent group.
-     * @param resultList the list containing the result of the search.
-     */
-    private void findAllMetaContactsForAddress(
-        MetaContactGroup metaContactGroup,
-        String contactAddress,
-        List<MetaContact> resultList)
-    {
-        Iterator<MetaContact> childContacts
-            = metaContactGroup.getChildContacts();
-
-        while (childContacts.hasNext())
-        {
-            MetaContact metaContact = childContacts.next();
-
-            Iterator<Contact> protocolContacts = metaContact.getContacts();
-
-            while (protocolContacts.hasNext())
-            {
-                Contact protocolContact = protocolContacts.next();
-
-                if (protocolContact.getAddress().equals(contactAddress)
-                    || protocolContact.getDisplayName().equals(contactAddress))
-                    resultList.add(metaContact);
-            }
-        }
-
-        Iterator<MetaContactGroup> subGroups
-            = metaContactGroup.getSubgroups();
-
-        while (subGroups.hasNext())
-        {
-            MetaContactGroup subGroup = subGroups.next();
-
-            Iterator<ContactGroup> protocolSubgroups
-                = subGroup.getContactGroups();
-
-            if (protocolSubgroups.hasNext())
-            {
-                this.findAllMetaContactsForAddress( subGroup,
-                                                    contactAddress,
-                                                    resultList);
-            }
-        }
+        return index.findAllMetaContactsForAddress(contactAddress).iterator();
     }
 
     /**
@@ -2713,6 +2678,12 @@ public class MetaContactListServiceImpl
             if( ContactPropertyChangeEvent.PROPERTY_DISPLAY_NAME
                             .equals(evt.getPropertyName()))
             {
+                if (mc != null)
+                {
+                    index.contactRenamed(mc, evt.getSourceContact(),
+                        (String) evt.getOldValue());
+                }
+
                 if( evt.getOldValue() != null
                     && evt.getOldValue().equals(mc.getDisplayName()))
                 {
@@ -3015,20 +2986,18 @@ public class MetaContactListServiceImpl
             logger.trace("Will dispatch the following mcl event: "
                      + evt);
 
-        for (MetaContactListListener listener : getMetaContactListListeners())
-        {
-            switch (evt.getEventID())
-            {
-                case MetaContactEvent.META_CONTACT_ADDED:
-                    listener.metaContactAdded(evt);
-                    break;
-                case MetaContactEvent.META_CONTACT_REMOVED:
-                    listener.metaContactRemoved(evt);
-                    break;
-                default:
-                    logger.error("Unknown event type " + evt.getEventID());
-            }
-        }
+        eventDispatcher.fireEvent(evt, getMetaContactListListeners());
+    }
+
+    /**
+     * Returns the dispatcher delivering the events of the list, which keeps
+     * the delivery statistics of the asynchronous listeners.
+     *
+     * @return the dispatcher delivering the events of the list
+     */
+    public MclEventDispatcher getEventDispatcher()
+    {
+        return eventDispatcher;
     }
 
     /**
@@ -3069,26 +3038,7 @@ public class MetaContactListServiceImpl
             logger.trace("Will dispatch the following mcl property change event: "
                      + event);
 
-        for (MetaContactListListener listener : getMetaContactListListeners())
-        {
-            if (event instanceof MetaContactMovedEvent)
-            {
-                listener.metaContactMoved( (MetaContactMovedEvent) event);
-            }
-            else if (event instanceof MetaContactRenamedEvent)
-            {
-                listener.metaContactRenamed( (MetaContactRenamedEvent) event);
-            }
-            else if (event instanceof MetaContactModifiedEvent)
-            {
-                listener.metaContactModified( (MetaContactModifiedEvent) event);
-            }
-            else if (event instanceof MetaContactAvatarUpdateEvent)
-            {
-                listener.metaContactAvatarUpdated(
-                    (MetaContactAvatarUpdateEvent) event);
-            }
-        }
+        eventDispatcher.fireEvent(event, getMetaContactListListeners());
     }
 
     /**
@@ -3121,25 +3071,7 @@ public class MetaContactListServiceImpl
             logger.trace("Will dispatch the following mcl property change event: "
                      + event);
 
-        for (MetaContactListListener listener : getMetaContactListListeners())
-        {
-            if (eventName.equals(ProtoContactEvent.PROTO_CONTACT_ADDED))
-            {
-                listener.protoContactAdded(event);
-            }
-            else if (eventName.equals(ProtoContactEvent.PROTO_CONTACT_MOVED))
-            {
-                listener.protoContactMoved(event);
-            }
-            else if (eventName.equals(ProtoContactEvent.PROTO_CONTACT_REMOVED))
-            {
-                listener.protoContactRemoved(event);
-            }
-            else if (eventName.equals(ProtoContactEvent.PROTO_CONTACT_MODIFIED))
-            {
-                listener.protoContactModified(event);
-            }
-        }
+        eventDispatcher.fireEvent(event, getMetaContactListListeners());
     }
 
     /**
@@ -3159,6 +3091,10 @@ public class MetaContactListServiceImpl
         if(metaContactImpl == null)
             return;
 
+        //during a burst the change is applied with the others of its group
+        if (presenceBatcher.offer(metaContactImpl, evt.getSourceProvider()))
+            return;
+
         int oldContactIndex = metaContactImpl.getParentGroup()
             .indexOf(metaContactImpl);
 
@@ -3175,6 +3111,21 @@ public class MetaContactListServiceImpl
     }
 
 
+    /**
+     * Notifies the listeners that a batch of presence status changes has
+     * reordered the child contacts of a group.
+     *
+     * @param group the group whose child contacts were reordered
+     * @param provider the provider of one of the changes
+     */
+    void childContactsReordered(MetaContactGroupImpl group,
+                                ProtocolProviderService provider)
+    {
+        fireMetaContactGroupEvent(
+            group, provider, null,
+            MetaContactGroupEvent.CHILD_CONTACTS_REORDERED);
+    }
+
     /**
      * The method is called from the storage manager whenever a new contact
      * group has been parsed and it has to be created.
@@ -3375,34 +3326,7 @@ public class MetaContactListServiceImpl
             logger.trace("Will dispatch the following mcl event: "
                      + evt);
 
-        for (MetaContactListListener listener : getMetaContactListListeners())
-        {
-            switch (eventID)
-            {
-                case MetaContactGroupEvent.META_CONTACT_GROUP_ADDED:
-                    listener.metaContactGroupAdded(evt);
-                    break;
-                case MetaContactGroupEvent.META_CONTACT_GROUP_REMOVED:
-                    listener.metaContactGroupRemoved(evt);
-                    break;
-                case MetaContactGroupEvent.CHILD_CONTACTS_REORDERED:
-                    listener.childContactsReordered(evt);
-                    break;
-                case MetaContactGroupEvent
-                    .META_CONTACT_GROUP_RENAMED:
-                case MetaContactGroupEvent
-                    .CONTACT_GROUP_RENAMED_IN_META_GROUP:
-                case MetaContactGroupEvent
-                    .CONTACT_GROUP_REMOVED_FROM_META_GROUP:
-                case MetaContactGroupEvent
-                    .CONTACT_GROUP_ADDED_TO_META_GROUP:
-                    listener.metaContactGroupModified(evt);
-                    break;
-                default:
-                    logger.error("Unknown event type (" + eventID
-                                 + ") for event: " + evt);
-            }
-        }
+        eventDispatcher.fireEvent(evt, getMetaContactListListeners());
     }
 
     /**
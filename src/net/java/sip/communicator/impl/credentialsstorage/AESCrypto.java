@@ -19,15 +19,22 @@ package net.java.sip.communicator.impl.credentialsstorage;
 
 import java.security.*;
 import java.security.spec.*;
+import java.util.*;
 
 import javax.crypto.*;
 import javax.crypto.spec.*;
 
 import net.java.sip.communicator.service.credentialsstorage.*;
 import net.java.sip.communicator.util.*;
+import net.java.sip.communicator.util.Base64; // disambiguation
 
 /**
  * Performs encryption and decryption of text using AES algorithm.
+ * <p>
+ * The key is derived from the master password once, when the instance is
+ * created, either the legacy way or with the parameters of a key derivation
+ * created by {@link #createKeyDerivation()}. The bytes of the derived key are
+ * kept in an array of the instance, which {@link #destroy()} erases.
  *
  * @author Dmitri Melnikov
  */
@@ -45,7 +52,12 @@ public class AESCrypto
     private static final String CIPHER_ALGORITHM = "AES/ECB/PKCS5PADDING";
 
     /**
-     * Salt used when creating the key.
+     * The key derivation function of the legacy keys.
+     */
+    private static final String LEGACY_KDF_ALGORITHM = "PBKDF2WithHmacSHA1";
+
+    /**
+     * Salt used when creating the legacy keys.
      */
     private static byte[] SALT =
     { 0x0C, 0x0A, 0x0F, 0x0E, 0x0B, 0x0E, 0x0E, 0x0F };
@@ -56,12 +68,37 @@ public class AESCrypto
     private static int[] KEY_LENGTHS = new int[]{256, 128};
 
     /**
-     * Number of iterations to use when creating the key.
+     * Number of iterations to use when creating the legacy keys.
      */
     private static int ITERATION_COUNT = 1024;
 
+    /**
+     * The key derivation function of the keys created with the parameters of
+     * {@link #createKeyDerivation()}.
+     */
+    private static final String KDF_ALGORITHM = "PBKDF2WithHmacSHA256";
+
+    /**
+     * The number of iterations of the key derivations created by
+     * {@link #createKeyDerivation()}.
+     */
+    private static final int KDF_ITERATION_COUNT = 100000;
+
+    /**
+     * The length in bytes of the random salt of the key derivations created
+     * by {@link #createKeyDerivation()}.
+     */
+    private static final int KDF_SALT_LENGTH = 16;
+
+    /**
+     * The bytes of the key derived from the master password, erased by
+     * {@link #destroy()}.
+     */
+    private byte[] keyBytes;
+
     /**
      * Key derived from the master password to use for encryption/decryption.
+     * It gives out copies of {@link #keyBytes} instead of keeping its own.
      */
     private Key key;
 
@@ -76,14 +113,58 @@ public class AESCrypto
     private Cipher encryptCipher;
 
     /**
-     * Creates the encryption and decryption objects and the key.
+     * Creates the encryption and decryption objects and the key, derived the
+     * legacy way.
      *
      * @param masterPassword used to derive the key. Can be null.
      */
     public AESCrypto(String masterPassword)
     {
+        this(masterPassword, null);
+    }
+
+    /**
+     * Creates the encryption and decryption objects and the key.
+     *
+     * @param masterPassword used to derive the key. Can be null.
+     * @param keyDerivation the parameters of the key derivation as returned
+     * by {@link #createKeyDerivation()} or <tt>null</tt> to derive the key the
+     * legacy way.
+     */
+    public AESCrypto(String masterPassword, String keyDerivation)
+    {
+        String algorithm = LEGACY_KDF_ALGORITHM;
+        byte[] salt = SALT;
+        int iterationCount = ITERATION_COUNT;
+
+        if (keyDerivation != null)
+        {
+            String[] parameters = keyDerivation.split(":");
+
+            if (parameters.length != 3)
+            {
+                throw new IllegalArgumentException(
+                        "Invalid key derivation: " + keyDerivation);
+            }
+            algorithm = parameters[0];
+            iterationCount = Integer.parseInt(parameters[1]);
+            salt = Base64.decode(parameters[2]);
+        }
+
+        byte[] derivedKey = null;
+
         try
         {
+            // the shorter keys of PBKDF2 are the beginning of the longer ones,
+            // so the key is derived once whatever length the ciphers accept
+            derivedKey
+                = deriveKey(
+                        masterPassword,
+                        algorithm,
+                        salt,
+                        iterationCount,
+                        KEY_LENGTHS[0]);
+
             // we try init of key with suupplied lengths
             // we stop after the first successful attempt
             for (int i = 0; i < KEY_LENGTHS.length; i++)
@@ -93,7 +174,7 @@ public class AESCrypto
 
                 try
                 {
-                    initKey(masterPassword, KEY_LENGTHS[i]);
+                    initKey(Arrays.copyOf(derivedKey, KEY_LENGTHS[i] / 8));
 
                     // its ok stop trying
                     break;
@@ -121,21 +202,32 @@ public class AESCrypto
         {
             throw new RuntimeException("Padding not found", e);
         }
+        finally
+        {
+            if (derivedKey != null)
+                Arrays.fill(derivedKey, (byte) 0);
+        }
     }
 
     /**
-     * Initialize key with specified length.
+     * Derives a key from the master password.
      *
      * @param masterPassword used to derive the key. Can be null.
+     * @param algorithm the key derivation function.
+     * @param salt the salt of the derivation.
+     * @param iterationCount the number of iterations of the derivation.
      * @param keyLength Length of the key in bits.
-     * @throws InvalidKeyException if the key is invalid (bad encoding,
-     * wrong length, uninitialized, etc).
+     * @return the bytes of the key.
      * @throws NoSuchAlgorithmException if the algorithm chosen does not exist
      * @throws InvalidKeySpecException if the key specifications are invalid
      */
-    private void initKey(String masterPassword, int keyLength)
-        throws  InvalidKeyException,
-                NoSuchAlgorithmException,
+    private static byte[] deriveKey(
+            String masterPassword,
+            String algorithm,
+            byte[] salt,
+            int iterationCount,
+            int keyLength)
+        throws  NoSuchAlgorithmException,
                 InvalidKeySpecException
     {
         // if the password is empty, we get an exception constructing the key
@@ -147,20 +239,137 @@ public class AESCrypto
         }
 
         // Password-Based Key Derivation Function found in PKCS5 v2.0.
-        // This is only available with java 6.
-        SecretKeyFactory factory =
-            SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+        SecretKeyFactory factory = SecretKeyFactory.getInstance(algorithm);
         // Make a key from the master password
-        KeySpec spec =
-            new PBEKeySpec(masterPassword.toCharArray(), SALT,
-                ITERATION_COUNT, keyLength);
-        SecretKey tmp = factory.generateSecret(spec);
-        // Make an algorithm specific key
-        key = new SecretKeySpec(tmp.getEncoded(), KEY_ALGORITHM);
+        PBEKeySpec spec =
+            new PBEKeySpec(masterPassword.toCharArray(), salt,
+                iterationCount, keyLength);
+
+        try
+        {
+            return factory.generateSecret(spec).getEncoded();
+        }
+        finally
+        {
+            spec.clearPassword();
+        }
+    }
+
+    /**
+     * Initialize the ciphers with the specified key.
+     *
+     * @param keyBytes the bytes of the key, kept until {@link #destroy()}
+     * or erased if the key is invalid.
+     * @throws InvalidKeyException if the key is invalid (bad encoding,
+     * wrong length, uninitialized, etc).
+     */
+    private void initKey(byte[] keyBytes)
+        throws InvalidKeyException
+    {
+        this.keyBytes = keyBytes;
+        key = new RawKey();
 
         // just a check whether the key size is wrong
-        encryptCipher.init(Cipher.ENCRYPT_MODE, key);
-        decryptCipher.init(Cipher.DECRYPT_MODE, key);
+        try
+        {
+            encryptCipher.init(Cipher.ENCRYPT_MODE, key);
+            decryptCipher.init(Cipher.DECRYPT_MODE, key);
+        }
+        catch (InvalidKeyException e)
+        {
+            eraseKey();
+            throw e;
+        }
+    }
+
+    /**
+     * Erases the bytes of the key and drops it.
+     */
+    private void eraseKey()
+    {
+        if (keyBytes != null)
+        {
+            Arrays.fill(keyBytes, (byte) 0);
+            keyBytes = null;
+        }
+        key = null;
+    }
+
+    /**
+     * Creates the parameters of a key derivation with a new random salt and
+     * the strongest function we use.
+     *
+     * @return the parameters of the key derivation.
+     */
+    public static String createKeyDerivation()
+    {
+        byte[] salt = new byte[KDF_SALT_LENGTH];
+
+        new SecureRandom().nextBytes(salt);
+        return KDF_ALGORITHM + ":" + KDF_ITERATION_COUNT + ":"
+            + new String(Base64.encode(salt));
+    }
+
+    /**
+     * Determines whether keys derived with the specified parameters should
+     * be derived again with the ones of {@link #createKeyDerivation()}.
+     *
+     * @param keyDerivation the parameters of the key derivation or
+     * <tt>null</tt> for the legacy one.
+     * @return <tt>true</tt> if a stronger key derivation is available.
+     */
+    public static boolean isKeyDerivationOutdated(String keyDerivation)
+    {
+        if ((keyDerivation != null)
+                && keyDerivation.startsWith(
+                        KDF_ALGORITHM + ":" + KDF_ITERATION_COUNT + ":"))
+        {
+            return false;
+        }
+
+        return isKeyDerivationAvailable();
+    }
+
+    /**
+     * Determines whether the key derivation function of
+     * {@link #createKeyDerivation()} is available.
+     *
+     * @return <tt>true</tt> if keys can be derived with the parameters of
+     * {@link #createKeyDerivation()}.
+     */
+    public static boolean isKeyDerivationAvailable()
+    {
+        try
+        {
+            // only available since java 8
+            SecretKeyFactory.getInstance(KDF_ALGORITHM);
+            return true;
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Initializes the ciphers again after a failure left them in an unknown
+     * state.
+     */
+    private void resetCiphers()
+    {
+        if (key == null)
+            return;
+
+        try
+        {
+            encryptCipher.init(Cipher.ENCRYPT_MODE, key);
+            decryptCipher.init(Cipher.DECRYPT_MODE, key);
+        }
+        catch (InvalidKeyException e)
+        {
+            // the key was accepted when the instance was created
+            throw new RuntimeException("Invalid key", e);
+        }
     }
 
     /**
@@ -171,20 +380,22 @@ public class AESCrypto
      * @throws CryptoException when the ciphertext cannot be decrypted with the
      *             key or on decryption error.
      */
-    public String decrypt(String ciphertext) throws CryptoException
+    public synchronized String decrypt(String ciphertext) throws CryptoException
     {
         try
         {
-            decryptCipher.init(Cipher.DECRYPT_MODE, key);
+            // doFinal leaves the cipher initialized for the next call
             return new String(decryptCipher.doFinal(Base64.decode(ciphertext)),
                 "UTF-8");
         }
         catch (BadPaddingException e)
         {
+            resetCiphers();
             throw new CryptoException(CryptoException.WRONG_KEY, e);
         }
         catch (Exception e)
         {
+            resetCiphers();
             throw new CryptoException(CryptoException.DECRYPTION_ERROR, e);
         }
     }
@@ -196,17 +407,74 @@ public class AESCrypto
      * @return base64 encoded encrypted data
      * @throws CryptoException on encryption error
      */
-    public String encrypt(String plaintext) throws CryptoException
+    public synchronized String encrypt(String plaintext) throws CryptoException
     {
         try
         {
-            encryptCipher.init(Cipher.ENCRYPT_MODE, key);
+            // doFinal leaves the cipher initialized for the next call
             return new String(Base64.encode(encryptCipher.doFinal(plaintext
                 .getBytes("UTF-8"))));
         }
         catch (Exception e)
         {
+            resetCiphers();
             throw new CryptoException(CryptoException.ENCRYPTION_ERROR, e);
         }
     }
+
+    /**
+     * Erases the key and drops the ciphers. The instance cannot encrypt or
+     * decrypt anymore.
+     */
+    public synchronized void destroy()
+    {
+        eraseKey();
+        encryptCipher = null;
+        decryptCipher = null;
+    }
+
+    /**
+     * An AES key reading its bytes from {@link #keyBytes}, unlike
+     * <tt>SecretKeySpec</tt> which keeps a copy that cannot be erased.
+     */
+    private class RawKey
+        implements SecretKey
+    {
+        private static final long serialVersionUID = 0L;
+
+        /**
+         * Returns the algorithm of the key.
+         *
+         * @return <tt>AES</tt>
+         */
+        public String getAlgorithm()
+        {
+            return KEY_ALGORITHM;
+        }
+
+        /**
+         * Returns the encoding format of the key.
+         *
+         * @return <tt>RAW</tt>
+         */
+        public String getFormat()
+        {
+            return "RAW";
+        }
+
+        /**
+         * Returns a copy of the bytes of the key, which the caller is to
+         * erase.
+         *
+         * @return a copy of the bytes of the key or <tt>null</tt> if it has
+         * been destroyed
+         */
+        public byte[] getEncoded()
+        {
+            synchronized (AESCrypto.this)
+            {
+                return (keyBytes == null) ? null : keyBytes.clone();
+            }
+        }
+    }
 }
@@ -29,6 +29,14 @@ import org.osgi.framework.*;
 /**
  * Implements {@link CredentialsStorageService} to load and store user
  * credentials from/to the {@link ConfigurationService}.
+ * <p>
+ * The key is derived from the master password once per session, so that the
+ * accounts logging in do not each derive it again. When a master
+ * password is set, passwords encrypted with a key derived the legacy way are
+ * encrypted again with a stronger derivation the first time the key is
+ * created, without asking for the master password again. Without a master
+ * password the key is derived from a default one, which a slower derivation
+ * would not protect any better, so the cheap legacy derivation is kept.
  *
  * @author Dmitri Melnikov
  */
@@ -66,6 +74,14 @@ public class CredentialsStorageServiceImpl
      */
     private static final String MASTER_PROP_VALUE = "true";
 
+    /**
+     * The property in the configuration holding the parameters of the
+     * derivation of the key from the master password. The key is derived
+     * the legacy way when it is missing.
+     */
+    private static final String KDF_PROP
+        = "net.java.sip.communicator.impl.credentialsstorage.KDF";
+
     /**
      * The configuration service.
      */
@@ -103,7 +119,7 @@ public class CredentialsStorageServiceImpl
      */
     void stop()
     {
-        crypto = null;
+        setCrypto(null);
     }
 
     /**
@@ -216,7 +232,7 @@ public class CredentialsStorageServiceImpl
      */
     public boolean verifyMasterPassword(String master)
     {
-        Crypto localCrypto = new AESCrypto(master);
+        Crypto localCrypto = new AESCrypto(master, getKeyDerivation());
         try
         {
             // use this value to verify master password correctness
@@ -226,13 +242,18 @@ public class CredentialsStorageServiceImpl
 
             if (correct)
             {
-                // also set the crypto instance to use the correct MP
-                setMasterPassword(master);
+                // also set the crypto instance to use the correct MP, its key
+                // is not derived a second time
+                setCrypto(localCrypto);
             }
+            else
+                localCrypto.destroy();
             return correct;
         }
         catch (CryptoException e)
         {
+            localCrypto.destroy();
+
             if (e.getErrorCode() == CryptoException.WRONG_KEY)
             {
                 logger.debug("Incorrect master pass", e);
@@ -278,21 +299,36 @@ public class CredentialsStorageServiceImpl
                     passwords.put(propName, decrypted);
                 }
             }
-            // ..and encrypt again with the new, write to the config
-            setMasterPassword(newPassword);
+            // ..and encrypt again with the new, derived with a new salt unless
+            // it is the default one
+            String keyDerivation
+                = (newPassword != null)
+                        && AESCrypto.isKeyDerivationAvailable()
+                    ? AESCrypto.createKeyDerivation()
+                    : null;
+            setCrypto(new AESCrypto(newPassword, keyDerivation));
+
+            Map<String, Object> changes = new HashMap<String, Object>();
             for (Map.Entry<String, String> entry : passwords.entrySet())
             {
                 String encrypted = crypto.encrypt(entry.getValue());
-                configurationService.setProperty(entry.getKey(), encrypted);
+                changes.put(entry.getKey(), encrypted);
             }
+            changes.put(KDF_PROP, keyDerivation);
             // save the verification value, encrypted with the new MP,
             // or remove it if the newPassword is null (we are unsetting MP)
-            writeVerificationValue(newPassword == null);
+            if (newPassword != null)
+                changes.put(MASTER_PROP, crypto.encrypt(MASTER_PROP_VALUE));
+            // write everything at once, a key derivation not matching the
+            // stored passwords would lose them
+            configurationService.setProperties(changes);
+            if (newPassword == null)
+                configurationService.removeProperty(MASTER_PROP);
         }
         catch (CryptoException ce)
         {
             logger.debug(ce);
-            crypto = null;
+            setCrypto(null);
             passwords = null;
             return false;
         }
@@ -306,7 +342,76 @@ public class CredentialsStorageServiceImpl
      */
     private void setMasterPassword(String master)
     {
-        crypto = new AESCrypto(master);
+        setCrypto(new AESCrypto(master, getKeyDerivation()));
+    }
+
+    /**
+     * Sets the crypto instance to use, erasing the key of the previous one.
+     *
+     * @param newCrypto the crypto instance to use or <tt>null</tt>
+     */
+    private void setCrypto(Crypto newCrypto)
+    {
+        Crypto oldCrypto = crypto;
+
+        crypto = newCrypto;
+        if ((oldCrypto != null) && (oldCrypto != newCrypto))
+            oldCrypto.destroy();
+    }
+
+    /**
+     * Encrypts all the stored passwords again with a key derived from the
+     * master password with the strongest derivation available, if they are
+     * not already. Nothing is changed if one of them cannot be decrypted.
+     *
+     * @param master master password, the current key is derived from it
+     */
+    private void upgradeKeyDerivation(String master)
+    {
+        if (!AESCrypto.isKeyDerivationOutdated(getKeyDerivation()))
+            return;
+
+        String keyDerivation = AESCrypto.createKeyDerivation();
+        Crypto newCrypto = new AESCrypto(master, keyDerivation);
+        Map<String, Object> changes = new HashMap<String, Object>();
+
+        try
+        {
+            for (String propName
+                    : configurationService.getPropertyNamesBySuffix(
+                            ACCOUNT_ENCRYPTED_PASSWORD))
+            {
+                String propValue = configurationService.getString(propName);
+                if (propValue != null)
+                {
+                    changes.put(
+                            propName,
+                            newCrypto.encrypt(crypto.decrypt(propValue)));
+                }
+            }
+            if (isUsingMasterPassword())
+            {
+                changes.put(
+                        MASTER_PROP,
+                        newCrypto.encrypt(MASTER_PROP_VALUE));
+            }
+        }
+        catch (CryptoException cex)
+        {
+            logger.warn("Failed to upgrade the key derivation", cex);
+            newCrypto.destroy();
+            return;
+        }
+
+        changes.put(KDF_PROP, keyDerivation);
+        configurationService.setProperties(changes);
+        setCrypto(newCrypto);
+
+        if (logger.isInfoEnabled())
+        {
+            logger.info("Upgraded the key derivation of "
+                + (changes.size() - 1) + " encrypted values");
+        }
     }
 
     /**
@@ -379,33 +484,6 @@ public class CredentialsStorageServiceImpl
         return false;
     }
 
-    /**
-     * Writes the verification value to the configuration for later use or
-     * removes it completely depending on the remove flag argument.
-     *
-     * @param remove to remove the verification value or just overwrite it.
-     */
-    private void writeVerificationValue(boolean remove)
-    {
-        if (remove)
-            configurationService.removeProperty(MASTER_PROP);
-        else
-        {
-            try
-            {
-                configurationService.setProperty(
-                        MASTER_PROP,
-                        crypto.encrypt(MASTER_PROP_VALUE));
-            }
-            catch (CryptoException cex)
-            {
-                logger.error(
-                        "Failed to encrypt and write verification value",
-                        cex);
-            }
-        }
-    }
-
     /**
      * Creates a Crypto instance only when it's null, either with a user input
      * master password or with null. If the user decided not to input anything,
@@ -435,15 +513,18 @@ public class CredentialsStorageServiceImpl
                 if (master == null)
                 {
                     // User clicked cancel button in the prompt.
-                    crypto = null;
+                    setCrypto(null);
                 }
                 else
                 {
                     /*
-                     * At this point the master password must be correct, so we
-                     * set the crypto instance to use it
+                     * At this point the master password must be correct and
+                     * verifyMasterPassword has set the crypto instance to use
+                     * it.
                      */
-                    setMasterPassword(master);
+                    if (crypto == null)
+                        setMasterPassword(master);
+                    upgradeKeyDerivation(master);
                 }
 
                 moveAllPasswordProperties();
@@ -509,6 +590,18 @@ public class CredentialsStorageServiceImpl
         return configurationService.getString(MASTER_PROP);
     }
 
+    /**
+     * Retrieves the parameters of the key derivation from the configuration
+     * service.
+     *
+     * @return the parameters of the key derivation or <tt>null</tt> if the key
+     * is derived the legacy way
+     */
+    private String getKeyDerivation()
+    {
+        return configurationService.getString(KDF_PROP);
+    }
+
     /**
      * Retrieves the encrypted account password using configuration service.
      *
@@ -44,4 +44,9 @@ public interface Crypto
      * @throws CryptoException on encryption error
      */
     public String encrypt(String plaintext) throws CryptoException;
+
+    /**
+     * Drops the key. The instance cannot be used anymore.
+     */
+    public void destroy();
 }
@@ -0,0 +1,551 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.dns;
+
+import java.beans.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import net.java.sip.communicator.service.dns.*;
+import net.java.sip.communicator.util.*;
+
+import org.xbill.DNS.*;
+
+/**
+ * The DNS cache shared by all the lookups of the application, installed as
+ * the default cache of the dnsjava <tt>Lookup</tt> class for the
+ * <tt>IN</tt> class.
+ * <p>
+ * On top of what the dnsjava cache does, it caps the time negative answers are
+ * cached, remembers for a short time the questions which timed out, counts its
+ * hits and misses, and refreshes in the background the records which are
+ * still being looked up when their TTL is about to expire, so that they never
+ * expire while in use.
+ * <p>
+ * When the default resolver validates DNSSEC, the background refreshes never
+ * involve the user: only the records which were secure are refreshed, and
+ * they are replaced only by secure ones. The other ones expire and are
+ * validated again by the next lookup.
+ */
+public class DnsCacheImpl
+    extends Cache
+    implements DnsCacheService,
+               PropertyChangeListener
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>DnsCacheImpl</tt> class for
+     * logging output.
+     */
+    private static final Logger logger = Logger.getLogger(DnsCacheImpl.class);
+
+    /**
+     * The percentage of their TTL which records have left when a lookup
+     * triggers their refresh.
+     */
+    private static final int PREFETCH_TTL_PERCENT = 10;
+
+    /**
+     * The number of lookups which have to hit a record before it is worth
+     * refreshing.
+     */
+    private static final int PREFETCH_MIN_HITS = 2;
+
+    /**
+     * The TTL in milliseconds under which records are not refreshed.
+     */
+    private static final long PREFETCH_MIN_TTL = 10000;
+
+    /**
+     * The TTL and the number of hits of the answers in the cache, by
+     * question.
+     */
+    private final ConcurrentMap<String, Entry> entries
+        = new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * The time the questions which timed out can be asked again, by
+     * question.
+     */
+    private final ConcurrentMap<String, Long> failures
+        = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * The number of lookups answered with records.
+     */
+    private final AtomicLong hitCount = new AtomicLong();
+
+    /**
+     * The number of lookups answered negatively.
+     */
+    private final AtomicLong negativeHitCount = new AtomicLong();
+
+    /**
+     * The number of lookups which had to be sent.
+     */
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * The number of records refreshed before they expired.
+     */
+    private final AtomicLong prefetchCount = new AtomicLong();
+
+    /**
+     * The number of milliseconds during which a question which timed out is
+     * not asked again.
+     */
+    private volatile long failureTtl = DEFAULT_FAILURE_CACHE_TTL * 1000L;
+
+    /**
+     * The thread refreshing the records.
+     */
+    private final ThreadPoolExecutor prefetchPool = new ThreadPoolExecutor(
+        1, 1,
+        60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(),
+        new ThreadFactory()
+        {
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "DNS cache prefetch");
+
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    /**
+     * Creates the cache.
+     */
+    DnsCacheImpl()
+    {
+        super(DClass.IN);
+        prefetchPool.allowCoreThreadTimeOut(true);
+        DnsUtilActivator.getConfigurationService()
+            .addPropertyChangeListener(this);
+    }
+
+    /**
+     * Empties this cache and installs it as the default cache of the dnsjava
+     * lookups. Must be called again whenever <tt>Lookup.refreshDefault</tt>
+     * replaced it.
+     */
+    void install()
+    {
+        setMaxNCache(DnsUtilActivator.getConfigurationService().getInt(
+            PNAME_NEGATIVE_CACHE_TTL, DEFAULT_NEGATIVE_CACHE_TTL));
+        failureTtl = DnsUtilActivator.getConfigurationService().getInt(
+            PNAME_FAILURE_CACHE_TTL, DEFAULT_FAILURE_CACHE_TTL) * 1000L;
+
+        clear();
+        Lookup.setDefaultCache(this, DClass.IN);
+    }
+
+    /**
+     * Looks up records in the cache, counts the hit or miss and refreshes
+     * the records if they are about to expire.
+     *
+     * @param name the name to look up
+     * @param type the type of the records to look up
+     * @param minCred the minimum acceptable credibility
+     * @return the answer of the cache
+     */
+    @Override
+    public SetResponse lookupRecords(Name name, int type, int minCred)
+    {
+        SetResponse response = super.lookupRecords(name, type, minCred);
+
+        if (response.isNXDOMAIN() || response.isNXRRSET())
+        {
+            negativeHitCount.incrementAndGet();
+        }
+        else if (response.isSuccessful() || response.isCNAME())
+        {
+            hitCount.incrementAndGet();
+            prefetchIfExpiring(name, type);
+        }
+        else
+        {
+            missCount.incrementAndGet();
+        }
+        return response;
+    }
+
+    /**
+     * Adds the records of a response to the cache and remembers their TTL.
+     *
+     * @param in the response
+     * @return the answer to the question of the response
+     */
+    @Override
+    public SetResponse addMessage(Message in)
+    {
+        SetResponse response = super.addMessage(in);
+        Record question = in.getQuestion();
+
+        if (question == null || in.getRcode() != Rcode.NOERROR)
+            return response;
+
+        String key = getKey(question.getName().toString(), question.getType());
+        long ttl = -1;
+
+        for (RRset rrset : in.getSectionRRsets(Section.ANSWER))
+        {
+            if (ttl < 0 || rrset.getTTL() < ttl)
+                ttl = rrset.getTTL();
+        }
+        if (ttl <= 0)
+            return response;
+
+        if (getMaxCache() >= 0)
+            ttl = Math.min(ttl, getMaxCache());
+
+        failures.remove(key);
+        entries.put(key, new Entry(ttl * 1000,
+            (in instanceof SecureMessage) && ((SecureMessage) in).isSecure()));
+
+        if (entries.size() > getMaxEntries())
+            removeExpiredEntries();
+        return response;
+    }
+
+    /**
+     * Refreshes in the background the answer to a question if it has been
+     * looked up often enough and is about to expire.
+     *
+     * @param name the name which was looked up
+     * @param type the type of the records which were looked up
+     */
+    private void prefetchIfExpiring(final Name name, final int type)
+    {
+        String key = getKey(name.toString(), type);
+        final Entry entry = entries.get(key);
+
+        if (entry == null)
+            return;
+
+        long left = entry.expiry - System.currentTimeMillis();
+
+        if (left <= 0)
+        {
+            entries.remove(key, entry);
+            return;
+        }
+
+        if (entry.hits.incrementAndGet() < PREFETCH_MIN_HITS
+            || entry.ttl < PREFETCH_MIN_TTL
+            || left * 100 > entry.ttl * PREFETCH_TTL_PERCENT
+            || !entry.prefetching.compareAndSet(false, true))
+        {
+            return;
+        }
+
+        prefetchPool.execute(new Runnable()
+        {
+            public void run()
+            {
+                prefetch(name, type, entry);
+            }
+        });
+    }
+
+    /**
+     * Asks the default resolver again for records and caches its answer.
+     *
+     * @param name the name to look up
+     * @param type the type of the records to look up
+     * @param entry the entry of the records in the cache
+     */
+    private void prefetch(Name name, int type, Entry entry)
+    {
+        Resolver resolver = Lookup.getDefaultResolver();
+        Message query
+            = Message.newQuery(Record.newRecord(name, type, DClass.IN));
+        Message response;
+
+        try
+        {
+            if (resolver instanceof UnboundResolver)
+            {
+                // an answer which is not secure would have to be validated
+                // again, which may involve the user: let the lookups do it
+                if (!entry.secure)
+                    return;
+
+                SecureMessage secureResponse
+                    = ((UnboundResolver) resolver).sendWithoutValidation(query);
+
+                if (!secureResponse.isSecure())
+                    return;
+                response = secureResponse;
+            }
+            else
+            {
+                response = resolver.send(query);
+            }
+        }
+        catch (IOException e)
+        {
+            if (logger.isDebugEnabled())
+                logger.debug("Failed to refresh " + name + "/"
+                    + Type.string(type), e);
+            return;
+        }
+        catch (RuntimeException e)
+        {
+            logger.warn("Failed to refresh " + name + "/" + Type.string(type),
+                e);
+            return;
+        }
+        finally
+        {
+            entry.prefetching.set(false);
+        }
+
+        // keep the records we have until they expire rather than replace
+        // them with a failure
+        if (response.getRcode() == Rcode.NOERROR
+            && response.getSectionArray(Section.ANSWER).length > 0)
+        {
+            addMessage(response);
+            prefetchCount.incrementAndGet();
+            if (logger.isTraceEnabled())
+                logger.trace("Refreshed " + name + "/" + Type.string(type));
+        }
+    }
+
+    /**
+     * Removes the entries of the answers which expired.
+     */
+    private void removeExpiredEntries()
+    {
+        long now = System.currentTimeMillis();
+        Iterator<Entry> iter = entries.values().iterator();
+
+        while (iter.hasNext())
+        {
+            if (iter.next().expiry <= now)
+                iter.remove();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void lookupFailed(String name, int type)
+    {
+        if (failureTtl > 0)
+        {
+            failures.put(
+                getKey(name, type), System.currentTimeMillis() + failureTtl);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isLookupFailing(String name, int type)
+    {
+        String key = getKey(name, type);
+        Long retry = failures.get(key);
+
+        if (retry == null)
+            return false;
+
+        if (retry <= System.currentTimeMillis())
+        {
+            failures.remove(key, retry);
+            return false;
+        }
+
+        negativeHitCount.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void clear()
+    {
+        clearCache();
+        entries.clear();
+        failures.clear();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getHitCount()
+    {
+        return hitCount.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getNegativeHitCount()
+    {
+        return negativeHitCount.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getMissCount()
+    {
+        return missCount.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getPrefetchCount()
+    {
+        return prefetchCount.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public double getHitRate()
+    {
+        long hits = hitCount.get() + negativeHitCount.get();
+        long lookups = hits + missCount.get();
+
+        return (lookups == 0) ? 0 : (double) hits / lookups;
+    }
+
+    /**
+     * Empties the cache when the DNSSEC settings change, so that no answer
+     * accepted under the former settings is returned. Storing the mode a name
+     * already had by default, as the resolver does for every name it
+     * validates, is not a change.
+     *
+     * @param evt the change of a configuration property
+     */
+    public void propertyChange(PropertyChangeEvent evt)
+    {
+        String propertyName = evt.getPropertyName();
+
+        if (!propertyName.equals(
+                    ConfigurableDnssecResolver.PNAME_DNSSEC_VALIDATION_MODE)
+            && !propertyName.startsWith(
+                    ConfigurableDnssecResolver.PNAME_BASE_DNSSEC_PIN))
+        {
+            return;
+        }
+
+        if (getEffectiveMode(propertyName, evt.getOldValue()).equals(
+                getEffectiveMode(propertyName, evt.getNewValue())))
+        {
+            return;
+        }
+
+        if (logger.isDebugEnabled())
+            logger.debug("Clearing the DNS cache after a change of "
+                + propertyName);
+        clear();
+    }
+
+    /**
+     * Returns the DNSSEC validation mode in effect for a value of one of the
+     * DNSSEC properties: the value itself when it is set, the default one
+     * otherwise.
+     *
+     * @param propertyName the name of the DNSSEC property
+     * @param value the value of the property, <tt>null</tt> when it is unset
+     * @return the name of the mode in effect
+     */
+    private static String getEffectiveMode(String propertyName, Object value)
+    {
+        if (value != null)
+            return value.toString();
+
+        String defaultMode = SecureResolveMode.WarnIfBogus.name();
+
+        // an unset pin follows the default validation mode
+        if (propertyName.equals(
+                ConfigurableDnssecResolver.PNAME_DNSSEC_VALIDATION_MODE))
+        {
+            return defaultMode;
+        }
+        return DnsUtilActivator.getConfigurationService().getString(
+            ConfigurableDnssecResolver.PNAME_DNSSEC_VALIDATION_MODE,
+            defaultMode);
+    }
+
+    /**
+     * Returns the key of a question in the maps of the cache.
+     *
+     * @param name the name of the question
+     * @param type the type of the question
+     * @return the key of the question
+     */
+    private static String getKey(String name, int type)
+    {
+        name = name.toLowerCase(Locale.ENGLISH);
+        if (name.endsWith("."))
+            name = name.substring(0, name.length() - 1);
+        return name + "/" + type;
+    }
+
+    /**
+     * The TTL and the number of hits of an answer in the cache.
+     */
+    private static class Entry
+    {
+        /**
+         * The TTL of the answer in milliseconds.
+         */
+        final long ttl;
+
+        /**
+         * The time the answer expires.
+         */
+        final long expiry;
+
+        /**
+         * Whether the answer was validated as secure by DNSSEC.
+         */
+        final boolean secure;
+
+        /**
+         * The number of lookups which hit the answer.
+         */
+        final AtomicInteger hits = new AtomicInteger();
+
+        /**
+         * Whether the answer is being refreshed.
+         */
+        final AtomicBoolean prefetching = new AtomicBoolean();
+
+        /**
+         * Creates the entry of an answer added to the cache.
+         *
+         * @param ttl the TTL of the answer in milliseconds
+         * @param secure whether the answer was validated as secure
+         */
+        Entry(long ttl, boolean secure)
+        {
+            this.ttl = ttl;
+            this.expiry = System.currentTimeMillis() + ttl;
+            this.secure = secure;
+        }
+    }
+}
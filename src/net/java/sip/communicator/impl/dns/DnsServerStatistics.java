@@ -0,0 +1,201 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.dns;
+
+/**
+ * The latency statistics of a DNS resolver. The latency is smoothed the way
+ * TCP smoothes its round trip time (RFC 6298), which gives the time after
+ * which the lack of a response can be considered abnormal.
+ */
+public class DnsServerStatistics
+{
+    /**
+     * The name of the resolver, for logging purposes.
+     */
+    private final String name;
+
+    /**
+     * The smoothed latency in milliseconds, <tt>-1</tt> until the first
+     * sample.
+     */
+    private long smoothedLatency = -1;
+
+    /**
+     * The smoothed mean deviation of the latency in milliseconds.
+     */
+    private long latencyVariation = 0;
+
+    /**
+     * The number of responses received.
+     */
+    private long responseCount = 0;
+
+    /**
+     * The number of queries which failed or timed out.
+     */
+    private long failureCount = 0;
+
+    /**
+     * The number of satisfactory responses received in time since the last
+     * late, unsatisfactory or failed one.
+     */
+    private int consecutiveTimelyResponses = 0;
+
+    /**
+     * Creates the statistics of a resolver.
+     *
+     * @param name the name of the resolver
+     */
+    DnsServerStatistics(String name)
+    {
+        this.name = name;
+    }
+
+    /**
+     * Records a response.
+     *
+     * @param latency the number of milliseconds it took to arrive
+     * @param timely <tt>true</tt> if the response was satisfactory and
+     * arrived in time
+     */
+    synchronized void responseReceived(long latency, boolean timely)
+    {
+        responseCount++;
+        addSample(latency);
+
+        if (timely)
+            consecutiveTimelyResponses++;
+        else
+            consecutiveTimelyResponses = 0;
+    }
+
+    /**
+     * Records a failed query.
+     *
+     * @param elapsed the number of milliseconds before the query failed
+     * @param timedOut <tt>true</tt> if the query failed because no response
+     * arrived, in which case the time waited counts as a latency sample
+     */
+    synchronized void queryFailed(long elapsed, boolean timedOut)
+    {
+        failureCount++;
+        consecutiveTimelyResponses = 0;
+
+        if (timedOut)
+            addSample(elapsed);
+    }
+
+    /**
+     * Updates the smoothed latency and its deviation with a sample.
+     *
+     * @param latency the latency in milliseconds
+     */
+    private void addSample(long latency)
+    {
+        if (smoothedLatency < 0)
+        {
+            smoothedLatency = latency;
+            latencyVariation = latency / 2;
+        }
+        else
+        {
+            latencyVariation = (3 * latencyVariation
+                + Math.abs(smoothedLatency - latency)) / 4;
+            smoothedLatency = (7 * smoothedLatency + latency) / 8;
+        }
+    }
+
+    /**
+     * Returns the smoothed latency.
+     *
+     * @return the smoothed latency in milliseconds or <tt>-1</tt> if no
+     * latency was measured yet
+     */
+    public synchronized long getSmoothedLatency()
+    {
+        return smoothedLatency;
+    }
+
+    /**
+     * Returns the smoothed mean deviation of the latency.
+     *
+     * @return the deviation of the latency in milliseconds
+     */
+    public synchronized long getLatencyVariation()
+    {
+        return latencyVariation;
+    }
+
+    /**
+     * Returns the time after which a response is later than usual, that is
+     * the smoothed latency plus four times its deviation.
+     *
+     * @return the time in milliseconds or <tt>-1</tt> if no latency was
+     * measured yet
+     */
+    public synchronized long getResponseTimeout()
+    {
+        if (smoothedLatency < 0)
+            return -1;
+        return smoothedLatency + 4 * latencyVariation;
+    }
+
+    /**
+     * Returns the number of responses received.
+     *
+     * @return the number of responses received
+     */
+    public synchronized long getResponseCount()
+    {
+        return responseCount;
+    }
+
+    /**
+     * Returns the number of queries which failed or timed out.
+     *
+     * @return the number of failed queries
+     */
+    public synchronized long getFailureCount()
+    {
+        return failureCount;
+    }
+
+    /**
+     * Returns the number of satisfactory responses received in time since the
+     * last late, unsatisfactory or failed one.
+     *
+     * @return the number of consecutive timely responses
+     */
+    public synchronized int getConsecutiveTimelyResponses()
+    {
+        return consecutiveTimelyResponses;
+    }
+
+    /**
+     * Returns a summary of the statistics.
+     *
+     * @return a summary of the statistics
+     */
+    @Override
+    public synchronized String toString()
+    {
+        return name + " resolver: latency " + smoothedLatency + "ms +/- "
+            + latencyVariation + "ms, " + responseCount + " responses, "
+            + failureCount + " failures";
+    }
+}
@@ -61,6 +61,11 @@ public class DnsUtilActivator
     private static ResourceManagementService resourceService;
     private static BundleContext bundleContext;
 
+    /**
+     * The DNS cache shared by all the lookups.
+     */
+    private static DnsCacheImpl dnsCache;
+
     /**
      * The address of the backup resolver we would use by default.
      */
@@ -124,6 +129,13 @@ public class DnsUtilActivator
 
         Lookup.setPacketLogger(new DnsJavaLogger());
 
+        dnsCache = new DnsCacheImpl();
+        installDnsCache();
+        bundleContext.registerService(
+            DnsCacheService.class.getName(),
+            dnsCache,
+            null);
+
         if(loadDNSProxyForward())
         {
             // dns is forced to go through a proxy so skip any further settings
@@ -264,6 +276,20 @@ public class DnsUtilActivator
             if(!loadDNSProxyForward())
                 Lookup.refreshDefault();
         }
+
+        // the answers of the former servers may not hold anymore
+        installDnsCache();
+    }
+
+    /**
+     * Installs the shared DNS cache, emptied, as the default cache of the
+     * dnsjava lookups. To be called whenever <tt>Lookup.refreshDefault</tt>
+     * replaced it.
+     */
+    static void installDnsCache()
+    {
+        if (dnsCache != null)
+            dnsCache.install();
     }
 
     /**
@@ -22,6 +22,7 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 import net.java.sip.communicator.service.dns.*;
 import net.java.sip.communicator.util.*;
@@ -35,15 +36,23 @@ import org.xbill.DNS.*;
  * handle cases where DNS servers may return empty responses to some records.
  * <p>
  * We achieve this by entering a redundant mode whenever we detect an abnormal
- * delay (longer than <tt>DNS_PATIENCE</tt>)  while waiting for a DNS resonse,
- * or when that response is not considered satisfying.
+ * delay while waiting for a DNS resonse, or when that response is not
+ * considered satisfying. A delay is abnormal when it exceeds the usual latency
+ * of the primary resolver by four times its usual deviation, and in any case
+ * when it exceeds <tt>DNS_PATIENCE</tt>.
  * <p>
  * Once we enter redundant mode, we start duplicating all queries and sending
  * them to both our primary and backup resolvers (in case we have any). We then
  * always return the first response we get, regardless of who sent it.
  * <p>
  * We exit redundant mode after receiving <tt>DNS_REDEMPTION</tt> consecutive
- * timely and correct responses from our primary resolver.
+ * timely and correct responses from our primary resolver, provided that it
+ * is, on average, no slower than the backup resolver.
+ * <p>
+ * Identical questions asked while one of them is being resolved share its
+ * resolution, and the queries are sent by a bounded number of threads, so
+ * that the bursts of queries which follow a network change neither flood the
+ * DNS servers nor spawn a thread per query.
  *
  * @author Emil Ivov
  */
@@ -57,6 +66,18 @@ public class ParallelResolverImpl
     private static final Logger logger = Logger
                     .getLogger(ParallelResolverImpl.class);
 
+    /**
+     * The maximum number of queries sent at the same time to the default
+     * resolver, and to the backup resolvers.
+     */
+    private static final int MAX_QUERY_THREADS = 8;
+
+    /**
+     * The minimum number of milliseconds that we wait before entering
+     * redundant mode, however fast the default resolver usually is.
+     */
+    private static final long MIN_DNS_PATIENCE = 250;
+
     /**
      * Indicates whether we are currently in a mode where all DNS queries are
      * sent to both the primary and the backup DNS servers.
@@ -76,13 +97,6 @@ public class ParallelResolverImpl
      */
     public static int currentDnsRedemption = DNS_REDEMPTION;
 
-    /**
-     * The number of fast responses that we need to get from the primary
-     * resolver before we exit redundant mode. <tt>0</tt> indicates that we are
-     * no longer in redundant mode
-     */
-    private static int redemptionStatus = 0;
-
     /**
      * A lock that we use while determining whether we've completed redemption
      * and can exit redundant mode.
@@ -99,15 +113,66 @@ public class ParallelResolverImpl
      */
     private ExtendedResolver backupResolver;
 
-    /** Thread pool that processes the backup queries. */
-    private ExecutorService backupQueriesPool;
+    /**
+     * The latency statistics of the default resolver, renewed with it.
+     */
+    private volatile DnsServerStatistics primaryStats
+        = new DnsServerStatistics("Primary");
+
+    /**
+     * The latency statistics of the backup resolver.
+     */
+    private final DnsServerStatistics backupStats
+        = new DnsServerStatistics("Backup");
+
+    /**
+     * The resolutions in progress by question, which identical queries join
+     * instead of being sent again.
+     */
+    private final ConcurrentMap<String, ParallelResolution> resolutions
+        = new ConcurrentHashMap<String, ParallelResolution>();
+
+    /**
+     * The source of the identifiers returned by <tt>sendAsync</tt>.
+     */
+    private final AtomicInteger asyncIDs = new AtomicInteger();
+
+    /** Thread pool that processes the queries to the default resolver. */
+    private final ExecutorService primaryQueriesPool
+        = createQueriesPool("ParallelResolver primary query");
+
+    /**
+     * Thread pool that processes the backup queries. It is distinct from the
+     * one of the primary queries so that the backup queries do not wait for
+     * the threads which are blocked by an unresponsive default resolver.
+     */
+    private final ExecutorService backupQueriesPool
+        = createQueriesPool("ParallelResolver backup query");
+
+    /**
+     * Ends the patience of the resolutions which are still waiting for the
+     * default resolver.
+     */
+    private final ScheduledThreadPoolExecutor patienceTimer;
 
     /**
      * Creates a new instance of this class.
      */
     ParallelResolverImpl()
     {
-        backupQueriesPool = Executors.newCachedThreadPool();
+        patienceTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+        {
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread
+                    = new Thread(runnable, "ParallelResolver patience timer");
+
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        patienceTimer.setRemoveOnCancelPolicy(true);
+
         DnsUtilActivator.getConfigurationService()
             .addPropertyChangeListener(this);
         initProperties();
@@ -211,74 +276,160 @@ public class ParallelResolverImpl
     public Message send(Message query)
         throws IOException
     {
-        ParallelResolution resolution = new ParallelResolution(query);
-        resolution.sendFirstQuery();
+        ParallelResolution resolution = resolve(query);
+
+        resolution.waitForResponse();
+        return resolution.returnResponseOrThrowUp(query);
+    }
+
+    /**
+     * Asynchronously sends a message. The listener is notified in one of the
+     * threads sending the queries.
+     *
+     * @param query The query to send
+     * @param listener The object containing the callbacks.
+     * @return An identifier, which is also a parameter in the callback
+     */
+    public Object sendAsync(final Message query, final ResolverListener listener)
+    {
+        Object id = asyncIDs.incrementAndGet();
+
+        resolve(query).addListener(id, query, listener);
+        return id;
+    }
+
+    /**
+     * Returns the resolution of <tt>query</tt>, which is either the one
+     * already in progress for the same question or a new one.
+     *
+     * @param query the query to resolve
+     * @return the resolution of the query
+     */
+    private ParallelResolution resolve(Message query)
+    {
+        String key = getResolutionKey(query);
+        ParallelResolution resolution = new ParallelResolution(query, key);
 
-        //if we are not in redundant mode we should wait a bit and see how this
-        //goes. if we get a reply we could return bravely.
-        if(!redundantMode)
+        if (key != null)
         {
-            if(resolution.waitForResponse(currentDnsPatience))
-            {
-                //we are done.
-                return resolution.returnResponseOrThrowUp();
-            }
-            else
+            ParallelResolution pending
+                = resolutions.putIfAbsent(key, resolution);
+
+            if (pending != null)
             {
-                synchronized(redemptionLock)
-                {
-                    redundantMode = true;
-                    redemptionStatus = currentDnsRedemption;
-                    logger.info("Primary DNS seems laggy: "
-                        + "no response for " + query.getQuestion().getName()
-                        + "/" + Type.string(query.getQuestion().getType())
-                        + " after " + currentDnsPatience + "ms. "
-                        + "Enabling redundant mode.");
-                }
+                if (logger.isTraceEnabled())
+                    logger.trace("Joining the resolution of " + key);
+                return pending;
             }
         }
 
-        //we are definitely in redundant mode now
-        resolution.sendBackupQueries();
-        resolution.waitForResponse(0);
+        resolution.start();
+        return resolution;
+    }
 
-        //check if it is time to end redundant mode.
+    /**
+     * Returns the key identifying the question of a query among the
+     * resolutions in progress.
+     *
+     * @param query the query
+     * @return the key of the question or <tt>null</tt> if the query has none
+     */
+    private static String getResolutionKey(Message query)
+    {
+        Record question = query.getQuestion();
+
+        if (question == null)
+            return null;
+
+        return question.getName() + "/" + Type.string(question.getType())
+            + "/" + DClass.string(question.getDClass());
+    }
+
+    /**
+     * Returns the number of milliseconds that we wait for the default
+     * resolver before entering redundant mode.
+     *
+     * @return the number of milliseconds that we wait for the default
+     * resolver
+     */
+    private long getPatience()
+    {
+        long usual = primaryStats.getResponseTimeout();
+
+        if (usual < 0)
+            return currentDnsPatience;
+
+        return Math.min(
+            currentDnsPatience, Math.max(MIN_DNS_PATIENCE, usual));
+    }
+
+    /**
+     * Enters redundant mode.
+     *
+     * @param reason why the default resolver is not trusted anymore
+     */
+    private void enterRedundantMode(String reason)
+    {
         synchronized(redemptionLock)
         {
-            if(!resolution.primaryResolverRespondedFirst)
+            if (redundantMode)
+                return;
+
+            redundantMode = true;
+            logger.info("Primary DNS seems laggy: " + reason
+                + ". Enabling redundant mode. " + primaryStats);
+        }
+    }
+
+    /**
+     * Exits redundant mode if the default resolver has redeemed itself.
+     *
+     * @param stats the statistics of the default resolver
+     */
+    private void checkRedemption(DnsServerStatistics stats)
+    {
+        synchronized(redemptionLock)
+        {
+            if (!redundantMode
+                || stats.getConsecutiveTimelyResponses() < currentDnsRedemption)
             {
-                //primary DNS is still feeling shaky. we reinit redemption
-                //status in case we were about to cut the server some slack
-                redemptionStatus = currentDnsRedemption;
+                return;
             }
-            else
-            {
-                //primary server replied first. we let him redeem some dignity
-                redemptionStatus --;
 
-                //yup, it's now time to end DNS redundant mode;
-                if(redemptionStatus <= 0)
-                {
-                    redundantMode = false;
-                    logger.info("Primary DNS seems back in biz. "
-                                    + "Disabling redundant mode.");
-                }
+            // the backup resolver is only queried in redundant mode, so it
+            // has no statistics unless it helped us already
+            long backupLatency = backupStats.getSmoothedLatency();
+
+            if (backupLatency >= 0
+                && stats.getSmoothedLatency() > backupLatency)
+            {
+                return;
             }
+
+            redundantMode = false;
+            logger.info("Primary DNS seems back in biz. "
+                + "Disabling redundant mode. " + stats + ", " + backupStats);
         }
+    }
 
-        return resolution.returnResponseOrThrowUp();
+    /**
+     * Returns the latency statistics of the default resolver.
+     *
+     * @return the latency statistics of the default resolver
+     */
+    public DnsServerStatistics getPrimaryStatistics()
+    {
+        return primaryStats;
     }
 
     /**
-     * Supposed to asynchronously send messages but not currently implemented.
+     * Returns the latency statistics of the backup resolvers.
      *
-     * @param query The query to send
-     * @param listener The object containing the callbacks.
-     * @return An identifier, which is also a parameter in the callback
+     * @return the latency statistics of the backup resolvers
      */
-    public Object sendAsync(final Message query, final ResolverListener listener)
+    public DnsServerStatistics getBackupStatistics()
     {
-        throw new UnsupportedOperationException("Not implemented");
+        return backupStats;
     }
 
     /**
@@ -383,6 +534,7 @@ public class ParallelResolverImpl
     public final void reset()
     {
         Lookup.refreshDefault();
+        DnsUtilActivator.installDnsCache();
 
         // populate with new servers after refreshing configuration
         try
@@ -391,6 +543,11 @@ public class ParallelResolverImpl
             ExtendedResolver temp = new ExtendedResolver();
             temp.setTimeout(10);
             defaultResolver = temp;
+
+            // the new servers have a latency of their own, and new queries
+            // are not to join the ones which may be stuck with the old ones
+            primaryStats = new DnsServerStatistics("Primary");
+            resolutions.clear();
         }
         catch (UnknownHostException e)
         {
@@ -456,8 +613,9 @@ public class ParallelResolverImpl
 
     /**
      * The class that listens for responses to any of the queries we send to
-     * our default and backup servers and returns as soon as we get one or until
-     * our default resolver fails.
+     * our default and backup servers and completes as soon as we get one or
+     * until our default resolver fails. Its response is shared by all the
+     * identical queries which joined it.
      */
     private class ParallelResolution implements Runnable
     {
@@ -466,11 +624,34 @@ public class ParallelResolverImpl
          */
         private final Message query;
 
+        /**
+         * The key of the question of the query, <tt>null</tt> if it has no
+         * question.
+         */
+        private final String key;
+
+        /**
+         * The statistics of the default resolver this resolution uses.
+         */
+        private final DnsServerStatistics stats = primaryStats;
+
+        /**
+         * The number of milliseconds we wait for the default resolver before
+         * sending the query to the backup resolvers.
+         */
+        private long patience;
+
         /**
          * The field where we would store the first incoming response to our
          * query.
          */
-        private volatile Message response;
+        private Message response;
+
+        /**
+         * The unsatisfactory response of the default resolver, which we
+         * return if the backup resolvers fail to provide one.
+         */
+        private Message primaryResponse;
 
         /**
          * The field where we would store the first error we receive from a DNS
@@ -484,28 +665,69 @@ public class ParallelResolverImpl
         private volatile boolean done = false;
 
         /**
-         * Indicates that a response was received from the primary resolver.
+         * Indicates whether the query was sent to the backup resolvers.
+         */
+        private boolean backupQueriesSent = false;
+
+        /**
+         * The task sending the query to the backup resolvers when our
+         * patience runs out.
          */
-        private volatile boolean primaryResolverRespondedFirst = true;
+        private ScheduledFuture<?> patienceTimeout;
+
+        /**
+         * The asynchronous queries waiting for this resolution, <tt>null</tt>
+         * once it is done.
+         */
+        private List<AsyncQuery> asyncQueries = new LinkedList<AsyncQuery>();
 
         /**
          * Creates a {@link ParallelResolution} for the specified <tt>query</tt>
          *
          * @param query the DNS query that we'd like to send to our primary
          * and backup resolvers.
+         * @param key the key of the question of the query
          */
-        public ParallelResolution(final Message query)
+        public ParallelResolution(final Message query, String key)
         {
             this.query = query;
+            this.key = key;
         }
 
         /**
-         * Starts this collector which would cause it to send its query to the
-         * default resolver.
+         * Sends the query to the default resolver and, if we are in
+         * redundant mode, to the backup resolvers. Otherwise we send it to
+         * the backup resolvers when the default one fails or our patience runs
+         * out.
          */
-        public void sendFirstQuery()
+        public void start()
         {
-            ParallelResolverImpl.this.backupQueriesPool.execute(this);
+            patience = getPatience();
+            primaryQueriesPool.execute(this);
+
+            synchronized(this)
+            {
+                if (done)
+                    return;
+
+                if(redundantMode)
+                {
+                    sendBackupQueries();
+                }
+                else
+                {
+                    patienceTimeout = patienceTimer.schedule(
+                        new Runnable()
+                        {
+                            public void run()
+                            {
+                                patienceRanOut();
+                            }
+                        },
+                        patience,
+                        TimeUnit.MILLISECONDS);
+                }
+            }
         }
 
         /**
@@ -514,7 +736,11 @@ public class ParallelResolverImpl
         @Override
         public void run()
         {
+            // the latency of the default resolver leaves out the time spent
+            // waiting for a thread of the pool, the patience does not
+            long startTime = System.currentTimeMillis();
             Message localResponse = null;
+            Throwable localException = null;
 
             try
             {
@@ -523,41 +749,86 @@ public class ParallelResolverImpl
             catch (SocketTimeoutException exc)
             {
                 logger.info("Default DNS resolver timed out.");
-                exception = exc;
+                localException = exc;
             }
             catch (Throwable exc)
             {
                 logger.info("Default DNS resolver failed", exc);
-                exception = exc;
+                localException = exc;
             }
 
-            //if the backup resolvers had already replied we ignore the
-            //reply of the primary one whatever it was.
-            if(done)
-                return;
+            long latency = System.currentTimeMillis() - startTime;
+            boolean satisfactory
+                = localResponse != null && isResponseSatisfactory(localResponse);
+
+            if (localResponse != null)
+            {
+                stats.responseReceived(
+                    latency, satisfactory && latency <= patience);
+            }
+            else
+            {
+                stats.queryFailed(
+                    latency, localException instanceof SocketTimeoutException);
+            }
+            checkRedemption(stats);
+
+            List<AsyncQuery> waiting;
 
             synchronized(this)
             {
+                //if the backup resolvers had already replied we ignore the
+                //reply of the primary one whatever it was.
+                if(done)
+                    return;
+
                 //if there was a response we're only done if it is satisfactory
-                if(    localResponse != null
-                    && isResponseSatisfactory(localResponse))
+                if(satisfactory)
                 {
                     response = localResponse;
-                    done = true;
+                    waiting = complete();
                 }
+                else
+                {
+                    primaryResponse = localResponse;
+                    if (localException != null)
+                        exception = localException;
 
-                notify();
+                    //the backup resolvers have the last word
+                    if (!backupQueriesSent)
+                    {
+                        enterRedundantMode(
+                            "no satisfactory response for " + this);
+                        sendBackupQueries();
+                    }
+                    return;
+                }
             }
+
+            notifyAsyncQueries(waiting);
+        }
+
+        /**
+         * Sends the query to the backup resolvers unless the default resolver
+         * replied in the meantime.
+         */
+        private synchronized void patienceRanOut()
+        {
+            if (done || backupQueriesSent)
+                return;
+
+            enterRedundantMode(
+                "no response for " + this + " after " + patience + "ms");
+            sendBackupQueries();
         }
 
         /**
          * Asynchronously sends this collector's query to all backup resolvers.
+         * Must be called with the lock of this resolution held.
          */
-        public void sendBackupQueries()
+        private void sendBackupQueries()
         {
-            //yes. a second thread in the thread ... it's ugly but it works
-            //and i do want to keep code simple to read ... this whole parallel
-            //resolving is complicated enough as it is.
+            backupQueriesSent = true;
             backupQueriesPool.execute(new Runnable(){
                 @Override
                 public void run()
@@ -567,12 +838,12 @@ public class ParallelResolverImpl
                         return;
                     }
 
+                    long backupStartTime = System.currentTimeMillis();
                     Message localResponse = null;
+                    Throwable localException = null;
                     try
                     {
-                        logger.info("Sending query for "
-                            + query.getQuestion().getName() + "/"
-                            + Type.string(query.getQuestion().getType())
+                        logger.info("Sending query for " + ParallelResolution.this
                             + " to backup resolvers");
                         localResponse = backupResolver.send(query);
                     }
@@ -583,87 +854,186 @@ public class ParallelResolverImpl
                                     + exc);
 
                         //keep this so that we can rethrow it
-                        exception = exc;
+                        localException = exc;
                     }
-                    //if the default resolver has already replied we
-                    //ignore the reply of the backup ones.
-                    if(done)
+
+                    long latency
+                        = System.currentTimeMillis() - backupStartTime;
+
+                    if (localResponse != null)
                     {
-                        return;
+                        backupStats.responseReceived(
+                            latency, isResponseSatisfactory(localResponse));
                     }
+                    else
+                    {
+                        backupStats.queryFailed(latency,
+                            localException instanceof SocketTimeoutException);
+                    }
+
+                    List<AsyncQuery> waiting;
 
                     synchronized(ParallelResolution.this)
                     {
+                        //if the default resolver has already replied we
+                        //ignore the reply of the backup ones.
+                        if(done)
+                        {
+                            return;
+                        }
+
                         //contrary to responses from the  primary resolver,
                         //in this case we don't care whether the response is
                         //satisfying: if it isn't, there's nothing we can do
-                        if (response == null)
-                        {
-                            response = localResponse;
-                            primaryResolverRespondedFirst = false;
-                        }
+                        response = (localResponse != null)
+                            ? localResponse
+                            : primaryResponse;
+                        if (localException != null)
+                            exception = localException;
 
-                        done = true;
-                        ParallelResolution.this.notify();
+                        waiting = complete();
                     }
+
+                    notifyAsyncQueries(waiting);
                 }
             });
         }
 
         /**
-         * Waits for a response or an error to occur during <tt>waitFor</tt>
-         * milliseconds.If neither happens, we return false.
+         * Marks this resolution as done and wakes up the threads waiting for
+         * it. Must be called with the lock of this resolution held.
          *
-         * @param waitFor the number of milliseconds to wait for a response or
-         * an error or <tt>0</tt> if we'd like to wait until either of these
-         * happen.
+         * @return the asynchronous queries to notify
+         */
+        private List<AsyncQuery> complete()
+        {
+            done = true;
+            if (patienceTimeout != null)
+                patienceTimeout.cancel(false);
+            if (key != null)
+                resolutions.remove(key, this);
+            notifyAll();
+
+            List<AsyncQuery> waiting = asyncQueries;
+
+            asyncQueries = null;
+            return waiting;
+        }
+
+        /**
+         * Notifies the listener of an asynchronous query once this resolution
+         * is done.
          *
-         * @return <tt>true</tt> if we returned because we received a response
-         * from a resolver or errors from everywhere, and <tt>false</tt> that
-         * didn't happen.
+         * @param id the identifier of the query
+         * @param query the query
+         * @param listener the listener to notify
          */
-        public boolean waitForResponse(long waitFor)
+        public void addListener(
+                Object id, Message query, ResolverListener listener)
         {
+            AsyncQuery asyncQuery = new AsyncQuery(id, query, listener);
+
             synchronized(this)
             {
-                if(done)
-                    return done;
+                if (!done)
+                {
+                    asyncQueries.add(asyncQuery);
+                    return;
+                }
+            }
+            notifyAsyncQueries(Collections.singletonList(asyncQuery));
+        }
+
+        /**
+         * Passes the outcome of this resolution to the listeners of
+         * asynchronous queries.
+         *
+         * @param waiting the asynchronous queries
+         */
+        private void notifyAsyncQueries(List<AsyncQuery> waiting)
+        {
+            for (AsyncQuery asyncQuery : waiting)
+            {
+                Message localResponse;
+
+                try
+                {
+                    try
+                    {
+                        localResponse
+                            = returnResponseOrThrowUp(asyncQuery.query);
+                    }
+                    catch (Exception e)
+                    {
+                        asyncQuery.listener.handleException(asyncQuery.id, e);
+                        continue;
+                    }
+                    asyncQuery.listener.receiveMessage(
+                        asyncQuery.id, localResponse);
+                }
+                catch (Throwable t)
+                {
+                    logger.error("DNS resolver listener failed", t);
+                    if (t instanceof ThreadDeath)
+                        throw (ThreadDeath) t;
+                }
+            }
+        }
+
+        /**
+         * Waits for a response or an error to occur, or for the current
+         * thread to be interrupted.
+         */
+        public synchronized void waitForResponse()
+        {
+            while(!done)
+            {
                 try
                 {
-                    wait(waitFor);
+                    wait();
                 }
                 catch (InterruptedException e)
                 {
-                    //we don't care
+                    Thread.currentThread().interrupt();
+                    return;
                 }
-
-                return done;
             }
         }
 
         /**
-         * Waits for resolution to complete (if necessary) and then either
-         * returns the response we received or throws whatever exception we
-         * saw.
+         * Either returns the response we received, in reply to
+         * <tt>query</tt>, or throws whatever exception we saw.
          *
+         * @param query the query which is to be replied, this resolution's one
+         * or an identical one which joined it
          * @return the response {@link Message} we received from the DNS.
          *
          * @throws IOException if this resolution ended badly because of a
-         * network IO error
+         * network IO error or if it is not done
          * @throws RuntimeException if something unexpected happened
          * during resolution.
          * @throws IllegalArgumentException if something unexpected happened
          * during resolution or if there was no response.
          */
-        public Message returnResponseOrThrowUp()
+        public Message returnResponseOrThrowUp(Message query)
             throws IOException, RuntimeException, IllegalArgumentException
         {
             if(!done)
-                waitForResponse(0);
+            {
+                throw new InterruptedIOException(
+                    "Interrupted while resolving " + this);
+            }
 
             if(response != null)
             {
-                return response;
+                if (query == this.query)
+                    return response;
+
+                // the response is shared, each query gets its own copy
+                Message copy = (Message) response.clone();
+
+                copy.getHeader().setID(query.getHeader().getID());
+                return copy;
             }
             else if (exception instanceof SocketTimeoutException)
             {
@@ -693,6 +1063,80 @@ public class ParallelResolverImpl
                 throw new IllegalStateException("ExtendedResolver failure");
             }
         }
+
+        /**
+         * Returns the question of the query of this resolution.
+         *
+         * @return the question of the query
+         */
+        @Override
+        public String toString()
+        {
+            return (key == null) ? "a query without question" : key;
+        }
+
+        /**
+         * A query sent with <tt>sendAsync</tt>, waiting for this resolution.
+         */
+        private class AsyncQuery
+        {
+            /**
+             * The identifier <tt>sendAsync</tt> returned for the query.
+             */
+            final Object id;
+
+            /**
+             * The query.
+             */
+            final Message query;
+
+            /**
+             * The listener to notify.
+             */
+            final ResolverListener listener;
+
+            /**
+             * Creates an asynchronous query.
+             *
+             * @param id the identifier of the query
+             * @param query the query
+             * @param listener the listener to notify
+             */
+            AsyncQuery(Object id, Message query, ResolverListener listener)
+            {
+                this.id = id;
+                this.query = query;
+                this.listener = listener;
+            }
+        }
+    }
+
+    /**
+     * Creates a pool of at most <tt>MAX_QUERY_THREADS</tt> daemon threads,
+     * which stop when they are idle for a minute.
+     *
+     * @param name the name of the threads
+     * @return the pool
+     */
+    private static ExecutorService createQueriesPool(final String name)
+    {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(
+            MAX_QUERY_THREADS, MAX_QUERY_THREADS,
+            60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory()
+            {
+                public Thread newThread(Runnable runnable)
+                {
+                    Thread thread = new Thread(runnable, name);
+
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
     }
 
     @SuppressWarnings("serial")
@@ -127,6 +127,34 @@ public class UnboundResolver
      * {@inheritDoc}
      */
     public SecureMessage send(final Message query) throws IOException
+    {
+        return send(query, true);
+    }
+
+    /**
+     * Sends a message and waits for a response, without handling the
+     * validation result: the caller is to check it.
+     *
+     * @param query the query to send
+     * @return the response
+     * @throws IOException if an error occurred while sending or receiving
+     */
+    SecureMessage sendWithoutValidation(Message query) throws IOException
+    {
+        return send(query, false);
+    }
+
+    /**
+     * Sends a message and waits for a response.
+     *
+     * @param query the query to send
+     * @param validate whether to handle the validation result with
+     * {@link #validateMessage(SecureMessage)}
+     * @return the response
+     * @throws IOException if an error occurred while sending or receiving
+     */
+    private SecureMessage send(final Message query, final boolean validate)
+        throws IOException
     {
         Future<SecureMessage> future = threadPool.submit(
             new Callable<SecureMessage>()
@@ -147,7 +175,8 @@ public class UnboundResolver
                         query.getQuestion().getDClass()
                         );
                     secureMessage = new SecureMessage(result);
-                    validateMessage(secureMessage);
+                    if (validate)
+                        validateMessage(secureMessage);
                 }
                 finally
                 {
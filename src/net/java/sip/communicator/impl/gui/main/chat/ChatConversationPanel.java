@@ -238,6 +238,29 @@ public class ChatConversationPanel
      */
     private boolean scrollToBottomIsPending = false;
 
+    /**
+     * The number of nested message batches being appended, during which
+     * {@link #document} is not laid out message by message.
+     */
+    private int messageBatchDepth = 0;
+
+    /**
+     * Whether {@link #document} has been replaced in {@link #chatTextPane} by
+     * an empty document for the duration of a message batch.
+     */
+    private boolean documentDetached = false;
+
+    /**
+     * The part of the conversation shown in {@link #document}.
+     */
+    private final ChatTranscriptWindow transcript = new ChatTranscriptWindow();
+
+    /**
+     * Loads the messages before and after those shown in {@link #document}
+     * when the user scrolls past them.
+     */
+    private ChatScrollbackListener scrollbackListener;
+
     private String lastMessageUID = null;
 
     private boolean isSimpleTheme = true;
@@ -429,6 +452,84 @@ public class ChatConversationPanel
 
         chatTextPane.addComponentListener(componentListener);
         getViewport().addComponentListener(componentListener);
+
+        if (!isHistory)
+        {
+            /*
+             * Only the scrolling done by the user loads other messages, the
+             * scroll bar is also moved when a document is set or laid out.
+             * Dragging it or clicking on it marks its value as adjusting.
+             */
+            getVerticalScrollBar().addAdjustmentListener(
+                new AdjustmentListener()
+                {
+                    public void adjustmentValueChanged(AdjustmentEvent e)
+                    {
+                        if (e.getValueIsAdjusting())
+                            checkScrollback();
+                    }
+                });
+            addMouseWheelListener(new MouseWheelListener()
+            {
+                public void mouseWheelMoved(MouseWheelEvent e)
+                {
+                    // Checked once the scroll pane has scrolled.
+                    SwingUtilities.invokeLater(new Runnable()
+                    {
+                        public void run()
+                        {
+                            checkScrollback();
+                        }
+                    });
+                }
+            });
+        }
+    }
+
+    /**
+     * Sets the listener which loads the messages before and after those shown
+     * when the user scrolls past them.
+     *
+     * @param scrollbackListener the listener or <tt>null</tt> to only show
+     * the messages added to this panel
+     */
+    void setScrollbackListener(ChatScrollbackListener scrollbackListener)
+    {
+        this.scrollbackListener = scrollbackListener;
+    }
+
+    /**
+     * Loads the older messages when the user has scrolled to the top of the
+     * conversation, or the newest ones when the user has scrolled back to the
+     * bottom and they are no longer shown.
+     */
+    private void checkScrollback()
+    {
+        if (scrollbackListener == null
+            || messageBatchDepth > 0
+            || scrollToBottomIsPending)
+            return;
+
+        BoundedRangeModel model = getVerticalScrollBar().getModel();
+
+        // Nothing to scroll.
+        if (model.getMaximum() - model.getMinimum() <= model.getExtent())
+            return;
+
+        if (model.getValue() <= model.getMinimum())
+        {
+            if (transcript.startLoadingOlder()
+                && !scrollbackListener.loadMessagesBefore(
+                        getPageFirstMsgTimestamp()))
+                transcript.loadingCancelled();
+        }
+        else if (model.getValue() + model.getExtent() >= model.getMaximum())
+        {
+            // Without the history, show what arrived in the meantime.
+            if (transcript.startLoadingNewest()
+                && !scrollbackListener.loadNewestMessages())
+                newestMessagesLoaded(Collections.<String>emptySet());
+        }
     }
 
     /**
@@ -523,9 +624,35 @@ public class ChatConversationPanel
             return null;
         }
 
-        String contentType = chatMessage.getContentType();
-
         lastMessageTimestamp = chatMessage.getDate();
+        lastMessageUID = chatMessage.getMessageUID();
+
+        if (chatMessage.getMessageType().equals(Chat.INCOMING_MESSAGE))
+            this.lastIncomingMsgTimestamp = new Date();
+
+        return createMessageHtml(
+            chatMessage, keyword, protocolProvider, contactAddress);
+    }
+
+    /**
+     * Creates the HTML of a message, which does not continue the previous
+     * one. Does not access the document, so that it can be called outside the
+     * event dispatching thread.
+     *
+     * @param chatMessage the message
+     * @param keyword a substring of <tt>chatMessage</tt> to be highlighted upon
+     * display of <tt>chatMessage</tt> in the UI
+     * @param protocolProvider the protocol provider of the conversation
+     * @param contactAddress the address of the contact of the conversation
+     * @return the HTML of the message
+     */
+    public String createMessageHtml(ChatMessage chatMessage,
+                                    String keyword,
+                                    ProtocolProviderService protocolProvider,
+                                    String contactAddress)
+    {
+        String contentType = chatMessage.getContentType();
+        String messageUID = chatMessage.getMessageUID();
 
         String contactName = chatMessage.getContactName();
         String contactDisplayName = chatMessage.getContactDisplayName();
@@ -547,19 +674,15 @@ public class ChatConversationPanel
         String chatString = "";
         String endHeaderTag = "";
 
-        lastMessageUID = chatMessage.getMessageUID();
-
         if (messageType.equals(Chat.INCOMING_MESSAGE))
         {
-            this.lastIncomingMsgTimestamp = new Date();
-
             chatString = ChatHtmlUtils.createIncomingMessageTag(
-                lastMessageUID,
+                messageUID,
                 contactName,
                 contactDisplayName,
                 getContactAvatar(protocolProvider, contactAddress),
                 date,
-                formatMessageAsHTML(message, contentType, keyword),
+                formatMessageAsHTML(chatMessage, keyword),
                 ChatHtmlUtils.HTML_CONTENT_TYPE,
                 false,
                 isSimpleTheme);
@@ -567,12 +690,12 @@ public class ChatConversationPanel
         else if (messageType.equals(Chat.OUTGOING_MESSAGE))
         {
             chatString = ChatHtmlUtils.createOutgoingMessageTag(
-                lastMessageUID,
+                messageUID,
                 contactName,
                 contactDisplayName,
                 getContactAvatar(protocolProvider),
                 date,
-                formatMessageAsHTML(message, contentType, keyword),
+                formatMessageAsHTML(chatMessage, keyword),
                 ChatHtmlUtils.HTML_CONTENT_TYPE,
                 false,
                 isSimpleTheme);
@@ -580,12 +703,12 @@ public class ChatConversationPanel
         else if (messageType.equals(Chat.HISTORY_INCOMING_MESSAGE))
         {
             chatString = ChatHtmlUtils.createIncomingMessageTag(
-                lastMessageUID,
+                messageUID,
                 contactName,
                 contactDisplayName,
                 getContactAvatar(protocolProvider, contactAddress),
                 date,
-                formatMessageAsHTML(message, contentType, keyword),
+                formatMessageAsHTML(chatMessage, keyword),
                 ChatHtmlUtils.HTML_CONTENT_TYPE,
                 true,
                 isSimpleTheme);
@@ -593,12 +716,12 @@ public class ChatConversationPanel
         else if (messageType.equals(Chat.HISTORY_OUTGOING_MESSAGE))
         {
             chatString = ChatHtmlUtils.createOutgoingMessageTag(
-                lastMessageUID,
+                messageUID,
                 contactName,
                 contactDisplayName,
                 getContactAvatar(protocolProvider),
                 date,
-                formatMessageAsHTML(message, contentType, keyword),
+                formatMessageAsHTML(chatMessage, keyword),
                 ChatHtmlUtils.HTML_CONTENT_TYPE,
                 true,
                 isSimpleTheme);
@@ -606,7 +729,7 @@ public class ChatConversationPanel
         else if (messageType.equals(Chat.SMS_MESSAGE))
         {
             chatString = ChatHtmlUtils.createIncomingMessageTag(
-                lastMessageUID,
+                messageUID,
                 contactName,
                 contactDisplayName,
                 getContactAvatar(protocolProvider, contactAddress),
@@ -746,8 +869,7 @@ public class ChatConversationPanel
                                     chatMessage.getMessageUID(),
                                     contactAddress,
                                     formatMessageAsHTML(
-                                        chatMessage.getMessage(),
-                                        chatMessage.getContentType(),
+                                        chatMessage,
                                         keyword),
                                     ChatHtmlUtils.HTML_CONTENT_TYPE,
                                     chatMessage.getDate(),
@@ -766,7 +888,7 @@ public class ChatConversationPanel
                 // Need to call explicitly scrollToBottom, because for some
                 // reason the componentResized event isn't fired every time
                 // we add text.
-                SwingUtilities.invokeLater(scrollToBottomRunnable);
+                scrollToBottomLater();
             }
             catch (BadLocationException ex)
             {
@@ -778,7 +900,7 @@ public class ChatConversationPanel
             }
         }
 
-        finishMessageAdd(newMessage);
+        finishMessageAdd(chatMessage.getMessageUID(), newMessage);
     }
 
     /**
@@ -849,7 +971,7 @@ public class ChatConversationPanel
                 // Need to call explicitly scrollToBottom, because for some
                 // reason the componentResized event isn't fired every time
                 // we add text.
-                SwingUtilities.invokeLater(scrollToBottomRunnable);
+                scrollToBottomLater();
             }
             catch (BadLocationException ex)
             {
@@ -861,7 +983,7 @@ public class ChatConversationPanel
             }
         }
 
-        finishMessageAdd(newMessage);
+        finishMessageAdd(chatMessage.getMessageUID(), newMessage);
     }
 
     /**
@@ -905,6 +1027,32 @@ public class ChatConversationPanel
             message = StringEscapeUtils.escapeHtml4(original);
         }
 
+        String lastElemContent = getElementContent(lastMessageUID, message);
+        String messageUID = (lastElemContent == null) ? null : lastMessageUID;
+
+        // Kept aside while the user reads older messages. A batch fills a
+        // page of its own, e.g. the newest messages loaded again.
+        if (messageBatchDepth == 0
+            && transcript.addDetachedMessage(
+                    new ChatTranscriptWindow.RenderedMessage(
+                        messageUID, message)))
+            return;
+
+        insertMessageAtEnd(messageUID, message, lastElemContent);
+    }
+
+    /**
+     * Inserts the HTML of a message at the end of the document.
+     *
+     * @param messageUID the identifier of the message or <tt>null</tt>
+     * @param message the HTML of the message
+     * @param messageContent the HTML of the element of the message with
+     * <tt>messageUID</tt>, or <tt>null</tt> if there is none
+     */
+    private void insertMessageAtEnd(String messageUID,
+                                    String message,
+                                    String messageContent)
+    {
         synchronized (scrollToBottomRunnable)
         {
             Element root = document.getDefaultRootElement();
@@ -920,7 +1068,7 @@ public class ChatConversationPanel
                 // Need to call explicitly scrollToBottom, because for some
                 // reason the componentResized event isn't fired every time we
                 // add text.
-                SwingUtilities.invokeLater(scrollToBottomRunnable);
+                scrollToBottomLater();
             }
             catch (BadLocationException e)
             {
@@ -932,11 +1080,9 @@ public class ChatConversationPanel
             }
         }
 
-        String lastElemContent = getElementContent(lastMessageUID, message);
-
-        if (lastElemContent != null)
+        if (messageContent != null)
         {
-            finishMessageAdd(lastElemContent);
+            finishMessageAdd(messageUID, messageContent);
         }
     }
 
@@ -944,33 +1090,44 @@ public class ChatConversationPanel
      * Performs all operations needed in order to finish the adding of the
      * message to the document.
      *
+     * @param messageUID the identifier of the message
      * @param message the message string
-     * @param contentType
      */
-    private void finishMessageAdd(final String message)
+    private void finishMessageAdd(String messageUID, final String message)
     {
         // If we're not in chat history case we need to be sure the document
-        // has not exceeded the required size (number of messages).
-        if (!isHistory)
+        // has not exceeded the required size (number of messages). A batch
+        // is trimmed once at its end.
+        if (!isHistory && messageBatchDepth == 0)
             ensureDocumentSize();
 
         /*
          * Replacements will be processed only if it is enabled in the
          * property.
          */
-        ConfigurationService cfg = GuiActivator.getConfigurationService();
-
-        if (cfg.getBoolean(ReplacementProperty.REPLACEMENT_ENABLE, true)
-                ||cfg.getBoolean(ReplacementProperty.REPLACEMENT_PROPOSAL, true)
-                || cfg.getBoolean(
-                        ReplacementProperty.getPropertyName("SMILEY"),
-                        true))
+        if (isReplacementEnabled())
         {
-            processReplacement(ChatHtmlUtils.MESSAGE_TEXT_ID + lastMessageUID,
+            processReplacement(ChatHtmlUtils.MESSAGE_TEXT_ID + messageUID,
                                 message);
         }
     }
 
+    /**
+     * Determines whether any replacement is to be processed in the messages.
+     *
+     * @return <tt>true</tt> if a replacement is enabled in the configuration
+     */
+    private static boolean isReplacementEnabled()
+    {
+        ConfigurationService cfg = GuiActivator.getConfigurationService();
+
+        return cfg.getBoolean(ReplacementProperty.REPLACEMENT_ENABLE, true)
+            || cfg.getBoolean(ReplacementProperty.REPLACEMENT_PROPOSAL, true)
+            || cfg.getBoolean(
+                    ReplacementProperty.getPropertyName("SMILEY"),
+                    true);
+    }
+
     /**
     * Formats the given message. Processes the messages and replaces links to
     * video/image sources with their previews or any other substitution. Spawns
@@ -984,22 +1141,84 @@ public class ChatConversationPanel
         new ReplacementWorker(messageID, chatString).start();
     }
 
+    /**
+     * Starts appending a batch of messages, such as a page of history. Until
+     * the matching {@link #endMessageBatch()} the document is detached from
+     * the text pane, so that it is laid out once for the whole batch instead
+     * of once per message, and it is not trimmed. Must be called on the event
+     * dispatch thread.
+     */
+    public void beginMessageBatch()
+    {
+        if (messageBatchDepth++ == 0
+            && chatTextPane.getDocument() == document)
+        {
+            chatTextPane.setDocument(editorKit.createDefaultDocument());
+            documentDetached = true;
+        }
+    }
+
+    /**
+     * Ends appending a batch of messages started with
+     * {@link #beginMessageBatch()}, trimming the document and showing it
+     * again. Must be called on the event dispatch thread.
+     */
+    public void endMessageBatch()
+    {
+        if (messageBatchDepth == 0 || --messageBatchDepth > 0)
+            return;
+
+        if (!isHistory)
+            ensureDocumentSize();
+
+        if (documentDetached)
+        {
+            documentDetached = false;
+            setContent(document);
+            scrollToBottomLater();
+        }
+    }
+
+    /**
+     * Scrolls to the bottom of the conversation once the pending events are
+     * processed, unless a message batch is being appended, in which case the
+     * scrolling is done at its end.
+     */
+    private void scrollToBottomLater()
+    {
+        if (messageBatchDepth == 0)
+            SwingUtilities.invokeLater(scrollToBottomRunnable);
+    }
+
     /**
      * Ensures that the document won't become too big. When the document reaches
-     * a certain size the first message in the page is removed.
+     * a certain size the first messages in the page are removed, until it is
+     * back to three quarters of that size so that a busy chat is not trimmed
+     * and laid out again on every new message.
      */
     private void ensureDocumentSize()
     {
-        if (document.getLength() > Chat.CHAT_BUFFER_SIZE)
-        {
-            String[] ids = new String[]
-                                      {ChatHtmlUtils.MESSAGE_TEXT_ID,
-                                       "statusMessage",
-                                       "systemMessage",
-                                       "actionMessage"};
+        if (document.getLength() <= Chat.CHAT_BUFFER_SIZE)
+            return;
 
+        String[] ids = new String[]
+                                  {ChatHtmlUtils.MESSAGE_TEXT_ID,
+                                   "statusMessage",
+                                   "systemMessage",
+                                   "actionMessage"};
+        int targetLength = Chat.CHAT_BUFFER_SIZE / 4 * 3;
+
+        // They are loaded again if the user scrolls back to them.
+        transcript.olderMessagesDropped();
+
+        while (document.getLength() > targetLength)
+        {
             Element firstMsgElement = findElement(Attribute.ID, ids);
 
+            if (firstMsgElement == null)
+                break;
+
+            int length = document.getLength();
             int startIndex = firstMsgElement.getStartOffset();
             int endIndex = firstMsgElement.getEndOffset();
 
@@ -1011,6 +1230,7 @@ public class ChatConversationPanel
             catch (BadLocationException e)
             {
                 logger.error("Error removing messages from chat: ", e);
+                break;
             }
 
             if(firstMsgElement.getName().equals("table"))
@@ -1019,6 +1239,9 @@ public class ChatConversationPanel
                 // delete all messages without header
                 deleteAllMessagesWithoutHeader();
             }
+
+            if (document.getLength() >= length)
+                break;
         }
     }
 
@@ -1105,6 +1328,42 @@ public class ChatConversationPanel
             new ImgTagReplacer());
     }
 
+    /**
+     * Formats the content of a message as HTML in advance, so that displaying
+     * the message later on the event dispatching thread does not have to.
+     * Does not access the document, so it can be called from any thread.
+     *
+     * @param chatMessage the message to format
+     */
+    public void prepareMessage(ChatMessage chatMessage)
+    {
+        chatMessage.setFormattedMessage(
+            formatMessageAsHTML(
+                chatMessage.getMessage(),
+                chatMessage.getContentType(),
+                null));
+    }
+
+    /**
+     * Formats the content of a message as HTML, unless
+     * {@link #prepareMessage(ChatMessage)} already did.
+     *
+     * @param chatMessage the message to format
+     * @param keyword a substring of the message to highlight
+     * @return the content of the message formatted as HTML
+     */
+    private String formatMessageAsHTML(ChatMessage chatMessage,
+                                       String keyword)
+    {
+        String formattedMessage = chatMessage.getFormattedMessage();
+
+        if (formattedMessage != null && keyword == null)
+            return formattedMessage;
+        return formatMessageAsHTML(chatMessage.getMessage(),
+                                   chatMessage.getContentType(),
+                                   keyword);
+    }
+
     /**
      * Process provided replacers one by one sequentially. The output of the
      * first replacer is then fed as input into the second replacer, and so on.
@@ -1143,8 +1402,7 @@ public class ChatConversationPanel
                     final int endMatchPosition = plainTextInHtmlMatcher.end(1);
                     target.append(source
                         .substring(startPos, startMatchPosition));
-                    final String plaintext =
-                        StringEscapeUtils.unescapeHtml4(plainTextAsHtml);
+                    final String plaintext = unescapeHtml(plainTextAsHtml);
 
                     // Invoke replacer.
                     try
@@ -1179,6 +1437,20 @@ public class ChatConversationPanel
         return source.toString();
     }
 
+    /**
+     * Unescapes a piece of HTML text, skipping the work when it contains no
+     * entity, which is the case of most of the text of a message.
+     *
+     * @param html the HTML text
+     * @return the plain text
+     */
+    private static String unescapeHtml(String html)
+    {
+        return (html.indexOf('&') == -1)
+            ? html
+            : StringEscapeUtils.unescapeHtml4(html);
+    }
+
     /**
      * Opens a link in the default browser when clicked and shows link url in a
      * popup on mouseover.
@@ -1504,32 +1776,13 @@ public class ChatConversationPanel
      */
     public void addComponent(ChatConversationComponent component)
     {
+        // Kept aside while the user reads older messages.
+        if (messageBatchDepth == 0 && transcript.addDetachedMessage(component))
+            return;
+
         synchronized (scrollToBottomRunnable)
         {
-            StyleSheet styleSheet = document.getStyleSheet();
-            Style style
-                = styleSheet
-                    .addStyle(
-                        StyleConstants.ComponentElementName,
-                        styleSheet.getStyle("body"));
-
-            // The image must first be wrapped in a style
-            style
-                .addAttribute(
-                    AbstractDocument.ElementNameAttribute,
-                    StyleConstants.ComponentElementName);
-
-            TransparentPanel wrapPanel
-                = new TransparentPanel(new BorderLayout());
-
-            wrapPanel.add(component, BorderLayout.NORTH);
-
-            style.addAttribute(StyleConstants.ComponentAttribute, wrapPanel);
-            style.addAttribute(Attribute.ID, ChatHtmlUtils.MESSAGE_TEXT_ID);
-            SimpleDateFormat sdf
-                = new SimpleDateFormat(HistoryService.DATE_FORMAT);
-            style.addAttribute(ChatHtmlUtils.DATE_ATTRIBUTE,
-                                sdf.format(component.getDate()));
+            Style style = createComponentStyle(component);
 
             scrollToBottomIsPending = true;
 
@@ -1550,6 +1803,253 @@ public class ChatConversationPanel
         }
     }
 
+    /**
+     * Creates the style which inserts a custom component in the document.
+     *
+     * @param component the component
+     * @return the style of the component
+     */
+    private Style createComponentStyle(ChatConversationComponent component)
+    {
+        StyleSheet styleSheet = document.getStyleSheet();
+        Style style
+            = styleSheet
+                .addStyle(
+                    StyleConstants.ComponentElementName,
+                    styleSheet.getStyle("body"));
+
+        // The image must first be wrapped in a style
+        style
+            .addAttribute(
+                AbstractDocument.ElementNameAttribute,
+                StyleConstants.ComponentElementName);
+
+        TransparentPanel wrapPanel
+            = new TransparentPanel(new BorderLayout());
+
+        wrapPanel.add(component, BorderLayout.NORTH);
+
+        style.addAttribute(StyleConstants.ComponentAttribute, wrapPanel);
+        style.addAttribute(Attribute.ID, ChatHtmlUtils.MESSAGE_TEXT_ID);
+        SimpleDateFormat sdf
+            = new SimpleDateFormat(HistoryService.DATE_FORMAT);
+        style.addAttribute(ChatHtmlUtils.DATE_ATTRIBUTE,
+                            sdf.format(component.getDate()));
+        return style;
+    }
+
+    /**
+     * Inserts a page of older messages, loaded when the user has scrolled to
+     * the top of the conversation, before the messages shown, keeping the
+     * messages the user is reading in place. The newest messages are removed
+     * if the document grows too big, the messages arriving from then on are
+     * kept aside until the user scrolls back to the bottom. Must be called on
+     * the event dispatching thread.
+     *
+     * @param messages the <tt>ChatTranscriptWindow.RenderedMessage</tt>s and
+     * conversation components to insert, oldest first
+     * @param more <tt>false</tt> if the history has no message older than
+     * <tt>messages</tt>
+     */
+    void prependMessages(java.util.List<Object> messages, boolean more)
+    {
+        transcript.olderMessagesLoaded(more);
+        if (messages.isEmpty())
+            return;
+
+        JViewport viewport = getViewport();
+        Point viewPosition = viewport.getViewPosition();
+        final int firstShownOffset = chatTextPane.viewToModel(viewPosition);
+        int lengthBefore = document.getLength();
+        Element root = document.getDefaultRootElement();
+        Element body = root.getElement(root.getElementCount() - 1);
+        boolean replacementEnabled = isReplacementEnabled();
+
+        synchronized (scrollToBottomRunnable)
+        {
+            // Each one is inserted before the previous one.
+            for (int i = messages.size() - 1; i >= 0; i--)
+            {
+                Object message = messages.get(i);
+
+                try
+                {
+                    if (message instanceof ChatTranscriptWindow.RenderedMessage)
+                    {
+                        ChatTranscriptWindow.RenderedMessage renderedMessage
+                            = (ChatTranscriptWindow.RenderedMessage) message;
+
+                        document.insertAfterStart(body, renderedMessage.html);
+
+                        String messageContent
+                            = (renderedMessage.messageUID == null)
+                                ? null
+                                : getElementContent(
+                                        renderedMessage.messageUID,
+                                        renderedMessage.html);
+
+                        if (messageContent != null && replacementEnabled)
+                        {
+                            processReplacement(
+                                ChatHtmlUtils.MESSAGE_TEXT_ID
+                                    + renderedMessage.messageUID,
+                                messageContent);
+                        }
+                    }
+                    else if (message instanceof ChatConversationComponent)
+                    {
+                        document.insertString(
+                            body.getStartOffset(),
+                            "ignored text",
+                            createComponentStyle(
+                                (ChatConversationComponent) message));
+                    }
+                }
+                catch (BadLocationException e)
+                {
+                    logger.error("Insert in the HTMLDocument failed.", e);
+                }
+                catch (IOException e)
+                {
+                    logger.error("Insert in the HTMLDocument failed.", e);
+                }
+            }
+
+            trimNewestMessages();
+        }
+
+        final int lengthDelta = document.getLength() - lengthBefore;
+        int firstShownY = viewPosition.y;
+
+        try
+        {
+            Rectangle firstShown = chatTextPane.modelToView(firstShownOffset);
+
+            if (firstShown != null)
+                firstShownY = firstShown.y;
+        }
+        catch (BadLocationException e)
+        {
+        }
+
+        final int offsetInView = viewPosition.y - firstShownY;
+
+        // Once the inserted messages are laid out, scroll back to the message
+        // which was at the top of the view.
+        SwingUtilities.invokeLater(new Runnable()
+        {
+            public void run()
+            {
+                validate();
+
+                try
+                {
+                    Rectangle firstShown
+                        = chatTextPane.modelToView(
+                                firstShownOffset + lengthDelta);
+
+                    if (firstShown != null)
+                    {
+                        getViewport().setViewPosition(
+                            new Point(0, firstShown.y + offsetInView));
+                    }
+                }
+                catch (BadLocationException e)
+                {
+                    logger.error("Could not keep the scroll position.", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Removes the newest messages until the document is back to three
+     * quarters of its maximum size, after older messages have been inserted.
+     */
+    private void trimNewestMessages()
+    {
+        if (document.getLength() <= Chat.CHAT_BUFFER_SIZE)
+            return;
+
+        String[] ids = new String[]
+                                  {ChatHtmlUtils.MESSAGE_TEXT_ID,
+                                   "statusMessage",
+                                   "systemMessage",
+                                   "actionMessage"};
+        int targetLength = Chat.CHAT_BUFFER_SIZE / 4 * 3;
+
+        while (document.getLength() > targetLength)
+        {
+            Element lastMsgElement
+                = findLastElement(
+                        document.getDefaultRootElement(),
+                        Attribute.ID,
+                        ids);
+
+            if (lastMsgElement == null)
+                break;
+
+            int startIndex = lastMsgElement.getStartOffset();
+            int endIndex = lastMsgElement.getEndOffset();
+
+            // The first message shown is not removed.
+            if (startIndex <= 0 || endIndex - startIndex >= document.getLength())
+                break;
+
+            try
+            {
+                // Remove the message with its header.
+                this.document.remove(startIndex, endIndex - startIndex);
+            }
+            catch (BadLocationException e)
+            {
+                logger.error("Error removing messages from chat: ", e);
+                break;
+            }
+
+            transcript.newestMessagesDropped();
+
+            // The next message is not shown, so it cannot continue this one.
+            lastMessageUID = null;
+        }
+    }
+
+    /**
+     * Shows the messages which arrived while the user was reading older
+     * messages, after the newest messages of the history have been loaded
+     * again. Must be called on the event dispatching thread.
+     *
+     * @param loadedMessageUIDs the identifiers of the loaded messages, which
+     * are not shown twice
+     */
+    void newestMessagesLoaded(Set<String> loadedMessageUIDs)
+    {
+        for (Object message : transcript.newestMessagesLoaded(loadedMessageUIDs))
+        {
+            if (message instanceof ChatTranscriptWindow.RenderedMessage)
+            {
+                ChatTranscriptWindow.RenderedMessage renderedMessage
+                    = (ChatTranscriptWindow.RenderedMessage) message;
+                String messageUID = renderedMessage.messageUID;
+
+                insertMessageAtEnd(
+                    messageUID,
+                    renderedMessage.html,
+                    (messageUID == null)
+                        ? null
+                        : getElementContent(messageUID, renderedMessage.html));
+                if (messageUID != null)
+                    lastMessageUID = messageUID;
+            }
+            else if (message instanceof ChatConversationComponent)
+            {
+                addComponent((ChatConversationComponent) message);
+            }
+        }
+
+        scrollToBottomLater();
+    }
+
     /**
      * Registers a new link click listener.
      *
@@ -1611,20 +2111,18 @@ public class ChatConversationPanel
                 + " " + message.substring(4))
                 + endHeaderTag;
 
-        Map<String, ReplacementService> listSources =
-            GuiActivator.getReplacementSources();
-        for (ReplacementService source : listSources.values())
+        ReplacementEngine engine
+            = ReplacementEngine.getInstance(
+                GuiActivator.getReplacementSources().values());
+        for (int i = 0; i < engine.getServiceCount(); i++)
         {
-            boolean isSmiley = source instanceof SmiliesReplacementService;
+            boolean isSmiley
+                = engine.getService(i) instanceof SmiliesReplacementService;
             if (!isSmiley)
             {
                 continue;
             }
-            String sourcePattern = source.getPattern();
-            Pattern p =
-                Pattern.compile(sourcePattern, Pattern.CASE_INSENSITIVE
-                    | Pattern.DOTALL);
-            Matcher m = p.matcher(chatString);
+            Matcher m = engine.getServicePattern(i).matcher(chatString);
             chatString =
                 m.replaceAll(ChatHtmlUtils.HTML_CONTENT_TYPE
                     .equalsIgnoreCase(contentType) ? "$0" : StringEscapeUtils
@@ -1839,6 +2337,39 @@ public class ChatConversationPanel
         return null;
     }
 
+    /**
+     * Finds the last element, in the order of the document, with an attribute
+     * starting with one of <tt>matchStrings</tt>. An element is returned
+     * rather than the matching elements it contains.
+     *
+     * @param element the element to search in
+     * @param attrName the attribute to match
+     * @param matchStrings the prefixes of the attribute value
+     * @return the last matching element or <tt>null</tt> if there is none
+     */
+    private Element findLastElement(Element element,
+                                    HTML.Attribute attrName,
+                                    String[] matchStrings)
+    {
+        String attr = (String) element.getAttributes().getAttribute(attrName);
+
+        if(attr != null)
+            for (String matchString : matchStrings)
+                if (attr.startsWith(matchString))
+                    return element;
+
+        for (int i = element.getElementCount() - 1; i >= 0; i--)
+        {
+            Element resultElement = findLastElement(element.getElement(i),
+                                                    attrName,
+                                                    matchStrings);
+            if (resultElement != null)
+                return resultElement;
+        }
+
+        return null;
+    }
+
     /**
      * Finds the first element with <tt>name</tt> among the child elements of
      * <tt>element</tt>.
@@ -1874,20 +2405,55 @@ public class ChatConversationPanel
      */
     private String getElementContent(String elementId, String message)
     {
-        Pattern p = Pattern.compile(
-            ".*(<div.*id=[\\\"']"
-            + ChatHtmlUtils.MESSAGE_TEXT_ID
-            + elementId
-            + "[\\\"'].*?</div>)", Pattern.DOTALL);
+        // Looks for the last quoted id attribute with the given value, then
+        // for the div it opens and the first closing div after it. This is
+        // done once per appended message, so it avoids a regular expression
+        // which would backtrack over the whole message.
+        String id = ChatHtmlUtils.MESSAGE_TEXT_ID + elementId;
+        int idIndex = message.lastIndexOf(id);
+
+        while (idIndex != -1 && !isQuotedIdValue(message, idIndex, id))
+            idIndex = message.lastIndexOf(id, idIndex - 1);
+        if (idIndex == -1)
+            return null;
 
-        Matcher m = p.matcher(message);
+        int startIndex = message.lastIndexOf("<div", idIndex);
+        int endIndex = message.indexOf("</div>", idIndex + id.length() + 1);
 
-        if (m.find())
-        {
-            return m.group(1);
-        }
+        if (startIndex == -1 || endIndex == -1)
+            return null;
+        return message.substring(startIndex, endIndex + "</div>".length());
+    }
 
-        return null;
+    /**
+     * Determines whether an occurrence of an element id in a message is the
+     * quoted value of an <tt>id</tt> attribute.
+     *
+     * @param message the message
+     * @param index the index of the occurrence of <tt>id</tt>
+     * @param id the element id
+     * @return <tt>true</tt> if the occurrence is an <tt>id</tt> attribute
+     */
+    private static boolean isQuotedIdValue(String message, int index, String id)
+    {
+        int end = index + id.length();
+
+        return index >= 4
+            && message.startsWith("id=", index - 4)
+            && isQuote(message.charAt(index - 1))
+            && end < message.length()
+            && isQuote(message.charAt(end));
+    }
+
+    /**
+     * Determines whether a character is a single or a double quote.
+     *
+     * @param c the character
+     * @return <tt>true</tt> if <tt>c</tt> is a quote
+     */
+    private static boolean isQuote(char c)
+    {
+        return c == '"' || c == '\'';
     }
 
     /**
@@ -2177,33 +2743,25 @@ public class ChatConversationPanel
                 closingTag = divMatcher.group(3);
             }
 
-            StringBuilder msgBuff;
-            for (Map.Entry<String, ReplacementService> entry : GuiActivator
-                .getReplacementSources().entrySet())
-            {
-                msgBuff = new StringBuilder();
-                processReplacementService(entry.getValue(), msgStore, msgBuff);
-                msgStore = msgBuff.toString();
-            }
+            ReplacementEngine engine
+                = ReplacementEngine.getInstance(
+                    GuiActivator.getReplacementSources().values());
+            StringBuilder msgBuff = new StringBuilder(msgStore.length());
+            processReplacementServices(engine, msgStore, msgBuff);
 
-            return openingTag + msgStore + closingTag;
+            return openingTag + msgBuff + closingTag;
         }
 
         /**
-         * Process message for a ReplacementService.
+         * Process message for all the ReplacementServices at once.
          *
-         * @param service the service.
+         * @param engine the engine matching the services.
          * @param msg the message.
          * @param buff current accumulated buffer.
          */
-        private void processReplacementService(final ReplacementService service,
+        private void processReplacementServices(final ReplacementEngine engine,
             final String msg, final StringBuilder buff)
         {
-            String sourcePattern = service.getPattern();
-            Pattern pattern =
-                Pattern.compile(sourcePattern, Pattern.CASE_INSENSITIVE
-                    | Pattern.DOTALL);
-
             int startPos = 0;
 
             Matcher plainTextInHtmlMatcher =
@@ -2222,8 +2780,7 @@ public class ChatConversationPanel
                     // or from the start to the first match
                     buff.append(msg.substring(startPos, startMatchPosition));
 
-                    final String plaintext =
-                        StringEscapeUtils.unescapeHtml4(plainTextAsHtml);
+                    final String plaintext = unescapeHtml(plainTextAsHtml);
 
                     // Test whether this piece of content (exactly) matches a
                     // URL pattern. We should find at most a full URL text if it
@@ -2232,7 +2789,7 @@ public class ChatConversationPanel
                     final boolean isURL =
                         URL_PATTERN.matcher(plaintext).matches();
 
-                    processText(plaintext, buff, pattern, service, isURL);
+                    processText(plaintext, buff, engine, 0, isURL);
 
                     startPos = endMatchPosition;
                 }
@@ -2243,19 +2800,19 @@ public class ChatConversationPanel
         }
 
         /**
-         * Process plain text content.
+         * Process plain text content. A match which a service does not
+         * replace is processed again by the services following it.
          *
          * @param plainText the nodes text.
          * @param msgBuff the currently accumulated buffer.
-         * @param pattern the pattern for current replacement service, created
-         *            earlier so we don't create it for every text we check.
-         * @param rService the replacement service.
+         * @param engine the engine matching the replacement services.
+         * @param firstService the index of the first service to match.
          * @param isURL whether this content matches the URL pattern
          */
         private void processText(final String plainText,
                                  final StringBuilder msgBuff,
-                                 final Pattern pattern,
-                                 final ReplacementService rService,
+                                 final ReplacementEngine engine,
+                                 final int firstService,
                                  final boolean isURL)
         {
             final ShowPreviewDialog previewDialog = showPreview;
@@ -2268,17 +2825,15 @@ public class ChatConversationPanel
                 return;
             }
 
-            Matcher m = pattern.matcher(plainText);
+            if (firstService >= engine.getServiceCount())
+            {
+                msgBuff.append(StringEscapeUtils.escapeHtml4(plainText));
+                return;
+            }
+
+            Matcher m = engine.matcher(firstService, plainText);
 
             ConfigurationService cfg = GuiActivator.getConfigurationService();
-            boolean isSmiley
-                = rService instanceof SmiliesReplacementService;
-            boolean isDirectImage
-                = rService instanceof DirectImageReplacementService;
-            boolean isEnabledForSource
-                = cfg.getBoolean(
-                ReplacementProperty.getPropertyName(
-                    rService.getSourceName()), true);
 
             int startPos = 0;
             while (m.find())
@@ -2287,11 +2842,22 @@ public class ChatConversationPanel
                     .substring(startPos, m.start())));
                 startPos = m.end();
 
+                int serviceIndex = engine.getMatchedService(m, firstService);
+                ReplacementService rService = engine.getService(serviceIndex);
+                boolean isSmiley
+                    = rService instanceof SmiliesReplacementService;
+                boolean isDirectImage
+                    = rService instanceof DirectImageReplacementService;
+                boolean isEnabledForSource
+                    = cfg.getBoolean(
+                    ReplacementProperty.getPropertyName(
+                        rService.getSourceName()), true);
+
                 String group = m.group();
-                String temp = rService.getReplacement(group);
+                String temp = engine.getReplacement(rService, group);
                 String group0 = m.group(0);
 
-                if (!temp.equals(group0) || isDirectImage)
+                if (!group0.equals(temp) || isDirectImage)
                 {
                     if (isSmiley)
                     {
@@ -2335,8 +2901,7 @@ public class ChatConversationPanel
                         {
                             DirectImageReplacementService service
                                 = (DirectImageReplacementService) rService;
-                            if (service.isDirectImage(group)
-                                && service.getImageSize(group) != -1)
+                            if (engine.isDirectImage(service, group))
                             {
                                 msgBuff.append(
                                     "<IMG HEIGHT=\"90\" "
@@ -2370,7 +2935,9 @@ public class ChatConversationPanel
                 }
                 else
                 {
-                    msgBuff.append(StringEscapeUtils.escapeHtml4(group));
+                    // leave the match to the services following this one
+                    processText(
+                        group, msgBuff, engine, serviceIndex + 1, isURL);
                 }
             }
 
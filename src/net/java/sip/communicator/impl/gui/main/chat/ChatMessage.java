@@ -74,6 +74,12 @@ public class ChatMessage
      */
     private String correctedMessageUID;
 
+    /**
+     * The content of the message already formatted as HTML, or <tt>null</tt>
+     * if it is to be formatted when the message is displayed.
+     */
+    private String formattedMessage;
+
     /**
      * Creates a <tt>ChatMessage</tt> by specifying all parameters of the
      * message.
@@ -236,6 +242,7 @@ public class ChatMessage
     public void setMessage(String message)
     {
         this.message = message;
+        this.formattedMessage = null;
     }
 
     /**
@@ -269,4 +276,25 @@ public class ChatMessage
     {
         return correctedMessageUID;
     }
+
+    /**
+     * Returns the content of the message already formatted as HTML.
+     *
+     * @return the content of the message already formatted as HTML, or
+     * <tt>null</tt> if it is to be formatted when the message is displayed
+     */
+    public String getFormattedMessage()
+    {
+        return formattedMessage;
+    }
+
+    /**
+     * Sets the content of the message already formatted as HTML.
+     *
+     * @param formattedMessage the content of the message formatted as HTML
+     */
+    public void setFormattedMessage(String formattedMessage)
+    {
+        this.formattedMessage = formattedMessage;
+    }
 }
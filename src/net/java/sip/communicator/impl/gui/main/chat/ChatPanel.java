@@ -204,6 +204,8 @@ public class ChatPanel
 
         this.conversationPanel = new ChatConversationPanel(this);
         this.conversationPanel.setPreferredSize(new Dimension(400, 200));
+        this.conversationPanel.setScrollbackListener(
+            new HistoryScrollbackLoader());
         this.conversationPanel.getChatTextPane()
             .setTransferHandler(new ChatTransferHandler(this));
 
@@ -806,23 +808,27 @@ public class ChatPanel
     }
 
     /**
-     * Process history messages.
+     * Prepares history messages to be displayed by
+     * {@link #processHistory(List)}: creates their <tt>ChatMessage</tt>s and
+     * formats their content. Does not access the conversation document, so
+     * that it can run outside the event dispatching thread.
      *
      * @param historyList The collection of messages coming from history.
      * @param escapedMessageID The incoming message needed to be ignored if
      * contained in history.
+     * @return the <tt>ChatMessage</tt>s and the <tt>FileRecord</tt>s to
+     * display, in the order of <tt>historyList</tt>
      */
-    private void processHistory( Collection<Object> historyList,
-                                String escapedMessageID)
+    private List<Object> prepareHistory(Collection<Object> historyList,
+                                        String escapedMessageID)
     {
-        Iterator<Object> iterator = historyList.iterator();
-
+        List<Object> preparedHistory
+            = new ArrayList<Object>(historyList.size());
         String messageType;
 
-        while (iterator.hasNext())
+        for (Object o : historyList)
         {
-            Object o = iterator.next();
-            String historyString = "";
+            ChatMessage chatMessage = null;
 
             if(o instanceof MessageDeliveredEvent)
             {
@@ -837,7 +843,7 @@ public class ChatPanel
                 else
                     messageType = Chat.HISTORY_OUTGOING_MESSAGE;
 
-                historyString = processHistoryMessage(
+                chatMessage = createHistoryMessage(
                             GuiActivator.getUIService().getMainFrame()
                                 .getAccountAddress(protocolProvider),
                             GuiActivator.getUIService().getMainFrame()
@@ -863,7 +869,7 @@ public class ChatPanel
                     else
                         messageType = Chat.HISTORY_INCOMING_MESSAGE;
 
-                    historyString = processHistoryMessage(
+                    chatMessage = createHistoryMessage(
                                 evt.getSourceContact().getAddress(),
                                 evt.getSourceContact().getDisplayName(),
                                 evt.getTimestamp(),
@@ -881,7 +887,7 @@ public class ChatPanel
                 ProtocolProviderService protocolProvider = evt
                     .getSourceChatRoom().getParentProvider();
 
-                historyString = processHistoryMessage(
+                chatMessage = createHistoryMessage(
                             GuiActivator.getUIService().getMainFrame()
                                 .getAccountAddress(protocolProvider),
                             GuiActivator.getUIService().getMainFrame()
@@ -900,8 +906,9 @@ public class ChatPanel
                 if(!evt.getMessage().getMessageUID()
                         .equals(escapedMessageID))
                 {
-                    historyString = processHistoryMessage(
-                            evt.getSourceChatRoomMember().getContactAddress(),
+                    chatMessage = createHistoryMessage(
+                            evt.getSourceChatRoomMember()
+                                .getContactAddress(),
                             evt.getSourceChatRoomMember().getName(),
                             evt.getTimestamp(),
                             Chat.HISTORY_INCOMING_MESSAGE,
@@ -915,17 +922,54 @@ public class ChatPanel
                 FileRecord fileRecord = (FileRecord) o;
 
                 if (!fileRecord.getID().equals(escapedMessageID))
+                    preparedHistory.add(fileRecord);
+            }
+
+            if (chatMessage != null)
+                preparedHistory.add(chatMessage);
+        }
+
+        return preparedHistory;
+    }
+
+    /**
+     * Process history messages prepared by
+     * {@link #prepareHistory(Collection, String)}. Must be called on the event
+     * dispatching thread.
+     *
+     * @param preparedHistory the <tt>ChatMessage</tt>s and the
+     * <tt>FileRecord</tt>s to display
+     */
+    private void processHistory(List<Object> preparedHistory)
+    {
+        // The messages are laid out once, at the end of the batch.
+        conversationPanel.beginMessageBatch();
+        try
+        {
+            for (Object o : preparedHistory)
+            {
+                if (o instanceof ChatMessage)
+                {
+                    String historyString
+                        = processHistoryMessage((ChatMessage) o);
+
+                    if (historyString != null)
+                        conversationPanel.appendMessageToEnd(
+                            historyString, ChatHtmlUtils.HTML_CONTENT_TYPE);
+                }
+                else if (o instanceof FileRecord)
                 {
                     FileHistoryConversationComponent component
-                        = new FileHistoryConversationComponent(fileRecord);
+                        = new FileHistoryConversationComponent(
+                                (FileRecord) o);
 
                     conversationPanel.addComponent(component);
                 }
             }
-
-            if (historyString != null)
-                conversationPanel.appendMessageToEnd(
-                    historyString, ChatHtmlUtils.HTML_CONTENT_TYPE);
+        }
+        finally
+        {
+            conversationPanel.endMessageBatch();
         }
 
         fireChatHistoryChange();
@@ -1149,8 +1193,8 @@ public class ChatPanel
     }
 
     /**
-     * Passes the message to the contained <code>ChatConversationPanel</code>
-     * for processing.
+     * Creates the <tt>ChatMessage</tt> of a history message and formats its
+     * content, without accessing the conversation document.
      *
      * @param contactName The name of the contact sending the message.
      * @param contactDisplayName the display name of the contact sending the
@@ -1162,20 +1206,36 @@ public class ChatPanel
      * @param contentType the content type of the message (html or plain text)
      * @param messageId The ID of the message.
      *
-     * @return a string containing the processed message.
+     * @return the prepared message
      */
-    private String processHistoryMessage(String contactName,
-                                         String contactDisplayName,
-                                         Date date,
-                                         String messageType,
-                                         String message,
-                                         String contentType,
-                                         String messageId)
+    private ChatMessage createHistoryMessage(String contactName,
+                                             String contactDisplayName,
+                                             Date date,
+                                             String messageType,
+                                             String message,
+                                             String contentType,
+                                             String messageId)
     {
         ChatMessage chatMessage = new ChatMessage(
             contactName, contactDisplayName, date,
                 messageType, null, message, contentType, messageId, null);
 
+        conversationPanel.prepareMessage(chatMessage);
+        return chatMessage;
+    }
+
+    /**
+     * Passes the message to the contained <code>ChatConversationPanel</code>
+     * for processing.
+     *
+     * @param chatMessage the message prepared by
+     * {@link #createHistoryMessage(String, String, Date, String, String,
+     * String, String)}
+     *
+     * @return a string containing the processed message.
+     */
+    private String processHistoryMessage(ChatMessage chatMessage)
+    {
         String processedMessage =
             this.conversationPanel.processMessage(chatMessage,
                 chatSession.getCurrentChatTransport().getProtocolProvider(),
@@ -1193,6 +1253,37 @@ public class ChatPanel
         return processedMessage;
     }
 
+    /**
+     * Creates the HTML of a history message prepared by
+     * {@link #createHistoryMessage(String, String, Date, String, String,
+     * String, String)}, to be inserted before the messages shown. Does not
+     * access the conversation document, so that it can run outside the event
+     * dispatching thread.
+     *
+     * @param chatMessage the message
+     * @return the rendered message
+     */
+    private ChatTranscriptWindow.RenderedMessage renderHistoryMessage(
+        ChatMessage chatMessage)
+    {
+        String html =
+            this.conversationPanel.createMessageHtml(chatMessage, null,
+                chatSession.getCurrentChatTransport().getProtocolProvider(),
+                chatSession.getCurrentChatTransport().getName());
+
+        if (chatSession instanceof ConferenceChatSession)
+        {
+            String tempMessage =
+                conversationPanel.processMeCommand(chatMessage);
+
+            if (tempMessage.length() > 0)
+                html = tempMessage;
+        }
+
+        return new ChatTranscriptWindow.RenderedMessage(
+            chatMessage.getMessageUID(), html);
+    }
+
     /**
      * Refreshes write area editor pane. Deletes all existing text
      * content.
@@ -1963,7 +2054,7 @@ public class ChatPanel
 
         SwingWorker historyWorker = new SwingWorker()
         {
-            private Collection<Object> historyList;
+            private List<Object> historyList;
 
             @Override
             public Object construct() throws Exception
@@ -1975,9 +2066,14 @@ public class ChatPanel
                 loadHistoryPeriod();
 
                 // Load the last N=CHAT_HISTORY_SIZE messages from history.
-                historyList = chatSession.getHistory(
+                Collection<Object> c = chatSession.getHistory(
                     ConfigurationUtils.getChatHistorySize());
 
+                // Format them here rather than on the event dispatching
+                // thread, which only adds them to the conversation.
+                if (c != null)
+                    historyList = prepareHistory(c, escapedMessageID);
+
                 return historyList;
             }
 
@@ -1990,7 +2086,7 @@ public class ChatPanel
             {
                 if(historyList != null && historyList.size() > 0)
                 {
-                    processHistory(historyList, escapedMessageID);
+                    processHistory(historyList);
                 }
                 isHistoryLoaded = true;
 
@@ -2204,7 +2300,7 @@ public class ChatPanel
                 if(c !=null && c.size() > 0)
                 {
                     SwingUtilities.invokeLater(
-                            new HistoryMessagesLoader(c));
+                            new HistoryMessagesLoader(prepareHistory(c, "")));
                 }
 
                 return "";
@@ -2252,7 +2348,7 @@ public class ChatPanel
 
                 if(c != null && c.size() > 0)
                     SwingUtilities.invokeLater(
-                            new HistoryMessagesLoader(c));
+                            new HistoryMessagesLoader(prepareHistory(c, "")));
 
                 return "";
             }
@@ -2271,9 +2367,9 @@ public class ChatPanel
      */
     private class HistoryMessagesLoader implements Runnable
     {
-        private final Collection<Object> chatHistory;
+        private final List<Object> chatHistory;
 
-        public HistoryMessagesLoader(Collection<Object> history)
+        public HistoryMessagesLoader(List<Object> history)
         {
             this.chatHistory = history;
         }
@@ -2284,11 +2380,141 @@ public class ChatPanel
                 = getChatConversationPanel();
 
             chatConversationPanel.clear();
-            processHistory(chatHistory, "");
+            processHistory(chatHistory);
             chatConversationPanel.setDefaultContent();
         }
     }
 
+    /**
+     * Loads the messages of the history the user scrolls to in the
+     * conversation panel.
+     */
+    private class HistoryScrollbackLoader implements ChatScrollbackListener
+    {
+        /**
+         * Loads the page of history messages before the given date.
+         *
+         * @param date the date of the first message shown
+         * @return <tt>false</tt> if the history is not shown
+         */
+        public boolean loadMessagesBefore(final Date date)
+        {
+            if (!isHistoryLoaded
+                || !ConfigurationUtils.isHistoryShown()
+                || GuiActivator.getMetaHistoryService() == null)
+                return false;
+
+            SwingWorker worker = new SwingWorker()
+            {
+                private final List<Object> page = new ArrayList<Object>();
+
+                private boolean more = true;
+
+                @Override
+                public Object construct() throws Exception
+                {
+                    Collection<Object> c
+                        = chatSession.getHistoryBeforeDate(
+                            date,
+                            MESSAGES_PER_PAGE);
+
+                    if (c == null)
+                    {
+                        more = false;
+                        return page;
+                    }
+                    more = (c.size() >= MESSAGES_PER_PAGE);
+
+                    // Render them here, the event dispatching thread only
+                    // inserts them.
+                    for (Object o : prepareHistory(c, ""))
+                    {
+                        if (o instanceof ChatMessage)
+                            page.add(renderHistoryMessage((ChatMessage) o));
+                        else
+                            page.add(o);
+                    }
+                    return page;
+                }
+
+                @Override
+                public void finished()
+                {
+                    List<Object> messages = new ArrayList<Object>(page.size());
+
+                    for (Object o : page)
+                    {
+                        if (o instanceof FileRecord)
+                        {
+                            messages.add(
+                                new FileHistoryConversationComponent(
+                                    (FileRecord) o));
+                        }
+                        else
+                            messages.add(o);
+                    }
+
+                    conversationPanel.prependMessages(messages, more);
+                }
+            };
+            worker.start();
+            return true;
+        }
+
+        /**
+         * Loads the newest history messages in place of the ones shown.
+         *
+         * @return <tt>false</tt> if the history is not shown
+         */
+        public boolean loadNewestMessages()
+        {
+            if (!ConfigurationUtils.isHistoryShown()
+                || GuiActivator.getMetaHistoryService() == null)
+                return false;
+
+            SwingWorker worker = new SwingWorker()
+            {
+                private List<Object> historyList;
+
+                @Override
+                public Object construct() throws Exception
+                {
+                    Collection<Object> c = chatSession.getHistory(
+                        ConfigurationUtils.getChatHistorySize());
+
+                    if (c != null)
+                        historyList = prepareHistory(c, null);
+
+                    return historyList;
+                }
+
+                @Override
+                public void finished()
+                {
+                    Set<String> loadedMessageUIDs = new HashSet<String>();
+
+                    conversationPanel.clear();
+                    if (historyList != null)
+                    {
+                        for (Object o : historyList)
+                        {
+                            if (o instanceof ChatMessage)
+                            {
+                                loadedMessageUIDs.add(
+                                    ((ChatMessage) o).getMessageUID());
+                            }
+                        }
+                        processHistory(historyList);
+                    }
+                    conversationPanel.setDefaultContent();
+                    conversationPanel.newestMessagesLoaded(loadedMessageUIDs);
+                }
+            };
+            worker.start();
+            return true;
+        }
+    }
+
     /**
      * Adds the given <tt>chatContact</tt> to the list of chat contacts
      * participating in the corresponding to this chat panel chat.
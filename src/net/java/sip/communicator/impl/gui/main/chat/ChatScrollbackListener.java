@@ -0,0 +1,45 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.gui.main.chat;
+
+import java.util.*;
+
+/**
+ * Loads the messages a <tt>ChatConversationPanel</tt> needs when the user
+ * scrolls past the messages it shows.
+ */
+interface ChatScrollbackListener
+{
+    /**
+     * Starts loading the page of messages before the given date, to be passed
+     * to {@link ChatConversationPanel#prependMessages(List, boolean)}.
+     *
+     * @param date the date of the first message shown
+     * @return <tt>false</tt> if no messages can be loaded now
+     */
+    public boolean loadMessagesBefore(Date date);
+
+    /**
+     * Starts loading the newest messages of the conversation, to be shown in
+     * place of the current ones followed by
+     * {@link ChatConversationPanel#newestMessagesLoaded(Set)}.
+     *
+     * @return <tt>false</tt> if no messages can be loaded now
+     */
+    public boolean loadNewestMessages();
+}
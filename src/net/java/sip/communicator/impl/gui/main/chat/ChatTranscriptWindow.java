@@ -0,0 +1,217 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.gui.main.chat;
+
+import java.util.*;
+
+/**
+ * Keeps track of the part of a conversation shown by a
+ * <tt>ChatConversationPanel</tt>. The document of the panel only holds a
+ * window of the conversation, at most <tt>Chat.CHAT_BUFFER_SIZE</tt> long.
+ * Older messages are paged in from the history when the user scrolls to the
+ * top, and the newest ones are dropped to make room for them. Messages
+ * arriving while the newest ones are not shown are kept here, at most
+ * <tt>MAX_DETACHED_MESSAGES</tt> of them, until the user scrolls back to the
+ * bottom and the newest messages are loaded again. This way the memory and
+ * the layout work of a chat do not grow with the length of the conversation.
+ * <p>
+ * Only used on the event dispatching thread.
+ */
+class ChatTranscriptWindow
+{
+    /**
+     * The maximum number of messages kept while the newest messages are not
+     * shown. The oldest of them are dropped first, they can still be read
+     * from the history.
+     */
+    static final int MAX_DETACHED_MESSAGES = 200;
+
+    /**
+     * Whether a page of messages is being loaded.
+     */
+    private boolean loading = false;
+
+    /**
+     * Whether the history may hold messages older than the first one shown.
+     */
+    private boolean olderMessagesLeft = true;
+
+    /**
+     * Whether the newest messages of the conversation are shown.
+     */
+    private boolean showingNewest = true;
+
+    /**
+     * The messages which arrived while the newest messages were not shown,
+     * <tt>RenderedMessage</tt>s or conversation components, oldest first.
+     */
+    private final LinkedList<Object> detachedMessages
+        = new LinkedList<Object>();
+
+    /**
+     * Starts loading the page of messages before the first one shown, unless
+     * a page is already being loaded or the history holds no older messages.
+     *
+     * @return <tt>true</tt> if the page is to be loaded
+     */
+    boolean startLoadingOlder()
+    {
+        if (loading || !olderMessagesLeft)
+            return false;
+        loading = true;
+        return true;
+    }
+
+    /**
+     * Ends loading a page of older messages.
+     *
+     * @param more <tt>false</tt> if the history has no message older than the
+     * page
+     */
+    void olderMessagesLoaded(boolean more)
+    {
+        loading = false;
+        olderMessagesLeft = more;
+    }
+
+    /**
+     * Notifies that the oldest messages shown have been removed, so that they
+     * are loaded again when the user scrolls back to them.
+     */
+    void olderMessagesDropped()
+    {
+        olderMessagesLeft = true;
+    }
+
+    /**
+     * Notifies that the newest messages shown have been removed to make room
+     * for older ones. The messages arriving from then on are kept aside.
+     */
+    void newestMessagesDropped()
+    {
+        showingNewest = false;
+    }
+
+    /**
+     * Determines whether the newest messages of the conversation are shown.
+     *
+     * @return <tt>true</tt> if the newest messages are shown
+     */
+    boolean isShowingNewest()
+    {
+        return showingNewest;
+    }
+
+    /**
+     * Starts loading the newest messages again, if they are not shown and no
+     * page is being loaded.
+     *
+     * @return <tt>true</tt> if the newest messages are to be loaded
+     */
+    boolean startLoadingNewest()
+    {
+        if (loading || showingNewest)
+            return false;
+        loading = true;
+        return true;
+    }
+
+    /**
+     * Cancels the loading of a page, which can be started again later.
+     */
+    void loadingCancelled()
+    {
+        loading = false;
+    }
+
+    /**
+     * Ends loading the newest messages and returns the messages which arrived
+     * while they were not shown, except those the loaded page already shows.
+     *
+     * @param loadedMessageUIDs the identifiers of the loaded messages
+     * @return the <tt>RenderedMessage</tt>s and conversation components to
+     * show after the loaded page, oldest first
+     */
+    List<Object> newestMessagesLoaded(Set<String> loadedMessageUIDs)
+    {
+        List<Object> messages = new ArrayList<Object>(detachedMessages.size());
+
+        for (Object message : detachedMessages)
+        {
+            if (!(message instanceof RenderedMessage)
+                || !loadedMessageUIDs.contains(
+                        ((RenderedMessage) message).messageUID))
+            {
+                messages.add(message);
+            }
+        }
+
+        detachedMessages.clear();
+        loading = false;
+        showingNewest = true;
+        olderMessagesLeft = true;
+        return messages;
+    }
+
+    /**
+     * Keeps a message arriving while the newest messages are not shown.
+     *
+     * @param message a <tt>RenderedMessage</tt> or a conversation component
+     * @return <tt>false</tt> if the newest messages are shown, in which case
+     * the message is to be shown at once
+     */
+    boolean addDetachedMessage(Object message)
+    {
+        if (showingNewest)
+            return false;
+
+        detachedMessages.add(message);
+        if (detachedMessages.size() > MAX_DETACHED_MESSAGES)
+            detachedMessages.removeFirst();
+        return true;
+    }
+
+    /**
+     * A message rendered as HTML, waiting to be inserted in the document.
+     */
+    static class RenderedMessage
+    {
+        /**
+         * The identifier of the message or <tt>null</tt> if it is not a
+         * message of the history, e.g. a status message.
+         */
+        final String messageUID;
+
+        /**
+         * The HTML of the message.
+         */
+        final String html;
+
+        /**
+         * Creates a rendered message.
+         *
+         * @param messageUID the identifier of the message or <tt>null</tt>
+         * @param html the HTML of the message
+         */
+        RenderedMessage(String messageUID, String html)
+        {
+            this.messageUID = messageUID;
+            this.html = html;
+        }
+    }
+}
@@ -0,0 +1,426 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.gui.main.chat;
+
+import java.util.*;
+import java.util.regex.*;
+
+import net.java.sip.communicator.service.replacement.*;
+import net.java.sip.communicator.service.replacement.directimage.*;
+
+/**
+ * Matches the patterns of all the <tt>ReplacementService</tt>s at once. Their
+ * patterns are compiled into a single alternation, so that a message is
+ * scanned once whatever the number of sources, and the group which matched
+ * tells the source of each match. The replacements, which may require a
+ * request to the site of the source, are cached by link so that the messages
+ * of a history page linking the same video or image cost a single request.
+ * The sources report a failed request the same way as a text they do not
+ * replace, so the texts left unreplaced and the links which are not direct
+ * images are only remembered for a short time.
+ * <p>
+ * The engine is rebuilt only when the replacement sources or their patterns
+ * change.
+ * </p>
+ */
+class ReplacementEngine
+{
+    /**
+     * The flags of the patterns of the sources.
+     */
+    private static final int PATTERN_FLAGS
+        = Pattern.CASE_INSENSITIVE | Pattern.DOTALL;
+
+    /**
+     * The maximum number of replacements and direct image checks remembered.
+     */
+    private static final int MAX_CACHED_RESULTS = 512;
+
+    /**
+     * The time in milliseconds during which a text left unreplaced or a link
+     * which is not a direct image is not asked for again.
+     */
+    static final long FAILURE_TTL = 60000;
+
+    /**
+     * The engine built for the last replacement sources asked for.
+     */
+    private static ReplacementEngine instance;
+
+    /**
+     * The replacements by source name and replaced text, the least recently
+     * used first.
+     */
+    private static final Map<String, String> replacements
+        = createCache();
+
+    /**
+     * Whether a link points to an image small enough to be shown, by link,
+     * the least recently used first.
+     */
+    private static final Map<String, Boolean> directImages
+        = createCache();
+
+    /**
+     * The time until which the texts left unreplaced by a source are not
+     * asked for again, by source name and text, the least recently used
+     * first.
+     */
+    private static final Map<String, Long> failedReplacements
+        = createCache();
+
+    /**
+     * The time until which the links which are not direct images are not
+     * asked for again, by link, the least recently used first.
+     */
+    private static final Map<String, Long> failedDirectImages
+        = createCache();
+
+    /**
+     * The replacement sources, in the order in which they take precedence
+     * when their patterns match at the same position.
+     */
+    private final ReplacementService[] services;
+
+    /**
+     * The patterns of {@link #services}.
+     */
+    private final String[] patterns;
+
+    /**
+     * The number of capturing groups of each pattern of {@link #patterns}.
+     */
+    private final int[] groupCounts;
+
+    /**
+     * The patterns matching the sources from a given index to the last one,
+     * compiled on first use.
+     */
+    private final Pattern[] combinedPatterns;
+
+    /**
+     * The pattern of each source alone, compiled on first use.
+     */
+    private final Pattern[] servicePatterns;
+
+    /**
+     * Creates an engine for the given sources.
+     *
+     * @param services the sources in order of precedence
+     * @param patterns their patterns
+     */
+    private ReplacementEngine(
+            ReplacementService[] services,
+            String[] patterns)
+    {
+        this.services = services;
+        this.patterns = patterns;
+
+        groupCounts = new int[patterns.length];
+        for (int i = 0; i < patterns.length; i++)
+        {
+            groupCounts[i]
+                = Pattern.compile(patterns[i], PATTERN_FLAGS).matcher("")
+                    .groupCount();
+        }
+        combinedPatterns = new Pattern[patterns.length];
+        servicePatterns = new Pattern[patterns.length];
+    }
+
+    /**
+     * Returns the engine matching the given replacement sources, building it
+     * only if the sources or their patterns changed since the last call.
+     * The generic direct image source comes last, the other ones in the order
+     * of their names.
+     *
+     * @param sources the replacement sources
+     * @return the engine matching <tt>sources</tt>
+     */
+    static synchronized ReplacementEngine getInstance(
+            Collection<ReplacementService> sources)
+    {
+        ReplacementService[] services
+            = sources.toArray(new ReplacementService[sources.size()]);
+
+        Arrays.sort(
+            services,
+            new Comparator<ReplacementService>()
+            {
+                public int compare(
+                        ReplacementService s1,
+                        ReplacementService s2)
+                {
+                    boolean d1 = s1 instanceof DirectImageReplacementService;
+                    boolean d2 = s2 instanceof DirectImageReplacementService;
+
+                    if (d1 != d2)
+                        return d1 ? 1 : -1;
+                    return String.valueOf(s1.getSourceName()).compareTo(
+                        String.valueOf(s2.getSourceName()));
+                }
+            });
+
+        String[] patterns = new String[services.length];
+
+        for (int i = 0; i < services.length; i++)
+            patterns[i] = services[i].getPattern();
+
+        if ((instance == null)
+            || !Arrays.equals(instance.services, services)
+            || !Arrays.equals(instance.patterns, patterns))
+        {
+            instance = new ReplacementEngine(services, patterns);
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the number of replacement sources.
+     *
+     * @return the number of replacement sources
+     */
+    int getServiceCount()
+    {
+        return services.length;
+    }
+
+    /**
+     * Returns a replacement source.
+     *
+     * @param index the index of the source
+     * @return the source at <tt>index</tt>
+     */
+    ReplacementService getService(int index)
+    {
+        return services[index];
+    }
+
+    /**
+     * Returns the pattern of a replacement source alone.
+     *
+     * @param index the index of the source
+     * @return the compiled pattern of the source at <tt>index</tt>
+     */
+    synchronized Pattern getServicePattern(int index)
+    {
+        Pattern pattern = servicePatterns[index];
+
+        if (pattern == null)
+        {
+            pattern = Pattern.compile(patterns[index], PATTERN_FLAGS);
+            servicePatterns[index] = pattern;
+        }
+        return pattern;
+    }
+
+    /**
+     * Returns a matcher finding in a text the matches of the sources from
+     * the given index to the last one. Where several sources match at the
+     * same position, the first one wins.
+     *
+     * @param firstIndex the index of the first source to match
+     * @param text the text to match
+     * @return the matcher, to be passed to {@link #getMatchedService(Matcher,
+     * int)} after each successful <tt>find</tt>
+     */
+    Matcher matcher(int firstIndex, CharSequence text)
+    {
+        Pattern pattern;
+
+        synchronized (this)
+        {
+            pattern = combinedPatterns[firstIndex];
+            if (pattern == null)
+            {
+                StringBuilder regex = new StringBuilder();
+
+                for (int i = firstIndex; i < patterns.length; i++)
+                {
+                    if (i != firstIndex)
+                        regex.append('|');
+                    regex.append('(').append(patterns[i]).append(')');
+                }
+                pattern = Pattern.compile(regex.toString(), PATTERN_FLAGS);
+                combinedPatterns[firstIndex] = pattern;
+            }
+        }
+        return pattern.matcher(text);
+    }
+
+    /**
+     * Returns the index of the source whose pattern produced the current
+     * match of a matcher returned by {@link #matcher(int, CharSequence)}.
+     *
+     * @param matcher the matcher
+     * @param firstIndex the index given to {@link #matcher(int, CharSequence)}
+     * @return the index of the matching source
+     */
+    int getMatchedService(Matcher matcher, int firstIndex)
+    {
+        int group = 1;
+
+        for (int i = firstIndex; i < patterns.length; i++)
+        {
+            if (matcher.start(group) != -1)
+                return i;
+            group += 1 + groupCounts[i];
+        }
+        throw new IllegalStateException("No source matched");
+    }
+
+    /**
+     * Returns the replacement of a text by a source, asking the source only
+     * the first time, or again after {@link #FAILURE_TTL} if it did not
+     * replace the text.
+     *
+     * @param service the source
+     * @param text the text matching the pattern of the source
+     * @return the replacement of <tt>text</tt>, <tt>text</tt> itself if the
+     * source does not replace it
+     */
+    String getReplacement(ReplacementService service, String text)
+    {
+        String key = service.getSourceName() + '\n' + text;
+        String replacement;
+
+        synchronized (replacements)
+        {
+            replacement = replacements.get(key);
+        }
+        if (replacement == null)
+        {
+            if (isRecentFailure(failedReplacements, key))
+                return text;
+
+            replacement = service.getReplacement(text);
+            if ((replacement == null) || replacement.equals(text))
+            {
+                failed(failedReplacements, key);
+                return text;
+            }
+            synchronized (replacements)
+            {
+                replacements.put(key, replacement);
+            }
+        }
+        return replacement;
+    }
+
+    /**
+     * Determines whether a link points to an image small enough to be shown,
+     * asking the source only the first time, or again after
+     * {@link #FAILURE_TTL} if it did not.
+     *
+     * @param service the direct image source
+     * @param link the link
+     * @return <tt>true</tt> if the image pointed by <tt>link</tt> can be
+     * shown
+     */
+    boolean isDirectImage(DirectImageReplacementService service, String link)
+    {
+        Boolean directImage;
+
+        synchronized (directImages)
+        {
+            directImage = directImages.get(link);
+        }
+        if (directImage == null)
+        {
+            if (isRecentFailure(failedDirectImages, link))
+                return false;
+
+            directImage
+                = service.isDirectImage(link)
+                    && (service.getImageSize(link) != -1);
+            if (!directImage)
+            {
+                failed(failedDirectImages, link);
+                return false;
+            }
+            synchronized (directImages)
+            {
+                directImages.put(link, directImage);
+            }
+        }
+        return directImage;
+    }
+
+    /**
+     * Determines whether a key failed less than {@link #FAILURE_TTL} ago.
+     *
+     * @param failures the times until which the failed keys are not asked
+     * for again
+     * @param key the key
+     * @return <tt>true</tt> if <tt>key</tt> is not to be asked for again yet
+     */
+    private static boolean isRecentFailure(
+            Map<String, Long> failures,
+            String key)
+    {
+        synchronized (failures)
+        {
+            Long expiry = failures.get(key);
+
+            if (expiry == null)
+                return false;
+            if (expiry > System.currentTimeMillis())
+                return true;
+            failures.remove(key);
+            return false;
+        }
+    }
+
+    /**
+     * Remembers for {@link #FAILURE_TTL} that a key failed.
+     *
+     * @param failures the times until which the failed keys are not asked
+     * for again
+     * @param key the key
+     */
+    private static void failed(Map<String, Long> failures, String key)
+    {
+        synchronized (failures)
+        {
+            failures.put(key, System.currentTimeMillis() + FAILURE_TTL);
+        }
+    }
+
+    /**
+     * Creates a map dropping its least recently used entry above
+     * {@link #MAX_CACHED_RESULTS} entries.
+     *
+     * @param <V> the type of the values
+     * @return the new map
+     */
+    private static <V> Map<String, V> createCache()
+    {
+        return new LinkedHashMap<String, V>(16, 0.75f, true)
+        {
+            /**
+             * Serial version UID.
+             */
+            private static final long serialVersionUID = 0L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest)
+            {
+                return size() > MAX_CACHED_RESULTS;
+            }
+        };
+    }
+}
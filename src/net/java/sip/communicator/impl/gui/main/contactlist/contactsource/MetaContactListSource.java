@@ -50,7 +50,7 @@ import net.java.sip.communicator.util.*;
  */
 public class MetaContactListSource
     implements  ContactPresenceStatusListener,
-                MetaContactListListener
+                AsynchronousMetaContactListListener
 {
     /**
      * The data key of the MetaContactDescriptor object used to store a
@@ -0,0 +1,317 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.util.*;
+
+import org.w3c.dom.*;
+
+/**
+ * A cache of parsed history documents shared by all the histories of the
+ * history service. The cache is bounded by the estimated memory retained by
+ * the documents, the least recently used documents are evicted first.
+ * <p>
+ * The cache monitor is only held while looking up or updating entries,
+ * parsing is done by the callers under the lock returned by
+ * {@link #getLock(File)} so that documents of different files can be loaded
+ * concurrently while the same file is never parsed twice at once. The locks
+ * are striped: files share a fixed number of locks, which must thus never be
+ * held two at a time.
+ */
+public class HistoryDocumentCache
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(HistoryDocumentCache.class);
+
+    /**
+     * The number of bytes a parsed document is estimated to retain for every
+     * byte of its file: the text is kept as UTF-16 and every element,
+     * attribute and text node is an object of its own.
+     */
+    static final int RETAINED_BYTES_PER_FILE_BYTE = 6;
+
+    /**
+     * The number of locks shared by the files.
+     */
+    private static final int LOCK_COUNT = 64;
+
+    /**
+     * The entries of the cache, in access order.
+     */
+    private final LinkedHashMap<File, Entry> entries
+        = new LinkedHashMap<File, Entry>(16, 0.75f, true);
+
+    /**
+     * The locks used to load the documents of the files.
+     */
+    private final Object[] locks = new Object[LOCK_COUNT];
+
+    /**
+     * The maximum estimated size in bytes of the cached documents.
+     */
+    private final long maxSize;
+
+    /**
+     * The estimated size in bytes of the cached documents.
+     */
+    private long size = 0;
+
+    /**
+     * The number of lookups that found their document.
+     */
+    private long hitCount = 0;
+
+    /**
+     * The number of lookups that did not find their document.
+     */
+    private long missCount = 0;
+
+    /**
+     * The number of documents evicted to stay under <tt>maxSize</tt>.
+     */
+    private long evictionCount = 0;
+
+    /**
+     * Creates a cache keeping documents estimated to retain at most
+     * <tt>maxSize</tt> bytes.
+     *
+     * @param maxSize the maximum estimated size in bytes of the cached
+     * documents
+     */
+    HistoryDocumentCache(long maxSize)
+    {
+        this.maxSize = maxSize;
+
+        for (int i = 0; i < locks.length; i++)
+            locks[i] = new Object();
+    }
+
+    /**
+     * Returns the document of <tt>file</tt> if it is cached and marks it as
+     * the most recently used one.
+     *
+     * @param file the file
+     * @return the document of the file or <tt>null</tt> if it isn't cached
+     */
+    synchronized Document get(File file)
+    {
+        Entry entry = entries.get(file);
+
+        if (entry == null)
+        {
+            missCount++;
+            return null;
+        }
+
+        hitCount++;
+        return entry.document;
+    }
+
+    /**
+     * Returns the document of <tt>file</tt> if it is cached, without
+     * counting the lookup.
+     *
+     * @param file the file
+     * @return the document of the file or <tt>null</tt> if it isn't cached
+     */
+    synchronized Document peek(File file)
+    {
+        Entry entry = entries.get(file);
+
+        return (entry == null) ? null : entry.document;
+    }
+
+    /**
+     * Caches the document of <tt>file</tt>, replacing any previous one, and
+     * evicts the least recently used documents if the cache grows too big.
+     * The size of the document is estimated from the current length of the
+     * file.
+     *
+     * @param file the file
+     * @param document the parsed document of the file
+     */
+    synchronized void put(File file, Document document)
+    {
+        long estimate = file.length() * RETAINED_BYTES_PER_FILE_BYTE;
+        Entry old = entries.remove(file);
+
+        if (old != null)
+            size -= old.size;
+
+        // a document bigger than the whole cache would only evict the others
+        if (estimate > maxSize)
+            return;
+
+        entries.put(file, new Entry(document, estimate));
+        size += estimate;
+
+        Iterator<Map.Entry<File, Entry>> iter = entries.entrySet().iterator();
+        while (size > maxSize && iter.hasNext())
+        {
+            Map.Entry<File, Entry> eldest = iter.next();
+
+            if (eldest.getKey().equals(file))
+                continue;
+
+            iter.remove();
+            size -= eldest.getValue().size;
+            evictionCount++;
+
+            if (logger.isTraceEnabled())
+                logger.trace("Evicted history document " + eldest.getKey());
+        }
+    }
+
+    /**
+     * Removes the documents of the files in <tt>directory</tt>.
+     *
+     * @param directory the directory
+     */
+    synchronized void removeAll(File directory)
+    {
+        Iterator<Map.Entry<File, Entry>> iter = entries.entrySet().iterator();
+
+        while (iter.hasNext())
+        {
+            Map.Entry<File, Entry> entry = iter.next();
+
+            if (directory.equals(entry.getKey().getParentFile()))
+            {
+                iter.remove();
+                size -= entry.getValue().size;
+            }
+        }
+    }
+
+    /**
+     * Returns the lock to hold while loading the document of <tt>file</tt>.
+     * Other files may share the same lock, so no other file lock may be
+     * taken while holding it.
+     *
+     * @param file the file
+     * @return the lock of the file
+     */
+    Object getLock(File file)
+    {
+        return locks[(file.hashCode() & Integer.MAX_VALUE) % locks.length];
+    }
+
+    /**
+     * Returns the number of cached documents.
+     *
+     * @return the number of cached documents
+     */
+    public synchronized int getCount()
+    {
+        return entries.size();
+    }
+
+    /**
+     * Returns the estimated size in bytes of the cached documents.
+     *
+     * @return the estimated size in bytes of the cached documents
+     */
+    public synchronized long getSize()
+    {
+        return size;
+    }
+
+    /**
+     * Returns the maximum estimated size in bytes of the cached documents.
+     *
+     * @return the maximum estimated size in bytes of the cached documents
+     */
+    public long getMaxSize()
+    {
+        return maxSize;
+    }
+
+    /**
+     * Returns the number of lookups that found their document.
+     *
+     * @return the number of lookups that found their document
+     */
+    public synchronized long getHitCount()
+    {
+        return hitCount;
+    }
+
+    /**
+     * Returns the number of lookups that did not find their document.
+     *
+     * @return the number of lookups that did not find their document
+     */
+    public synchronized long getMissCount()
+    {
+        return missCount;
+    }
+
+    /**
+     * Returns the number of documents evicted from the cache.
+     *
+     * @return the number of documents evicted from the cache
+     */
+    public synchronized long getEvictionCount()
+    {
+        return evictionCount;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "HistoryDocumentCache[documents=" + entries.size()
+            + ", size=" + size + "/" + maxSize
+            + ", hits=" + hitCount
+            + ", misses=" + missCount
+            + ", evictions=" + evictionCount + "]";
+    }
+
+    /**
+     * A cached document and its estimated size.
+     */
+    private static class Entry
+    {
+        /**
+         * The document.
+         */
+        final Document document;
+
+        /**
+         * The estimated size in bytes of the document.
+         */
+        final long size;
+
+        /**
+         * Creates an entry.
+         *
+         * @param document the document
+         * @param size the estimated size in bytes of the document
+         */
+        Entry(Document document, long size)
+        {
+            this.document = document;
+            this.size = size;
+        }
+    }
+}
@@ -19,8 +19,11 @@ package net.java.sip.communicator.impl.history;
 
 import java.io.*;
 import java.security.*;
+import java.text.*;
 import java.util.*;
 
+import javax.xml.transform.stream.*;
+
 import net.java.sip.communicator.service.history.*;
 import net.java.sip.communicator.service.history.records.*;
 import net.java.sip.communicator.util.*;
@@ -59,8 +62,44 @@ public class HistoryImpl
 
     private HistoryWriter writer;
 
-    private SortedMap<String, Object> historyDocuments
-        = new TreeMap<String, Object>();
+    /**
+     * The files of this history by name. Their parsed documents are kept in
+     * the <tt>HistoryDocumentCache</tt> of the history service.
+     */
+    private final SortedMap<String, File> historyFiles
+        = new TreeMap<String, File>();
+
+    /**
+     * The documents with changes not written to their files yet, either
+     * created by <tt>createDocument</tt> or waiting in the
+     * <tt>HistoryWriteQueue</tt>. They are not in the document cache as they
+     * cannot be read back from their files if evicted.
+     */
+    private final Map<String, Document> unwrittenDocuments
+        = new HashMap<String, Document>();
+
+    /**
+     * The number of changes of the documents in
+     * <tt>unwrittenDocuments</tt> waiting to be written.
+     */
+    private final Map<String, Integer> unwrittenChanges
+        = new HashMap<String, Integer>();
+
+    /**
+     * The store of this history if it is kept in segment files rather than
+     * XML files, <tt>null</tt> otherwise.
+     */
+    private SegmentHistoryStore segmentStore = null;
+
+    /**
+     * The keyword index of this history, created when first used.
+     */
+    private HistoryKeywordIndex keywordIndex = null;
+
+    /**
+     * The property indexes of this history, created when first used.
+     */
+    private HistoryPropertyIndex propertyIndex = null;
 
     /**
      * Creates an instance of <tt>HistoryImpl</tt> by specifying the history
@@ -93,6 +132,12 @@ public class HistoryImpl
             this.writer = null;
 
             this.reloadDocumentList();
+
+            if (SegmentHistoryStore.exists(directory)
+                || historyServiceImpl.isSegmentStorageEnabled())
+            {
+                openSegmentStore();
+            }
         } finally {
             log.logExit();
         }
@@ -136,11 +181,74 @@ public class HistoryImpl
             log.debug("Could not create new history structure");
         }
     }
+    /**
+     * Opens the segment storage of this history, migrating the XML files if
+     * any. If this fails the history stays in its XML files.
+     */
+    private void openSegmentStore()
+    {
+        try
+        {
+            boolean hasFiles;
+            synchronized (this.historyFiles)
+            {
+                hasFiles = !this.historyFiles.isEmpty();
+            }
+            if (hasFiles)
+                XmlHistoryMigrator.migrate(this, directory);
+
+            this.segmentStore = new SegmentHistoryStore(directory);
+        }
+        catch (IOException e)
+        {
+            log.error("Cannot use segment storage for history " + id, e);
+            this.segmentStore = null;
+        }
+    }
+
+    /**
+     * Returns the segment store of this history.
+     * @return the segment store of this history or <tt>null</tt> if it is
+     * kept in XML files
+     */
+    SegmentHistoryStore getSegmentStore()
+    {
+        return this.segmentStore;
+    }
+
+    /**
+     * Returns the keyword index of this history.
+     * @return the keyword index of this history
+     */
+    synchronized HistoryKeywordIndex getKeywordIndex()
+    {
+        if (this.keywordIndex == null)
+            this.keywordIndex = new HistoryKeywordIndex(this, directory);
+        return this.keywordIndex;
+    }
+
+    /**
+     * Returns the property indexes of this history.
+     * @return the property indexes of this history
+     */
+    synchronized HistoryPropertyIndex getPropertyIndex()
+    {
+        if (this.propertyIndex == null)
+            this.propertyIndex = new HistoryPropertyIndex(this, directory);
+        return this.propertyIndex;
+    }
+
     public HistoryReader getReader()
     {
         if (this.reader == null)
         {
-            this.reader = new HistoryReaderImpl(this);
+            if (this.segmentStore != null)
+            {
+                this.reader
+                    = new SegmentHistoryReaderImpl(this, segmentStore);
+            }
+            else
+                this.reader = new HistoryReaderImpl(this);
         }
 
         return this.reader;
@@ -164,7 +272,12 @@ public class HistoryImpl
     public HistoryWriter getWriter()
     {
         if (writer == null)
-            writer = new HistoryWriterImpl(this);
+        {
+            if (segmentStore != null)
+                writer = new SegmentHistoryWriterImpl(this, segmentStore);
+            else
+                writer = new HistoryWriterImpl(this);
+        }
         return writer;
     }
 
@@ -175,9 +288,15 @@ public class HistoryImpl
 
     void reloadDocumentList()
     {
-        synchronized (this.historyDocuments)
+        // the waiting changes are written before forgetting the documents
+        this.historyServiceImpl.getWriteQueue().flush(this);
+
+        synchronized (this.historyFiles)
         {
-            this.historyDocuments.clear();
+            this.historyFiles.clear();
+            this.unwrittenDocuments.clear();
+            this.unwrittenChanges.clear();
+            getDocumentCache().removeAll(this.directory);
 
             File[] files = this.directory.listFiles();
             // TODO: Assert: Assert.assertNonNull(files, "The list of files
@@ -191,7 +310,7 @@ public class HistoryImpl
 
                     if (filename.endsWith(SUPPORTED_FILETYPE))
                     {
-                        this.historyDocuments.put(filename, files[i]);
+                        this.historyFiles.put(filename, files[i]);
                     }
                 }
             }
@@ -202,119 +321,362 @@ public class HistoryImpl
     {
         Document retVal = null;
 
-        synchronized (this.historyDocuments)
+        synchronized (this.historyFiles)
         {
-            if (this.historyDocuments.containsKey(filename))
+            if (!this.historyFiles.containsKey(filename))
             {
-                retVal = getDocumentForFile(filename);
-            } else {
                 retVal = this.historyServiceImpl.getDocumentBuilder()
                         .newDocument();
                 retVal.appendChild(retVal.createElement("history"));
 
-                this.historyDocuments.put(filename, retVal);
+                this.historyFiles.put(filename,
+                    new File(this.directory, filename));
+                this.unwrittenDocuments.put(filename, retVal);
+
+                return retVal;
             }
         }
 
-        return retVal;
+        // not loaded while holding the file list, the writes of the file
+        // hold its lock before the file list
+        return getDocumentForFile(filename);
+    }
+
+    /**
+     * Schedules the write of a document changed by an added record. Until
+     * it is written the document is the one returned for its file.
+     *
+     * @param filename the name of the file
+     * @param doc the changed document of the file
+     */
+    void scheduleWrite(String filename, Document doc)
+    {
+        synchronized (this.historyFiles)
+        {
+            Integer changes = this.unwrittenChanges.get(filename);
+
+            this.unwrittenDocuments.put(filename, doc);
+            this.unwrittenChanges.put(filename,
+                (changes == null) ? 1 : changes + 1);
+        }
+
+        this.historyServiceImpl.getWriteQueue().schedule(this, filename);
     }
 
-    protected void writeFile(String filename) throws InvalidParameterException,
-            IOException {
-        File file = new File(this.directory, filename);
+    /**
+     * Schedules the write of the changes of the indexes of this history.
+     */
+    void scheduleIndexWrite()
+    {
+        this.historyServiceImpl.getWriteQueue().scheduleIndexWrite(this);
+    }
 
-        synchronized (this.historyDocuments)
+    /**
+     * Appends the waiting changes of the indexes of this history to their
+     * files.
+     */
+    void writeIndexes()
+    {
+        HistoryKeywordIndex keywordIndex;
+        HistoryPropertyIndex propertyIndex;
+
+        synchronized (this)
         {
-            if (!this.historyDocuments.containsKey(filename))
+            keywordIndex = this.keywordIndex;
+            propertyIndex = this.propertyIndex;
+        }
+
+        if (keywordIndex != null)
+            keywordIndex.writePending();
+        if (propertyIndex != null)
+            propertyIndex.writePending();
+    }
+
+    /**
+     * Writes the document of a file if it has changes waiting to be written.
+     * Failures are logged and the changes are kept to be written with the
+     * next change of the file.
+     *
+     * @param filename the name of the file
+     * @return the written file, to be synced to the disk by the caller, or
+     * <tt>null</tt> if nothing was written
+     */
+    File writeUnwrittenFile(String filename)
+    {
+        Document doc;
+
+        synchronized (this.historyFiles)
+        {
+            doc = this.unwrittenDocuments.get(filename);
+        }
+
+        // already written along with a later change
+        if (doc == null)
+            return null;
+
+        try
+        {
+            writeFile(filename, doc);
+            return getFile(filename);
+        }
+        catch (Exception e)
+        {
+            log.error("Cannot write history file " + filename
+                + " of history " + id, e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes a document to its file. The file is not synced to the disk, the
+     * <tt>HistoryWriteQueue</tt> syncs the files of a batch together once
+     * they are all written. A cached version of the document is replaced by
+     * <tt>doc</tt> as it is the most recent one.
+     *
+     * @param filename the name of the file
+     * @param doc the document of the file
+     * @throws InvalidParameterException if the file is not in this history
+     * @throws IOException if writing fails
+     */
+    protected void writeFile(String filename, Document doc)
+        throws InvalidParameterException, IOException
+    {
+        File file = getFile(filename);
+
+        synchronized (getDocumentCache().getLock(file))
+        {
+            // the changes counted now are already in the document
+            Integer changes;
+            synchronized (this.historyFiles)
             {
-                throw new InvalidParameterException("The requested "
-                        + "filename does not exist in the document list.");
+                changes = this.unwrittenChanges.get(filename);
             }
 
-            Object obj = this.historyDocuments.get(filename);
+            synchronized (doc)
+            {
+                FileOutputStream out = new FileOutputStream(file);
+                try
+                {
+                    Writer writer = new OutputStreamWriter(out, "UTF-8");
+
+                    XMLUtils.writeXML(doc, new StreamResult(writer),
+                        null, null);
+                    writer.flush();
+                }
+                finally
+                {
+                    out.close();
+                }
+            }
 
-            if (obj instanceof Document)
+            boolean unwritten;
+            synchronized (this.historyFiles)
             {
-                Document doc = (Document) obj;
+                Integer left = this.unwrittenChanges.remove(filename);
 
-                synchronized (doc)
+                if (left != null && changes != null && left > changes)
                 {
-                    XMLUtils.writeXML(doc, file);
+                    // changed while being written, it stays unwritten
+                    this.unwrittenChanges.put(filename, left - changes);
+                    return;
                 }
+                unwritten
+                    = (this.unwrittenDocuments.remove(filename) != null);
+            }
+
+            // the written document is the most recent one, replace any
+            // older version kept in the cache and account for its new size
+            HistoryDocumentCache cache = getDocumentCache();
+            if (unwritten
+                || historyServiceImpl.isCacheEnabled()
+                || cache.peek(file) != null)
+            {
+                cache.put(file, doc);
             }
         }
     }
 
-    protected void writeFile(String filename, Document doc)
-        throws InvalidParameterException, IOException
+    /**
+     * Returns a file of this history.
+     *
+     * @param filename the name of the file
+     * @return the file
+     * @throws InvalidParameterException if the file is not in this history
+     */
+    File getFile(String filename)
+        throws InvalidParameterException
     {
-        File file = new File(this.directory, filename);
-
-        synchronized (this.historyDocuments)
+        synchronized (this.historyFiles)
         {
-            if (!this.historyDocuments.containsKey(filename))
+            File file = this.historyFiles.get(filename);
+
+            if (file == null)
             {
                 throw new InvalidParameterException("The requested "
                         + "filename does not exist in the document list.");
             }
+            return file;
+        }
+    }
 
-            synchronized (doc)
-            {
-                XMLUtils.writeXML(doc, file);
-            }
+    /**
+     * Returns the document of a file if it is already loaded, without
+     * loading it.
+     *
+     * @param filename the name of the file
+     * @return the loaded document of the file or <tt>null</tt> if it is not
+     * loaded
+     * @throws InvalidParameterException if the file is not in this history
+     */
+    Document getLoadedDocument(String filename)
+        throws InvalidParameterException
+    {
+        File file;
+
+        synchronized (this.historyFiles)
+        {
+            file = getFile(filename);
+
+            Document doc = this.unwrittenDocuments.get(filename);
+            if (doc != null)
+                return doc;
         }
+        return getDocumentCache().peek(file);
+    }
+
+    /**
+     * Returns the document cache of the history service.
+     *
+     * @return the document cache of the history service
+     */
+    private HistoryDocumentCache getDocumentCache()
+    {
+        return this.historyServiceImpl.getDocumentCache();
     }
 
+    /**
+     * Returns the names of the files of this history, in ascending order.
+     * The returned iterator is not affected by files added later on.
+     *
+     * @return the names of the files of this history
+     */
     protected Iterator<String> getFileList()
     {
-        return this.historyDocuments.keySet().iterator();
+        synchronized (this.historyFiles)
+        {
+            return new ArrayList<String>(this.historyFiles.keySet())
+                .iterator();
+        }
+    }
+
+    /**
+     * Returns the unit identifying a file in the keyword index, the time the
+     * file was created.
+     *
+     * @param filename the name of the file
+     * @return the unit of the file
+     */
+    static long getFileUnit(String filename)
+    {
+        return Long.parseLong(
+            filename.substring(0, filename.length() - 4));
+    }
+
+    /**
+     * Returns the records of a file, in the order they are stored.
+     *
+     * @param filename the name of the file
+     * @return the records of the file or an empty list if it cannot be read
+     */
+    List<HistoryRecord> getRecordsForFile(String filename)
+    {
+        Document doc = getDocumentForFile(filename);
+
+        return (doc == null)
+            ? new ArrayList<HistoryRecord>()
+            : getRecords(doc);
+    }
+
+    /**
+     * Returns the records of a document, in the order they are stored.
+     *
+     * @param doc the document
+     * @return the records of the document
+     */
+    static List<HistoryRecord> getRecords(Document doc)
+    {
+        SimpleDateFormat sdf
+            = new SimpleDateFormat(HistoryService.DATE_FORMAT);
+        NodeList nodes = doc.getElementsByTagName("record");
+        List<HistoryRecord> records
+            = new ArrayList<HistoryRecord>(nodes.getLength());
+
+        for (int i = 0; i < nodes.getLength(); i++)
+        {
+            Node node = nodes.item(i);
+            Date timestamp;
+            String ts = node.getAttributes().getNamedItem("timestamp")
+                .getNodeValue();
+            try
+            {
+                timestamp = sdf.parse(ts);
+            }
+            catch (ParseException e)
+            {
+                timestamp = new Date(Long.parseLong(ts));
+            }
+
+            records.add(HistoryReaderImpl.filterByKeyword(
+                node.getChildNodes(), timestamp, null, null, false));
+        }
+        return records;
     }
 
     protected Document getDocumentForFile(String filename)
             throws InvalidParameterException, RuntimeException {
         Document retVal = null;
+        File file;
 
-        synchronized (this.historyDocuments)
+        synchronized (this.historyFiles)
         {
-            if (!this.historyDocuments.containsKey(filename))
-            {
-                throw new InvalidParameterException("The requested "
-                        + "filename does not exist in the document list.");
-            }
+            file = getFile(filename);
 
-            Object obj = this.historyDocuments.get(filename);
-            if (obj instanceof Document)
-            {
-                // Document already loaded. Use it directly
-                retVal = (Document) obj;
-            } else if (obj instanceof File)
-            {
-                File file = (File) obj;
+            retVal = this.unwrittenDocuments.get(filename);
+            if (retVal != null)
+                return retVal;
+        }
 
-                try {
-                    retVal = this.historyServiceImpl.parse(file);
-                } catch (Exception e)
-                {
-//                    throw new RuntimeException("Error occured while "
-//                            + "parsing XML document.", e);
-//                    log.error("Error occured while parsing XML document.", e);
-                    log.error("Error occured while parsing XML document.", e);
+        HistoryDocumentCache cache = getDocumentCache();
 
-                    // will try to fix the xml file
-                    retVal = getFixedDocument(file);
+        // Document already loaded. Use it directly
+        retVal = cache.get(file);
+        if (retVal != null)
+            return retVal;
 
-                    // if is not fixed return
-                    if(retVal == null)
-                        return null;
-                }
+        // only one thread parses a file, the others wait for its document
+        synchronized (cache.getLock(file))
+        {
+            retVal = cache.peek(file);
+            if (retVal != null)
+                return retVal;
+
+            try {
+                retVal = this.historyServiceImpl.parse(file);
+            } catch (Exception e)
+            {
+                log.error("Error occured while parsing XML document.", e);
 
-                // Cache the loaded document for reuse if configured
-                if(historyServiceImpl.isCacheEnabled())
-                    this.historyDocuments.put(filename, retVal);
-            } else {
-                // TODO: Assert: Assert.fail("Internal error - the data type " +
-                // "should be either Document or File.");
+                // will try to fix the xml file
+                retVal = getFixedDocument(file);
+
+                // if is not fixed return
+                if(retVal == null)
+                    return null;
             }
+
+            // Cache the loaded document for reuse if configured
+            if(historyServiceImpl.isCacheEnabled())
+                cache.put(file, retVal);
         }
 
         return retVal;
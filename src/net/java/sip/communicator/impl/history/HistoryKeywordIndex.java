@@ -0,0 +1,1403 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.security.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * An index of the trigrams, the sequences of three characters, found in the
+ * fields of the records of a history. A field is indexed the first time it
+ * is searched: the whole history is read once and from then on the writers
+ * of the history keep the index up to date as records are added. Every field
+ * has its own index file in the history directory: it starts with the
+ * records of every trigram, as written when the index was built, followed by
+ * the records added since then. Only the unit and ordinal of an added record
+ * are appended, the record is read back from the history when the index is
+ * loaded and the file is written again once too many records were added.
+ * <p>
+ * The readers match a keyword anywhere in a value, ignoring case or not, so
+ * the trigrams are indexed lower case and a value containing a keyword
+ * contains all its trigrams. The index only narrows the search: the records
+ * it returns are candidates which the readers check with
+ * <tt>HistoryReaderImpl.matchKeyword</tt> as before. Keywords shorter than a
+ * trigram cannot be looked up and the history is scanned. Records are
+ * identified by a unit, the XML file they are in or the timestamp they are
+ * indexed under in a <tt>SegmentHistoryStore</tt>, and their ordinal in that
+ * unit.
+ * <p>
+ * The changes are appended to the index files by the
+ * <tt>HistoryWriteQueue</tt>, along with the history files. An index is
+ * built or loaded without holding this object, the records changed meanwhile
+ * are applied to it once it is ready and the searches scan the history until
+ * then. The loaded field indexes of all the histories share a memory budget,
+ * the least recently searched are unloaded when it is exceeded and loaded
+ * again from their files when searched.
+ */
+public class HistoryKeywordIndex
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(HistoryKeywordIndex.class);
+
+    /**
+     * The prefix of the names of the index files.
+     */
+    static final String INDEX_FILE_PREFIX = "keywords-";
+
+    /**
+     * The extension of the index files.
+     */
+    static final String INDEX_FILETYPE = ".kidx";
+
+    /**
+     * The length of the indexed sequences of characters.
+     */
+    static final int GRAM_LENGTH = 3;
+
+    /**
+     * The estimated memory used by the loaded field indexes of all the
+     * histories above which the least recently searched are unloaded.
+     */
+    static final long MAX_LOADED_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * The number of added records read back from the history when loading an
+     * index above which its file is written again.
+     */
+    static final int MAX_ADDED_RECORDS = 1000;
+
+    /**
+     * The number of records read from a <tt>SegmentHistoryStore</tt> at once
+     * when building an index.
+     */
+    private static final int CHUNK_SIZE = 100;
+
+    /**
+     * The version of the format of the index files, files in another format
+     * are built again.
+     */
+    private static final int FORMAT_VERSION = 3;
+
+    /**
+     * The operation adding a record, identified by its unit and ordinal, to
+     * the index.
+     */
+    private static final byte OP_ADD = 1;
+
+    /**
+     * The operation removing all the records of a unit from the index.
+     */
+    private static final byte OP_DROP_UNIT = 2;
+
+    /**
+     * The operation starting an index file, followed by its format version.
+     */
+    private static final byte OP_VERSION = 3;
+
+    /**
+     * The operation giving the records in which a trigram appears.
+     */
+    private static final byte OP_GRAM = 4;
+
+    /**
+     * The estimated memory used by a trigram of a loaded index, besides its
+     * records.
+     */
+    private static final int GRAM_SIZE = 160;
+
+    /**
+     * The loaded field indexes of all the histories, least recently searched
+     * first, with their estimated sizes.
+     */
+    private static final Map<FieldIndex, Long> loadedIndexes
+        = new LinkedHashMap<FieldIndex, Long>(16, 0.75f, true);
+
+    /**
+     * The estimated memory used by the loaded field indexes.
+     */
+    private static long loadedSize = 0;
+
+    /**
+     * The history this index belongs to.
+     */
+    private final HistoryImpl historyImpl;
+
+    /**
+     * The directory of the history.
+     */
+    private final File directory;
+
+    /**
+     * The names of the fields which have an index file, or whose index is
+     * being built.
+     */
+    private final Set<String> indexedFields = new HashSet<String>();
+
+    /**
+     * The loaded field indexes.
+     */
+    private final Map<String, FieldIndex> fieldIndexes
+        = new HashMap<String, FieldIndex>();
+
+    /**
+     * The fields whose index is being built or loaded, with the changes of
+     * the records made meanwhile.
+     */
+    private final Map<String, List<Change>> preparing
+        = new HashMap<String, List<Change>>();
+
+    /**
+     * The operations waiting to be appended to the index files, by field.
+     */
+    private final Map<String, ByteArrayOutputStream> pendingOps
+        = new HashMap<String, ByteArrayOutputStream>();
+
+    /**
+     * Creates the index of the history in <tt>directory</tt>.
+     *
+     * @param historyImpl the history
+     * @param directory the directory of the history
+     */
+    HistoryKeywordIndex(HistoryImpl historyImpl, File directory)
+    {
+        this.historyImpl = historyImpl;
+        this.directory = directory;
+
+        File[] files = directory.listFiles();
+        if (files != null)
+        {
+            for (File f : files)
+            {
+                String name = f.getName();
+
+                if (name.startsWith(INDEX_FILE_PREFIX)
+                    && name.endsWith(INDEX_FILETYPE))
+                {
+                    indexedFields.add(name.substring(
+                        INDEX_FILE_PREFIX.length(),
+                        name.length() - INDEX_FILETYPE.length()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Converts a text to lower case character by character, so that its
+     * length and thus the positions of its trigrams are kept.
+     *
+     * @param text the text
+     * @return the text in lower case
+     */
+    static String toLowerCase(String text)
+    {
+        char[] chars = text.toCharArray();
+
+        for (int i = 0; i < chars.length; i++)
+            chars[i] = Character.toLowerCase(chars[i]);
+        return new String(chars);
+    }
+
+    /**
+     * Returns whether no field of the history is indexed, in which case
+     * there is nothing to maintain. A field whose index is being built is
+     * indexed: the changes made meanwhile are applied once it is built.
+     *
+     * @return whether no field of the history is indexed
+     */
+    synchronized boolean isEmpty()
+    {
+        return indexedFields.isEmpty();
+    }
+
+    /**
+     * Adds a record to the indexes of its fields. The record is added to an
+     * index being built or loaded once it is ready.
+     *
+     * @param unit the unit of the record
+     * @param ordinal the ordinal of the record in its unit
+     * @param propertyNames the names of the properties of the record
+     * @param propertyValues the values of the properties of the record
+     */
+    void recordAdded(long unit,
+                     int ordinal,
+                     String[] propertyNames,
+                     String[] propertyValues)
+    {
+        synchronized (this)
+        {
+            if (!addPendingRecord(unit, ordinal, propertyNames, propertyValues))
+                return;
+        }
+        historyImpl.scheduleIndexWrite();
+    }
+
+    /**
+     * Replaces all the records of a unit, used when records were inserted in
+     * or removed from the unit and thus the ordinals of its records changed.
+     *
+     * @param unit the unit
+     * @param records the records of the unit, in order
+     */
+    void unitChanged(long unit, List<HistoryRecord> records)
+    {
+        synchronized (this)
+        {
+            if (indexedFields.isEmpty())
+                return;
+
+            for (String field : new ArrayList<String>(indexedFields))
+            {
+                List<Change> changes = preparing.get(field);
+                if (changes != null)
+                {
+                    changes.add(new Change(unit, -1, null));
+                    continue;
+                }
+
+                try
+                {
+                    DataOutputStream out = getPendingOps(field);
+
+                    out.writeByte(OP_DROP_UNIT);
+                    out.writeLong(unit);
+                }
+                catch (IOException e)
+                {
+                    dropField(field, e);
+                    continue;
+                }
+
+                FieldIndex index = fieldIndexes.get(field);
+                if (index != null)
+                    index.removeUnit(unit);
+            }
+
+            for (int i = 0; i < records.size(); i++)
+            {
+                HistoryRecord record = records.get(i);
+
+                addPendingRecord(unit, i, record.getPropertyNames(),
+                    record.getPropertyValues());
+            }
+        }
+        historyImpl.scheduleIndexWrite();
+    }
+
+    /**
+     * Adds a record to the loaded indexes of its fields and to the
+     * operations waiting to be appended to their files, or to the changes of
+     * the indexes being prepared.
+     *
+     * @param unit the unit of the record
+     * @param ordinal the ordinal of the record in its unit
+     * @param propertyNames the names of the properties of the record
+     * @param propertyValues the values of the properties of the record
+     * @return whether an operation was added
+     */
+    private boolean addPendingRecord(long unit,
+                                     int ordinal,
+                                     String[] propertyNames,
+                                     String[] propertyValues)
+    {
+        boolean added = false;
+
+        for (int i = 0; i < propertyNames.length; i++)
+        {
+            String field = getFieldName(propertyNames[i]);
+
+            if (propertyValues[i] == null || !indexedFields.contains(field))
+                continue;
+
+            String value = toLowerCase(propertyValues[i]);
+            List<Change> changes = preparing.get(field);
+            if (changes != null)
+            {
+                changes.add(new Change(unit, ordinal, value));
+                continue;
+            }
+
+            try
+            {
+                writeAdd(getPendingOps(field), unit, ordinal);
+            }
+            catch (IOException e)
+            {
+                dropField(field, e);
+                continue;
+            }
+            added = true;
+
+            FieldIndex index = fieldIndexes.get(field);
+            if (index != null)
+                index.add(unit, ordinal, value);
+        }
+        return added;
+    }
+
+    /**
+     * Appends the waiting operations to the index files. Called by the
+     * <tt>HistoryWriteQueue</tt>.
+     */
+    synchronized void writePending()
+    {
+        for (String field : new ArrayList<String>(pendingOps.keySet()))
+            writePending(field);
+    }
+
+    /**
+     * Appends the waiting operations of a field to its index file.
+     *
+     * @param field the field
+     */
+    private void writePending(String field)
+    {
+        ByteArrayOutputStream ops = pendingOps.remove(field);
+
+        if (ops == null || ops.size() == 0)
+            return;
+
+        try
+        {
+            OutputStream out = new FileOutputStream(getIndexFile(field), true);
+            try
+            {
+                ops.writeTo(out);
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        catch (IOException e)
+        {
+            dropField(field, e);
+        }
+    }
+
+    /**
+     * Returns the records which may contain all the <tt>keywords</tt> in
+     * <tt>field</tt>, indexing the field if it wasn't yet. While the index of
+     * the field is being built or loaded the history must be scanned.
+     *
+     * @param field the field to search
+     * @param keywords the keywords to search for
+     * @return the candidate ordinals by unit or <tt>null</tt> if the index
+     * cannot answer the query and the history must be scanned
+     */
+    SortedMap<Long, SortedSet<Integer>> findCandidates(
+            String field, String[] keywords)
+    {
+        if (field == null || keywords == null || keywords.length == 0)
+            return null;
+
+        Set<String> grams = new HashSet<String>();
+        for (String keyword : keywords)
+            addGrams(grams, toLowerCase(keyword));
+
+        // keywords shorter than a trigram cannot be looked up
+        if (grams.isEmpty())
+            return null;
+
+        FieldIndex index;
+        boolean exists = false;
+
+        synchronized (this)
+        {
+            index = fieldIndexes.get(field);
+            if (index == null)
+            {
+                // another search prepares the index
+                if (preparing.containsKey(field))
+                    return null;
+
+                if (indexedFields.contains(field))
+                    writePending(field);
+                exists = indexedFields.contains(field);
+
+                indexedFields.add(field);
+                preparing.put(field, new ArrayList<Change>());
+            }
+        }
+
+        // not while holding this index, the records added meanwhile are
+        // applied to the prepared index
+        if (index == null)
+        {
+            index = prepare(field, exists);
+            if (index == null)
+                return null;
+        }
+
+        SortedMap<Long, SortedSet<Integer>> result;
+        long size;
+
+        synchronized (this)
+        {
+            result = index.find(grams);
+            size = index.estimateSize();
+        }
+
+        // not while holding this index, unloading the others needs theirs
+        loaded(index, size);
+        return result;
+    }
+
+    /**
+     * Loads the index of <tt>field</tt> from its file, or builds it if there
+     * is no usable file, and applies the changes of the records made
+     * meanwhile. Called without holding this index.
+     *
+     * @param field the field
+     * @param exists whether the field has an index file
+     * @return the index of the field or <tt>null</tt> if it cannot be built
+     */
+    private FieldIndex prepare(String field, boolean exists)
+    {
+        FieldIndex index = null;
+        File tmpFile = null;
+
+        try
+        {
+            if (exists)
+            {
+                index = new FieldIndex(this, field);
+
+                int added = load(index);
+
+                if (added == -1)
+                    index = null;
+                else if (added > MAX_ADDED_RECORDS)
+                    tmpFile = write(index);
+            }
+            if (index == null)
+            {
+                index = build(field);
+                tmpFile = write(index);
+            }
+        }
+        catch (IOException e)
+        {
+            if (tmpFile != null)
+                tmpFile.delete();
+
+            synchronized (this)
+            {
+                preparing.remove(field);
+                dropField(field, e);
+            }
+            return null;
+        }
+
+        boolean added;
+
+        synchronized (this)
+        {
+            List<Change> changes = preparing.remove(field);
+
+            try
+            {
+                if (tmpFile != null)
+                {
+                    getIndexFile(field).delete();
+                    if (!tmpFile.renameTo(getIndexFile(field)))
+                    {
+                        throw new IOException(
+                            "Cannot create " + getIndexFile(field));
+                    }
+                    tmpFile = null;
+                }
+
+                DataOutputStream out = getPendingOps(field);
+
+                for (Change change : changes)
+                {
+                    if (change.value == null)
+                    {
+                        out.writeByte(OP_DROP_UNIT);
+                        out.writeLong(change.unit);
+                        index.removeUnit(change.unit);
+                    }
+                    else
+                    {
+                        writeAdd(out, change.unit, change.ordinal);
+                        index.add(change.unit, change.ordinal, change.value);
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                if (tmpFile != null)
+                    tmpFile.delete();
+                dropField(field, e);
+                return null;
+            }
+
+            fieldIndexes.put(field, index);
+            added = !changes.isEmpty();
+        }
+
+        if (added)
+            historyImpl.scheduleIndexWrite();
+        return index;
+    }
+
+    /**
+     * Replays the index file of a field. The records added after the file
+     * was written are read back from the history.
+     *
+     * @param index the empty index of the field
+     * @return the number of records read back from the history or
+     * <tt>-1</tt> if the file is in another format
+     * @throws IOException if reading the file or the history fails
+     */
+    private int load(FieldIndex index)
+        throws IOException
+    {
+        File file = getIndexFile(index.field);
+        SortedMap<Long, SortedSet<Integer>> added
+            = new TreeMap<Long, SortedSet<Integer>>();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(file)));
+
+        try
+        {
+            if (in.read() != OP_VERSION || in.readInt() != FORMAT_VERSION)
+                return -1;
+
+            while (true)
+            {
+                int op = in.read();
+
+                if (op == -1)
+                    break;
+
+                try
+                {
+                    if (op == OP_GRAM)
+                    {
+                        index.read(in);
+                    }
+                    else if (op == OP_ADD)
+                    {
+                        long unit = in.readLong();
+                        int ordinal = in.readInt();
+                        SortedSet<Integer> ordinals = added.get(unit);
+
+                        if (ordinals == null)
+                        {
+                            ordinals = new TreeSet<Integer>();
+                            added.put(unit, ordinals);
+                        }
+                        ordinals.add(ordinal);
+                    }
+                    else if (op == OP_DROP_UNIT)
+                    {
+                        long unit = in.readLong();
+
+                        index.removeUnit(unit);
+                        added.remove(unit);
+                    }
+                    else
+                    {
+                        throw new IOException("Unknown operation " + op);
+                    }
+                }
+                catch (EOFException e)
+                {
+                    // the last entry was not completely written
+                    logger.warn("Ignoring truncated keyword index entry in "
+                        + file);
+                    break;
+                }
+            }
+        }
+        catch (EOFException e)
+        {
+            // the file has no version
+            return -1;
+        }
+        finally
+        {
+            in.close();
+        }
+
+        int count = 0;
+
+        for (Map.Entry<Long, SortedSet<Integer>> e : added.entrySet())
+        {
+            addUnit(index, e.getKey(), e.getValue());
+            count += e.getValue().size();
+        }
+        return count;
+    }
+
+    /**
+     * Adds records of a unit, as they are now in the history, to an index.
+     *
+     * @param index the index
+     * @param unit the unit
+     * @param ordinals the ordinals of the records to add
+     * @throws IOException if reading the history fails
+     */
+    private void addUnit(FieldIndex index,
+                         long unit,
+                         SortedSet<Integer> ordinals)
+        throws IOException
+    {
+        SegmentHistoryStore store = historyImpl.getSegmentStore();
+
+        if (store != null)
+        {
+            // the records of a store are identified by their timestamp alone
+            List<HistoryRecord> records;
+
+            synchronized (store)
+            {
+                records = store.read(store.indexOf(new Date(unit)),
+                    store.endIndexOf(new Date(unit + 1)));
+            }
+            for (HistoryRecord record : records)
+                addRecord(index, unit, 0, record);
+        }
+        else
+        {
+            List<HistoryRecord> records;
+
+            try
+            {
+                records = historyImpl.getRecordsForFile(
+                    unit + "." + HistoryImpl.SUPPORTED_FILETYPE);
+            }
+            catch (InvalidParameterException e)
+            {
+                // the file is no longer in the history
+                return;
+            }
+            for (int ordinal : ordinals)
+            {
+                if (ordinal < records.size())
+                    addRecord(index, unit, ordinal, records.get(ordinal));
+            }
+        }
+    }
+
+    /**
+     * Builds the index of <tt>field</tt> from all the records of the history.
+     * The records of a <tt>SegmentHistoryStore</tt> are read in chunks of
+     * <tt>CHUNK_SIZE</tt> records, those of an XML history file by file.
+     *
+     * @param field the field
+     * @return the index of the field
+     * @throws IOException if reading the history fails
+     */
+    private FieldIndex build(String field)
+        throws IOException
+    {
+        FieldIndex index = new FieldIndex(this, field);
+        SegmentHistoryStore store = historyImpl.getSegmentStore();
+
+        if (store != null)
+        {
+            // chunks start at a timestamp rather than a position, as the
+            // records added meanwhile move the positions
+            long next = Long.MIN_VALUE;
+
+            while (true)
+            {
+                List<HistoryRecord> records;
+                long[] units;
+
+                synchronized (store)
+                {
+                    int from = store.indexOf(new Date(next));
+                    int to = Math.min(from + CHUNK_SIZE, store.size());
+
+                    if (from >= to)
+                        break;
+
+                    // the records sharing the last timestamp go together
+                    next = store.getIndexTimestamp(to - 1) + 1;
+                    to = store.endIndexOf(new Date(next));
+
+                    records = store.read(from, to);
+                    units = new long[records.size()];
+                    for (int i = 0; i < units.length; i++)
+                        units[i] = store.getIndexTimestamp(from + i);
+                }
+
+                for (int i = 0; i < units.length; i++)
+                    addRecord(index, units[i], 0, records.get(i));
+            }
+        }
+        else
+        {
+            Iterator<String> files = historyImpl.getFileList();
+
+            while (files.hasNext())
+            {
+                String file = files.next();
+                long unit = HistoryImpl.getFileUnit(file);
+                List<HistoryRecord> records;
+
+                try
+                {
+                    records = historyImpl.getRecordsForFile(file);
+                }
+                catch (InvalidParameterException e)
+                {
+                    // the file was removed meanwhile
+                    continue;
+                }
+
+                for (int i = 0; i < records.size(); i++)
+                    addRecord(index, unit, i, records.get(i));
+            }
+        }
+
+        return index;
+    }
+
+    /**
+     * Writes an index to a temporary file, which replaces the index file of
+     * its field once the changes made meanwhile are applied.
+     *
+     * @param index the index
+     * @return the temporary file
+     * @throws IOException if writing fails
+     */
+    private File write(FieldIndex index)
+        throws IOException
+    {
+        File tmpFile = new File(directory,
+            INDEX_FILE_PREFIX + index.field + INDEX_FILETYPE + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(tmpFile)));
+
+        try
+        {
+            out.writeByte(OP_VERSION);
+            out.writeInt(FORMAT_VERSION);
+            index.write(out);
+        }
+        catch (IOException e)
+        {
+            out.close();
+            tmpFile.delete();
+            throw e;
+        }
+        out.close();
+
+        return tmpFile;
+    }
+
+    /**
+     * Adds the value of the field of <tt>index</tt> in <tt>record</tt> to
+     * <tt>index</tt>.
+     *
+     * @param index the index of the field
+     * @param unit the unit of the record
+     * @param ordinal the ordinal of the record in its unit
+     * @param record the record
+     */
+    private static void addRecord(FieldIndex index,
+                                  long unit,
+                                  int ordinal,
+                                  HistoryRecord record)
+    {
+        String[] propertyNames = record.getPropertyNames();
+
+        for (int i = 0; i < propertyNames.length; i++)
+        {
+            String value = record.getPropertyValues()[i];
+
+            if (value != null
+                && index.field.equals(getFieldName(propertyNames[i])))
+                index.add(unit, ordinal, toLowerCase(value));
+        }
+    }
+
+    /**
+     * Adds the trigrams of a text to a set.
+     *
+     * @param grams the set of trigrams
+     * @param text the text in lower case
+     */
+    private static void addGrams(Set<String> grams, String text)
+    {
+        for (int i = 0; i + GRAM_LENGTH <= text.length(); i++)
+            grams.add(text.substring(i, i + GRAM_LENGTH));
+    }
+
+    /**
+     * Writes an add operation to an index file.
+     *
+     * @param out the index file
+     * @param unit the unit of the record
+     * @param ordinal the ordinal of the record in its unit
+     * @throws IOException if writing fails
+     */
+    private static void writeAdd(DataOutputStream out, long unit, int ordinal)
+        throws IOException
+    {
+        out.writeByte(OP_ADD);
+        out.writeLong(unit);
+        out.writeInt(ordinal);
+    }
+
+    /**
+     * Returns a stream adding to the operations waiting to be appended to
+     * the index file of <tt>field</tt>.
+     *
+     * @param field the field
+     * @return the stream to write to
+     */
+    private DataOutputStream getPendingOps(String field)
+    {
+        ByteArrayOutputStream ops = pendingOps.get(field);
+
+        if (ops == null)
+        {
+            ops = new ByteArrayOutputStream();
+            pendingOps.put(field, ops);
+        }
+        return new DataOutputStream(ops);
+    }
+
+    /**
+     * Stops indexing a field after a failure. Its file is deleted so that the
+     * index is built again the next time the field is searched.
+     *
+     * @param field the field
+     * @param cause the failure
+     */
+    private void dropField(String field, IOException cause)
+    {
+        logger.error("Dropping keyword index of field " + field, cause);
+
+        indexedFields.remove(field);
+        pendingOps.remove(field);
+        getIndexFile(field).delete();
+
+        FieldIndex index = fieldIndexes.remove(field);
+        if (index != null)
+        {
+            synchronized (loadedIndexes)
+            {
+                Long size = loadedIndexes.remove(index);
+                if (size != null)
+                    loadedSize -= size;
+            }
+        }
+    }
+
+    /**
+     * Unloads the index of a field to free memory, it is loaded again from
+     * its file when the field is searched.
+     *
+     * @param index the index to unload
+     */
+    private synchronized void unload(FieldIndex index)
+    {
+        if (fieldIndexes.get(index.field) == index)
+            fieldIndexes.remove(index.field);
+    }
+
+    /**
+     * Records that a field index was searched and unloads the least recently
+     * searched indexes of all the histories while they use more memory than
+     * <tt>MAX_LOADED_SIZE</tt>. The index just searched is kept.
+     *
+     * @param index the index searched
+     * @param size the estimated size of the index
+     */
+    private static void loaded(FieldIndex index, long size)
+    {
+        List<FieldIndex> unloaded = null;
+
+        synchronized (loadedIndexes)
+        {
+            Long previous = loadedIndexes.put(index, size);
+
+            loadedSize += size - ((previous == null) ? 0 : previous);
+
+            Iterator<Map.Entry<FieldIndex, Long>> iter
+                = loadedIndexes.entrySet().iterator();
+            while (loadedSize > MAX_LOADED_SIZE && iter.hasNext())
+            {
+                Map.Entry<FieldIndex, Long> entry = iter.next();
+
+                if (entry.getKey() == index)
+                    break;
+
+                if (unloaded == null)
+                    unloaded = new ArrayList<FieldIndex>();
+                unloaded.add(entry.getKey());
+                loadedSize -= entry.getValue();
+                iter.remove();
+            }
+        }
+
+        if (unloaded != null)
+        {
+            for (FieldIndex i : unloaded)
+                i.owner.unload(i);
+        }
+    }
+
+    /**
+     * Returns whether the index of a field is loaded.
+     *
+     * @param field the field
+     * @return whether the index of the field is loaded
+     */
+    synchronized boolean isLoaded(String field)
+    {
+        return fieldIndexes.containsKey(field);
+    }
+
+    /**
+     * Returns the index file of a field.
+     *
+     * @param field the field
+     * @return the index file of the field
+     */
+    private File getIndexFile(String field)
+    {
+        return new File(directory, INDEX_FILE_PREFIX + field + INDEX_FILETYPE);
+    }
+
+    /**
+     * Writes a number using as few bytes as its magnitude needs, seven bits
+     * per byte. Negative numbers are written zigzag encoded.
+     *
+     * @param out the stream to write to
+     * @param value the number
+     * @throws IOException if writing fails
+     */
+    private static void writeVarLong(DataOutput out, long value)
+        throws IOException
+    {
+        long v = (value << 1) ^ (value >> 63);
+
+        while ((v & ~0x7FL) != 0)
+        {
+            out.writeByte((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+    /**
+     * Reads a number written by <tt>writeVarLong</tt>.
+     *
+     * @param in the stream to read from
+     * @return the number
+     * @throws IOException if reading fails
+     */
+    private static long readVarLong(DataInput in)
+        throws IOException
+    {
+        long v = 0;
+        int shift = 0;
+        int b;
+
+        do
+        {
+            if (shift > 63)
+                throw new IOException("Malformed number");
+
+            b = in.readUnsignedByte();
+            v |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        }
+        while ((b & 0x80) != 0);
+
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /**
+     * Returns the name of a field as stored in the records, without the
+     * CDATA suffix used in the record structures.
+     *
+     * @param propertyName the property name
+     * @return the field name
+     */
+    private static String getFieldName(String propertyName)
+    {
+        return propertyName.endsWith(HistoryWriterImpl.CDATA_SUFFIX)
+            ? propertyName.substring(0,
+                propertyName.length() - HistoryWriterImpl.CDATA_SUFFIX.length())
+            : propertyName;
+    }
+
+    /**
+     * The loaded index of a field, guarded by the <tt>HistoryKeywordIndex</tt>
+     * it belongs to.
+     */
+    private static class FieldIndex
+    {
+        /**
+         * The index this field index belongs to.
+         */
+        final HistoryKeywordIndex owner;
+
+        /**
+         * The field.
+         */
+        final String field;
+
+        /**
+         * The records in which the trigrams appear.
+         */
+        private final Map<String, Postings> postings
+            = new HashMap<String, Postings>();
+
+        /**
+         * Creates an empty field index.
+         *
+         * @param owner the index this field index belongs to
+         * @param field the field
+         */
+        FieldIndex(HistoryKeywordIndex owner, String field)
+        {
+            this.owner = owner;
+            this.field = field;
+        }
+
+        /**
+         * Adds the trigrams of a value of a record.
+         *
+         * @param unit the unit of the record
+         * @param ordinal the ordinal of the record in its unit
+         * @param value the value, in lower case
+         */
+        void add(long unit, int ordinal, String value)
+        {
+            for (int i = 0; i + GRAM_LENGTH <= value.length(); i++)
+            {
+                String gram = value.substring(i, i + GRAM_LENGTH);
+                Postings gramPostings = postings.get(gram);
+
+                if (gramPostings == null)
+                {
+                    gramPostings = new Postings();
+                    postings.put(gram, gramPostings);
+                }
+                gramPostings.add(unit, ordinal);
+            }
+        }
+
+        /**
+         * Removes the records of a unit.
+         *
+         * @param unit the unit
+         */
+        void removeUnit(long unit)
+        {
+            Iterator<Postings> iter = postings.values().iterator();
+
+            while (iter.hasNext())
+            {
+                Postings gramPostings = iter.next();
+
+                gramPostings.removeUnit(unit);
+                if (gramPostings.size == 0)
+                    iter.remove();
+            }
+        }
+
+        /**
+         * Returns the records containing all the trigrams.
+         *
+         * @param grams the trigrams
+         * @return the ordinals of the records by unit
+         */
+        SortedMap<Long, SortedSet<Integer>> find(Set<String> grams)
+        {
+            List<Postings> found = new ArrayList<Postings>(grams.size());
+
+            for (String gram : grams)
+            {
+                Postings gramPostings = postings.get(gram);
+
+                if (gramPostings == null)
+                    return new TreeMap<Long, SortedSet<Integer>>();
+                found.add(gramPostings);
+            }
+
+            // the rarest trigrams first, they narrow the search the most
+            Collections.sort(found, new Comparator<Postings>()
+            {
+                public int compare(Postings p1, Postings p2)
+                {
+                    return p1.size - p2.size;
+                }
+            });
+
+            SortedMap<Long, SortedSet<Integer>> result = null;
+            for (Postings gramPostings : found)
+            {
+                SortedMap<Long, SortedSet<Integer>> matches
+                    = new TreeMap<Long, SortedSet<Integer>>();
+
+                gramPostings.addTo(matches, result);
+                result = matches;
+                if (result.isEmpty())
+                    break;
+            }
+            return result;
+        }
+
+        /**
+         * Writes the records of every trigram to an index file.
+         *
+         * @param out the index file
+         * @throws IOException if writing fails
+         */
+        void write(DataOutputStream out)
+            throws IOException
+        {
+            for (Map.Entry<String, Postings> e : postings.entrySet())
+            {
+                out.writeByte(OP_GRAM);
+                out.writeChars(e.getKey());
+                e.getValue().write(out);
+            }
+        }
+
+        /**
+         * Reads the records of a trigram written by <tt>write</tt>, after its
+         * operation.
+         *
+         * @param in the index file
+         * @throws IOException if reading fails
+         */
+        void read(DataInputStream in)
+            throws IOException
+        {
+            char[] gram = new char[GRAM_LENGTH];
+
+            for (int i = 0; i < gram.length; i++)
+                gram[i] = in.readChar();
+
+            Postings gramPostings = postings.get(new String(gram));
+            if (gramPostings == null)
+            {
+                gramPostings = new Postings();
+                postings.put(new String(gram), gramPostings);
+            }
+            gramPostings.read(in);
+        }
+
+        /**
+         * Returns an estimate of the memory used by this index.
+         *
+         * @return the estimated size in bytes
+         */
+        long estimateSize()
+        {
+            long size = 0;
+
+            for (Postings gramPostings : postings.values())
+                size += GRAM_SIZE + 12L * gramPostings.units.length;
+            return size;
+        }
+    }
+
+    /**
+     * The records in which a trigram appears.
+     */
+    private static class Postings
+    {
+        /**
+         * The units of the records.
+         */
+        private long[] units = new long[4];
+
+        /**
+         * The ordinals of the records in their units.
+         */
+        private int[] ordinals = new int[4];
+
+        /**
+         * The number of records.
+         */
+        private int size = 0;
+
+        /**
+         * Adds a record.
+         *
+         * @param unit the unit of the record
+         * @param ordinal the ordinal of the record in its unit
+         */
+        void add(long unit, int ordinal)
+        {
+            // a trigram repeated in a record is added once
+            if (size > 0
+                && units[size - 1] == unit && ordinals[size - 1] == ordinal)
+                return;
+
+            if (size == units.length)
+            {
+                units = Arrays.copyOf(units, size * 2);
+                ordinals = Arrays.copyOf(ordinals, size * 2);
+            }
+            units[size] = unit;
+            ordinals[size] = ordinal;
+            size++;
+        }
+
+        /**
+         * Writes the records, each unit as the difference with the previous
+         * one as the records of a unit are mostly together.
+         *
+         * @param out the index file
+         * @throws IOException if writing fails
+         */
+        void write(DataOutputStream out)
+            throws IOException
+        {
+            long previous = 0;
+
+            out.writeInt(size);
+            for (int i = 0; i < size; i++)
+            {
+                writeVarLong(out, units[i] - previous);
+                writeVarLong(out, ordinals[i]);
+                previous = units[i];
+            }
+        }
+
+        /**
+         * Adds the records written by <tt>write</tt>.
+         *
+         * @param in the index file
+         * @throws IOException if reading fails
+         */
+        void read(DataInputStream in)
+            throws IOException
+        {
+            int count = in.readInt();
+            long unit = 0;
+
+            for (int i = 0; i < count; i++)
+            {
+                unit += readVarLong(in);
+                add(unit, (int) readVarLong(in));
+            }
+        }
+
+        /**
+         * Removes the records of a unit.
+         *
+         * @param unit the unit
+         */
+        void removeUnit(long unit)
+        {
+            int kept = 0;
+
+            for (int i = 0; i < size; i++)
+            {
+                if (units[i] != unit)
+                {
+                    units[kept] = units[i];
+                    ordinals[kept] = ordinals[i];
+                    kept++;
+                }
+            }
+            size = kept;
+        }
+
+        /**
+         * Adds the records to <tt>matches</tt>, keeping only those already in
+         * <tt>filter</tt> if it is not <tt>null</tt>.
+         *
+         * @param matches the records found so far
+         * @param filter the records to restrict to or <tt>null</tt>
+         */
+        void addTo(SortedMap<Long, SortedSet<Integer>> matches,
+                   SortedMap<Long, SortedSet<Integer>> filter)
+        {
+            for (int i = 0; i < size; i++)
+            {
+                Long unit = units[i];
+
+                if (filter != null)
+                {
+                    SortedSet<Integer> allowed = filter.get(unit);
+
+                    if (allowed == null || !allowed.contains(ordinals[i]))
+                        continue;
+                }
+
+                SortedSet<Integer> unitOrdinals = matches.get(unit);
+                if (unitOrdinals == null)
+                {
+                    unitOrdinals = new TreeSet<Integer>();
+                    matches.put(unit, unitOrdinals);
+                }
+                unitOrdinals.add(ordinals[i]);
+            }
+        }
+    }
+
+    /**
+     * A change of a record made while the index of a field is being built or
+     * loaded.
+     */
+    private static class Change
+    {
+        /**
+         * The unit of the record.
+         */
+        final long unit;
+
+        /**
+         * The ordinal of the record in its unit.
+         */
+        final int ordinal;
+
+        /**
+         * The value of the field in the record in lower case, <tt>null</tt>
+         * if all the records of the unit are removed.
+         */
+        final String value;
+
+        /**
+         * Creates a change.
+         *
+         * @param unit the unit of the record
+         * @param ordinal the ordinal of the record in its unit
+         * @param value the value of the field in the record in lower case,
+         * <tt>null</tt> if all the records of the unit are removed
+         */
+        Change(long unit, int ordinal, String value)
+        {
+            this.unit = unit;
+            this.ordinal = ordinal;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,850 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import static
+    net.java.sip.communicator.service.history.HistoryService.DATE_FORMAT;
+
+import java.io.*;
+import java.text.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * Secondary indexes of the XML files of a history, used by
+ * <tt>HistoryWriterImpl</tt> to find the file to change without parsing all
+ * of them. Histories kept in a <tt>SegmentHistoryStore</tt> are indexed by
+ * day instead of by file, <tt>SegmentHistoryWriterImpl</tt> then reads only
+ * the records of the days a value may appear in. Two kinds of indexes are
+ * kept:
+ * <ul>
+ * <li>value indexes, giving the files in which a property (e.g. the UID of
+ * a message) may have a value, used to update records;</li>
+ * <li>maximum indexes, giving the greatest timestamp a property has in every
+ * file, used to insert records in order.</li>
+ * </ul>
+ * As <tt>HistoryKeywordIndex</tt> does for searches, a property is indexed
+ * the first time it is looked up and the writers keep the index up to date
+ * afterwards. Every index has its own append-only file in the history
+ * directory which is replayed when the index is loaded. Values are indexed
+ * by their hash code, so the files returned are candidates the writers still
+ * check.
+ * <p>
+ * The changes are appended to the index files by the
+ * <tt>HistoryWriteQueue</tt>, along with the history files. An index is
+ * built while holding this object, so the records changed meanwhile wait
+ * for it and are then added to the built index.
+ */
+public class HistoryPropertyIndex
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(HistoryPropertyIndex.class);
+
+    /**
+     * The prefix of the names of the value index files.
+     */
+    static final String VALUES_FILE_PREFIX = "values-";
+
+    /**
+     * The prefix of the names of the maximum index files.
+     */
+    static final String MAXIMUM_FILE_PREFIX = "maximum-";
+
+    /**
+     * The extension of the index files.
+     */
+    static final String INDEX_FILETYPE = ".pidx";
+
+    /**
+     * The length in milliseconds of the units of histories kept in a
+     * <tt>SegmentHistoryStore</tt>.
+     */
+    static final long SEGMENT_UNIT_LENGTH = 24 * 60 * 60 * 1000;
+
+    /**
+     * The number of records read from a <tt>SegmentHistoryStore</tt> at once
+     * when building an index.
+     */
+    private static final int CHUNK_SIZE = 100;
+
+    /**
+     * The operation adding the hash of a value to a value index.
+     */
+    private static final byte OP_VALUE = 1;
+
+    /**
+     * The operation raising the maximum of a unit in a maximum index.
+     */
+    private static final byte OP_MAXIMUM = 2;
+
+    /**
+     * The operation removing a unit from an index.
+     */
+    private static final byte OP_DROP_UNIT = 3;
+
+    /**
+     * The history this index belongs to.
+     */
+    private final HistoryImpl historyImpl;
+
+    /**
+     * The directory of the history.
+     */
+    private final File directory;
+
+    /**
+     * The names of the index files of the history, without extension,
+     * including the indexes being built.
+     */
+    private final Set<String> indexNames = new HashSet<String>();
+
+    /**
+     * The loaded indexes by name.
+     */
+    private final Map<String, Index> indexes = new HashMap<String, Index>();
+
+    /**
+     * The operations waiting to be appended to the index files, by name.
+     */
+    private final Map<String, ByteArrayOutputStream> pendingOps
+        = new HashMap<String, ByteArrayOutputStream>();
+
+    /**
+     * Creates the indexes of the history in <tt>directory</tt>.
+     *
+     * @param historyImpl the history
+     * @param directory the directory of the history
+     */
+    HistoryPropertyIndex(HistoryImpl historyImpl, File directory)
+    {
+        this.historyImpl = historyImpl;
+        this.directory = directory;
+
+        File[] files = directory.listFiles();
+        if (files != null)
+        {
+            for (File f : files)
+            {
+                String name = f.getName();
+
+                if (name.endsWith(INDEX_FILETYPE)
+                    && (name.startsWith(VALUES_FILE_PREFIX)
+                        || name.startsWith(MAXIMUM_FILE_PREFIX)))
+                {
+                    indexNames.add(name.substring(
+                        0, name.length() - INDEX_FILETYPE.length()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns whether no property is indexed, in which case there is nothing
+     * to maintain.
+     *
+     * @return whether no property is indexed
+     */
+    synchronized boolean isEmpty()
+    {
+        return indexNames.isEmpty();
+    }
+
+    /**
+     * Returns the files in which <tt>property</tt> may have <tt>value</tt>,
+     * indexing the property if it wasn't yet.
+     *
+     * @param property the property
+     * @param value the value
+     * @return the names of the files, in ascending order, or <tt>null</tt> if
+     * the index cannot answer and all the files must be searched
+     */
+    synchronized List<String> findFiles(String property, String value)
+    {
+        SortedSet<Long> units = findUnits(property, value);
+
+        if (units == null)
+            return null;
+
+        List<String> files = new ArrayList<String>();
+
+        for (Long unit : units)
+            files.add(getFileName(unit));
+        return files;
+    }
+
+    /**
+     * Returns the units in which <tt>property</tt> may have <tt>value</tt>,
+     * indexing the property if it wasn't yet.
+     *
+     * @param property the property
+     * @param value the value
+     * @return the units, in ascending order, or <tt>null</tt> if the index
+     * cannot answer and all the records must be searched
+     */
+    synchronized SortedSet<Long> findUnits(String property, String value)
+    {
+        Index index
+            = getIndex(VALUES_FILE_PREFIX + getPropertyName(property));
+
+        if (index == null)
+            return null;
+
+        SortedSet<Long> units = index.unitsByHash.get(value.hashCode());
+
+        return (units == null)
+            ? new TreeSet<Long>()
+            : new TreeSet<Long>(units);
+    }
+
+    /**
+     * Returns the first of <tt>files</tt> having a record in which
+     * <tt>property</tt> is not before <tt>timestamp</tt>, indexing the
+     * property if it wasn't yet.
+     *
+     * @param property the property holding timestamps
+     * @param timestamp the timestamp
+     * @param files the names of the files to choose from, in order
+     * @return a list with the name of the file, an empty list if there is
+     * none or <tt>null</tt> if the index cannot answer and all the files must
+     * be searched
+     */
+    synchronized List<String> findFirstFileNotBefore(String property,
+                                                     Date timestamp,
+                                                     List<String> files)
+    {
+        Index index
+            = getIndex(MAXIMUM_FILE_PREFIX + getPropertyName(property));
+
+        if (index == null)
+            return null;
+
+        for (String file : files)
+        {
+            Long maximum = index.maximumByUnit.get(
+                HistoryImpl.getFileUnit(file));
+
+            if (maximum != null && maximum >= timestamp.getTime())
+                return Collections.singletonList(file);
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Adds the properties of a record to the indexes. Waits while an index
+     * is being built, the record is then added to the built index.
+     *
+     * @param unit the unit of the file of the record, or the one returned by
+     * <tt>getSegmentUnit</tt> for a record of a <tt>SegmentHistoryStore</tt>
+     * @param propertyNames the names of the properties of the record
+     * @param propertyValues the values of the properties of the record
+     */
+    void recordAdded(long unit,
+                     String[] propertyNames,
+                     String[] propertyValues)
+    {
+        synchronized (this)
+        {
+            if (indexNames.isEmpty())
+                return;
+
+            addRecord(unit, propertyNames, propertyValues);
+        }
+        historyImpl.scheduleIndexWrite();
+    }
+
+    /**
+     * Replaces all the records of a unit, used when records were changed in
+     * a way the indexes cannot follow record by record.
+     *
+     * @param unit the unit
+     * @param records the records of the unit
+     */
+    void unitChanged(long unit, List<HistoryRecord> records)
+    {
+        synchronized (this)
+        {
+            if (indexNames.isEmpty())
+                return;
+
+            for (String name : new ArrayList<String>(indexNames))
+            {
+                try
+                {
+                    DataOutputStream out = getPendingOps(name);
+
+                    out.writeByte(OP_DROP_UNIT);
+                    out.writeLong(unit);
+                }
+                catch (IOException e)
+                {
+                    dropIndex(name, e);
+                    continue;
+                }
+
+                Index index = indexes.get(name);
+                if (index != null)
+                    index.removeUnit(unit);
+            }
+
+            for (HistoryRecord record : records)
+            {
+                addRecord(unit, record.getPropertyNames(),
+                    record.getPropertyValues());
+            }
+        }
+        historyImpl.scheduleIndexWrite();
+    }
+
+    /**
+     * Adds the properties of a record to the indexes which exist.
+     *
+     * @param unit the unit of the file of the record
+     * @param propertyNames the names of the properties of the record
+     * @param propertyValues the values of the properties of the record
+     */
+    private void addRecord(long unit,
+                           String[] propertyNames,
+                           String[] propertyValues)
+    {
+        for (int i = 0; i < propertyNames.length; i++)
+        {
+            if (propertyValues[i] == null)
+                continue;
+
+            String property = getPropertyName(propertyNames[i]);
+
+            add(VALUES_FILE_PREFIX + property, unit, propertyValues[i]);
+            add(MAXIMUM_FILE_PREFIX + property, unit, propertyValues[i]);
+        }
+    }
+
+    /**
+     * Adds a value to an index if the index exists.
+     *
+     * @param name the name of the index
+     * @param unit the unit of the value
+     * @param value the value
+     */
+    private void add(String name, long unit, String value)
+    {
+        if (!indexNames.contains(name))
+            return;
+
+        Index index = indexes.get(name);
+        try
+        {
+            if (index == null)
+                index = new Index(isMaximumIndex(name));
+            index.add(getPendingOps(name), unit, value);
+        }
+        catch (IOException e)
+        {
+            dropIndex(name, e);
+        }
+    }
+
+    /**
+     * Appends the waiting operations to the index files. Called by the
+     * <tt>HistoryWriteQueue</tt>.
+     */
+    synchronized void writePending()
+    {
+        for (String name : new ArrayList<String>(pendingOps.keySet()))
+            writePending(name);
+    }
+
+    /**
+     * Appends the waiting operations of an index to its file.
+     *
+     * @param name the name of the index
+     */
+    private void writePending(String name)
+    {
+        ByteArrayOutputStream ops = pendingOps.remove(name);
+
+        if (ops == null || ops.size() == 0)
+            return;
+
+        try
+        {
+            OutputStream out = new FileOutputStream(getIndexFile(name), true);
+            try
+            {
+                ops.writeTo(out);
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        catch (IOException e)
+        {
+            dropIndex(name, e);
+        }
+    }
+
+    /**
+     * Returns an index, loading or building it if needed.
+     *
+     * @param name the name of the index
+     * @return the index or <tt>null</tt> if it cannot be built
+     */
+    private Index getIndex(String name)
+    {
+        Index index = indexes.get(name);
+        if (index != null)
+            return index;
+
+        try
+        {
+            if (indexNames.contains(name))
+            {
+                writePending(name);
+                index = load(name);
+            }
+            else
+            {
+                index = build(name);
+            }
+        }
+        catch (IOException e)
+        {
+            dropIndex(name, e);
+            return null;
+        }
+
+        indexes.put(name, index);
+        return index;
+    }
+
+    /**
+     * Replays an index file.
+     *
+     * @param name the name of the index
+     * @return the index
+     * @throws IOException if reading the file fails
+     */
+    private Index load(String name)
+        throws IOException
+    {
+        Index index = new Index(isMaximumIndex(name));
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(getIndexFile(name))));
+
+        try
+        {
+            while (true)
+            {
+                int op = in.read();
+
+                if (op == -1)
+                    break;
+
+                try
+                {
+                    long unit = in.readLong();
+
+                    if (op == OP_VALUE)
+                        index.addHash(unit, in.readInt());
+                    else if (op == OP_MAXIMUM)
+                        index.raiseMaximum(unit, in.readLong());
+                    else if (op == OP_DROP_UNIT)
+                        index.removeUnit(unit);
+                    else
+                        throw new IOException("Unknown operation " + op);
+                }
+                catch (EOFException e)
+                {
+                    // the last entry was not completely written
+                    logger.warn("Ignoring truncated property index entry in "
+                        + getIndexFile(name));
+                    break;
+                }
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+
+        return index;
+    }
+
+    /**
+     * Builds an index from all the records of the history and writes it to
+     * its file. The index exists from the start so that the records changed
+     * meanwhile, which wait for the build, are then added to it.
+     *
+     * @param name the name of the index
+     * @return the index
+     * @throws IOException if writing the file fails
+     */
+    private Index build(String name)
+        throws IOException
+    {
+        boolean maximum = isMaximumIndex(name);
+        String property = name.substring(maximum
+            ? MAXIMUM_FILE_PREFIX.length()
+            : VALUES_FILE_PREFIX.length());
+        Index index = new Index(maximum);
+        File tmpFile = new File(directory, name + INDEX_FILETYPE + ".tmp");
+
+        indexNames.add(name);
+
+        DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(tmpFile)));
+
+        try
+        {
+            SegmentHistoryStore store = historyImpl.getSegmentStore();
+
+            if (store != null)
+            {
+                for (int start = 0; start < store.size(); start += CHUNK_SIZE)
+                {
+                    List<HistoryRecord> chunk = store.read(start,
+                        Math.min(start + CHUNK_SIZE, store.size()));
+
+                    for (int i = 0; i < chunk.size(); i++)
+                    {
+                        addProperty(out, index, property,
+                            getSegmentUnit(store.getIndexTimestamp(start + i)),
+                            chunk.get(i));
+                    }
+                }
+            }
+            else
+            {
+                Iterator<String> files = historyImpl.getFileList();
+
+                while (files.hasNext())
+                {
+                    String file = files.next();
+                    long unit = HistoryImpl.getFileUnit(file);
+
+                    for (HistoryRecord record
+                            : historyImpl.getRecordsForFile(file))
+                        addProperty(out, index, property, unit, record);
+                }
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+
+        if (!tmpFile.renameTo(getIndexFile(name)))
+        {
+            tmpFile.delete();
+            throw new IOException("Cannot create " + getIndexFile(name));
+        }
+
+        return index;
+    }
+
+    /**
+     * Adds the value a record has for a property to an index being built.
+     *
+     * @param out the file of the index
+     * @param index the index
+     * @param property the indexed property
+     * @param unit the unit of the record
+     * @param record the record
+     * @throws IOException if writing the file fails
+     */
+    private static void addProperty(DataOutputStream out,
+                                    Index index,
+                                    String property,
+                                    long unit,
+                                    HistoryRecord record)
+        throws IOException
+    {
+        String[] propertyNames = record.getPropertyNames();
+
+        for (int i = 0; i < propertyNames.length; i++)
+        {
+            if (property.equals(propertyNames[i]))
+                index.add(out, unit, record.getPropertyValues()[i]);
+        }
+    }
+
+    /**
+     * Returns the unit of a record of a <tt>SegmentHistoryStore</tt>, the
+     * start of the day of the timestamp it is indexed under.
+     *
+     * @param timestamp the timestamp the record is indexed under
+     * @return the unit of the record
+     */
+    static long getSegmentUnit(long timestamp)
+    {
+        return timestamp - (timestamp % SEGMENT_UNIT_LENGTH);
+    }
+
+    /**
+     * Returns a stream adding to the operations waiting to be appended to
+     * an index file.
+     *
+     * @param name the name of the index
+     * @return the stream to write to
+     */
+    private DataOutputStream getPendingOps(String name)
+    {
+        ByteArrayOutputStream ops = pendingOps.get(name);
+
+        if (ops == null)
+        {
+            ops = new ByteArrayOutputStream();
+            pendingOps.put(name, ops);
+        }
+        return new DataOutputStream(ops);
+    }
+
+    /**
+     * Stops maintaining an index after a failure. Its file is deleted so
+     * that the index is built again the next time it is needed.
+     *
+     * @param name the name of the index
+     * @param cause the failure
+     */
+    private void dropIndex(String name, IOException cause)
+    {
+        logger.error("Dropping property index " + name, cause);
+
+        indexNames.remove(name);
+        indexes.remove(name);
+        pendingOps.remove(name);
+        getIndexFile(name).delete();
+    }
+
+    /**
+     * Returns the file of an index.
+     *
+     * @param name the name of the index
+     * @return the file of the index
+     */
+    private File getIndexFile(String name)
+    {
+        return new File(directory, name + INDEX_FILETYPE);
+    }
+
+    /**
+     * Returns whether an index is a maximum index.
+     *
+     * @param name the name of the index
+     * @return <tt>true</tt> for a maximum index, <tt>false</tt> for a value
+     * index
+     */
+    private static boolean isMaximumIndex(String name)
+    {
+        return name.startsWith(MAXIMUM_FILE_PREFIX);
+    }
+
+    /**
+     * Returns the name of the XML file of a unit.
+     *
+     * @param unit the unit
+     * @return the name of the file
+     */
+    private static String getFileName(long unit)
+    {
+        return unit + "." + HistoryImpl.SUPPORTED_FILETYPE;
+    }
+
+    /**
+     * Returns the name of a property as stored in the records, without the
+     * CDATA suffix used in the record structures.
+     *
+     * @param propertyName the property name
+     * @return the stored property name
+     */
+    private static String getPropertyName(String propertyName)
+    {
+        return propertyName.endsWith(HistoryWriterImpl.CDATA_SUFFIX)
+            ? propertyName.substring(0,
+                propertyName.length() - HistoryWriterImpl.CDATA_SUFFIX.length())
+            : propertyName;
+    }
+
+    /**
+     * Parses a timestamp as stored by the writers.
+     *
+     * @param value the stored value
+     * @return the time in milliseconds or <tt>null</tt> if the value is not
+     * a timestamp
+     */
+    private static Long parseTimestamp(String value)
+    {
+        try
+        {
+            return new SimpleDateFormat(DATE_FORMAT).parse(value).getTime();
+        }
+        catch (ParseException e)
+        {
+            try
+            {
+                return Long.parseLong(value);
+            }
+            catch (NumberFormatException nfe)
+            {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * A loaded index.
+     */
+    private static class Index
+    {
+        /**
+         * Whether this is a maximum index.
+         */
+        private final boolean maximum;
+
+        /**
+         * The units in which a hash appears, for value indexes.
+         */
+        final Map<Integer, SortedSet<Long>> unitsByHash
+            = new HashMap<Integer, SortedSet<Long>>();
+
+        /**
+         * The hashes appearing in a unit, for value indexes.
+         */
+        private final Map<Long, Set<Integer>> hashesByUnit
+            = new HashMap<Long, Set<Integer>>();
+
+        /**
+         * The greatest timestamp of every unit, for maximum indexes.
+         */
+        final Map<Long, Long> maximumByUnit = new HashMap<Long, Long>();
+
+        /**
+         * Creates an empty index.
+         *
+         * @param maximum whether this is a maximum index
+         */
+        Index(boolean maximum)
+        {
+            this.maximum = maximum;
+        }
+
+        /**
+         * Adds a value to this index and to its file.
+         *
+         * @param out the index file
+         * @param unit the unit of the value
+         * @param value the value
+         * @throws IOException if writing the file fails
+         */
+        void add(DataOutputStream out, long unit, String value)
+            throws IOException
+        {
+            if (maximum)
+            {
+                Long time = parseTimestamp(value);
+
+                if (time != null && raiseMaximum(unit, time))
+                {
+                    out.writeByte(OP_MAXIMUM);
+                    out.writeLong(unit);
+                    out.writeLong(time);
+                }
+            }
+            else if (addHash(unit, value.hashCode()))
+            {
+                out.writeByte(OP_VALUE);
+                out.writeLong(unit);
+                out.writeInt(value.hashCode());
+            }
+        }
+
+        /**
+         * Adds a hash to this value index.
+         *
+         * @param unit the unit of the hashed value
+         * @param hash the hash
+         * @return whether the hash was not known in the unit
+         */
+        boolean addHash(long unit, int hash)
+        {
+            Set<Integer> hashes = hashesByUnit.get(unit);
+            if (hashes == null)
+            {
+                hashes = new HashSet<Integer>();
+                hashesByUnit.put(unit, hashes);
+            }
+            if (!hashes.add(hash))
+                return false;
+
+            SortedSet<Long> units = unitsByHash.get(hash);
+            if (units == null)
+            {
+                units = new TreeSet<Long>();
+                unitsByHash.put(hash, units);
+            }
+            units.add(unit);
+            return true;
+        }
+
+        /**
+         * Raises the maximum of a unit in this maximum index.
+         *
+         * @param unit the unit
+         * @param time the timestamp found in the unit
+         * @return whether the maximum of the unit changed
+         */
+        boolean raiseMaximum(long unit, long time)
+        {
+            Long current = maximumByUnit.get(unit);
+
+            if (current != null && current >= time)
+                return false;
+
+            maximumByUnit.put(unit, time);
+            return true;
+        }
+
+        /**
+         * Removes a unit from this index.
+         *
+         * @param unit the unit
+         */
+        void removeUnit(long unit)
+        {
+            maximumByUnit.remove(unit);
+
+            Set<Integer> hashes = hashesByUnit.remove(unit);
+            if (hashes == null)
+                return;
+
+            for (Integer hash : hashes)
+            {
+                SortedSet<Long> units = unitsByHash.get(hash);
+
+                units.remove(unit);
+                if (units.isEmpty())
+                    unitsByHash.remove(hash);
+            }
+        }
+    }
+}
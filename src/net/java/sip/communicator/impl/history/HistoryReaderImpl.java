@@ -20,6 +20,8 @@ package net.java.sip.communicator.impl.history;
 import static
     net.java.sip.communicator.service.history.HistoryService.DATE_FORMAT;
 
+import java.io.*;
+import java.security.*;
 import java.text.*;
 import java.util.*;
 import java.util.regex.*;
@@ -27,6 +29,7 @@ import java.util.regex.*;
 import net.java.sip.communicator.service.history.*;
 import net.java.sip.communicator.service.history.event.*;
 import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
 
 import org.apache.commons.lang3.*;
 import org.w3c.dom.*;
@@ -39,6 +42,12 @@ import org.w3c.dom.*;
 public class HistoryReaderImpl
     implements HistoryReader
 {
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(HistoryReaderImpl.class);
+
     private HistoryImpl historyImpl;
     private Vector<HistorySearchProgressListener> progressListeners
         = new Vector<HistorySearchProgressListener>();
@@ -207,64 +216,28 @@ public class HistoryReaderImpl
         int leftCount = count;
         int currentFile = filelist.size() - 1;
 
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
         while(leftCount > 0 && currentFile >= 0)
         {
-            Document doc = this.historyImpl.
-                getDocumentForFile(filelist.get(currentFile));
-
-            if(doc == null)
-            {
-                currentFile--;
-                continue;
-            }
-
-            // will get nodes and construct a List of nodes
-            // so we can easily get sublist of it
-            List<Node> nodes = new ArrayList<Node>();
-            NodeList nodesList = doc.getElementsByTagName("record");
-            for (int i = 0; i < nodesList.getLength(); i++)
-            {
-                nodes.add(nodesList.item(i));
-            }
+            // the last records are taken first and then filtered
+            List<HistoryRecord> records = readRecords(
+                filelist.get(currentFile), null, null, null, null, false,
+                null, false);
 
-            List<Node> lNodes = null;
-
-            if (nodes.size() > leftCount)
+            if (records.size() > leftCount)
             {
-                lNodes = nodes.subList(nodes.size() - leftCount , nodes.size());
+                records = records.subList(
+                    records.size() - leftCount, records.size());
                 leftCount = 0;
             }
             else
             {
-                lNodes = nodes;
-                leftCount -= nodes.size();
+                leftCount -= records.size();
             }
 
-            Iterator<Node> i = lNodes.iterator();
-            while (i.hasNext())
+            for (HistoryRecord record : records)
             {
-                Node node = i.next();
-
-                NodeList propertyNodes = node.getChildNodes();
-
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                    .getNodeValue();
-                try
-                {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
-                {
-                    timestamp = new Date(Long.parseLong(ts));
-                }
-
-                HistoryRecord record =
-                    filterByKeyword(propertyNodes, timestamp,
-                        keywords, field, caseSensitive);
-
-                if(record != null)
+                if(SegmentHistoryReaderImpl.matches(
+                        record, keywords, field, caseSensitive))
                 {
                     result.add(record);
                 }
@@ -358,82 +331,17 @@ public class HistoryReaderImpl
         int leftCount = count;
         int currentFile = 0;
 
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
         while(leftCount > 0 && currentFile < filelist.size())
         {
-            Document doc = this.historyImpl.
-                getDocumentForFile(filelist.get(currentFile));
+            List<HistoryRecord> records = readRecords(
+                filelist.get(currentFile), date, null, null, null, false,
+                null, true);
 
-            if(doc == null)
-            {
-                currentFile++;
-                continue;
-            }
+            if (records.size() > leftCount)
+                records = records.subList(0, leftCount);
 
-            NodeList nodes = doc.getElementsByTagName("record");
-
-            Node node;
-            for (int i = 0; i < nodes.getLength() && leftCount > 0; i++)
-            {
-                node = nodes.item(i);
-
-                NodeList propertyNodes = node.getChildNodes();
-
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                    .getNodeValue();
-                try
-                {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
-                {
-                    timestamp = new Date(Long.parseLong(ts));
-                }
-
-                if(!isInPeriod(timestamp, date, null))
-                    continue;
-
-                ArrayList<String> nameVals = new ArrayList<String>();
-
-                boolean isRecordOK = true;
-                int len = propertyNodes.getLength();
-                for (int j = 0; j < len; j++)
-                {
-                    Node propertyNode = propertyNodes.item(j);
-                    if (propertyNode.getNodeType() == Node.ELEMENT_NODE)
-                    {
-                        // Get nested TEXT node's value
-                        Node nodeValue = propertyNode.getFirstChild();
-
-                        if(nodeValue != null)
-                        {
-                            nameVals.add(propertyNode.getNodeName());
-                            nameVals.add(nodeValue.getNodeValue());
-                        }
-                        else
-                            isRecordOK = false;
-                    }
-                }
-
-                // if we found a broken record - just skip it
-                if(!isRecordOK)
-                    continue;
-
-                String[] propertyNames = new String[nameVals.size() / 2];
-                String[] propertyValues = new String[propertyNames.length];
-                for (int j = 0; j < propertyNames.length; j++)
-                {
-                    propertyNames[j] = nameVals.get(j * 2);
-                    propertyValues[j] = nameVals.get(j * 2 + 1);
-                }
-
-                HistoryRecord record = new HistoryRecord(propertyNames,
-                    propertyValues, timestamp);
-
-                result.add(record);
-                leftCount--;
-            }
+            result.addAll(records);
+            leftCount -= records.size();
 
             currentFile++;
         }
@@ -463,81 +371,20 @@ public class HistoryReaderImpl
 
         int currentFile = filelist.size() - 1;
 
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
         while(leftCount > 0 && currentFile >= 0)
         {
-            Document doc = this.historyImpl.
-                getDocumentForFile(filelist.get(currentFile));
+            List<HistoryRecord> records = readRecords(
+                filelist.get(currentFile), null, date, null, null, false,
+                null, true);
 
-            if(doc == null)
+            if (records.size() > leftCount)
             {
-                currentFile--;
-                continue;
+                records = records.subList(
+                    records.size() - leftCount, records.size());
             }
 
-            NodeList nodes = doc.getElementsByTagName("record");
-
-            Node node;
-            for (int i = nodes.getLength() - 1; i >= 0 && leftCount > 0; i--)
-            {
-                node = nodes.item(i);
-                NodeList propertyNodes = node.getChildNodes();
-
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                    .getNodeValue();
-                try
-                {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
-                {
-                    timestamp = new Date(Long.parseLong(ts));
-                }
-
-                if(!isInPeriod(timestamp, null, date))
-                    continue;
-
-                ArrayList<String> nameVals = new ArrayList<String>();
-
-                boolean isRecordOK = true;
-                int len = propertyNodes.getLength();
-                for (int j = 0; j < len; j++)
-                {
-                    Node propertyNode = propertyNodes.item(j);
-                    if (propertyNode.getNodeType() == Node.ELEMENT_NODE)
-                    {
-                        // Get nested TEXT node's value
-                        Node nodeValue = propertyNode.getFirstChild();
-
-                        if(nodeValue != null)
-                        {
-                            nameVals.add(propertyNode.getNodeName());
-                            nameVals.add(nodeValue.getNodeValue());
-                        }
-                        else
-                            isRecordOK = false;
-                    }
-                }
-
-                // if we found a broken record - just skip it
-                if(!isRecordOK)
-                    continue;
-
-                String[] propertyNames = new String[nameVals.size() / 2];
-                String[] propertyValues = new String[propertyNames.length];
-                for (int j = 0; j < propertyNames.length; j++)
-                {
-                    propertyNames[j] = nameVals.get(j * 2);
-                    propertyValues[j] = nameVals.get(j * 2 + 1);
-                }
-
-                HistoryRecord record = new HistoryRecord(propertyNames,
-                    propertyValues, timestamp);
-
-                result.add(record);
-                leftCount--;
-            }
+            result.addAll(records);
+            leftCount -= records.size();
 
             currentFile--;
         }
@@ -545,96 +392,278 @@ public class HistoryReaderImpl
         return new OrderedQueryResultSet<HistoryRecord>(result);
     }
 
+    /**
+     * Searches the files of the history for the records in the given period
+     * containing all <tt>keywords</tt>. The files are only read when the
+     * iteration of the returned records reaches them, one at a time, and the
+     * progress of the search is reported as they are read.
+     *
+     * @param startDate start of the interval in which we search
+     * @param endDate end of the interval in which we search
+     * @param keywords array of keywords we search for
+     * @param field the field where to look for the keyword
+     * @param caseSensitive is keywords search case sensitive
+     * @return the found records
+     */
     private QueryResultSet<HistoryRecord> find(
-        Date startDate, Date endDate,
-        String[] keywords, String field, boolean caseSensitive)
+        final Date startDate, final Date endDate,
+        final String[] keywords, final String field,
+        final boolean caseSensitive)
     {
-        TreeSet<HistoryRecord> result
-            = new TreeSet<HistoryRecord>(new HistoryRecordComparator());
-
         Vector<String> filelist
             = filterFilesByDate(this.historyImpl.getFileList(),
                                 startDate, endDate);
 
-        double currentProgress
-            = HistorySearchProgressListener.PROGRESS_MINIMUM_VALUE;
-        double fileProgressStep
-            = HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE;
-
-        if(filelist.size() != 0)
-            fileProgressStep
-                = HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE
-                    / filelist.size();
-
         // start progress - minimum value
         fireProgressStateChanged(startDate, endDate,
             keywords, HistorySearchProgressListener.PROGRESS_MINIMUM_VALUE);
 
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
-        Iterator<String> fileIterator = filelist.iterator();
-        while (fileIterator.hasNext())
+        // the records which may contain the keywords, null if every record
+        // must be checked
+        final SortedMap<Long, SortedSet<Integer>> candidates
+            = historyImpl.getKeywordIndex().findCandidates(field, keywords);
+
+        // no record of the other files contains the keywords
+        if(candidates != null)
         {
-            String filename = fileIterator.next();
+            Iterator<String> fileIterator = filelist.iterator();
+            while (fileIterator.hasNext())
+            {
+                if(!candidates.containsKey(
+                        HistoryImpl.getFileUnit(fileIterator.next())))
+                    fileIterator.remove();
+            }
+        }
 
-            Document doc = this.historyImpl.getDocumentForFile(filename);
+        final List<String> files = filelist;
+        final double fileProgressStep = files.isEmpty()
+            ? HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE
+            : (double) HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE
+                / files.size();
 
-            if(doc == null)
-                continue;
+        if(files.isEmpty())
+        {
+            fireProgressStateChanged(startDate, endDate, keywords,
+                                     HistorySearchProgressListener.
+                                     PROGRESS_MAXIMUM_VALUE);
+        }
 
-            NodeList nodes = doc.getElementsByTagName("record");
+        return new LazyQueryResultSet<HistoryRecord>(files.size())
+        {
+            /**
+             * The number of files read at least once.
+             */
+            private int readFiles = 0;
 
-            double nodesProgressStep = fileProgressStep;
+            @Override
+            protected List<HistoryRecord> loadPage(int index)
+            {
+                String filename = files.get(index);
+
+                List<HistoryRecord> records = readRecords(
+                    filename, startDate, endDate, keywords, field,
+                    caseSensitive,
+                    (candidates == null)
+                        ? null
+                        : candidates.get(HistoryImpl.getFileUnit(filename)),
+                    false);
+
+                // pages read again when iterating backwards are not
+                // progress
+                if(index == readFiles)
+                {
+                    readFiles++;
+                    fireProgressStateChanged(startDate, endDate, keywords,
+                        (readFiles == files.size())
+                            ? HistorySearchProgressListener.
+                                PROGRESS_MAXIMUM_VALUE
+                            : (int) (readFiles * fileProgressStep));
+                }
 
-            if(nodes.getLength() != 0)
-                nodesProgressStep = fileProgressStep / nodes.getLength();
+                return records;
+            }
+        };
+    }
 
-            Node node;
-            for (int i = 0; i < nodes.getLength(); i++)
+    /**
+     * Reads the records of a file in the given period, ordered by timestamp.
+     * A document already loaded is used as it is, otherwise the file is
+     * parsed as a stream without building its document.
+     *
+     * @param filename the name of the file
+     * @param startDate start of the period or <tt>null</tt>
+     * @param endDate end of the period or <tt>null</tt>
+     * @param keywords the keywords the records must contain or
+     * <tt>null</tt>
+     * @param field the field where to look for the keywords
+     * @param caseSensitive is keywords search case sensitive
+     * @param ordinals the positions in the file of the records to read or
+     * <tt>null</tt> to read all of them
+     * @param raw <tt>true</tt> to return the values as stored and to skip
+     * the records having properties without a value, <tt>false</tt> to
+     * unescape the values and only skip the properties without a value
+     * @return the records read, an empty list if the file cannot be read or
+     * is no longer part of the history
+     */
+    private List<HistoryRecord> readRecords(String filename,
+                                            Date startDate,
+                                            Date endDate,
+                                            String[] keywords,
+                                            String field,
+                                            boolean caseSensitive,
+                                            SortedSet<Integer> ordinals,
+                                            boolean raw)
+    {
+        TreeSet<HistoryRecord> result
+            = new TreeSet<HistoryRecord>(new HistoryRecordComparator());
+        Document doc;
+        File file;
+
+        try
+        {
+            doc = this.historyImpl.getLoadedDocument(filename);
+            file = this.historyImpl.getFile(filename);
+        }
+        catch (InvalidParameterException e)
+        {
+            // the file was removed since the search started
+            return new ArrayList<HistoryRecord>();
+        }
+
+        if(doc == null)
+        {
+            XmlHistoryStreamReader in = null;
+            try
             {
-                node = nodes.item(i);
+                in = new XmlHistoryStreamReader(file);
 
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                        .getNodeValue();
-                try
-                {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
+                while (in.nextRecord())
                 {
-                    timestamp = new Date(Long.parseLong(ts));
-                }
+                    if(ordinals != null && !ordinals.contains(in.getOrdinal()))
+                        continue;
 
-                if(isInPeriod(timestamp, startDate, endDate))
-                {
-                    NodeList propertyNodes = node.getChildNodes();
+                    Date timestamp = in.getTimestamp();
+                    if(!isInPeriod(timestamp, startDate, endDate))
+                        continue;
 
-                    HistoryRecord record =
-                        filterByKeyword(propertyNodes, timestamp,
-                                        keywords, field, caseSensitive);
+                    HistoryRecord record;
+                    if(raw)
+                    {
+                        record = in.isBroken()
+                            ? null
+                            : new HistoryRecord(in.getPropertyNames(),
+                                in.getPropertyValues(), timestamp);
+                    }
+                    else
+                    {
+                        record = filterByKeyword(in.getPropertyNames(),
+                            in.getPropertyValues(), timestamp,
+                            keywords, field, caseSensitive);
+                    }
 
                     if(record != null)
-                    {
                         result.add(record);
-                    }
                 }
 
-                currentProgress += nodesProgressStep;
-                fireProgressStateChanged(
-                    startDate, endDate, keywords, (int)currentProgress);
+                return new ArrayList<HistoryRecord>(result);
+            }
+            catch (Exception e)
+            {
+                // the document loading below will try to fix the file
+                logger.warn("Cannot stream history file " + file, e);
+                result.clear();
             }
+            finally
+            {
+                if(in != null)
+                    in.close();
+            }
+
+            doc = this.historyImpl.getDocumentForFile(filename);
+
+            if(doc == null)
+                return new ArrayList<HistoryRecord>();
         }
 
-        // if maximum value is not reached fire an event
-        if((int)currentProgress
-                < HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE)
+        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
+        NodeList nodes = doc.getElementsByTagName("record");
+
+        Node node;
+        for (int i = 0; i < nodes.getLength(); i++)
         {
-            fireProgressStateChanged(startDate, endDate, keywords,
-                                     HistorySearchProgressListener.
-                                     PROGRESS_MAXIMUM_VALUE);
+            if(ordinals != null && !ordinals.contains(i))
+                continue;
+
+            node = nodes.item(i);
+
+            Date timestamp;
+            String ts = node.getAttributes().getNamedItem("timestamp")
+                    .getNodeValue();
+            try
+            {
+                timestamp = sdf.parse(ts);
+            }
+            catch (ParseException e)
+            {
+                timestamp = new Date(Long.parseLong(ts));
+            }
+
+            if(!isInPeriod(timestamp, startDate, endDate))
+                continue;
+
+            NodeList propertyNodes = node.getChildNodes();
+            HistoryRecord record = raw
+                ? getRawRecord(propertyNodes, timestamp)
+                : filterByKeyword(propertyNodes, timestamp,
+                                  keywords, field, caseSensitive);
+
+            if(record != null)
+                result.add(record);
         }
 
-        return new OrderedQueryResultSet<HistoryRecord>(result);
+        return new ArrayList<HistoryRecord>(result);
+    }
+
+    /**
+     * Returns the <tt>HistoryRecord</tt> of the given nodes with the values
+     * as stored, or <tt>null</tt> if a property has no value.
+     *
+     * @param propertyNodes the property nodes of the record
+     * @param timestamp the timestamp of the record
+     * @return the record or <tt>null</tt> if it is broken
+     */
+    private static HistoryRecord getRawRecord(NodeList propertyNodes,
+                                              Date timestamp)
+    {
+        ArrayList<String> nameVals = new ArrayList<String>();
+
+        int len = propertyNodes.getLength();
+        for (int j = 0; j < len; j++)
+        {
+            Node propertyNode = propertyNodes.item(j);
+            if (propertyNode.getNodeType() == Node.ELEMENT_NODE)
+            {
+                // Get nested TEXT node's value
+                Node nodeValue = propertyNode.getFirstChild();
+
+                // if we found a broken record - just skip it
+                if(nodeValue == null)
+                    return null;
+
+                nameVals.add(propertyNode.getNodeName());
+                nameVals.add(nodeValue.getNodeValue());
+            }
+        }
+
+        String[] propertyNames = new String[nameVals.size() / 2];
+        String[] propertyValues = new String[propertyNames.length];
+        for (int j = 0; j < propertyNames.length; j++)
+        {
+            propertyNames[j] = nameVals.get(j * 2);
+            propertyValues[j] = nameVals.get(j * 2 + 1);
+        }
+
+        return new HistoryRecord(propertyNames, propertyValues, timestamp);
     }
 
     /**
@@ -684,7 +713,6 @@ public class HistoryReaderImpl
     {
         ArrayList<String> nameVals = new ArrayList<String>();
         int len = propertyNodes.getLength();
-        boolean targetNodeFound = false;
         for (int j = 0; j < len; j++)
         {
             Node propertyNode = propertyNodes.item(j);
@@ -697,25 +725,58 @@ public class HistoryReaderImpl
                 if(nestedNode == null)
                     continue;
 
+                nameVals.add(nodeName);
                 // Get nested TEXT node's value
-                String nodeValue = nestedNode.getNodeValue();
+                nameVals.add(nestedNode.getNodeValue());
+            }
+        }
 
-                // unescape xml chars, we have escaped when writing values
-                nodeValue = StringEscapeUtils.unescapeXml(nodeValue);
+        String[] propertyNames = new String[nameVals.size() / 2];
+        String[] propertyValues = new String[propertyNames.length];
+        for (int j = 0; j < propertyNames.length; j++)
+        {
+            propertyNames[j] = nameVals.get(j * 2);
+            propertyValues[j] = nameVals.get(j * 2 + 1);
+        }
 
-                if(field != null && field.equals(nodeName))
-                {
-                    targetNodeFound = true;
+        return filterByKeyword(propertyNames, propertyValues, timestamp,
+            keywords, field, caseSensitive);
+    }
 
-                    if(!matchKeyword(nodeValue, keywords, caseSensitive))
-                        return null; // doesn't match the given keyword(s)
-                                    // so return nothing
-                }
+    /**
+     * If there is keyword restriction and doesn't match the conditions
+     * return null. Otherwise return the HistoryRecord with the given
+     * properties, their values being unescaped.
+     *
+     * @param propertyNames the names of the properties as stored
+     * @param propertyValues the values of the properties as stored
+     * @param timestamp Date
+     * @param keywords String[]
+     * @param field String
+     * @param caseSensitive boolean
+     * @return HistoryRecord
+     */
+    static HistoryRecord filterByKeyword(   String[] propertyNames,
+                                            String[] propertyValues,
+                                            Date timestamp,
+                                            String[] keywords,
+                                            String field,
+                                            boolean caseSensitive)
+    {
+        String[] values = new String[propertyValues.length];
+        boolean targetNodeFound = false;
+        for (int j = 0; j < propertyNames.length; j++)
+        {
+            // unescape xml chars, we have escaped when writing values
+            values[j] = StringEscapeUtils.unescapeXml(propertyValues[j]);
 
-                nameVals.add(nodeName);
-                // Get nested TEXT node's value
-                nameVals.add(nodeValue);
+            if(field != null && field.equals(propertyNames[j]))
+            {
+                targetNodeFound = true;
 
+                if(!matchKeyword(values[j], keywords, caseSensitive))
+                    return null; // doesn't match the given keyword(s)
+                                // so return nothing
             }
         }
 
@@ -726,15 +787,7 @@ public class HistoryReaderImpl
             return null;
         }
 
-        String[] propertyNames = new String[nameVals.size() / 2];
-        String[] propertyValues = new String[propertyNames.length];
-        for (int j = 0; j < propertyNames.length; j++)
-        {
-            propertyNames[j] = nameVals.get(j * 2);
-            propertyValues[j] = nameVals.get(j * 2 + 1);
-        }
-
-        return new HistoryRecord(propertyNames, propertyValues, timestamp);
+        return new HistoryRecord(propertyNames, values, timestamp);
     }
 
     /**
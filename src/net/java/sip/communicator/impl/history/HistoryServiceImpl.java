@@ -66,6 +66,54 @@ public class HistoryServiceImpl
 
     private final boolean cacheEnabled;
 
+    /**
+     * The cache of parsed documents shared by all histories.
+     */
+    private final HistoryDocumentCache documentCache;
+
+    /**
+     * Writes the files changed by added records in the background.
+     */
+    private final HistoryWriteQueue writeQueue = new HistoryWriteQueue();
+
+    /**
+     * The default value of <tt>CACHE_MAX_SIZE_PROPERTY</tt>.
+     */
+    private static final long DEFAULT_CACHE_MAX_SIZE = 32 * 1024 * 1024;
+
+    /**
+     * The document builders used by the threads parsing documents, a
+     * <tt>DocumentBuilder</tt> cannot be used by several threads at once.
+     */
+    private final ThreadLocal<DocumentBuilder> parsers
+        = new ThreadLocal<DocumentBuilder>()
+        {
+            @Override
+            protected DocumentBuilder initialValue()
+            {
+                try
+                {
+                    return DocumentBuilderFactory.newInstance()
+                        .newDocumentBuilder();
+                }
+                catch (ParserConfigurationException e)
+                {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+
+    /**
+     * Whether histories should be kept in a <tt>SegmentHistoryStore</tt>.
+     */
+    private final boolean segmentStorageEnabled;
+
+    /**
+     * The value of <tt>STORAGE_ENGINE_PROPERTY</tt> selecting the segment
+     * storage.
+     */
+    static final String SEGMENT_STORAGE_ENGINE = "segment";
+
     /**
      *  Characters and their replacement in created folder names
      */
@@ -94,9 +142,13 @@ public class HistoryServiceImpl
     {
         this.builder =
             DocumentBuilderFactory.newInstance().newDocumentBuilder();
-        this.cacheEnabled =
-            getConfigurationService(bundleContext).getBoolean(
-                CACHE_ENABLED_PROPERTY, false);
+        ConfigurationService cfg = getConfigurationService(bundleContext);
+
+        this.cacheEnabled = cfg.getBoolean(CACHE_ENABLED_PROPERTY, false);
+        this.documentCache = new HistoryDocumentCache(
+            cfg.getLong(CACHE_MAX_SIZE_PROPERTY, DEFAULT_CACHE_MAX_SIZE));
+        this.segmentStorageEnabled = SEGMENT_STORAGE_ENGINE.equalsIgnoreCase(
+            cfg.getString(STORAGE_ENGINE_PROPERTY));
         this.fileAccessService = getFileAccessService(bundleContext);
     }
 
@@ -215,34 +267,39 @@ public class HistoryServiceImpl
     }
 
     /**
-     * Parse documents. Synchronized to avoid exception
-     * when concurrently parsing with same DocumentBuilder
+     * Parse documents. Every thread uses its own DocumentBuilder so that
+     * different files can be parsed concurrently.
      * @param file File the file to parse
      * @return Document the result document
      * @throws SAXException exception
      * @throws IOException exception
      */
-    protected synchronized Document parse(File file)
+    protected Document parse(File file)
         throws SAXException, IOException
     {
         FileInputStream fis = new FileInputStream(file);
-        Document doc = builder.parse(fis);
-        fis.close();
-        return doc;
+        try
+        {
+            return parsers.get().parse(fis);
+        }
+        finally
+        {
+            fis.close();
+        }
     }
 
     /**
-     * Parse documents. Synchronized to avoid exception
-     * when concurrently parsing with same DocumentBuilder
+     * Parse documents. Every thread uses its own DocumentBuilder so that
+     * different documents can be parsed concurrently.
      * @param in ByteArrayInputStream the stream to parse
      * @return Document the result document
      * @throws SAXException exception
      * @throws IOException exception
      */
-    protected synchronized Document parse(ByteArrayInputStream in)
+    protected Document parse(ByteArrayInputStream in)
         throws SAXException, IOException
     {
-        return builder.parse(in);
+        return parsers.get().parse(in);
     }
 
     private void findDatFiles(List<File> vect, File directory)
@@ -318,6 +375,44 @@ public class HistoryServiceImpl
         return cacheEnabled;
     }
 
+    /**
+     * Returns the queue writing the files changed by added records.
+     * @return the <tt>HistoryWriteQueue</tt> of this service
+     */
+    public HistoryWriteQueue getWriteQueue()
+    {
+        return writeQueue;
+    }
+
+    /**
+     * Writes the changes waiting in the write queue and stops it. Called
+     * when the bundle is stopped, which is also how the application shuts
+     * down, so no added record is lost.
+     */
+    void stop()
+    {
+        writeQueue.stop();
+    }
+
+    /**
+     * Returns the cache of parsed documents shared by all histories.
+     * @return the <tt>HistoryDocumentCache</tt> of this service
+     */
+    public HistoryDocumentCache getDocumentCache()
+    {
+        return documentCache;
+    }
+
+    /**
+     * Returns whether histories should be kept in a
+     * <tt>SegmentHistoryStore</tt> instead of XML files.
+     * @return boolean
+     */
+    protected boolean isSegmentStorageEnabled()
+    {
+        return segmentStorageEnabled;
+    }
+
     /**
      * Permamently removes local stored History
      *
@@ -327,6 +422,9 @@ public class HistoryServiceImpl
     public void purgeLocallyStoredHistory(HistoryID id)
         throws IOException
     {
+        // waiting writes would create the files again
+        writeQueue.flush();
+
         // get the history directory corresponding the given id
         File dir = this.createHistoryDirectories(id);
         if (logger.isTraceEnabled())
@@ -463,6 +561,9 @@ public class HistoryServiceImpl
         if(!isHistoryCreated(oldId))// || !isHistoryExisting(newId))
             return;
 
+        // waiting writes would create the files again in the old folder
+        writeQueue.flush();
+
         File oldDir = this.createHistoryDirectories(oldId);
         File newDir = getDirForHistory(newId);
 
@@ -606,6 +707,10 @@ public class HistoryServiceImpl
         {
             if(f.isDirectory())
             {
+                // the segment store of a history being migrated
+                if(f.getName().equals(XmlHistoryMigrator.MIGRATION_DIRECTORY))
+                    continue;
+
                 List<String> newRawID = new ArrayList<String>(rawID);
                 newRawID.add(f.getName());
 
@@ -613,7 +718,14 @@ public class HistoryServiceImpl
             }
             else
             {
-                if(f.getName().equals(DATA_FILE))
+                // only the files holding records, named after their
+                // creation time, stand for a history: XML files or the
+                // segments of a migrated history, not the structure, the
+                // indexes or the migrated XML files
+                String name = f.getName();
+                if(!name.endsWith("." + HistoryImpl.SUPPORTED_FILETYPE)
+                    && !name.endsWith(
+                            "." + SegmentHistoryStore.SEGMENT_FILETYPE))
                     continue;
 
                 res.put(f, HistoryID.createFromRawStrings(
@@ -0,0 +1,552 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.util.*;
+
+/**
+ * Writes the history files changed by added records in the background. The
+ * records are added to the documents right away, so they can be read at
+ * once, and the files are written by a single thread in batches: every file
+ * changed since the last batch is written once, however many records were
+ * added to it. A batch is written when <tt>MAX_BATCH_SIZE</tt> records are
+ * waiting or <tt>FLUSH_DELAY</tt> milliseconds after the first of them was
+ * added. The changes of the indexes of a history are appended to their files
+ * before the history files, so that an index is never behind its history.
+ * The files of a batch are synced to the disk together once they are all
+ * written, so that the disk is flushed about once per batch rather than once
+ * per file.
+ */
+public class HistoryWriteQueue
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(HistoryWriteQueue.class);
+
+    /**
+     * The number of waiting records which triggers a write at once.
+     */
+    static final int MAX_BATCH_SIZE = 100;
+
+    /**
+     * The maximum time in milliseconds a record waits to be written.
+     */
+    static final long FLUSH_DELAY = 1000;
+
+    /**
+     * The files waiting to be written, by history.
+     */
+    private Map<HistoryImpl, PendingWrites> pending
+        = new LinkedHashMap<HistoryImpl, PendingWrites>();
+
+    /**
+     * The number of records waiting to be written.
+     */
+    private int queueDepth = 0;
+
+    /**
+     * The time the first of the waiting records was added.
+     */
+    private long firstPendingTime = -1;
+
+    /**
+     * The thread writing the files, <tt>null</tt> until records are added.
+     */
+    private Thread writerThread = null;
+
+    /**
+     * The number of batches taken from the queue and still being written.
+     */
+    private int writingBatches = 0;
+
+    /**
+     * Whether the queue is stopped, the files are then written by the
+     * threads adding records.
+     */
+    private boolean stopped = false;
+
+    /**
+     * The number of batches written.
+     */
+    private long flushCount = 0;
+
+    /**
+     * The total time in milliseconds spent writing batches.
+     */
+    private long totalFlushTime = 0;
+
+    /**
+     * The longest time in milliseconds spent writing a batch.
+     */
+    private long maxFlushTime = 0;
+
+    /**
+     * The time in milliseconds spent writing the last batch.
+     */
+    private long lastFlushTime = 0;
+
+    /**
+     * Schedules the write of a file a record was added to.
+     *
+     * @param history the history of the file
+     * @param filename the name of the file
+     */
+    void schedule(HistoryImpl history, String filename)
+    {
+        synchronized (this)
+        {
+            if (!stopped)
+            {
+                PendingWrites writes = getPendingWrites(history);
+
+                writes.files.add(filename);
+                writes.records++;
+                queueDepth++;
+                if (!pendingAdded() && queueDepth >= MAX_BATCH_SIZE)
+                    notifyAll();
+                return;
+            }
+        }
+
+        // the service is stopping, nothing will write the file later
+        File file = history.writeUnwrittenFile(filename);
+        if (file != null)
+            sync(Collections.singletonList(file));
+    }
+
+    /**
+     * Schedules the write of the changes of the indexes of a history.
+     *
+     * @param history the history
+     */
+    void scheduleIndexWrite(HistoryImpl history)
+    {
+        synchronized (this)
+        {
+            if (!stopped)
+            {
+                getPendingWrites(history).indexes = true;
+                pendingAdded();
+                return;
+            }
+        }
+
+        history.writeIndexes();
+    }
+
+    /**
+     * Returns the waiting writes of a history, adding them if there were
+     * none.
+     *
+     * @param history the history
+     * @return the waiting writes of the history
+     */
+    private PendingWrites getPendingWrites(HistoryImpl history)
+    {
+        PendingWrites writes = pending.get(history);
+
+        if (writes == null)
+        {
+            writes = new PendingWrites();
+            pending.put(history, writes);
+        }
+        return writes;
+    }
+
+    /**
+     * Starts the delay of the next batch if it is the first write waiting.
+     *
+     * @return whether the writing thread was notified
+     */
+    private boolean pendingAdded()
+    {
+        if (writerThread == null)
+            startWriterThread();
+
+        // the writer waits without timeout while the queue is empty
+        if (firstPendingTime == -1)
+        {
+            firstPendingTime = System.currentTimeMillis();
+            notifyAll();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Writes at once the waiting files of a history. Returns once they are
+     * written, as well as the batch the writing thread may be writing.
+     *
+     * @param history the history
+     */
+    void flush(HistoryImpl history)
+    {
+        PendingWrites writes;
+
+        synchronized (this)
+        {
+            writes = pending.remove(history);
+            if (writes != null)
+                queueDepth -= writes.records;
+            if (pending.isEmpty())
+                firstPendingTime = -1;
+        }
+
+        if (writes != null)
+        {
+            List<File> written = new ArrayList<File>();
+
+            write(history, writes, written);
+            sync(written);
+        }
+        waitForWritingBatches();
+    }
+
+    /**
+     * Writes at once all the waiting files. Returns once they are written,
+     * as well as the batch the writing thread may be writing.
+     */
+    void flush()
+    {
+        Map<HistoryImpl, PendingWrites> batch;
+
+        synchronized (this)
+        {
+            batch = takeBatch();
+        }
+        write(batch);
+        waitForWritingBatches();
+    }
+
+    /**
+     * Waits until the batch the writing thread took from the queue, if any,
+     * is written. Otherwise the files it is writing could be read before
+     * they are written, or deleted and then written again.
+     */
+    private synchronized void waitForWritingBatches()
+    {
+        if (Thread.currentThread() == writerThread)
+            return;
+
+        boolean interrupted = false;
+
+        while (writingBatches > 0)
+        {
+            try
+            {
+                wait();
+            }
+            catch (InterruptedException e)
+            {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Writes the waiting files and stops the writing thread. The files
+     * changed afterwards are written by the threads changing them.
+     */
+    void stop()
+    {
+        Thread thread;
+
+        synchronized (this)
+        {
+            stopped = true;
+            thread = writerThread;
+            notifyAll();
+        }
+
+        if (thread != null && thread != Thread.currentThread())
+        {
+            try
+            {
+                thread.join();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // whatever was added while the thread was stopping
+        flush();
+    }
+
+    /**
+     * Takes the waiting files, leaving the queue empty.
+     *
+     * @return the waiting writes by history
+     */
+    private Map<HistoryImpl, PendingWrites> takeBatch()
+    {
+        Map<HistoryImpl, PendingWrites> batch = pending;
+
+        pending = new LinkedHashMap<HistoryImpl, PendingWrites>();
+        queueDepth = 0;
+        firstPendingTime = -1;
+        return batch;
+    }
+
+    /**
+     * Writes a batch of files.
+     *
+     * @param batch the writes by history
+     */
+    private void write(Map<HistoryImpl, PendingWrites> batch)
+    {
+        if (batch.isEmpty())
+            return;
+
+        long start = System.currentTimeMillis();
+        List<File> written = new ArrayList<File>();
+
+        for (Map.Entry<HistoryImpl, PendingWrites> entry : batch.entrySet())
+            write(entry.getKey(), entry.getValue(), written);
+        sync(written);
+
+        long time = System.currentTimeMillis() - start;
+        synchronized (this)
+        {
+            flushCount++;
+            totalFlushTime += time;
+            lastFlushTime = time;
+            if (time > maxFlushTime)
+                maxFlushTime = time;
+        }
+
+        if (logger.isDebugEnabled())
+            logger.debug("Wrote " + written.size() + " history files in "
+                + time + " ms");
+    }
+
+    /**
+     * Writes the waiting changes of a history, its indexes first.
+     *
+     * @param history the history
+     * @param writes the waiting writes of the history
+     * @param written the list to add the written files to
+     */
+    private static void write(HistoryImpl history,
+                              PendingWrites writes,
+                              List<File> written)
+    {
+        if (writes.indexes)
+            history.writeIndexes();
+        for (String filename : writes.files)
+        {
+            File file = history.writeUnwrittenFile(filename);
+
+            if (file != null)
+                written.add(file);
+        }
+    }
+
+    /**
+     * Syncs written files to the disk. Failures are logged, the files are
+     * then synced by the system later on.
+     *
+     * @param files the written files
+     */
+    private static void sync(List<File> files)
+    {
+        for (File file : files)
+        {
+            try
+            {
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try
+                {
+                    raf.getFD().sync();
+                }
+                finally
+                {
+                    raf.close();
+                }
+            }
+            catch (IOException e)
+            {
+                logger.error("Cannot sync history file " + file, e);
+            }
+        }
+    }
+
+    /**
+     * Starts the thread writing the files.
+     */
+    private void startWriterThread()
+    {
+        writerThread = new Thread("HistoryWriteQueue")
+        {
+            @Override
+            public void run()
+            {
+                runWriter();
+            }
+        };
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Writes the batches until the queue is stopped.
+     */
+    private void runWriter()
+    {
+        while (true)
+        {
+            Map<HistoryImpl, PendingWrites> batch;
+
+            synchronized (this)
+            {
+                while (!stopped)
+                {
+                    if (queueDepth >= MAX_BATCH_SIZE)
+                        break;
+
+                    long wait = (firstPendingTime == -1)
+                        ? 0
+                        : firstPendingTime + FLUSH_DELAY
+                            - System.currentTimeMillis();
+
+                    if (firstPendingTime != -1 && wait <= 0)
+                        break;
+
+                    try
+                    {
+                        wait(wait);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        // check whether a batch is due
+                    }
+                }
+
+                batch = takeBatch();
+                writingBatches++;
+            }
+
+            try
+            {
+                write(batch);
+            }
+            catch (Throwable t)
+            {
+                logger.error("Failed to write history files", t);
+                if (t instanceof ThreadDeath)
+                    throw (ThreadDeath) t;
+            }
+            finally
+            {
+                synchronized (this)
+                {
+                    writingBatches--;
+                    notifyAll();
+                }
+            }
+
+            synchronized (this)
+            {
+                if (stopped)
+                {
+                    writerThread = null;
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of records waiting to be written.
+     *
+     * @return the number of records waiting to be written
+     */
+    public synchronized int getQueueDepth()
+    {
+        return queueDepth;
+    }
+
+    /**
+     * Returns the number of batches written.
+     *
+     * @return the number of batches written
+     */
+    public synchronized long getFlushCount()
+    {
+        return flushCount;
+    }
+
+    /**
+     * Returns the time in milliseconds spent writing the last batch.
+     *
+     * @return the time in milliseconds spent writing the last batch
+     */
+    public synchronized long getLastFlushLatency()
+    {
+        return lastFlushTime;
+    }
+
+    /**
+     * Returns the longest time in milliseconds spent writing a batch.
+     *
+     * @return the longest time in milliseconds spent writing a batch
+     */
+    public synchronized long getMaxFlushLatency()
+    {
+        return maxFlushTime;
+    }
+
+    /**
+     * Returns the average time in milliseconds spent writing a batch.
+     *
+     * @return the average time in milliseconds spent writing a batch
+     */
+    public synchronized long getAverageFlushLatency()
+    {
+        return (flushCount == 0) ? 0 : totalFlushTime / flushCount;
+    }
+
+    /**
+     * The writes waiting for a history.
+     */
+    private static class PendingWrites
+    {
+        /**
+         * The names of the files to write.
+         */
+        final Set<String> files = new LinkedHashSet<String>();
+
+        /**
+         * The number of records added to the files.
+         */
+        int records = 0;
+
+        /**
+         * Whether the indexes of the history have changes to write.
+         */
+        boolean indexes = false;
+    }
+}
@@ -44,12 +44,10 @@ public class HistoryWriterImpl
      */
     public static final int MAX_RECORDS_PER_FILE = 150;
 
-    private static final String CDATA_SUFFIX = "_CDATA";
+    static final String CDATA_SUFFIX = "_CDATA";
 
     private Object docCreateLock = new Object();
 
-    private Object docWriteLock = new Object();
-
     private HistoryImpl historyImpl;
 
     private String[] structPropertyNames;
@@ -142,9 +140,14 @@ public class HistoryWriterImpl
             }
         }
 
-        synchronized (this.currentDoc)
+        Document doc = this.currentDoc;
+        String file = this.currentFile;
+        boolean removedRecord = false;
+        int ordinal;
+
+        synchronized (doc)
         {
-            Node root = this.currentDoc.getFirstChild();
+            Node root = doc.getFirstChild();
             synchronized (root)
             {
                 // if we have setting for max number of records,
@@ -154,23 +157,49 @@ public class HistoryWriterImpl
                 {
                     // lets remove the first one
                     removeFirstRecord(root);
+                    removedRecord = true;
                 }
 
                 Element elem = createRecord(
-                    this.currentDoc, propertyNames, propertyValues, date);
+                    doc, propertyNames, propertyValues, date);
                 root.appendChild(elem);
                 this.currentDocElements++;
+
+                ordinal = ((Element) root).getElementsByTagName("record")
+                    .getLength() - 1;
             }
         }
 
-        // write changes
-        synchronized (this.docWriteLock)
+        // keep the keyword index up to date, removing a record changes the
+        // ordinals of all the records of the file
+        HistoryKeywordIndex index = historyImpl.getKeywordIndex();
+        HistoryPropertyIndex propertyIndex = historyImpl.getPropertyIndex();
+        if(removedRecord)
         {
-            if(historyImpl.getHistoryServiceImpl().isCacheEnabled())
-                this.historyImpl.writeFile(this.currentFile);
-            else
-                this.historyImpl.writeFile(this.currentFile, this.currentDoc);
+            if(!index.isEmpty() || !propertyIndex.isEmpty())
+            {
+                List<HistoryRecord> records;
+                synchronized (doc)
+                {
+                    records = HistoryImpl.getRecords(doc);
+                }
+                if(!index.isEmpty())
+                    index.unitChanged(HistoryImpl.getFileUnit(file), records);
+                propertyIndex.unitChanged(
+                    HistoryImpl.getFileUnit(file), records);
+            }
         }
+        else
+        {
+            index.recordAdded(HistoryImpl.getFileUnit(file), ordinal,
+                propertyNames, propertyValues);
+            propertyIndex.recordAdded(HistoryImpl.getFileUnit(file),
+                propertyNames, propertyValues);
+        }
+
+        // the file is written in the background, along with the other
+        // records added meanwhile, after the changes of the indexes
+        this.historyImpl.scheduleWrite(file, doc);
     }
 
     /**
@@ -300,10 +329,17 @@ public class HistoryWriterImpl
         throws IOException
     {
         SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
-        Iterator<String> fileIterator
-            = HistoryReaderImpl.filterFilesByDate(
-                    this.historyImpl.getFileList(), timestamp, null)
-                .iterator();
+        List<String> files = HistoryReaderImpl.filterFilesByDate(
+            this.historyImpl.getFileList(), timestamp, null);
+
+        // only the first file with a record not before timestamp is changed,
+        // the index knows which one it is without parsing the others
+        List<String> indexedFiles = historyImpl.getPropertyIndex()
+            .findFirstFileNotBefore(timestampProperty, timestamp, files);
+        if(indexedFiles != null)
+            files = indexedFiles;
+
+        Iterator<String> fileIterator = files.iterator();
         String filename = null;
         while (fileIterator.hasNext())
         {
@@ -359,11 +395,19 @@ public class HistoryWriterImpl
 
             if(changed)
             {
-                // write changes
-                synchronized (this.docWriteLock)
+                // the ordinals of the records after the inserted one changed
+                HistoryKeywordIndex index = historyImpl.getKeywordIndex();
+                if(!index.isEmpty())
                 {
-                    this.historyImpl.writeFile(filename, doc);
+                    index.unitChanged(HistoryImpl.getFileUnit(filename),
+                        HistoryImpl.getRecords(doc));
                 }
+                historyImpl.getPropertyIndex().recordAdded(
+                    HistoryImpl.getFileUnit(filename),
+                    structPropertyNames, propertyValues);
+
+                // written in the background, after the changes of the indexes
+                this.historyImpl.scheduleWrite(filename, doc);
 
                 // this prevents that the current writer, which holds
                 // instance for the last document he is editing will not
@@ -442,7 +486,12 @@ public class HistoryWriterImpl
             String property, String newValue)
         throws IOException
     {
-        Iterator<String> fileIterator = this.historyImpl.getFileList();
+        // the index gives the files which may hold the record
+        List<String> files = historyImpl.getPropertyIndex()
+            .findFiles(idProperty, idValue);
+        Iterator<String> fileIterator = (files == null)
+            ? this.historyImpl.getFileList()
+            : files.iterator();
         String filename = null;
         while (fileIterator.hasNext())
         {
@@ -503,17 +552,24 @@ public class HistoryWriterImpl
                 ((Element)node).setAttribute("timestamp",
                     sdf.format(new Date()));
 
+                // index the new value, the record keeps its ordinal
+                HistoryRecord record = HistoryReaderImpl.filterByKeyword(
+                    node.getChildNodes(), new Date(), null, null, false);
+                historyImpl.getKeywordIndex().recordAdded(
+                    HistoryImpl.getFileUnit(filename), i,
+                    record.getPropertyNames(), record.getPropertyValues());
+                historyImpl.getPropertyIndex().recordAdded(
+                    HistoryImpl.getFileUnit(filename),
+                    record.getPropertyNames(), record.getPropertyValues());
+
                 changed = true;
                 break;
             }
 
             if(changed)
             {
-                // write changes
-                synchronized (this.docWriteLock)
-                {
-                    this.historyImpl.writeFile(filename, doc);
-                }
+                // written in the background, after the changes of the indexes
+                this.historyImpl.scheduleWrite(filename, doc);
 
                 // this prevents that the current writer, which holds
                 // instance for the last document he is editing will not
@@ -583,12 +639,25 @@ public class HistoryWriterImpl
 
             if(changed)
             {
-                // write changes
-                synchronized (this.docWriteLock)
+                HistoryKeywordIndex index = historyImpl.getKeywordIndex();
+                HistoryPropertyIndex propertyIndex
+                    = historyImpl.getPropertyIndex();
+                if(!index.isEmpty() || !propertyIndex.isEmpty())
                 {
-                    this.historyImpl.writeFile(filename, doc);
+                    List<HistoryRecord> records = HistoryImpl.getRecords(doc);
+
+                    if(!index.isEmpty())
+                    {
+                        index.unitChanged(HistoryImpl.getFileUnit(filename),
+                            records);
+                    }
+                    propertyIndex.unitChanged(
+                        HistoryImpl.getFileUnit(filename), records);
                 }
 
+                // written in the background, after the changes of the indexes
+                this.historyImpl.scheduleWrite(filename, doc);
+
                 // this prevents that the current writer, which holds
                 // instance for the last document he is editing will not
                 // override our last changes to the document
@@ -149,16 +149,69 @@ public class InteractiveHistoryReaderImpl
                         boolean caseSensitive,
                         int resultCount,
                         HistoryQueryImpl query)
+    {
+        if (history.getSegmentStore() != null)
+        {
+            ((SegmentHistoryReaderImpl) history.getReader()).find(
+                startDate, endDate, keywords, field, caseSensitive,
+                resultCount, query);
+        }
+        else
+        {
+            findInFiles(startDate, endDate, keywords, field, caseSensitive,
+                resultCount, query);
+        }
+
+        if (query.isCanceled())
+            query.setStatus(HistoryQueryStatusEvent.QUERY_CANCELED);
+        else
+            query.setStatus(HistoryQueryStatusEvent.QUERY_COMPLETED);
+    }
+
+    /**
+     * Finds the history results corresponding to the given criteria in the
+     * XML files of the history.
+     * @param startDate the start date
+     * @param endDate the end date
+     * @param keywords an array of keywords to search for
+     * @param field the field, where to search the keywords
+     * @param caseSensitive indicates if the search should be case sensitive
+     * @param resultCount the desired number of results
+     * @param query the query tracking the results
+     */
+    private void findInFiles(Date startDate,
+                             Date endDate,
+                             String[] keywords,
+                             String field,
+                             boolean caseSensitive,
+                             int resultCount,
+                             HistoryQueryImpl query)
     {
         Vector<String> filelist
             = HistoryReaderImpl.filterFilesByDate(  history.getFileList(),
                                                     startDate, endDate, true);
         Iterator<String> fileIterator = filelist.iterator();
 
+        // the records which may contain the keywords, null if every record
+        // must be checked
+        SortedMap<Long, SortedSet<Integer>> candidates
+            = history.getKeywordIndex().findCandidates(field, keywords);
+
         SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
         while (fileIterator.hasNext() && resultCount > 0 && !query.isCanceled())
         {
             String filename = fileIterator.next();
+
+            SortedSet<Integer> ordinals = null;
+            if(candidates != null)
+            {
+                ordinals = candidates.get(HistoryImpl.getFileUnit(filename));
+
+                // no record of this file contains the keywords
+                if(ordinals == null)
+                    continue;
+            }
+
             Document doc = history.getDocumentForFile(filename);
 
             if(doc == null)
@@ -170,6 +223,9 @@ public class InteractiveHistoryReaderImpl
                   i >= 0 && !query.isCanceled();
                   i--)
             {
+                if(ordinals != null && !ordinals.contains(i))
+                    continue;
+
                 Node node = nodes.item(i);
                 Date timestamp;
                 String ts = node.getAttributes().getNamedItem("timestamp")
@@ -200,10 +256,5 @@ public class InteractiveHistoryReaderImpl
                 }
             }
         }
-
-        if (query.isCanceled())
-            query.setStatus(HistoryQueryStatusEvent.QUERY_CANCELED);
-        else
-            query.setStatus(HistoryQueryStatusEvent.QUERY_COMPLETED);
     }
 }
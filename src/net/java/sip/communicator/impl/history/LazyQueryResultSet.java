@@ -0,0 +1,369 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.util.*;
+
+import net.java.sip.communicator.service.history.*;
+
+/**
+ * A <tt>QueryResultSet</tt> made of ordered pages, typically the records of
+ * one history file each, loaded only when the iteration reaches them. At
+ * most two pages are kept in memory, the one of the current element and the
+ * last one looked at around it, so the memory used doesn't depend on the
+ * size of the result. Moving back to a dropped page loads it again. The
+ * position found by <tt>hasNext()</tt> or <tt>hasPrev()</tt> is kept for the
+ * following move and empty pages are remembered, so the pages skipped are
+ * loaded once.
+ * <p>
+ * The iteration behaves as the one of <tt>OrderedQueryResultSet</tt>.
+ *
+ * @param <T> element type of query
+ */
+public abstract class LazyQueryResultSet<T>
+    implements QueryResultSet<T>
+{
+    /**
+     * The number of pages.
+     */
+    private final int pageCount;
+
+    /**
+     * The page of the current element, -1 before the first element and
+     * <tt>pageCount</tt> after the last one.
+     */
+    private int page = -1;
+
+    /**
+     * The position of the current element in its page.
+     */
+    private int offset = -1;
+
+    /**
+     * The elements of <tt>page</tt>.
+     */
+    private List<T> current = null;
+
+    /**
+     * The index of the other page kept in memory, -1 if none.
+     */
+    private int otherPage = -1;
+
+    /**
+     * The elements of <tt>otherPage</tt>.
+     */
+    private List<T> other = null;
+
+    /**
+     * The pages found to be empty.
+     */
+    private final BitSet emptyPages = new BitSet();
+
+    /**
+     * Whether <tt>next</tt> is the position of the element after the current
+     * one.
+     */
+    private boolean nextKnown = false;
+
+    /**
+     * The position of the element after the current one, <tt>null</tt> if
+     * there is none.
+     */
+    private int[] next = null;
+
+    /**
+     * Whether <tt>prev</tt> is the position of the element before the
+     * current one.
+     */
+    private boolean prevKnown = false;
+
+    /**
+     * The position of the element before the current one, <tt>null</tt> if
+     * there is none.
+     */
+    private int[] prev = null;
+
+    /**
+     * Creates a result set of <tt>pageCount</tt> pages.
+     *
+     * @param pageCount the number of pages
+     */
+    protected LazyQueryResultSet(int pageCount)
+    {
+        this.pageCount = pageCount;
+    }
+
+    /**
+     * Loads the elements of a page, in order.
+     *
+     * @param index the index of the page
+     * @return the elements of the page, never <tt>null</tt>
+     */
+    protected abstract List<T> loadPage(int index);
+
+    /**
+     * Returns the elements of a page, loading them if they are not in
+     * memory.
+     *
+     * @param index the index of the page
+     * @return the elements of the page
+     */
+    private List<T> getPage(int index)
+    {
+        if (index == page && current != null)
+            return current;
+        if (index != otherPage)
+        {
+            other = loadPage(index);
+            otherPage = index;
+        }
+        return other;
+    }
+
+    /**
+     * Makes an element the current one.
+     *
+     * @param position the page and offset of the element
+     */
+    private void moveTo(int[] position)
+    {
+        if (position[0] != page)
+        {
+            List<T> elements = getPage(position[0]);
+
+            // keep the page we leave, it is the most likely to be needed
+            if (current != null)
+            {
+                other = current;
+                otherPage = page;
+            }
+            current = elements;
+            page = position[0];
+        }
+        offset = position[1];
+        nextKnown = false;
+        prevKnown = false;
+    }
+
+    /**
+     * Moves before the first element or after the last one.
+     *
+     * @param boundary -1 to move before the first element,
+     * <tt>pageCount</tt> to move after the last one
+     */
+    private void moveOutside(int boundary)
+    {
+        if (current != null)
+        {
+            other = current;
+            otherPage = page;
+            current = null;
+        }
+        page = boundary;
+        offset = -1;
+        nextKnown = false;
+        prevKnown = false;
+    }
+
+    /**
+     * Returns whether a page is empty, loading it if it was not found to be
+     * empty before.
+     *
+     * @param index the index of the page
+     * @return whether the page is empty
+     */
+    private boolean isEmptyPage(int index)
+    {
+        if (emptyPages.get(index))
+            return true;
+        if (getPage(index).isEmpty())
+        {
+            emptyPages.set(index);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the position of the element after the current one.
+     *
+     * @return the page and offset of the next element or <tt>null</tt> if
+     * there is none
+     */
+    private int[] nextPosition()
+    {
+        if (!nextKnown)
+        {
+            next = findNextPosition();
+            nextKnown = true;
+        }
+        return next;
+    }
+
+    /**
+     * Looks for the position of the element after the current one.
+     *
+     * @return the page and offset of the next element or <tt>null</tt> if
+     * there is none
+     */
+    private int[] findNextPosition()
+    {
+        if (page >= pageCount)
+            return null;
+
+        if (page >= 0 && offset + 1 < getPage(page).size())
+            return new int[] { page, offset + 1 };
+
+        for (int p = page + 1; p < pageCount; p++)
+        {
+            if (!isEmptyPage(p))
+                return new int[] { p, 0 };
+        }
+        return null;
+    }
+
+    /**
+     * Returns the position of the element before the current one.
+     *
+     * @return the page and offset of the previous element or <tt>null</tt>
+     * if there is none
+     */
+    private int[] prevPosition()
+    {
+        if (!prevKnown)
+        {
+            prev = findPrevPosition();
+            prevKnown = true;
+        }
+        return prev;
+    }
+
+    /**
+     * Looks for the position of the element before the current one.
+     *
+     * @return the page and offset of the previous element or <tt>null</tt>
+     * if there is none
+     */
+    private int[] findPrevPosition()
+    {
+        if (page < 0)
+            return null;
+
+        if (page < pageCount && offset > 0)
+            return new int[] { page, offset - 1 };
+
+        for (int p = Math.min(page, pageCount) - 1; p >= 0; p--)
+        {
+            if (!isEmptyPage(p))
+                return new int[] { p, getPage(p).size() - 1 };
+        }
+        return null;
+    }
+
+    /**
+     * Returns <tt>true</tt> if the iteration has more elements.
+     *
+     * @return <tt>true</tt> if the iterator has more elements.
+     */
+    public boolean hasNext()
+    {
+        return nextPosition() != null;
+    }
+
+    /**
+     * Returns true if the iteration has elements preceeding the current one.
+     *
+     * @return true if the iterator has preceeding elements.
+     */
+    public boolean hasPrev()
+    {
+        return prevPosition() != null;
+    }
+
+    /**
+     * Returns the next element in the iteration.
+     *
+     * @return the next element in the iteration.
+     * @throws NoSuchElementException iteration has no more elements.
+     */
+    public T next()
+    {
+        int[] position = nextPosition();
+
+        if (position == null)
+        {
+            moveOutside(pageCount);
+            throw new NoSuchElementException();
+        }
+
+        moveTo(position);
+        return current.get(offset);
+    }
+
+    /**
+     * A strongly-typed variant of <tt>next()</tt>.
+     *
+     * @return the next history record.
+     * @throws NoSuchElementException iteration has no more elements.
+     */
+    public T nextRecord() throws NoSuchElementException
+    {
+        return this.next();
+    }
+
+    /**
+     * Returns the previous element in the iteration.
+     *
+     * @return the previous element in the iteration.
+     * @throws NoSuchElementException iteration has no more elements.
+     */
+    public T prev() throws NoSuchElementException
+    {
+        int[] position = prevPosition();
+
+        if (position == null)
+        {
+            moveOutside(-1);
+            throw new NoSuchElementException();
+        }
+
+        moveTo(position);
+        return current.get(offset);
+    }
+
+    /**
+     * A strongly-typed variant of <tt>prev()</tt>.
+     *
+     * @return the previous history record.
+     * @throws NoSuchElementException iteration has no more elements.
+     */
+    public T prevRecord() throws NoSuchElementException
+    {
+        return this.prev();
+    }
+
+    /**
+     * Removes from the underlying collection the last element returned by
+     * the iterator (optional operation).
+     */
+    public void remove()
+    {
+        throw new UnsupportedOperationException("Cannot remove elements "
+                + "from underlaying collection.");
+    }
+}
@@ -0,0 +1,639 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.event.*;
+import net.java.sip.communicator.service.history.records.*;
+
+/**
+ * The <tt>HistoryReader</tt> of histories kept in a
+ * <tt>SegmentHistoryStore</tt>. Queries locate their range with the
+ * timestamp index of the store and read the records in chunks, so only the
+ * records in the requested range are ever loaded.
+ */
+public class SegmentHistoryReaderImpl
+    implements HistoryReader
+{
+    /**
+     * The number of records read from the store at once.
+     */
+    private static final int CHUNK_SIZE = 100;
+
+    /**
+     * The history to read from.
+     */
+    private final HistoryImpl historyImpl;
+
+    /**
+     * The store to read from.
+     */
+    private final SegmentHistoryStore store;
+
+    /**
+     * The listeners for the progress of the searches.
+     */
+    private final Vector<HistorySearchProgressListener> progressListeners
+        = new Vector<HistorySearchProgressListener>();
+
+    /**
+     * Creates an instance of <tt>SegmentHistoryReaderImpl</tt>.
+     * @param historyImpl the history to read
+     * @param store the store of the history
+     */
+    protected SegmentHistoryReaderImpl(HistoryImpl historyImpl,
+                                       SegmentHistoryStore store)
+    {
+        this.historyImpl = historyImpl;
+        this.store = store;
+    }
+
+    /**
+     * Searches the history for all records with timestamp after
+     * <tt>startDate</tt>.
+     *
+     * @param startDate the date after all records will be returned
+     * @return the found records
+     * @throws RuntimeException
+     *             Thrown if an exception occurs during the execution of the
+     *             query, such as internal IO error.
+     */
+    public QueryResultSet<HistoryRecord> findByStartDate(Date startDate)
+        throws RuntimeException
+    {
+        return find(startDate, null, null, null, false);
+    }
+
+    /**
+     * Searches the history for all records with timestamp before
+     * <tt>endDate</tt>.
+     *
+     * @param endDate the date before which all records will be returned
+     * @return the found records
+     * @throws RuntimeException
+     *             Thrown if an exception occurs during the execution of the
+     *             query, such as internal IO error.
+     */
+    public QueryResultSet<HistoryRecord> findByEndDate(Date endDate)
+        throws RuntimeException
+    {
+        return find(null, endDate, null, null, false);
+    }
+
+    /**
+     * Searches the history for all records with timestamp between
+     * <tt>startDate</tt> and <tt>endDate</tt>.
+     *
+     * @param startDate start of the interval in which we search
+     * @param endDate end of the interval in which we search
+     * @return the found records
+     * @throws RuntimeException
+     *             Thrown if an exception occurs during the execution of the
+     *             query, such as internal IO error.
+     */
+    public QueryResultSet<HistoryRecord> findByPeriod(Date startDate,
+                                                      Date endDate)
+        throws RuntimeException
+    {
+        return find(startDate, endDate, null, null, false);
+    }
+
+    /**
+     * Searches the history for all records containing the <tt>keyword</tt>.
+     *
+     * @param keyword the keyword to search for
+     * @param field the field where to look for the keyword
+     * @return the found records
+     * @throws RuntimeException
+     *             Thrown if an exception occurs during the execution of the
+     *             query, such as internal IO error.
+     */
+    public QueryResultSet<HistoryRecord> findByKeyword(String keyword,
+                                                       String field)
+        throws RuntimeException
+    {
+        return findByKeywords(new String[] { keyword }, field);
+    }
+
+    /**
+     * Searches the history for all records containing the <tt>keyword</tt>.
+     *
+     * @param keyword the keyword to search for
+     * @param field the field where to look for the keyword
+     * @param caseSensitive is keywords search case sensitive
+     * @return the found records
+     * @throws RuntimeException
+     *             Thrown if an exception occurs during the execution of the
+     *             query, such as internal IO error.
+     */
+    public QueryResultSet<HistoryRecord> findByKeyword(String keyword,
+                                                       String field,
+                                                       boolean caseSensitive)
+        throws RuntimeException
+    {
+        return findByKeywords(new String[] { keyword }, field, caseSensitive);
+    }
+
+    /**
+     * Searches the history for all records containing all <tt>keywords</tt>.
+     *
+     * @param keywords array of keywords we search for
+     * @param field the field where to look for the keyword
+     * @return the found records
+     * @throws RuntimeException
+     *             Thrown if an exception occurs during the execution of the
+     *             query, such as internal IO error.
+     */
+    public QueryResultSet<HistoryRecord> findByKeywords(String[] keywords,
+                                                        String field)
+        throws RuntimeException
+    {
+        return find(null, null, keywords, field, false);
+    }
+
+    /**
+     * Searches the history for all records containing all <tt>keywords</tt>.
+     *
+     * @param keywords array of keywords we search for
+     * @param field the field where to look for the keyword
+     * @param caseSensitive is keywords search case sensitive
+     * @return the found records
+     * @throws RuntimeException
+     *             Thrown if an exception occurs during the execution of the
+     *             query, such as internal IO error.
+     */
+    public QueryResultSet<HistoryRecord> findByKeywords(String[] keywords,
+                                                        String field,
+                                                        boolean caseSensitive)
+        throws RuntimeException
+    {
+        return find(null, null, keywords, field, caseSensitive);
+    }
+
+    /**
+     * Searches for all history records containing all <tt>keywords</tt>,
+     * with timestamp between <tt>startDate</tt> and <tt>endDate</tt>.
+     *
+     * @param startDate start of the interval in which we search
+     * @param endDate end of the interval in which we search
+     * @param keywords array of keywords we search for
+     * @param field the field where to look for the keyword
+     * @return the found records
+     * @throws UnsupportedOperationException
+     *             Thrown if an exception occurs during the execution of the
+     *             query, such as internal IO error.
+     */
+    public QueryResultSet<HistoryRecord> findByPeriod(Date startDate,
+                                                      Date endDate,
+                                                      String[] keywords,
+                                                      String field)
+        throws UnsupportedOperationException
+    {
+        return find(startDate, endDate, keywords, field, false);
+    }
+
+    /**
+     * Searches for all history records containing all <tt>keywords</tt>,
+     * with timestamp between <tt>startDate</tt> and <tt>endDate</tt>.
+     *
+     * @param startDate start of the interval in which we search
+     * @param endDate end of the interval in which we search
+     * @param keywords array of keywords we search for
+     * @param field the field where to look for the keyword
+     * @param caseSensitive is keywords search case sensitive
+     * @return the found records
+     * @throws UnsupportedOperationException
+     *             Thrown if an exception occurs during the execution of the
+     *             query, such as internal IO error.
+     */
+    public QueryResultSet<HistoryRecord> findByPeriod(Date startDate,
+                                                      Date endDate,
+                                                      String[] keywords,
+                                                      String field,
+                                                      boolean caseSensitive)
+        throws UnsupportedOperationException
+    {
+        return find(startDate, endDate, keywords, field, caseSensitive);
+    }
+
+    /**
+     * Returns the last <tt>count</tt> records.
+     *
+     * @param count the number of records to return
+     * @return the found records
+     * @throws RuntimeException if reading the store fails
+     */
+    public QueryResultSet<HistoryRecord> findLast(int count)
+        throws RuntimeException
+    {
+        return findLast(count, null, null, false);
+    }
+
+    /**
+     * Returns the last <tt>count</tt> records containing all
+     * <tt>keywords</tt>.
+     *
+     * @param count the number of records to return
+     * @param keywords array of keywords we search for
+     * @param field the field where to look for the keyword
+     * @param caseSensitive is keywords search case sensitive
+     * @return the found records
+     * @throws RuntimeException if reading the store fails
+     */
+    public QueryResultSet<HistoryRecord> findLast(int count,
+                                                  String[] keywords,
+                                                  String field,
+                                                  boolean caseSensitive)
+        throws RuntimeException
+    {
+        return findBackwards(null, count, keywords, field, caseSensitive);
+    }
+
+    /**
+     * Returns the first <tt>count</tt> records with timestamp not before
+     * <tt>date</tt>.
+     *
+     * @param date records after date
+     * @param count the number of records to return
+     * @return the found records
+     * @throws RuntimeException if reading the store fails
+     */
+    public QueryResultSet<HistoryRecord> findFirstRecordsAfter(Date date,
+                                                               int count)
+        throws RuntimeException
+    {
+        List<HistoryRecord> result = new ArrayList<HistoryRecord>();
+        int position = store.indexOf(date);
+        int end = store.size();
+
+        while (result.size() < count && position < end)
+        {
+            int chunkEnd = Math.min(position + CHUNK_SIZE, end);
+
+            for (HistoryRecord record : read(position, chunkEnd))
+            {
+                if (result.size() == count)
+                    break;
+                result.add(record);
+            }
+            position = chunkEnd;
+        }
+
+        return new OrderedQueryResultSet<HistoryRecord>(
+            new LinkedHashSet<HistoryRecord>(result));
+    }
+
+    /**
+     * Returns the last <tt>count</tt> records with timestamp before
+     * <tt>date</tt>.
+     *
+     * @param date records before date
+     * @param count the number of records to return
+     * @return the found records
+     * @throws RuntimeException if reading the store fails
+     */
+    public QueryResultSet<HistoryRecord> findLastRecordsBefore(Date date,
+                                                               int count)
+        throws RuntimeException
+    {
+        return findBackwards(date, count, null, null, false);
+    }
+
+    /**
+     * Returns the number of records in the history.
+     *
+     * @return the number of records in the history
+     * @throws UnsupportedOperationException never
+     */
+    public int countRecords()
+        throws UnsupportedOperationException
+    {
+        return store.size();
+    }
+
+    /**
+     * Finds all the records in the given period matching the keywords.
+     *
+     * @param startDate the start of the period or <tt>null</tt>
+     * @param endDate the end of the period or <tt>null</tt>
+     * @param keywords the keywords to match or <tt>null</tt>
+     * @param field the field to match the keywords against
+     * @param caseSensitive whether keywords are matched case sensitively
+     * @return the found records
+     */
+    private QueryResultSet<HistoryRecord> find(Date startDate,
+                                               Date endDate,
+                                               String[] keywords,
+                                               String field,
+                                               boolean caseSensitive)
+    {
+        Set<HistoryRecord> result = new LinkedHashSet<HistoryRecord>();
+        int start = store.indexOf(startDate);
+        int end = store.endIndexOf(endDate);
+        int[] candidates
+            = getCandidatePositions(keywords, field, start, end);
+        int count = (candidates == null) ? end - start : candidates.length;
+
+        fireProgressStateChanged(startDate, endDate, keywords,
+            HistorySearchProgressListener.PROGRESS_MINIMUM_VALUE);
+
+        for (int from = 0; from < count; from += CHUNK_SIZE)
+        {
+            int to = Math.min(from + CHUNK_SIZE, count);
+
+            for (HistoryRecord record : read(start, candidates, from, to))
+            {
+                if (matches(record, keywords, field, caseSensitive))
+                    result.add(record);
+            }
+
+            fireProgressStateChanged(startDate, endDate, keywords,
+                (int) ((long) to
+                    * HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE
+                    / count));
+        }
+
+        if (count == 0)
+        {
+            fireProgressStateChanged(startDate, endDate, keywords,
+                HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE);
+        }
+
+        return new OrderedQueryResultSet<HistoryRecord>(result);
+    }
+
+    /**
+     * Finds the last <tt>count</tt> records before <tt>endDate</tt> matching
+     * the keywords, reading the store backwards one chunk at a time.
+     *
+     * @param endDate the end of the period or <tt>null</tt>
+     * @param count the number of records to return
+     * @param keywords the keywords to match or <tt>null</tt>
+     * @param field the field to match the keywords against
+     * @param caseSensitive whether keywords are matched case sensitively
+     * @return the found records
+     */
+    private QueryResultSet<HistoryRecord> findBackwards(Date endDate,
+                                                        int count,
+                                                        String[] keywords,
+                                                        String field,
+                                                        boolean caseSensitive)
+    {
+        LinkedList<HistoryRecord> result = new LinkedList<HistoryRecord>();
+        int end = store.endIndexOf(endDate);
+        int[] candidates = getCandidatePositions(keywords, field, 0, end);
+        int to = (candidates == null) ? end : candidates.length;
+
+        while (result.size() < count && to > 0)
+        {
+            int from = Math.max(to - CHUNK_SIZE, 0);
+            List<HistoryRecord> chunk = read(0, candidates, from, to);
+
+            for (int i = chunk.size() - 1; i >= 0 && result.size() < count; i--)
+            {
+                HistoryRecord record = chunk.get(i);
+
+                if (matches(record, keywords, field, caseSensitive))
+                    result.addFirst(record);
+            }
+            to = from;
+        }
+
+        return new OrderedQueryResultSet<HistoryRecord>(
+            new LinkedHashSet<HistoryRecord>(result));
+    }
+
+    /**
+     * Finds the records corresponding to the given criteria from the newest
+     * to the oldest, adding them to <tt>query</tt> until it is canceled or
+     * <tt>resultCount</tt> records are found.
+     *
+     * @param startDate the start date
+     * @param endDate the end date
+     * @param keywords an array of keywords to search for
+     * @param field the field, where to search the keywords
+     * @param caseSensitive indicates if the search should be case sensitive
+     * @param resultCount the desired number of results
+     * @param query the query tracking the results
+     */
+    void find(Date startDate,
+              Date endDate,
+              String[] keywords,
+              String field,
+              boolean caseSensitive,
+              int resultCount,
+              HistoryQueryImpl query)
+    {
+        int start = store.indexOf(startDate);
+        int end = store.endIndexOf(endDate);
+        int[] candidates
+            = getCandidatePositions(keywords, field, start, end);
+        int to = (candidates == null) ? end - start : candidates.length;
+
+        while (to > 0 && resultCount > 0 && !query.isCanceled())
+        {
+            int from = Math.max(to - CHUNK_SIZE, 0);
+            List<HistoryRecord> chunk = read(start, candidates, from, to);
+
+            for (int i = chunk.size() - 1;
+                 i >= 0 && resultCount > 0 && !query.isCanceled();
+                 i--)
+            {
+                HistoryRecord record = chunk.get(i);
+
+                if (matches(record, keywords, field, caseSensitive))
+                {
+                    query.addHistoryRecord(record);
+                    resultCount--;
+                }
+            }
+            to = from;
+        }
+    }
+
+    /**
+     * Returns the positions between <tt>start</tt> and <tt>end</tt> of the
+     * records which may contain the keywords according to the keyword index.
+     *
+     * @param keywords the keywords to match or <tt>null</tt>
+     * @param field the field to match the keywords against
+     * @param start the first position to consider
+     * @param end the position after the last one to consider
+     * @return the ascending candidate positions or <tt>null</tt> if every
+     * position between <tt>start</tt> and <tt>end</tt> must be checked
+     */
+    private int[] getCandidatePositions(String[] keywords,
+                                        String field,
+                                        int start,
+                                        int end)
+    {
+        SortedMap<Long, SortedSet<Integer>> candidates
+            = historyImpl.getKeywordIndex().findCandidates(field, keywords);
+
+        if (candidates == null)
+            return null;
+
+        int[] positions = new int[candidates.size()];
+        int count = 0;
+
+        // the records of a segment store are indexed under the timestamp
+        // they were added with
+        for (Long unit : candidates.keySet())
+        {
+            int from = Math.max(store.indexOf(new Date(unit)), start);
+            int to = Math.min(store.indexOf(new Date(unit + 1)), end);
+
+            for (int position = from; position < to; position++)
+            {
+                if (count == positions.length)
+                    positions = Arrays.copyOf(positions, count * 2 + 1);
+                positions[count++] = position;
+            }
+        }
+
+        return Arrays.copyOf(positions, count);
+    }
+
+    /**
+     * Reads records from the store, either consecutive ones or the ones at
+     * the given candidate positions.
+     *
+     * @param start the position the consecutive records start at
+     * @param candidates the candidate positions or <tt>null</tt> to read
+     * consecutive records
+     * @param from the index of the first record to read, relative to
+     * <tt>start</tt> or in <tt>candidates</tt>
+     * @param to the index after the last record to read
+     * @return the records
+     * @throws RuntimeException if reading fails
+     */
+    private List<HistoryRecord> read(int start,
+                                     int[] candidates,
+                                     int from,
+                                     int to)
+        throws RuntimeException
+    {
+        if (candidates == null)
+            return read(start + from, start + to);
+
+        try
+        {
+            return store.read(Arrays.copyOfRange(candidates, from, to));
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("Could not read history records", e);
+        }
+    }
+
+    /**
+     * Reads records from the store.
+     *
+     * @param from the first position to read
+     * @param to the position after the last one to read
+     * @return the records
+     * @throws RuntimeException if reading fails
+     */
+    private List<HistoryRecord> read(int from, int to)
+        throws RuntimeException
+    {
+        try
+        {
+            return store.read(from, to);
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("Could not read history records", e);
+        }
+    }
+
+    /**
+     * Checks whether <tt>field</tt> of <tt>record</tt> contains all the
+     * <tt>keywords</tt>. A record without the field does not match unless
+     * there are no keywords.
+     *
+     * @param record the record to check
+     * @param keywords the keywords to match or <tt>null</tt>
+     * @param field the field to match the keywords against
+     * @param caseSensitive whether keywords are matched case sensitively
+     * @return whether the record matches
+     */
+    static boolean matches(HistoryRecord record,
+                           String[] keywords,
+                           String field,
+                           boolean caseSensitive)
+    {
+        if (keywords == null || keywords.length == 0)
+            return true;
+
+        String[] propertyNames = record.getPropertyNames();
+        for (int i = 0; i < propertyNames.length; i++)
+        {
+            if (propertyNames[i].equals(field))
+            {
+                return HistoryReaderImpl.matchKeyword(
+                    record.getPropertyValues()[i], keywords, caseSensitive);
+            }
+        }
+        return false;
+    }
+
+    private void fireProgressStateChanged(Date startDate, Date endDate,
+                                          String[] keywords, int progress)
+    {
+        ProgressEvent event =
+            new ProgressEvent(this, startDate, endDate, keywords, progress);
+
+        synchronized(progressListeners)
+        {
+            for (HistorySearchProgressListener l : progressListeners)
+                l.progressChanged(event);
+        }
+    }
+
+    /**
+     * Adding progress listener for monitoring progress of search process
+     *
+     * @param listener HistorySearchProgressListener
+     */
+    public void addSearchProgressListener(
+        HistorySearchProgressListener listener)
+    {
+        synchronized(progressListeners)
+        {
+            progressListeners.add(listener);
+        }
+    }
+
+    /**
+     * Removing progress listener
+     *
+     * @param listener HistorySearchProgressListener
+     */
+    public void removeSearchProgressListener(
+        HistorySearchProgressListener listener)
+    {
+        synchronized(progressListeners)
+        {
+            progressListeners.remove(listener);
+        }
+    }
+}
@@ -0,0 +1,678 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * An append-only binary storage for the records of a single history.
+ * Records are written one after the other in segment files named after the
+ * time the segment was created (the same naming the XML files use) and every
+ * record gets a fixed size entry in a timestamp index file. The index is
+ * loaded in memory sorted by timestamp so that range queries only read the
+ * records (and thus the segments) they need and appends cost a single write
+ * to the current segment and to the index.
+ * <p>
+ * Records are never rewritten. Updating a record appends its new version and
+ * redirects the index entry to it, removing a record marks its index entry
+ * as deleted.
+ */
+public class SegmentHistoryStore
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(SegmentHistoryStore.class);
+
+    /**
+     * The extension of the segment files.
+     */
+    public static final String SEGMENT_FILETYPE = "seg";
+
+    /**
+     * The name of the timestamp index file.
+     */
+    public static final String INDEX_FILE = "history.idx";
+
+    /**
+     * The size after which we start a new segment.
+     */
+    static final long MAX_SEGMENT_SIZE = 1024 * 1024;
+
+    /**
+     * The size of an entry in the index file: the timestamp of the record,
+     * the segment it is stored in and its offset in the segment.
+     */
+    private static final int INDEX_ENTRY_SIZE = 8 + 8 + 8;
+
+    /**
+     * The segment value of index entries of removed records.
+     */
+    private static final long DELETED_SEGMENT = -1;
+
+    /**
+     * The directory of the history.
+     */
+    private final File directory;
+
+    /**
+     * The index file.
+     */
+    private final File indexFile;
+
+    /**
+     * The timestamps of the live records, sorted ascending.
+     */
+    private long[] timestamps = new long[64];
+
+    /**
+     * The segment (its creation time) of the record at the same position in
+     * <tt>timestamps</tt>.
+     */
+    private long[] segments = new long[64];
+
+    /**
+     * The offset in the segment of the record at the same position in
+     * <tt>timestamps</tt>.
+     */
+    private long[] offsets = new long[64];
+
+    /**
+     * The slot in the index file of the record at the same position in
+     * <tt>timestamps</tt>.
+     */
+    private int[] slots = new int[64];
+
+    /**
+     * The number of live records.
+     */
+    private int size = 0;
+
+    /**
+     * The number of slots in the index file, including the deleted ones.
+     */
+    private int slotCount = 0;
+
+    /**
+     * The segment we currently append to or <tt>-1</tt> if none.
+     */
+    private long currentSegment = -1;
+
+    /**
+     * The current length of the segment we append to.
+     */
+    private long currentSegmentLength = 0;
+
+    /**
+     * Creates the store for the history in <tt>directory</tt> and loads its
+     * index.
+     *
+     * @param directory the directory of the history
+     * @throws IOException if the index cannot be read
+     */
+    SegmentHistoryStore(File directory)
+        throws IOException
+    {
+        this.directory = directory;
+        this.indexFile = new File(directory, INDEX_FILE);
+
+        loadIndex();
+    }
+
+    /**
+     * Checks whether <tt>directory</tt> holds a history stored with this
+     * storage.
+     *
+     * @param directory the directory of a history
+     * @return whether there is a segment index in <tt>directory</tt>
+     */
+    static boolean exists(File directory)
+    {
+        return new File(directory, INDEX_FILE).exists();
+    }
+
+    /**
+     * Loads the index file in memory, dropping any partially written entry
+     * at its end.
+     *
+     * @throws IOException if reading the index fails
+     */
+    private void loadIndex()
+        throws IOException
+    {
+        if (!indexFile.exists())
+            return;
+
+        long length = indexFile.length();
+        if (length % INDEX_ENTRY_SIZE != 0)
+        {
+            logger.warn("Truncating partially written history index "
+                + indexFile);
+            length -= length % INDEX_ENTRY_SIZE;
+
+            RandomAccessFile raf = new RandomAccessFile(indexFile, "rw");
+            try
+            {
+                raf.setLength(length);
+            }
+            finally
+            {
+                raf.close();
+            }
+        }
+
+        DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(indexFile)));
+        try
+        {
+            slotCount = (int) (length / INDEX_ENTRY_SIZE);
+            for (int slot = 0; slot < slotCount; slot++)
+            {
+                long timestamp = in.readLong();
+                long segment = in.readLong();
+                long offset = in.readLong();
+
+                if (segment != DELETED_SEGMENT)
+                    insertEntry(timestamp, segment, offset, slot);
+
+                if (segment > currentSegment)
+                    currentSegment = segment;
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+
+        if (currentSegment != -1)
+        {
+            currentSegmentLength = getSegmentFile(currentSegment).length();
+        }
+    }
+
+    /**
+     * Returns the number of records in this store.
+     *
+     * @return the number of records in this store
+     */
+    synchronized int size()
+    {
+        return size;
+    }
+
+    /**
+     * Returns the position of the first record with timestamp not before
+     * <tt>date</tt>, or <tt>0</tt> if <tt>date</tt> is <tt>null</tt>.
+     *
+     * @param date the date to search for
+     * @return the position of the first record not before <tt>date</tt>
+     */
+    synchronized int indexOf(Date date)
+    {
+        if (date == null)
+            return 0;
+
+        return lowerBound(date.getTime());
+    }
+
+    /**
+     * Returns the position after the last record with timestamp before
+     * <tt>date</tt>, or the size of the store if <tt>date</tt> is
+     * <tt>null</tt>.
+     *
+     * @param date the date to search for
+     * @return the position after the last record before <tt>date</tt>
+     */
+    synchronized int endIndexOf(Date date)
+    {
+        if (date == null)
+            return size;
+
+        return lowerBound(date.getTime());
+    }
+
+    /**
+     * Returns the first position in the sorted index whose timestamp is not
+     * less than <tt>timestamp</tt>.
+     *
+     * @param timestamp the timestamp to search for
+     * @return the first position not less than <tt>timestamp</tt>
+     */
+    private int lowerBound(long timestamp)
+    {
+        int low = 0;
+        int high = size;
+
+        while (low < high)
+        {
+            int mid = (low + high) >>> 1;
+
+            if (timestamps[mid] < timestamp)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Returns the timestamp the record at <tt>position</tt> is indexed under.
+     * This is the timestamp it was added with, updates don't change it.
+     *
+     * @param position the position of the record
+     * @return the timestamp the record is indexed under
+     */
+    synchronized long getIndexTimestamp(int position)
+    {
+        return timestamps[position];
+    }
+
+    /**
+     * Reads the records at positions <tt>from</tt> (inclusive) to
+     * <tt>to</tt> (exclusive) in timestamp order. Only the segments holding
+     * these records are opened.
+     *
+     * @param from the first position to read
+     * @param to the position after the last one to read
+     * @return the records, ordered by timestamp
+     * @throws IOException if reading a segment fails
+     */
+    synchronized List<HistoryRecord> read(int from, int to)
+        throws IOException
+    {
+        from = Math.max(from, 0);
+        to = Math.min(to, size);
+
+        int[] positions = new int[Math.max(to - from, 0)];
+        for (int i = 0; i < positions.length; i++)
+            positions[i] = from + i;
+
+        return read(positions);
+    }
+
+    /**
+     * Reads the records at the given positions. Positions past the end of
+     * the store are ignored.
+     *
+     * @param positions the positions to read, preferably ascending so that
+     * records of the same segment are read together
+     * @return the records, in the order of <tt>positions</tt>
+     * @throws IOException if reading a segment fails
+     */
+    synchronized List<HistoryRecord> read(int[] positions)
+        throws IOException
+    {
+        List<HistoryRecord> result
+            = new ArrayList<HistoryRecord>(positions.length);
+        RandomAccessFile raf = null;
+        long openSegment = -1;
+
+        try
+        {
+            for (int i : positions)
+            {
+                if (i >= size)
+                    continue;
+
+                if (raf == null || openSegment != segments[i])
+                {
+                    if (raf != null)
+                        raf.close();
+
+                    openSegment = segments[i];
+                    raf = new RandomAccessFile(
+                        getSegmentFile(openSegment), "r");
+                }
+
+                raf.seek(offsets[i]);
+                byte[] data = new byte[raf.readInt()];
+                raf.readFully(data);
+
+                result.add(decodeRecord(data));
+            }
+        }
+        finally
+        {
+            if (raf != null)
+                raf.close();
+        }
+
+        return result;
+    }
+
+    /**
+     * Appends a record to the current segment and its entry to the index.
+     *
+     * @param propertyNames the names of the record properties
+     * @param propertyValues the values of the record properties
+     * @param timestamp the timestamp of the record
+     * @throws IOException if writing fails
+     */
+    synchronized void append(String[] propertyNames,
+                             String[] propertyValues,
+                             Date timestamp)
+        throws IOException
+    {
+        long[] location = writeRecord(
+            encodeRecord(propertyNames, propertyValues, timestamp),
+            timestamp);
+
+        int slot = slotCount++;
+        writeIndexEntry(slot, timestamp.getTime(), location[0], location[1]);
+
+        insertEntry(timestamp.getTime(), location[0], location[1], slot);
+    }
+
+    /**
+     * Replaces the record at <tt>position</tt> with a new version. The new
+     * version is appended to the current segment and the index entry is
+     * redirected to it, the record keeps its position in the index.
+     *
+     * @param position the position of the record to replace
+     * @param propertyNames the names of the record properties
+     * @param propertyValues the values of the record properties
+     * @param timestamp the timestamp of the new version of the record
+     * @throws IOException if writing fails
+     */
+    synchronized void update(int position,
+                             String[] propertyNames,
+                             String[] propertyValues,
+                             Date timestamp)
+        throws IOException
+    {
+        long[] location = writeRecord(
+            encodeRecord(propertyNames, propertyValues, timestamp),
+            timestamp);
+
+        segments[position] = location[0];
+        offsets[position] = location[1];
+
+        writeIndexEntry(slots[position],
+            timestamps[position], location[0], location[1]);
+    }
+
+    /**
+     * Removes the record at <tt>position</tt> by marking its index entry as
+     * deleted.
+     *
+     * @param position the position of the record to remove
+     * @throws IOException if writing the index fails
+     */
+    synchronized void remove(int position)
+        throws IOException
+    {
+        writeIndexEntry(slots[position],
+            timestamps[position], DELETED_SEGMENT, 0);
+
+        int moved = size - position - 1;
+        if (moved > 0)
+        {
+            System.arraycopy(timestamps, position + 1,
+                timestamps, position, moved);
+            System.arraycopy(segments, position + 1,
+                segments, position, moved);
+            System.arraycopy(offsets, position + 1, offsets, position, moved);
+            System.arraycopy(slots, position + 1, slots, position, moved);
+        }
+        size--;
+    }
+
+    /**
+     * Writes the encoded record at the end of the current segment, starting
+     * a new segment if the current one is full.
+     *
+     * @param data the encoded record
+     * @param timestamp the timestamp of the record
+     * @return the segment and offset where the record was written
+     * @throws IOException if writing fails
+     */
+    private long[] writeRecord(byte[] data, Date timestamp)
+        throws IOException
+    {
+        if (currentSegment == -1
+            || currentSegmentLength >= MAX_SEGMENT_SIZE)
+        {
+            // segment names are unique and ascending like the xml files,
+            // as getExistingHistories orders histories by their file names
+            long segment = Math.max(
+                System.currentTimeMillis(), currentSegment + 1);
+
+            while (getSegmentFile(segment).exists())
+                segment++;
+
+            currentSegment = segment;
+            currentSegmentLength = 0;
+        }
+
+        long offset = currentSegmentLength;
+        DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(
+                getSegmentFile(currentSegment), true)));
+        try
+        {
+            out.writeInt(data.length);
+            out.write(data);
+        }
+        finally
+        {
+            out.close();
+        }
+        currentSegmentLength += 4 + data.length;
+
+        return new long[] { currentSegment, offset };
+    }
+
+    /**
+     * Writes an entry of the index file.
+     *
+     * @param slot the slot of the entry in the index file
+     * @param timestamp the timestamp of the record
+     * @param segment the segment of the record
+     * @param offset the offset of the record in its segment
+     * @throws IOException if writing fails
+     */
+    private void writeIndexEntry(int slot,
+                                 long timestamp,
+                                 long segment,
+                                 long offset)
+        throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(indexFile, "rw");
+        try
+        {
+            raf.seek((long) slot * INDEX_ENTRY_SIZE);
+            raf.writeLong(timestamp);
+            raf.writeLong(segment);
+            raf.writeLong(offset);
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    /**
+     * Inserts an entry in the in-memory index keeping it sorted by timestamp.
+     * Records with equal timestamps keep the order they were added in, so
+     * appending records in chronological order never moves entries.
+     *
+     * @param timestamp the timestamp of the record
+     * @param segment the segment of the record
+     * @param offset the offset of the record in its segment
+     * @param slot the slot of the record in the index file
+     */
+    private void insertEntry(long timestamp,
+                             long segment,
+                             long offset,
+                             int slot)
+    {
+        if (size == timestamps.length)
+        {
+            int capacity = size * 2;
+
+            timestamps = Arrays.copyOf(timestamps, capacity);
+            segments = Arrays.copyOf(segments, capacity);
+            offsets = Arrays.copyOf(offsets, capacity);
+            slots = Arrays.copyOf(slots, capacity);
+        }
+
+        int position = size;
+        if (size > 0 && timestamps[size - 1] > timestamp)
+        {
+            position = lowerBound(timestamp + 1);
+
+            int moved = size - position;
+            System.arraycopy(timestamps, position,
+                timestamps, position + 1, moved);
+            System.arraycopy(segments, position,
+                segments, position + 1, moved);
+            System.arraycopy(offsets, position, offsets, position + 1, moved);
+            System.arraycopy(slots, position, slots, position + 1, moved);
+        }
+
+        timestamps[position] = timestamp;
+        segments[position] = segment;
+        offsets[position] = offset;
+        slots[position] = slot;
+        size++;
+    }
+
+    /**
+     * Returns the file of a segment.
+     *
+     * @param segment the segment
+     * @return the file of the segment
+     */
+    private File getSegmentFile(long segment)
+    {
+        return new File(directory, segment + "." + SEGMENT_FILETYPE);
+    }
+
+    /**
+     * Encodes a record in its binary form.
+     *
+     * @param propertyNames the names of the record properties
+     * @param propertyValues the values of the record properties
+     * @param timestamp the timestamp of the record
+     * @return the encoded record
+     * @throws IOException if encoding fails
+     */
+    private static byte[] encodeRecord(String[] propertyNames,
+                                       String[] propertyValues,
+                                       Date timestamp)
+        throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        int count = 0;
+        for (int i = 0; i < propertyNames.length; i++)
+        {
+            if (propertyValues[i] != null)
+                count++;
+        }
+
+        out.writeLong(timestamp.getTime());
+        out.writeShort(count);
+        for (int i = 0; i < propertyNames.length; i++)
+        {
+            if (propertyValues[i] == null)
+                continue;
+
+            // names are stored the way the xml files store them, without
+            // the suffix marking the properties kept as CDATA
+            String name = propertyNames[i];
+            if (name.endsWith(HistoryWriterImpl.CDATA_SUFFIX))
+            {
+                name = name.substring(0,
+                    name.length() - HistoryWriterImpl.CDATA_SUFFIX.length());
+            }
+
+            writeString(out, name);
+            writeString(out, propertyValues[i]);
+        }
+        out.flush();
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decodes a record from its binary form.
+     *
+     * @param data the encoded record
+     * @return the decoded record
+     * @throws IOException if the data is malformed
+     */
+    private static HistoryRecord decodeRecord(byte[] data)
+        throws IOException
+    {
+        DataInputStream in
+            = new DataInputStream(new ByteArrayInputStream(data));
+
+        Date timestamp = new Date(in.readLong());
+        int count = in.readUnsignedShort();
+        String[] propertyNames = new String[count];
+        String[] propertyValues = new String[count];
+
+        for (int i = 0; i < count; i++)
+        {
+            propertyNames[i] = readString(in);
+            propertyValues[i] = readString(in);
+        }
+
+        return new HistoryRecord(propertyNames, propertyValues, timestamp);
+    }
+
+    /**
+     * Writes a string as its UTF-8 length and bytes. Unlike
+     * <tt>writeUTF</tt> this is not limited to 64K.
+     *
+     * @param out the stream to write to
+     * @param s the string to write
+     * @throws IOException if writing fails
+     */
+    private static void writeString(DataOutputStream out, String s)
+        throws IOException
+    {
+        byte[] bytes = s.getBytes("UTF-8");
+
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a string written by {@link #writeString}.
+     *
+     * @param in the stream to read from
+     * @return the string
+     * @throws IOException if reading fails
+     */
+    private static String readString(DataInputStream in)
+        throws IOException
+    {
+        byte[] bytes = new byte[in.readInt()];
+
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
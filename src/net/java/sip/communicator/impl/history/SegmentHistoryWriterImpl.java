@@ -0,0 +1,346 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+
+/**
+ * The <tt>HistoryWriter</tt> of histories kept in a
+ * <tt>SegmentHistoryStore</tt>. Every record is appended to the store, the
+ * timestamp index of the store takes care of records inserted out of order.
+ */
+public class SegmentHistoryWriterImpl
+    implements HistoryWriter
+{
+    /**
+     * The number of records read from the store at once when searching for
+     * a record to update.
+     */
+    private static final int CHUNK_SIZE = 100;
+
+    /**
+     * The history we write to.
+     */
+    private final HistoryImpl historyImpl;
+
+    /**
+     * The store we write to.
+     */
+    private final SegmentHistoryStore store;
+
+    /**
+     * Creates an instance of <tt>SegmentHistoryWriterImpl</tt>.
+     *
+     * @param historyImpl the history we write to
+     * @param store the store of the history
+     */
+    protected SegmentHistoryWriterImpl(HistoryImpl historyImpl,
+                                       SegmentHistoryStore store)
+    {
+        this.historyImpl = historyImpl;
+        this.store = store;
+    }
+
+    public void addRecord(HistoryRecord record)
+        throws IOException
+    {
+        append(
+            record.getPropertyNames(),
+            record.getPropertyValues(),
+            record.getTimestamp());
+    }
+
+    public void addRecord(String[] propertyValues)
+        throws IOException
+    {
+        addRecord(propertyValues, new Date());
+    }
+
+    public void addRecord(String[] propertyValues, Date timestamp)
+        throws IOException
+    {
+        append(getStructPropertyNames(), propertyValues, timestamp);
+    }
+
+    /**
+     * Appends a record to the store and indexes it under the timestamp it
+     * is appended with.
+     *
+     * @param propertyNames the names of the record properties
+     * @param propertyValues the values of the record properties
+     * @param timestamp the timestamp of the record
+     * @throws IOException if writing fails
+     */
+    private void append(String[] propertyNames,
+                        String[] propertyValues,
+                        Date timestamp)
+        throws IOException
+    {
+        store.append(propertyNames, propertyValues, timestamp);
+
+        historyImpl.getKeywordIndex().recordAdded(
+            timestamp.getTime(), 0, propertyNames, propertyValues);
+        historyImpl.getPropertyIndex().recordAdded(
+            HistoryPropertyIndex.getSegmentUnit(timestamp.getTime()),
+            propertyNames, propertyValues);
+    }
+
+    /**
+     * Stores the passed propertyValues complying with the
+     * historyRecordStructure, removing the oldest records if there are more
+     * than <tt>maxNumberOfRecords</tt>.
+     *
+     * @param propertyValues the values of the record
+     * @param maxNumberOfRecords the maximum number of records to keep or
+     * value of -1 to ignore this param.
+     * @throws IOException if writing fails
+     */
+    public void addRecord(String[] propertyValues, int maxNumberOfRecords)
+        throws IOException
+    {
+        synchronized (store)
+        {
+            if (maxNumberOfRecords > -1)
+            {
+                while (store.size() > 0 && store.size() >= maxNumberOfRecords)
+                    store.remove(0);
+            }
+
+            addRecord(propertyValues);
+        }
+    }
+
+    /**
+     * Inserts a record. As the store keeps its index ordered by timestamp the
+     * record is simply appended.
+     *
+     * @param propertyValues the values of the record
+     * @param timestamp the timestamp of the record
+     * @param timestampProperty the property name for the timestamp of the
+     * record, not needed by this implementation
+     * @throws IOException if writing fails
+     */
+    public void insertRecord(
+            String[] propertyValues, Date timestamp, String timestampProperty)
+        throws IOException
+    {
+        addRecord(propertyValues, timestamp);
+    }
+
+    /**
+     * Updates a record by searching for record with idProperty which have
+     * idValue and updating/creating the property with newValue. Like the XML
+     * writer, only the oldest matching record is updated and the property
+     * index gives the days which may hold it.
+     *
+     * @param idProperty name of the id property
+     * @param idValue value of the id property
+     * @param property the property to change
+     * @param newValue the value of the changed property.
+     * @throws IOException if reading or writing fails
+     */
+    public void updateRecord(String idProperty, String idValue,
+                             String property, String newValue)
+        throws IOException
+    {
+        Map<String, String> changes = new HashMap<String, String>();
+        changes.put(property, newValue);
+
+        synchronized (store)
+        {
+            SortedSet<Long> units = historyImpl.getPropertyIndex()
+                .findUnits(idProperty, idValue);
+
+            if (units == null)
+            {
+                updateFirst(0, store.size(), idProperty, idValue, changes);
+                return;
+            }
+
+            for (long unit : units)
+            {
+                int from = store.indexOf(new Date(unit));
+                int to = store.endIndexOf(new Date(
+                    unit + HistoryPropertyIndex.SEGMENT_UNIT_LENGTH));
+
+                if (updateFirst(from, to, idProperty, idValue, changes))
+                    return;
+            }
+        }
+    }
+
+    /**
+     * Updates the first record between two positions having a value for a
+     * property. Must be called while holding the store.
+     *
+     * @param from the first position to search
+     * @param to the position after the last one to search
+     * @param idProperty name of the id property
+     * @param idValue value of the id property
+     * @param changes the names and new values of the changed properties
+     * @return whether a record was updated
+     * @throws IOException if reading or writing fails
+     */
+    private boolean updateFirst(int from,
+                                int to,
+                                String idProperty,
+                                String idValue,
+                                Map<String, String> changes)
+        throws IOException
+    {
+        for (int start = from; start < to; start += CHUNK_SIZE)
+        {
+            List<HistoryRecord> chunk
+                = store.read(start, Math.min(start + CHUNK_SIZE, to));
+
+            for (int i = 0; i < chunk.size(); i++)
+            {
+                HistoryRecord record = chunk.get(i);
+
+                if (idValue.equals(getValue(record, idProperty)))
+                {
+                    update(start + i, record, changes, true);
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Updates history record using given <tt>HistoryRecordUpdater</tt>
+     * instance to find which is the record to be updated and to get the new
+     * values for the fields. Every matching record is updated; the XML writer
+     * stops at the first file holding matching records, the store has no
+     * files to stop at.
+     *
+     * @param updater the <tt>HistoryRecordUpdater</tt> instance.
+     * @throws IOException if reading or writing fails
+     */
+    public void updateRecord(HistoryRecordUpdater updater)
+        throws IOException
+    {
+        synchronized (store)
+        {
+            for (int start = 0; start < store.size(); start += CHUNK_SIZE)
+            {
+                List<HistoryRecord> chunk
+                    = store.read(
+                        start, Math.min(start + CHUNK_SIZE, store.size()));
+
+                for (int i = 0; i < chunk.size(); i++)
+                {
+                    HistoryRecord record = chunk.get(i);
+
+                    updater.setHistoryRecord(record);
+                    if (!updater.isMatching())
+                        continue;
+
+                    update(start + i, record, updater.getUpdateChanges(),
+                        false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a new version of <tt>record</tt> with <tt>changes</tt> applied
+     * and the current time as timestamp, to reflect there was a change.
+     *
+     * @param position the position of the record in the store
+     * @param record the record to update
+     * @param changes the names and new values of the changed properties
+     * @param addMissing whether changed properties missing in the record
+     * should be added to it
+     * @throws IOException if writing fails
+     */
+    private void update(int position,
+                        HistoryRecord record,
+                        Map<String, String> changes,
+                        boolean addMissing)
+        throws IOException
+    {
+        List<String> names = new ArrayList<String>(
+            Arrays.asList(record.getPropertyNames()));
+        List<String> values = new ArrayList<String>(
+            Arrays.asList(record.getPropertyValues()));
+
+        for (Map.Entry<String, String> change : changes.entrySet())
+        {
+            int index = names.indexOf(change.getKey());
+
+            if (index != -1)
+            {
+                values.set(index, change.getValue());
+            }
+            else if (addMissing)
+            {
+                names.add(change.getKey());
+                values.add(change.getValue());
+            }
+        }
+
+        String[] propertyNames = names.toArray(new String[names.size()]);
+        String[] propertyValues = values.toArray(new String[values.size()]);
+
+        store.update(position, propertyNames, propertyValues, new Date());
+
+        // the record keeps the timestamp it is indexed under
+        long indexTimestamp = store.getIndexTimestamp(position);
+
+        historyImpl.getKeywordIndex().recordAdded(
+            indexTimestamp, 0, propertyNames, propertyValues);
+        historyImpl.getPropertyIndex().recordAdded(
+            HistoryPropertyIndex.getSegmentUnit(indexTimestamp),
+            propertyNames, propertyValues);
+    }
+
+    /**
+     * Returns the value of a property of a record.
+     *
+     * @param record the record
+     * @param propertyName the name of the property
+     * @return the value of the property or <tt>null</tt> if the record
+     * doesn't have it
+     */
+    static String getValue(HistoryRecord record, String propertyName)
+    {
+        String[] propertyNames = record.getPropertyNames();
+
+        for (int i = 0; i < propertyNames.length; i++)
+        {
+            if (propertyNames[i].equals(propertyName))
+                return record.getPropertyValues()[i];
+        }
+        return null;
+    }
+
+    /**
+     * Returns the property names of the structure of the history.
+     *
+     * @return the property names of the structure of the history
+     */
+    private String[] getStructPropertyNames()
+    {
+        return historyImpl.getHistoryRecordsStructure().getPropertyNames();
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import static
+    net.java.sip.communicator.service.history.HistoryService.DATE_FORMAT;
+
+import java.io.*;
+import java.text.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
+
+import org.w3c.dom.*;
+
+/**
+ * Moves the records of a history from its XML files into a
+ * <tt>SegmentHistoryStore</tt>. The migration is done once: the store is
+ * built in a temporary directory, moved next to the XML files and only then
+ * are the XML files renamed so that they are no longer loaded. A migration
+ * interrupted before the store is moved in place is simply started over, as
+ * is one which finds an XML file it cannot read: the history then stays in
+ * its XML files rather than losing the records of that file.
+ */
+public class XmlHistoryMigrator
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(XmlHistoryMigrator.class);
+
+    /**
+     * The suffix appended to the names of the migrated XML files.
+     */
+    static final String MIGRATED_SUFFIX = ".migrated";
+
+    /**
+     * The name of the directory where the store is built.
+     */
+    static final String MIGRATION_DIRECTORY = "migration.tmp";
+
+    /**
+     * Migrates the XML files of <tt>historyImpl</tt>, if any, to a
+     * <tt>SegmentHistoryStore</tt> in <tt>directory</tt>.
+     *
+     * @param historyImpl the history to migrate
+     * @param directory the directory of the history
+     * @throws IOException if the migration fails, the XML files are left
+     * untouched in that case
+     */
+    static void migrate(HistoryImpl historyImpl, File directory)
+        throws IOException
+    {
+        long startTime = System.currentTimeMillis();
+        File tmpDir = new File(directory, MIGRATION_DIRECTORY);
+
+        if (tmpDir.exists())
+            deleteDirectory(tmpDir);
+
+        List<String> files = HistoryReaderImpl.filterFilesByDate(
+            historyImpl.getFileList(), null, null);
+
+        if (!SegmentHistoryStore.exists(directory))
+        {
+            if (!tmpDir.mkdirs())
+                throw new IOException("Cannot create " + tmpDir);
+
+            SegmentHistoryStore store = new SegmentHistoryStore(tmpDir);
+            int count = 0;
+
+            for (String file : files)
+                count += migrateFile(historyImpl, file, store);
+
+            // move the store in place, the index last as its presence marks
+            // a migrated history
+            for (File f : tmpDir.listFiles())
+            {
+                if (!f.getName().equals(SegmentHistoryStore.INDEX_FILE))
+                    moveFile(f, new File(directory, f.getName()));
+            }
+            File index = new File(tmpDir, SegmentHistoryStore.INDEX_FILE);
+            if (index.exists())
+            {
+                moveFile(index,
+                    new File(directory, SegmentHistoryStore.INDEX_FILE));
+            }
+            else
+            {
+                // an empty history still needs to be marked as migrated
+                new File(directory, SegmentHistoryStore.INDEX_FILE)
+                    .createNewFile();
+            }
+            deleteDirectory(tmpDir);
+
+            // the migration runs on the thread first opening the history
+            if (logger.isInfoEnabled())
+            {
+                logger.info("Migrated " + count + " history records from "
+                    + files.size() + " files in " + directory + " in "
+                    + (System.currentTimeMillis() - startTime) + " ms");
+            }
+        }
+
+        for (String file : files)
+        {
+            File xmlFile = new File(directory, file);
+
+            if (xmlFile.exists())
+                moveFile(xmlFile, new File(directory, file + MIGRATED_SUFFIX));
+        }
+
+        // keyword and property indexes refer to the xml files, they are
+        // rebuilt on demand
+        File[] content = directory.listFiles();
+        if (content != null)
+        {
+            for (File f : content)
+            {
+                String name = f.getName();
+
+                if ((name.startsWith(HistoryKeywordIndex.INDEX_FILE_PREFIX)
+                        && name.endsWith(HistoryKeywordIndex.INDEX_FILETYPE))
+                    || name.endsWith(HistoryPropertyIndex.INDEX_FILETYPE))
+                    f.delete();
+            }
+        }
+        historyImpl.reloadDocumentList();
+    }
+
+    /**
+     * Appends the records of an XML file to <tt>store</tt>.
+     *
+     * @param historyImpl the history the file belongs to
+     * @param filename the name of the file
+     * @param store the store to append to
+     * @return the number of migrated records
+     * @throws IOException if the file cannot be read or writing to the store
+     * fails
+     */
+    private static int migrateFile(HistoryImpl historyImpl,
+                                   String filename,
+                                   SegmentHistoryStore store)
+        throws IOException
+    {
+        Document doc = historyImpl.getDocumentForFile(filename);
+
+        if (doc == null)
+            throw new IOException("Cannot read history file " + filename);
+
+        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
+        NodeList nodes = doc.getElementsByTagName("record");
+        int count = 0;
+
+        for (int i = 0; i < nodes.getLength(); i++)
+        {
+            Node node = nodes.item(i);
+            Date timestamp;
+            String ts = node.getAttributes().getNamedItem("timestamp")
+                .getNodeValue();
+            try
+            {
+                timestamp = sdf.parse(ts);
+            }
+            catch (ParseException e)
+            {
+                timestamp = new Date(Long.parseLong(ts));
+            }
+
+            // this unescapes the values as the xml writer escapes them
+            HistoryRecord record = HistoryReaderImpl.filterByKeyword(
+                node.getChildNodes(), timestamp, null, null, false);
+
+            store.append(
+                record.getPropertyNames(),
+                record.getPropertyValues(),
+                timestamp);
+            count++;
+        }
+
+        return count;
+    }
+
+    /**
+     * Renames a file.
+     *
+     * @param from the file to rename
+     * @param to the new file
+     * @throws IOException if renaming fails
+     */
+    private static void moveFile(File from, File to)
+        throws IOException
+    {
+        if (!from.renameTo(to))
+            throw new IOException("Cannot move " + from + " to " + to);
+    }
+
+    /**
+     * Deletes a directory with no sub-directories and its content.
+     *
+     * @param dir the directory
+     */
+    private static void deleteDirectory(File dir)
+    {
+        File[] content = dir.listFiles();
+
+        if (content != null)
+        {
+            for (File f : content)
+                f.delete();
+        }
+        dir.delete();
+    }
+}
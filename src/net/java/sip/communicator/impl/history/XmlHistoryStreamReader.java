@@ -0,0 +1,256 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import static
+    net.java.sip.communicator.service.history.HistoryService.DATE_FORMAT;
+
+import java.io.*;
+import java.text.*;
+import java.util.*;
+
+import javax.xml.stream.*;
+
+/**
+ * Reads the records of a history XML file one at a time with a StAX parser,
+ * without building the DOM of the file. Only the record being read is kept
+ * in memory.
+ */
+public class XmlHistoryStreamReader
+{
+    /**
+     * The factory of the StAX parsers.
+     */
+    private static final XMLInputFactory inputFactory
+        = XMLInputFactory.newInstance();
+
+    static
+    {
+        inputFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        inputFactory.setProperty(
+            XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    }
+
+    /**
+     * The stream of the file.
+     */
+    private final InputStream in;
+
+    /**
+     * The parser of the file.
+     */
+    private final XMLStreamReader parser;
+
+    /**
+     * Used to parse the timestamps of the records.
+     */
+    private final SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
+
+    /**
+     * The position of the current record in the file.
+     */
+    private int ordinal = -1;
+
+    /**
+     * The timestamp of the current record.
+     */
+    private Date timestamp;
+
+    /**
+     * The names and values of the properties of the current record,
+     * properties without a value are left out.
+     */
+    private final List<String> nameVals = new ArrayList<String>();
+
+    /**
+     * Whether the current record has a property without a value.
+     */
+    private boolean broken;
+
+    /**
+     * Opens a history file for reading.
+     *
+     * @param file the file
+     * @throws IOException if the file cannot be opened
+     * @throws XMLStreamException if the file cannot be parsed
+     */
+    public XmlHistoryStreamReader(File file)
+        throws IOException,
+               XMLStreamException
+    {
+        this.in = new BufferedInputStream(new FileInputStream(file));
+        try
+        {
+            this.parser = inputFactory.createXMLStreamReader(in);
+        }
+        catch (XMLStreamException e)
+        {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Moves to the next record of the file.
+     *
+     * @return <tt>true</tt> if there is a next record, <tt>false</tt> if the
+     * end of the file has been reached
+     * @throws XMLStreamException if the file cannot be parsed
+     */
+    public boolean nextRecord()
+        throws XMLStreamException
+    {
+        while (parser.hasNext())
+        {
+            if (parser.next() == XMLStreamConstants.START_ELEMENT
+                && "record".equals(parser.getLocalName()))
+            {
+                readRecord();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads the record the parser is positioned on.
+     *
+     * @throws XMLStreamException if the file cannot be parsed
+     */
+    private void readRecord()
+        throws XMLStreamException
+    {
+        ordinal++;
+        nameVals.clear();
+        broken = false;
+
+        String ts = parser.getAttributeValue(null, "timestamp");
+        try
+        {
+            timestamp = sdf.parse(ts);
+        }
+        catch (ParseException e)
+        {
+            timestamp = new Date(Long.parseLong(ts));
+        }
+
+        int event;
+        while ((event = parser.next()) != XMLStreamConstants.END_ELEMENT)
+        {
+            if (event != XMLStreamConstants.START_ELEMENT)
+                continue;
+
+            String name = parser.getLocalName();
+            String value = parser.getElementText();
+
+            if (value.length() == 0)
+            {
+                broken = true;
+            }
+            else
+            {
+                nameVals.add(name);
+                nameVals.add(value);
+            }
+        }
+    }
+
+    /**
+     * Returns the position of the current record in the file.
+     *
+     * @return the position of the current record in the file
+     */
+    public int getOrdinal()
+    {
+        return ordinal;
+    }
+
+    /**
+     * Returns the timestamp of the current record.
+     *
+     * @return the timestamp of the current record
+     */
+    public Date getTimestamp()
+    {
+        return timestamp;
+    }
+
+    /**
+     * Returns whether the current record has a property without a value.
+     *
+     * @return whether the current record has a property without a value
+     */
+    public boolean isBroken()
+    {
+        return broken;
+    }
+
+    /**
+     * Returns the names of the properties of the current record which have
+     * a value.
+     *
+     * @return the names of the properties of the current record
+     */
+    public String[] getPropertyNames()
+    {
+        String[] names = new String[nameVals.size() / 2];
+
+        for (int i = 0; i < names.length; i++)
+            names[i] = nameVals.get(i * 2);
+        return names;
+    }
+
+    /**
+     * Returns the values of the properties of the current record, in the
+     * order of <tt>getPropertyNames</tt>. The values are returned as stored,
+     * without unescaping them.
+     *
+     * @return the values of the properties of the current record
+     */
+    public String[] getPropertyValues()
+    {
+        String[] values = new String[nameVals.size() / 2];
+
+        for (int i = 0; i < values.length; i++)
+            values[i] = nameVals.get(i * 2 + 1);
+        return values;
+    }
+
+    /**
+     * Closes the file.
+     */
+    public void close()
+    {
+        try
+        {
+            parser.close();
+        }
+        catch (XMLStreamException e)
+        {
+            // the stream is closed below anyway
+        }
+        try
+        {
+            in.close();
+        }
+        catch (IOException e)
+        {
+            // nothing more can be done
+        }
+    }
+}
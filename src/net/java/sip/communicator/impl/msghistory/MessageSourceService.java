@@ -42,7 +42,8 @@ import org.jitsi.util.*;
  */
 public class MessageSourceService
     extends MetaContactListAdapter
-    implements ContactSourceService,
+    implements AsynchronousMetaContactListListener,
+               ContactSourceService,
                ContactPresenceStatusListener,
                ContactCapabilitiesListener,
                ProviderPresenceStatusListener,
@@ -17,6 +17,8 @@
  */
 package net.java.sip.communicator.impl.packetlogging;
 
+import net.java.sip.communicator.util.*;
+
 import org.jitsi.service.configuration.*;
 import org.jitsi.service.packetlogging.*;
 
@@ -29,6 +31,12 @@ import org.jitsi.service.packetlogging.*;
 public class PacketLoggingConfigurationImpl
     extends PacketLoggingConfiguration
 {
+    /**
+     * The number of packets out of which only one is logged, by protocol.
+     */
+    private final int[] samplingRates
+        = new int[PacketLoggingService.ProtocolName.values().length];
+
     /**
      * Creates new PacketLoggingConfiguration and load values from
      * configuration service and if missing uses already defined
@@ -72,6 +80,32 @@ public class PacketLoggingConfigurationImpl
             configService.getInt(
                 PACKET_LOGGING_FILE_COUNT_PROPERTY_NAME,
                 getLogfileCount()));
+
+        for (PacketLoggingService.ProtocolName protocol
+                : PacketLoggingService.ProtocolName.values())
+        {
+            samplingRates[protocol.ordinal()]
+                = Math.max(
+                    1,
+                    configService.getInt(
+                        DeferredPacketLoggingService
+                                .PACKET_LOGGING_SAMPLING_PROPERTY_NAME_PREFIX
+                            + protocol.name(),
+                        1));
+        }
+    }
+
+    /**
+     * Returns the number of packets of a protocol out of which only one is
+     * logged.
+     *
+     * @param protocol the protocol.
+     * @return the sampling rate of <tt>protocol</tt>, 1 to log all its
+     * packets.
+     */
+    int getSamplingRate(PacketLoggingService.ProtocolName protocol)
+    {
+        return samplingRates[protocol.ordinal()];
     }
 
     /**
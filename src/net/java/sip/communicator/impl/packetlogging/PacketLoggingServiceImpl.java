@@ -18,9 +18,12 @@
 package net.java.sip.communicator.impl.packetlogging;
 
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
 import java.util.*;
+import java.util.concurrent.atomic.*;
 
-import com.google.common.collect.*;
 import net.java.sip.communicator.util.*;
 
 import org.jitsi.service.fileaccess.*;
@@ -33,7 +36,7 @@ import org.jitsi.service.packetlogging.*;
  * @author Damian Minkov
  */
 public class PacketLoggingServiceImpl
-    implements PacketLoggingService
+    implements DeferredPacketLoggingService
 {
     /**
      * Our Logger.
@@ -41,11 +44,59 @@ public class PacketLoggingServiceImpl
     private static final Logger logger
             = Logger.getLogger(PacketLoggingServiceImpl.class);
 
+    /**
+     * The number of packets which can wait to be saved. When the file cannot
+     * keep up with the packets, the ones which do not fit are dropped and
+     * counted.
+     */
+    private static final int QUEUE_CAPACITY = 2048;
+
+    /**
+     * The size of the packet buffers of the queue, packets of this size or
+     * smaller, like the RTP ones, never cause any allocation.
+     */
+    private static final int DEFAULT_PACKET_SIZE = 1500;
+
+    /**
+     * The size of the buffer the packets are written to before going to the
+     * file.
+     */
+    private static final int WRITE_BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * The minimum number of milliseconds between two warnings about dropped
+     * packets.
+     */
+    private static final long DROP_WARNING_INTERVAL = 10000;
+
+    /**
+     * The number of milliseconds we wait on stop for the queued packets to
+     * be saved.
+     */
+    private static final long STOP_TIMEOUT = 2000;
+
     /**
      * The OutputStream we are currently writing to.
      */
     private FileOutputStream outputStream = null;
 
+    /**
+     * The channel of <tt>outputStream</tt>.
+     */
+    private FileChannel outputChannel = null;
+
+    /**
+     * The buffer the packets are written to before going to the file, in
+     * the byte order of the pcap headers.
+     */
+    private ByteBuffer writeBuffer = null;
+
+    /**
+     * The buffer the deferred packet contents are encoded to when they are
+     * saved, reused for all of them.
+     */
+    private final ContentBuffer contentBuffer = new ContentBuffer();
+
     /**
      * The thread that queues packets and saves them to file.
      */
@@ -56,6 +107,12 @@ public class PacketLoggingServiceImpl
      */
     private PacketLoggingConfiguration packetLoggingConfiguration = null;
 
+    /**
+     * The number of packets which were checked for sampling, by protocol.
+     */
+    private final AtomicLongArray sampledCounts
+        = new AtomicLongArray(ProtocolName.values().length);
+
     /**
      * The fake ethernet header we use as template.
      */
@@ -130,6 +187,26 @@ public class PacketLoggingServiceImpl
                 (byte)0x6e, (byte)0xcc, (byte)0x76, (byte)0xbd  // options
             };
 
+    /**
+     * The ipv4 header of the packet being saved.
+     */
+    private final byte[] ipHeader = ipHeaderTemplate.clone();
+
+    /**
+     * The ipv6 header of the packet being saved.
+     */
+    private final byte[] ip6Header = ip6HeaderTemplate.clone();
+
+    /**
+     * The udp header of the packet being saved.
+     */
+    private final byte[] udpHeader = udpHeaderTemplate.clone();
+
+    /**
+     * The tcp header of the packet being saved.
+     */
+    private final byte[] tcpHeader = tcpHeaderTemplate.clone();
+
     /**
      * Using this object to lock and protectd the two counters
      * used for tcp seq and ack numbers.
@@ -196,7 +273,7 @@ public class PacketLoggingServiceImpl
     {
         if(outputStream != null)
         {
-            outputStream.flush();
+            flushWriteBuffer();
             outputStream.close();
         }
 
@@ -214,79 +291,89 @@ public class PacketLoggingServiceImpl
         }
 
         outputStream = new FileOutputStream(files[0]);
+        outputChannel = outputStream.getChannel();
+        if(writeBuffer == null)
+        {
+            writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        }
         written = 0;
         createGlobalHeader();
     }
 
     /**
-     * Stops the packet logging.
+     * Stops the packet logging, the packets already queued are saved before
+     * the file is closed.
      */
     public void stop()
     {
         saverThread.stopRunning();
 
+        try
+        {
+            saverThread.join(STOP_TIMEOUT);
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Flushes and closes the file we are writing to.
+     */
+    private void closeOutput()
+    {
         if(outputStream != null)
         {
             try
             {
-                outputStream.flush();
+                flushWriteBuffer();
                 outputStream.close();
             }
             catch(IOException e)
             {
-                e.printStackTrace();
+                logger.error("Error closing packet log file", e);
             }
             finally
             {
                 outputStream = null;
+                outputChannel = null;
             }
         }
     }
 
+    /**
+     * Returns the number of packets which were not saved because they
+     * arrived faster than they could be written to the file.
+     *
+     * @return the number of dropped packets.
+     */
+    public long getDroppedPacketCount()
+    {
+        return saverThread.getDroppedCount();
+    }
+
     /**
      * Creates pcap file global header.
-     * @throws IOException
      */
     private void createGlobalHeader()
-            throws IOException
     {
-        /* magic number(swapped) */
-        outputStream.write(0xd4);
-        outputStream.write(0xc3);
-        outputStream.write(0xb2);
-        outputStream.write(0xa1);
-
-        /* major version number */
-        outputStream.write(0x02);
-        outputStream.write(0x00);
-
-        /* minor version number */
-        outputStream.write(0x04);
-        outputStream.write(0x00);
-
-        /* GMT to local correction */
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-
-        /* accuracy of timestamps */
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-
-        /* max length of captured packets, in octets */
-        outputStream.write(0xff);
-        outputStream.write(0xff);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-
-        /* data link type(ethernet) */
-        outputStream.write(0x01);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
+        writeBuffer
+            /* magic number(swapped) */
+            .putInt(0xa1b2c3d4)
+            /* major version number */
+            .putShort((short) 2)
+            /* minor version number */
+            .putShort((short) 4)
+            /* GMT to local correction */
+            .putInt(0)
+            /* accuracy of timestamps */
+            .putInt(0)
+            /* max length of captured packets, in octets */
+            .putInt(0xffff)
+            /* data link type(ethernet) */
+            .putInt(1);
     }
 
     /**
@@ -388,17 +475,74 @@ public class PacketLoggingServiceImpl
             int packetOffset,
             int packetLength)
     {
-        saverThread.queuePacket(
-            new Packet(protocol,
-                       sourceAddress,
-                       sourcePort,
-                       destinationAddress,
-                       destinationPort,
-                       transport,
-                       sender,
-                       packetContent,
-                       packetOffset,
-                       packetLength));
+        saverThread.queuePacket(protocol,
+                                sourceAddress,
+                                sourcePort,
+                                destinationAddress,
+                                destinationPort,
+                                transport,
+                                sender,
+                                packetContent,
+                                packetOffset,
+                                packetLength,
+                                null,
+                                System.currentTimeMillis());
+    }
+
+    /**
+     * Log a packet whose content is written by the thread saving the packets,
+     * only if it is saved.
+     *
+     * @param protocol the source protocol that logs this packet.
+     * @param sourceAddress the source address of the packet.
+     * @param sourcePort the source port of the packet.
+     * @param destinationAddress the destination address.
+     * @param destinationPort the destination port.
+     * @param transport the transport this packet uses.
+     * @param sender are we the sender of the packet or not.
+     * @param packetContent gives the packet content.
+     */
+    public void logPacket(
+            ProtocolName protocol,
+            byte[] sourceAddress,
+            int sourcePort,
+            byte[] destinationAddress,
+            int destinationPort,
+            TransportName transport,
+            boolean sender,
+            PacketContent packetContent)
+    {
+        saverThread.queuePacket(protocol,
+                                sourceAddress,
+                                sourcePort,
+                                destinationAddress,
+                                destinationPort,
+                                transport,
+                                sender,
+                                null,
+                                0,
+                                0,
+                                packetContent,
+                                System.currentTimeMillis());
+    }
+
+    /**
+     * Determines whether the next packet of a protocol is part of the sample
+     * to log, which is every packet unless the configuration says otherwise.
+     *
+     * @param protocol the protocol of the packet.
+     * @return <tt>true</tt> if the packet is to be logged.
+     */
+    public boolean isSampled(ProtocolName protocol)
+    {
+        int rate
+            = ((PacketLoggingConfigurationImpl) getConfiguration())
+                .getSamplingRate(protocol);
+
+        return
+            (rate <= 1)
+                || (sampledCounts.getAndIncrement(protocol.ordinal()) % rate
+                    == 0);
     }
 
     /**
@@ -415,28 +559,87 @@ public class PacketLoggingServiceImpl
     }
 
     /**
-     * Dump the packet to the output file stream.
+     * Dumps a batch of queued packets to the output file and flushes it,
+     * rotating the files when they reach the configured limit.
      *
-     * @param packet the packet ot save.
+     * @param packets the queue of packets.
+     * @param first the index of the first packet to save in the queue.
+     * @param count the number of packets to save.
      * @throws Exception when error occurs saving to file stream or when
      *  rotating files.
      */
-    private void savePacket(Packet packet)
+    private void savePackets(Packet[] packets, int first, int count)
         throws Exception
+    {
+        // open files only if needed
+        if(outputStream == null)
+        {
+            getFileNames();
+            rotateFiles();// this one opens the file for write
+        }
+
+        long limit = getConfiguration().getLimit();
+
+        for(int i = 0; i < count; i++)
+        {
+            Packet packet = packets[(first + i) % packets.length];
+            byte[] content = packet.packetContent;
+            int length = packet.packetLength;
+
+            if(packet.deferredContent != null)
+            {
+                contentBuffer.reset();
+                try
+                {
+                    contentBuffer.encode(packet.deferredContent.getText());
+                }
+                catch(Exception e)
+                {
+                    logger.error("Cannot obtain packet content", e);
+                    continue;
+                }
+                finally
+                {
+                    // do not keep the message until the slot is reused
+                    packet.deferredContent = null;
+                }
+                content = contentBuffer.getBuffer();
+                length = contentBuffer.size();
+            }
+
+            if((limit > 0) && (written > limit))
+                rotateFiles();
+
+            savePacket(packet, content, length);
+        }
+
+        flushWriteBuffer();
+    }
+
+    /**
+     * Dump the packet to the write buffer, which is flushed to the output
+     * file when full.
+     *
+     * @param packet the packet ot save.
+     * @param content the array containing the packet content, starting at its
+     * beginning.
+     * @param length the length of the packet content.
+     * @throws IOException when error occurs saving to file stream.
+     */
+    private void savePacket(Packet packet, byte[] content, int length)
+        throws IOException
     {
         // if one of the addresses is ipv4 we are using ipv4,
         // local udp addresses come as 0.0.0.0.0....0.0.0 when
         // ipv6 is enabled in the underlying os
-        boolean isIPv4 = packet.sourceAddress.length == 4
-                || packet.destinationAddress.length == 4;
+        boolean isIPv4 = packet.sourceAddressLength == 4
+                || packet.destinationAddressLength == 4;
 
         byte[] ipHeader;
 
         if(isIPv4)
         {
-            ipHeader = new byte[ipHeaderTemplate.length];
-            System.arraycopy(
-                    ipHeaderTemplate, 0, ipHeader, 0, ipHeader.length);
+            ipHeader = this.ipHeader;
             System.arraycopy(packet.sourceAddress,
                     0,
                     ipHeader,
@@ -450,9 +653,7 @@ public class PacketLoggingServiceImpl
         }
         else
         {
-            ipHeader = new byte[ip6HeaderTemplate.length];
-            System.arraycopy(
-                    ip6HeaderTemplate, 0, ipHeader, 0, ipHeader.length);
+            ipHeader = ip6Header;
             System.arraycopy(packet.sourceAddress,
                     0,
                     ipHeader,
@@ -470,26 +671,21 @@ public class PacketLoggingServiceImpl
         short len;
         if(packet.transport == TransportName.UDP)
         {
-            byte[] udpHeader = new byte[udpHeaderTemplate.length];
             transportHeader = udpHeader;
-            System.arraycopy(udpHeaderTemplate, 0,
-                    udpHeader, 0, udpHeader.length);
 
             writeShort(packet.sourcePort, udpHeader, 0);
             writeShort(packet.destinationPort, udpHeader, 2);
-            len = (short)(packet.packetLength + udpHeader.length);
+            len = (short)(length + udpHeader.length);
             writeShort(len, udpHeader, 4);
         }
         else
         {
-            transportHeader = new byte[tcpHeaderTemplate.length];
-            System.arraycopy(tcpHeaderTemplate, 0, transportHeader,
-                   0, transportHeader.length);
+            transportHeader = tcpHeader;
 
             writeShort(packet.sourcePort, transportHeader, 0);
             writeShort(packet.destinationPort, transportHeader, 2);
 
-            len = (short)(packet.packetLength + transportHeader.length);
+            len = (short)(length + transportHeader.length);
 
             if(packet.sender)
             {
@@ -498,7 +694,7 @@ public class PacketLoggingServiceImpl
                 synchronized(tcpCounterLock)
                 {
                     seqnum = srcCount;
-                    srcCount += packet.packetLength;
+                    srcCount += length;
                     acknum = dstCount;
                 }
 
@@ -514,7 +710,7 @@ public class PacketLoggingServiceImpl
                 synchronized(tcpCounterLock)
                 {
                     seqnum = dstCount;
-                    dstCount += packet.packetLength;
+                    dstCount += length;
                     acknum = srcCount;
                 }
 
@@ -536,6 +732,10 @@ public class PacketLoggingServiceImpl
             else
                 ipHeader[9] = (byte)0x06;
 
+           // the header is reused, clear the check sum of the previous packet
+           ipHeader[10] = 0;
+           ipHeader[11] = 0;
+
            int chk2 = computeChecksum(ipHeader);
            ipHeader[10] = (byte) (chk2 >> 8);
            ipHeader[11] = (byte) (chk2 & 0xff);
@@ -550,58 +750,71 @@ public class PacketLoggingServiceImpl
                 ipHeader[6] = (byte)0x06;
         }
 
-        long current = System.currentTimeMillis();
-        int tsSec = (int)(current/1000);
-        int tsUsec = (int)((current%1000) * 1000);
+        int tsSec = (int)(packet.timestamp/1000);
+        int tsUsec = (int)((packet.timestamp%1000) * 1000);
         int feakHeaderLen = fakeEthernetHeader.length +
                 ipHeader.length + transportHeader.length;
-        int inclLen = packet.packetLength + feakHeaderLen;
+        int inclLen = length + feakHeaderLen;
         int origLen = inclLen;
 
-        synchronized(this)
+        if(writeBuffer.remaining() < inclLen + 16)
+            flushWriteBuffer();
+
+        writeBuffer
+            .putInt(tsSec)
+            .putInt(tsUsec)
+            .putInt(inclLen)
+            .putInt(origLen)
+            .put(fakeEthernetHeader)
+            .put(ipHeader)
+            .put(transportHeader);
+
+        if(writeBuffer.remaining() < length)
         {
-            // open files only if needed
-            if(outputStream == null)
-            {
-                getFileNames();
-                rotateFiles();// this one opens the file for write
-            }
+            // only a packet bigger than the whole buffer gets here
+            flushWriteBuffer();
+            writeFully(
+                ByteBuffer.wrap(content, 0, length));
+        }
+        else
+            writeBuffer.put(content, 0, length);
 
-            long limit = getConfiguration().getLimit();
+        written += inclLen + 16;
+    }
 
-            if((limit > 0) && (written > limit))
-                rotateFiles();
+    /**
+     * Writes the content of the write buffer to the file and clears it.
+     *
+     * @throws IOException
+     */
+    private void flushWriteBuffer()
+        throws IOException
+    {
+        if(writeBuffer.position() == 0)
+            return;
 
-            addInt(tsSec);
-            addInt(tsUsec);
-            addInt(inclLen);
-            addInt(origLen);
-
-            outputStream.write(fakeEthernetHeader);
-            outputStream.write(ipHeader);
-            outputStream.write(transportHeader);
-            outputStream.write(
-                    packet.packetContent,
-                    packet.packetOffset,
-                    packet.packetLength);
-            outputStream.flush();
-
-            written += inclLen + 16;
+        writeBuffer.flip();
+        try
+        {
+            writeFully(writeBuffer);
+        }
+        finally
+        {
+            writeBuffer.clear();
         }
     }
 
     /**
-     * Writes int to the file. Used for packet headers.
-     * @param d the value to write.
+     * Writes all the remaining bytes of a buffer to the file.
+     *
+     * @param buffer the buffer to write.
      * @throws IOException
      */
-    private void addInt(int d)
+    private void writeFully(ByteBuffer buffer)
         throws IOException
     {
-        outputStream.write ((d & 0xff));
-        outputStream.write(((d & 0xff00) >> 8));
-        outputStream.write(((d & 0xff0000) >> 16));
-        outputStream.write(((d & 0xff000000) >> 24));
+        while(buffer.hasRemaining())
+            outputChannel.write(buffer);
     }
 
     /**
@@ -660,7 +873,9 @@ public class PacketLoggingServiceImpl
     }
 
     /**
-     * The data we receive and that we will dump in a file.
+     * The data we receive and that we will dump in a file. The packets are
+     * the reused slots of the queue of the <tt>SaverThread</tt>, the data is
+     * copied in them so that the callers can reuse their buffers.
      */
     private static class Packet
     {
@@ -672,7 +887,12 @@ public class PacketLoggingServiceImpl
         /**
          * The source address of the packet.
          */
-        byte[] sourceAddress;
+        final byte[] sourceAddress = new byte[16];
+
+        /**
+         * The length of the source address of the packet.
+         */
+        int sourceAddressLength;
 
         /**
          * The source port of the packet.
@@ -682,7 +902,12 @@ public class PacketLoggingServiceImpl
         /**
          * The destination address of the packet.
          */
-        byte[] destinationAddress;
+        final byte[] destinationAddress = new byte[16];
+
+        /**
+         * The length of the destination address of the packet.
+         */
+        int destinationAddressLength;
 
         /**
          * The destination port of the packet.
@@ -700,22 +925,28 @@ public class PacketLoggingServiceImpl
         boolean sender;
 
         /**
-         * Array containing packet content.
+         * Array containing packet content, starting at its beginning.
          */
-        byte[] packetContent;
+        byte[] packetContent = null;
 
         /**
-         * The offset in the packetContent where packet content is.
+         * The length of the packet content.
          */
-        int packetOffset;
+        int packetLength;
 
         /**
-         * The length of the packet content.
+         * Gives the packet content when it is saved, <tt>null</tt> if the
+         * content is in <tt>packetContent</tt>.
          */
-        int packetLength;
+        PacketContent deferredContent;
+
+        /**
+         * The time the packet was logged at.
+         */
+        long timestamp;
 
         /**
-         * Creates a packet with the needed data.
+         * Copies the data of a packet.
          * @param protocol the source protocol that logs this packet.
          * @param sourceAddress The source address of the packet.
          * @param sourcePort The source port of the packet.
@@ -728,34 +959,157 @@ public class PacketLoggingServiceImpl
          * @param packetOffset The offset in the packetContent
          *  where packet content is.
          * @param packetLength The length of the packet content.
+         * @param deferredContent gives the packet content when it is saved,
+         *  <tt>null</tt> if the content is in <tt>packetContent</tt>.
+         * @param timestamp The time the packet was logged at.
          */
-        private Packet(ProtocolName protocol,
-                       byte[] sourceAddress,
-                       int sourcePort,
-                       byte[] destinationAddress,
-                       int destinationPort,
-                       TransportName transport,
-                       boolean sender,
-                       byte[] packetContent,
-                       int packetOffset,
-                       int packetLength)
+        void set(ProtocolName protocol,
+                 byte[] sourceAddress,
+                 int sourcePort,
+                 byte[] destinationAddress,
+                 int destinationPort,
+                 TransportName transport,
+                 boolean sender,
+                 byte[] packetContent,
+                 int packetOffset,
+                 int packetLength,
+                 PacketContent deferredContent,
+                 long timestamp)
         {
             this.protocol = protocol;
-            this.sourceAddress = sourceAddress;
+            this.sourceAddressLength
+                = copyAddress(sourceAddress, this.sourceAddress);
             this.sourcePort = sourcePort;
-            this.destinationAddress = destinationAddress;
+            this.destinationAddressLength
+                = copyAddress(destinationAddress, this.destinationAddress);
             this.destinationPort = destinationPort;
             this.transport = transport;
             this.sender = sender;
-            this.packetContent = packetContent;
-            this.packetOffset = packetOffset;
-            this.packetLength = packetLength;
+
+            this.deferredContent = deferredContent;
+
+            if(deferredContent == null)
+            {
+                if((this.packetContent == null)
+                        || (this.packetContent.length < packetLength))
+                {
+                    this.packetContent
+                        = new byte[
+                                Math.max(packetLength, DEFAULT_PACKET_SIZE)];
+                }
+                System.arraycopy(
+                        packetContent, packetOffset,
+                        this.packetContent, 0,
+                        packetLength);
+                this.packetLength = packetLength;
+            }
+            else
+                this.packetLength = 0;
+            this.timestamp = timestamp;
+        }
+
+        /**
+         * Copies an address and clears what is left of the destination.
+         *
+         * @param address the address to copy, may be <tt>null</tt>.
+         * @param destination the array to copy it into.
+         * @return the length of the address.
+         */
+        private static int copyAddress(byte[] address, byte[] destination)
+        {
+            int length
+                = (address == null)
+                    ? 0
+                    : Math.min(address.length, destination.length);
+
+            if(length > 0)
+                System.arraycopy(address, 0, destination, 0, length);
+            Arrays.fill(destination, length, destination.length, (byte) 0);
+            return length;
+        }
+    }
+
+    /**
+     * A <tt>ByteArrayOutputStream</tt> giving access to its buffer, so that
+     * the deferred packet contents are saved without being copied, and
+     * encoding text straight into it.
+     */
+    private static class ContentBuffer
+        extends ByteArrayOutputStream
+    {
+        /**
+         * The encoder of the text of the packets, replacing what cannot be
+         * encoded like <tt>String.getBytes</tt> does.
+         */
+        private final CharsetEncoder encoder
+            = Charset.forName("UTF-8").newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        /**
+         * Initializes a new <tt>ContentBuffer</tt>.
+         */
+        ContentBuffer()
+        {
+            super(DEFAULT_PACKET_SIZE);
+        }
+
+        /**
+         * Appends text encoded in UTF-8, growing the buffer when it is full.
+         *
+         * @param text the text to append.
+         */
+        void encode(CharSequence text)
+        {
+            CharBuffer in = CharBuffer.wrap(text);
+            CoderResult result;
+
+            encoder.reset();
+            // the packets are mostly ASCII, one byte per char
+            grow(in.remaining());
+            do
+            {
+                ByteBuffer out = ByteBuffer.wrap(buf, count, buf.length - count);
+
+                result = encoder.encode(in, out, true);
+                if (result.isUnderflow())
+                    result = encoder.flush(out);
+                count = out.position();
+                if (result.isOverflow())
+                    grow(Math.max(buf.length, in.remaining()));
+            }
+            while (result.isOverflow());
+        }
+
+        /**
+         * Makes room in the buffer for at least the specified number of
+         * bytes.
+         *
+         * @param length the number of bytes to make room for.
+         */
+        private void grow(int length)
+        {
+            if (buf.length - count < length)
+                buf = Arrays.copyOf(buf, count + length);
+        }
+
+        /**
+         * Returns the buffer of this stream, containing its <tt>size()</tt>
+         * bytes.
+         *
+         * @return the buffer of this stream.
+         */
+        byte[] getBuffer()
+        {
+            return buf;
         }
     }
 
     /**
      * Dumps packet in separate thread so we don't block
-     * our calling thread.
+     * our calling thread. The packets wait in a ring of preallocated slots
+     * and are written by batches, the callers only copy them and never wait
+     * for the file.
      */
     private class SaverThread
         extends Thread
@@ -763,12 +1117,29 @@ public class PacketLoggingServiceImpl
         /**
          * start/stop indicator.
          */
-        private boolean stopped = true;
+        private boolean stopped = false;
 
         /**
-         * List of packets queued to be written in the file.
+         * The ring of packets queued to be written in the file, created with
+         * the first packet.
          */
-        private final Queue<Packet> pktsToSave = EvictingQueue.create(10);
+        private Packet[] pktsToSave = null;
+
+        /**
+         * The index of the first packet to save in <tt>pktsToSave</tt>.
+         */
+        private int head = 0;
+
+        /**
+         * The number of packets to save in <tt>pktsToSave</tt>, including
+         * the ones being saved.
+         */
+        private int count = 0;
+
+        /**
+         * The number of packets dropped because the queue was full.
+         */
+        private long droppedCount = 0;
 
         /**
          * Initializes a new <tt>SaverThread</tt>.
@@ -779,39 +1150,52 @@ public class PacketLoggingServiceImpl
         }
 
         /**
-         * Sends instant messages in separate thread so we don't block
+         * Saves the queued packets in separate thread so we don't block
          * our calling thread.
          */
         @Override
         public void run()
         {
-            stopped = false;
-            while(!stopped)
-            {
-                Packet pktToSave;
+            long reportedDroppedCount = 0;
+            long lastDropWarning = 0;
 
-                synchronized(this)
+            try
+            {
+                while(true)
                 {
-                    if(pktsToSave.isEmpty())
+                    Packet[] packets;
+                    int first;
+                    int batchCount;
+                    long dropped;
+
+                    synchronized(this)
                     {
-                        try
+                        while((count == 0) && !stopped)
                         {
-                            wait();
+                            try
+                            {
+                                wait();
+                            }
+                            catch (InterruptedException iex)
+                            {
+                            }
                         }
-                        catch (InterruptedException iex)
-                        {
-                        }
-                        continue;
-                    }
 
-                    pktToSave = pktsToSave.poll();
-                }
+                        // stopped and everything saved
+                        if(count == 0)
+                            break;
 
-                if(pktToSave != null)
-                {
+                        packets = pktsToSave;
+                        first = head;
+                        batchCount = count;
+                        dropped = droppedCount;
+                    }
+
+                    // the slots of the batch are not touched by the callers
+                    // until we release them
                     try
                     {
-                        savePacket(pktToSave);
+                        savePackets(packets, first, batchCount);
                     }
                     catch(Throwable t)
                     {
@@ -824,8 +1208,31 @@ public class PacketLoggingServiceImpl
                         else
                             logger.error("Error writing packet to file", t);
                     }
+
+                    synchronized(this)
+                    {
+                        head = (head + batchCount) % pktsToSave.length;
+                        count -= batchCount;
+                    }
+
+                    long now = System.currentTimeMillis();
+
+                    if((dropped > reportedDroppedCount)
+                            && (now - lastDropWarning >= DROP_WARNING_INTERVAL))
+                    {
+                        logger.warn("Dropped "
+                            + (dropped - reportedDroppedCount)
+                            + " packets which could not be saved in time, "
+                            + dropped + " since the start");
+                        reportedDroppedCount = dropped;
+                        lastDropWarning = now;
+                    }
                 }
             }
+            finally
+            {
+                closeOutput();
+            }
         }
 
         /**
@@ -838,13 +1245,79 @@ public class PacketLoggingServiceImpl
         }
 
         /**
-         * Schedule new packet for save.
-         * @param packet new packet to save.
+         * Returns the number of packets dropped because the queue was full.
+         *
+         * @return the number of dropped packets.
          */
-        public synchronized void queuePacket(Packet packet)
+        public synchronized long getDroppedCount()
         {
-            pktsToSave.add(packet);
-            notifyAll();
+            return droppedCount;
+        }
+
+        /**
+         * Schedule new packet for save, the packet is dropped if the queue
+         * is full.
+         * @param protocol the source protocol that logs this packet.
+         * @param sourceAddress the source address of the packet.
+         * @param sourcePort the source port of the packet.
+         * @param destinationAddress the destination address.
+         * @param destinationPort the destination port.
+         * @param transport the transport this packet uses.
+         * @param sender are we the sender of the packet or not.
+         * @param packetContent the packet content.
+         * @param packetOffset the packet content offset.
+         * @param packetLength the packet content length.
+         * @param deferredContent gives the packet content when it is saved,
+         *  <tt>null</tt> if the content is in <tt>packetContent</tt>.
+         * @param timestamp the time the packet was logged at.
+         */
+        public synchronized void queuePacket(
+                ProtocolName protocol,
+                byte[] sourceAddress,
+                int sourcePort,
+                byte[] destinationAddress,
+                int destinationPort,
+                TransportName transport,
+                boolean sender,
+                byte[] packetContent,
+                int packetOffset,
+                int packetLength,
+                PacketContent deferredContent,
+                long timestamp)
+        {
+            if(stopped)
+                return;
+
+            if(pktsToSave == null)
+            {
+                pktsToSave = new Packet[QUEUE_CAPACITY];
+                for(int i = 0; i < pktsToSave.length; i++)
+                    pktsToSave[i] = new Packet();
+            }
+
+            if(count == pktsToSave.length)
+            {
+                droppedCount++;
+                return;
+            }
+
+            pktsToSave[(head + count) % pktsToSave.length].set(
+                    protocol,
+                    sourceAddress,
+                    sourcePort,
+                    destinationAddress,
+                    destinationPort,
+                    transport,
+                    sender,
+                    packetContent,
+                    packetOffset,
+                    packetLength,
+                    deferredContent,
+                    timestamp);
+
+            // the thread only waits when there is nothing to save
+            if(count++ == 0)
+                notifyAll();
         }
     }
 }
@@ -2003,40 +2003,36 @@ public class OperationSetPersistentPresenceJabberImpl
                     VCardTempXUpdatePresenceExtension.NAMESPACE);
         if(defaultPacketExtension != null)
         {
-            try
+            String packetPhotoSHA1 = defaultPacketExtension.getValue("photo");
+            // If this presence packet has a photo tag with a SHA-1 hash
+            // which differs from the current avatar SHA-1 hash, then Jitsi
+            // retrieves the new avatar image and updates this contact image
+            // in the contact list.
+            if(packetPhotoSHA1 != null
+                    && !packetPhotoSHA1.equals(
+                        VCardTempXUpdatePresenceExtension.getImageSha1(
+                            currentAvatar))
+              )
             {
-                String packetPhotoSHA1 =
-                    defaultPacketExtension.getValue("photo");
-                // If this presence packet has a photo tag with a SHA-1 hash
-                // which differs from the current avatar SHA-1 hash, then Jitsi
-                // retrieves the new avatar image and updates this contact image
-                // in the contact list.
-                if(packetPhotoSHA1 != null
-                        && !packetPhotoSHA1.equals(
-                            VCardTempXUpdatePresenceExtension.getImageSha1(
-                                currentAvatar))
-                  )
+                // If there is an avatar image, retrieves it out of the
+                // thread dispatching the packets, from the disk cache if it
+                // is already there.
+                if(packetPhotoSHA1.length() != 0)
                 {
-                    byte[] newAvatar = null;
-
-                    // If there is an avatar image, retrieves it.
-                    if(packetPhotoSHA1.length() != 0)
-                    {
-                        // Retrieves the new contact avatar image.
-                        VCard vCard = new VCard();
-                        vCard.load(parentProvider.getConnection(), userID);
-                        newAvatar = vCard.getAvatar();
-                    }
-                    // Else removes the current avatar image, since the contact
-                    // has removed it from the server.
-                    else
-                    {
-                        newAvatar = new byte[0];
-                    }
+                    ssContactList.addContactForImageUpdate(
+                        sourceContact,
+                        packetPhotoSHA1);
+                }
+                // Else removes the current avatar image, since the contact
+                // has removed it from the server.
+                else
+                {
+                    byte[] newAvatar = new byte[0];
 
                     // Sets the new avatar image to the Jitsi contact.
                     sourceContact.setImage(newAvatar);
-                    // Fires a property change event to update the contact list.
+                    // Fires a property change event to update the contact
+                    // list.
                     this.fireContactPropertyChangeEvent(
                         ContactPropertyChangeEvent.PROPERTY_IMAGE,
                         sourceContact,
@@ -2044,12 +2040,6 @@ public class OperationSetPersistentPresenceJabberImpl
                         newAvatar);
                 }
             }
-            catch(XMPPException ex)
-            {
-                logger.info("Cannot retrieve vCard from: " + packet.getFrom());
-                if(logger.isTraceEnabled())
-                    logger.trace("vCard retrieval exception was: ", ex);
-            }
         }
     }
 
@@ -508,10 +508,7 @@ public class ScServiceDiscoveryManager
                 return discoverInfo;
         }
 
-        discoverInfo
-            = discoverInfo(
-                    entityID,
-                    (caps == null) ? null : caps.getNodeVer());
+        discoverInfo = discoverInfoByCaps(entityID, caps);
 
         if ((caps != null) && !caps.isValid(discoverInfo))
         {
@@ -524,16 +521,44 @@ public class ScServiceDiscoveryManager
             caps = null;
         }
 
-        if (caps == null)
-        {
-            if (cacheNonCaps)
-                nonCapsCache.put(entityID, discoverInfo);
-        }
-        else
-            EntityCapsManager.addDiscoverInfoByCaps(caps, discoverInfo);
+        if ((caps == null) && cacheNonCaps)
+            nonCapsCache.put(entityID, discoverInfo);
         return discoverInfo;
     }
 
+    /**
+     * Returns the discovered information of a given XMPP entity advertising
+     * given caps. The entity is not queried if the caps are known or if the
+     * same caps are being queried, for this account or another one. The
+     * information matching the caps is added to the caps database.
+     *
+     * @param entityID the address of the XMPP entity.
+     * @param caps the caps advertised by the entity or <tt>null</tt> if it
+     * advertises none.
+     * @return the discovered information.
+     * @throws XMPPException if the operation failed for some reason.
+     */
+    private DiscoverInfo discoverInfoByCaps(
+            final String entityID,
+            final EntityCapsManager.Caps caps)
+        throws XMPPException
+    {
+        if (caps == null)
+            return discoverInfo(entityID, null);
+
+        return
+            EntityCapsManager.getDiscoverInfoByCaps(
+                    caps,
+                    new EntityCapsManager.DiscoverInfoQuery()
+                    {
+                        public DiscoverInfo query()
+                            throws XMPPException
+                        {
+                            return discoverInfo(entityID, caps.getNodeVer());
+                        }
+                    });
+    }
+
     /**
      * Returns the discovered information of a given XMPP entity addressed by
      * its JID if locally cached, otherwise schedules for retrieval.
@@ -759,9 +784,7 @@ public class ScServiceDiscoveryManager
         {
             try
             {
-                DiscoverInfo discoverInfo = discoverInfo(
-                            entityID,
-                            (caps == null ) ? null : caps.getNodeVer());
+                DiscoverInfo discoverInfo = discoverInfoByCaps(entityID, caps);
 
                 if ((caps != null) && !caps.isValid(discoverInfo))
                 {
@@ -784,10 +807,7 @@ public class ScServiceDiscoveryManager
                     }
                 }
                 else
-                {
-                    EntityCapsManager.addDiscoverInfoByCaps(caps, discoverInfo);
                     fireEvent = true;
-                }
 
                 // fire event
                 if(fireEvent && capabilitiesOpSet != null)
@@ -50,6 +50,23 @@ public class ServerStoredContactListJabberImpl
     private static final Logger logger =
         Logger.getLogger(ServerStoredContactListJabberImpl.class);
 
+    /**
+     * The maximum number of threads retrieving the images of the contacts.
+     */
+    private static final int MAX_IMAGE_RETRIEVERS = 4;
+
+    /**
+     * The minimum number of milliseconds between two image requests to the
+     * same server.
+     */
+    private static final long IMAGE_REQUEST_INTERVAL = 50;
+
+    /**
+     * The number of milliseconds after which a thread retrieving images stops
+     * if there is nothing to retrieve.
+     */
+    private static final long IMAGE_RETRIEVER_KEEP_ALIVE = 10000;
+
     /**
      * The jabber list that we encapsulate
      */
@@ -80,10 +97,15 @@ public class ServerStoredContactListJabberImpl
         = new Vector<ServerStoredGroupListener>();
 
     /**
-     *  Thread retreiving images for contacts
+     *  Threads retreiving images for contacts
      */
     private ImageRetriever imageRetriever = null;
 
+    /**
+     * Lock object for the imageRetriever variable.
+     */
+    private final Object imageRetrieverLock = new Object();
+
     /**
      * Listens for roster changes.
      */
@@ -948,10 +970,13 @@ public class ServerStoredContactListJabberImpl
      */
     void cleanup()
     {
-        if(imageRetriever != null)
+        synchronized (imageRetrieverLock)
         {
-            imageRetriever.quit();
-            imageRetriever = null;
+            if(imageRetriever != null)
+            {
+                imageRetriever.quit();
+                imageRetriever = null;
+            }
         }
 
         if(this.roster != null)
@@ -1250,18 +1275,35 @@ public class ServerStoredContactListJabberImpl
      * @param contact ContactJabberImpl
      */
     protected void addContactForImageUpdate(ContactJabberImpl contact)
+    {
+        addContactForImageUpdate(contact, null);
+    }
+
+    /**
+     * Adds a contact for image update after its presence announced a new
+     * avatar. The avatar is requested only if the one cached on disk does not
+     * match <tt>photoHash</tt>.
+     *
+     * @param contact ContactJabberImpl
+     * @param photoHash the SHA-1 hash of the new avatar or <tt>null</tt> if
+     * the image is only missing
+     */
+    void addContactForImageUpdate(ContactJabberImpl contact, String photoHash)
     {
         if(contact instanceof VolatileContactJabberImpl
             && ((VolatileContactJabberImpl)contact).isPrivateMessagingContact())
             return;
 
-        if(imageRetriever == null)
+        ImageRetriever imageRetriever;
+
+        synchronized (imageRetrieverLock)
         {
-            imageRetriever = new ImageRetriever();
-            imageRetriever.start();
+            if(this.imageRetriever == null)
+                this.imageRetriever = new ImageRetriever();
+            imageRetriever = this.imageRetriever;
         }
 
-        imageRetriever.addContact(contact);
+        imageRetriever.addContact(contact, photoHash);
     }
 
     /**
@@ -1704,134 +1746,367 @@ public class ServerStoredContactListJabberImpl
     }
 
     /**
-     * Thread retrieving images.
+     * Retrieves the images of the contacts in a few threads. The contacts
+     * requested by the contact list, which asks for the images of the contacts
+     * it shows, are served first, the ones whose presence announced a new
+     * avatar after them. The requests to a same server are spaced out so that
+     * a large roster does not flood it with vCard requests, and an avatar
+     * whose hash, announced in the presence of the contact, matches the one
+     * cached on disk is not requested at all.
      */
     private class ImageRetriever
-        extends Thread
     {
         /**
-         * list with the accounts with missing image
+         * The contacts waiting to be retrieved, in the order in which they
+         * will be.
+         */
+        private final LinkedList<ContactJabberImpl> queue
+            = new LinkedList<ContactJabberImpl>();
+
+        /**
+         * The avatar hashes announced in the presences of the contacts in
+         * {@link #queue}, by contact. A <tt>null</tt> hash means the image
+         * was requested without a new avatar being announced.
+         */
+        private final Map<ContactJabberImpl, String> pending
+            = new HashMap<ContactJabberImpl, String>();
+
+        /**
+         * The contacts being retrieved.
          */
-        private final List<ContactJabberImpl> contactsForUpdate
-            = new Vector<ContactJabberImpl>();
+        private final Set<ContactJabberImpl> inProgress
+            = new HashSet<ContactJabberImpl>();
+
+        /**
+         * The time before which no request is to be sent, by server.
+         */
+        private final Map<String, Long> nextRequestTimes
+            = new HashMap<String, Long>();
+
+        /**
+         * The threads retrieving images.
+         */
+        private final List<Thread> workers = new ArrayList<Thread>();
+
+        /**
+         * The number of {@link #workers} waiting for a contact to retrieve.
+         */
+        private int waitingWorkers = 0;
 
         /**
          * Should we stop.
          */
-        private boolean running = false;
+        private boolean running = true;
 
         /**
-         * Creates image retrieving.
+         * Adds a contact to retrieve, starting a thread if all the existing
+         * ones are busy and there are less than
+         * {@link #MAX_IMAGE_RETRIEVERS}.
+         *
+         * @param contact ContactJabberImpl
+         * @param photoHash the avatar hash announced in the presence of the
+         * contact or <tt>null</tt> if the image is asked for without a new
+         * avatar being announced
          */
-        ImageRetriever()
+        synchronized void addContact(
+                ContactJabberImpl contact,
+                String photoHash)
         {
-            setDaemon(true);
+            if (!running)
+                return;
+
+            // the contact list asks again and again for the image of a
+            // contact being retrieved, only a new avatar is worth a request
+            if ((photoHash == null) && inProgress.contains(contact))
+                return;
+
+            boolean queued = pending.containsKey(contact);
+
+            if (!queued || (photoHash != null))
+                pending.put(contact, photoHash);
+
+            if (photoHash == null)
+            {
+                // the most recently shown contacts first
+                if (queued)
+                    queue.remove(contact);
+                queue.addFirst(contact);
+            }
+            else if (!queued)
+                queue.addLast(contact);
+
+            if ((queue.size() > waitingWorkers)
+                    && (workers.size() < MAX_IMAGE_RETRIEVERS))
+            {
+                Thread worker
+                    = new Thread("Jabber avatar retriever")
+                    {
+                        @Override
+                        public void run()
+                        {
+                            runInWorker();
+                        }
+                    };
+
+                worker.setDaemon(true);
+                workers.add(worker);
+                worker.start();
+            }
+            notifyAll();
         }
 
         /**
-         * Thread entry point.
+         * Stops the retrieving threads. The images they may be retrieving
+         * are dropped.
          */
-        @Override
-        public void run()
+        synchronized void quit()
         {
-            try
+            running = false;
+            queue.clear();
+            pending.clear();
+            nextRequestTimes.clear();
+            for (Thread worker : workers)
+                worker.interrupt();
+            notifyAll();
+        }
+
+        /**
+         * Waits for a contact whose server may be sent a request.
+         *
+         * @return the contact to retrieve or <tt>null</tt> if the current
+         * thread is to stop because the retriever was stopped or there was
+         * nothing to retrieve for {@link #IMAGE_RETRIEVER_KEEP_ALIVE}
+         * milliseconds
+         */
+        private synchronized ContactJabberImpl take()
+        {
+            long idleSince = System.currentTimeMillis();
+
+            while (running)
             {
-                Collection<ContactJabberImpl> copyContactsForUpdate = null;
-                running = true;
-                while (running)
+                long now = System.currentTimeMillis();
+                long timeout = -1;
+
+                for (Iterator<ContactJabberImpl> i = queue.iterator();
+                        i.hasNext();)
                 {
-                    synchronized(contactsForUpdate)
+                    ContactJabberImpl contact = i.next();
+                    String server
+                        = StringUtils.parseServer(contact.getAddress());
+                    Long nextRequestTime = nextRequestTimes.get(server);
+
+                    if ((nextRequestTime == null) || (nextRequestTime <= now))
                     {
-                        if(contactsForUpdate.isEmpty())
-                            contactsForUpdate.wait();
+                        i.remove();
+                        inProgress.add(contact);
+                        nextRequestTimes.put(
+                            server,
+                            now + IMAGE_REQUEST_INTERVAL);
+                        return contact;
+                    }
+                    if ((timeout == -1) || (nextRequestTime - now < timeout))
+                        timeout = nextRequestTime - now;
+                }
 
-                        if(!running)
-                            return;
+                if (timeout == -1)
+                {
+                    timeout = idleSince + IMAGE_RETRIEVER_KEEP_ALIVE - now;
+                    if (timeout <= 0)
+                        break;
+                }
 
-                        copyContactsForUpdate
-                            = new Vector<ContactJabberImpl>(contactsForUpdate);
-                        contactsForUpdate.clear();
-                    }
+                waitingWorkers++;
+                try
+                {
+                    wait(timeout);
+                }
+                catch (InterruptedException ie)
+                {
+                    break;
+                }
+                finally
+                {
+                    waitingWorkers--;
+                }
+            }
 
-                    Iterator<ContactJabberImpl> iter
-                        = copyContactsForUpdate.iterator();
-                    while (iter.hasNext())
-                    {
-                        ContactJabberImpl contact = iter.next();
+            workers.remove(Thread.currentThread());
+            return null;
+        }
 
-                        byte[] imgBytes = getAvatar(contact);
+        /**
+         * Returns and forgets the avatar hash announced for a contact taken
+         * by {@link #take()}.
+         *
+         * @param contact the contact being retrieved
+         * @return the announced avatar hash or <tt>null</tt>
+         */
+        private synchronized String getAnnouncedPhotoHash(
+                ContactJabberImpl contact)
+        {
+            return pending.remove(contact);
+        }
 
-                        if(imgBytes != null)
-                        {
-                            byte[] oldImage = contact.getImage(false);
+        /**
+         * Marks a contact as retrieved.
+         *
+         * @param contact the retrieved contact
+         * @return <tt>true</tt> if its image is to be set, <tt>false</tt> if
+         * the retriever was stopped meanwhile
+         */
+        private synchronized boolean retrieved(ContactJabberImpl contact)
+        {
+            inProgress.remove(contact);
+            return running;
+        }
 
-                            contact.setImage(imgBytes);
-                            parentOperationSet.fireContactPropertyChangeEvent(
-                                ContactPropertyChangeEvent.PROPERTY_IMAGE,
-                                contact, oldImage, imgBytes);
-                        }
-                        else
-                            // set an empty image data so it won't be queried again
-                            contact.setImage(new byte[0]);
+        /**
+         * Retrieves contacts in a thread of {@link #workers} until there is
+         * nothing left to retrieve.
+         */
+        private void runInWorker()
+        {
+            try
+            {
+                ContactJabberImpl contact;
+
+                while ((contact = take()) != null)
+                {
+                    String announcedPhotoHash = getAnnouncedPhotoHash(contact);
+                    byte[] imgBytes = null;
+
+                    try
+                    {
+                        imgBytes = retrieve(contact, announcedPhotoHash);
+                    }
+                    finally
+                    {
+                        if (!retrieved(contact))
+                            imgBytes = null;
+                    }
+                    if (imgBytes == null)
+                        continue;
+
+                    byte[] oldImage = contact.getImage(false);
+
+                    contact.setImage(imgBytes);
+                    // an empty image is set only so that it won't be
+                    // queried again, unless a removed avatar is to be shown
+                    if ((imgBytes.length != 0) || (announcedPhotoHash != null))
+                    {
+                        parentOperationSet.fireContactPropertyChangeEvent(
+                            ContactPropertyChangeEvent.PROPERTY_IMAGE,
+                            contact, oldImage, imgBytes);
                     }
                 }
             }
-            catch (InterruptedException ex)
+            catch (Throwable t)
             {
-                logger.error("ImageRetriever error waiting will stop now!", ex);
+                synchronized (this)
+                {
+                    workers.remove(Thread.currentThread());
+                }
+                if (t instanceof ThreadDeath)
+                    throw (ThreadDeath) t;
+                logger.error("ImageRetriever error, will stop now!", t);
             }
         }
 
         /**
-         * Add contact for retrieving
-         * if the provider is register notify the retriever to get the nicks
-         * if we are not registered add a listener to wait for registering
+         * Retrieves the image of a contact. It is taken from the disk cache
+         * if its hash is the one announced in the presence of the contact, it
+         * is requested otherwise.
          *
-         * @param contact ContactJabberImpl
+         * @param contact the contact
+         * @param announcedPhotoHash the avatar hash announced in the presence
+         * which triggered the retrieval or <tt>null</tt>
+         * @return the image of the contact, empty if it has none
          */
-        void addContact(ContactJabberImpl contact)
+        private byte[] retrieve(
+                ContactJabberImpl contact,
+                String announcedPhotoHash)
         {
-            synchronized(contactsForUpdate)
+            String photoHash
+                = (announcedPhotoHash == null)
+                    ? getPhotoHash(contact.getAddress())
+                    : announcedPhotoHash;
+            byte[] result = null;
+
+            if (photoHash != null)
             {
-                if (!contactsForUpdate.contains(contact))
+                if (photoHash.length() == 0)
                 {
-                    contactsForUpdate.add(contact);
-                    contactsForUpdate.notifyAll();
+                    // the contact published no avatar
+                    result = searchForCustomAvatar(contact.getAddress());
+                    return (result == null) ? new byte[0] : result;
                 }
+
+                byte[] cached = AvatarCacheUtils.getCachedAvatar(contact);
+
+                if ((cached != null)
+                        && photoHash.equalsIgnoreCase(
+                            VCardTempXUpdatePresenceExtension.getImageSha1(
+                                cached)))
+                    return cached;
             }
+
+            result = getAvatar(contact, announcedPhotoHash != null);
+            return (result == null) ? new byte[0] : result;
         }
 
         /**
-         * Stops this thread.
+         * Returns the avatar hash announced in the current presence of a
+         * contact.
+         *
+         * @param address the address of the contact
+         * @return the hash, empty if the contact has no avatar, or
+         * <tt>null</tt> if the presence does not tell
          */
-        void quit()
+        private String getPhotoHash(String address)
         {
-            synchronized(contactsForUpdate)
-            {
-                running = false;
-                contactsForUpdate.notifyAll();
-            }
+            Roster roster = ServerStoredContactListJabberImpl.this.roster;
+
+            if (roster == null)
+                return null;
+
+            PacketExtension ext
+                = roster.getPresence(address).getExtension(
+                        VCardTempXUpdatePresenceExtension.ELEMENT_NAME,
+                        VCardTempXUpdatePresenceExtension.NAMESPACE);
+
+            return (ext instanceof DefaultPacketExtension)
+                ? ((DefaultPacketExtension) ext).getValue("photo")
+                : null;
         }
 
         /**
          * Retrieves the avatar.
          * @param contact the contact.
+         * @param refresh whether the vCard of the contact is to be requested
+         * again even if it was already
          * @return the contact avatar.
          */
-        private byte[] getAvatar(ContactJabberImpl contact)
+        private byte[] getAvatar(ContactJabberImpl contact, boolean refresh)
         {
             byte[] result = null;
             try
             {
-                Iterator<ServerStoredDetails.GenericDetail> iter =
-                    infoRetreiver.getDetails(contact.getAddress(),
-                    ServerStoredDetails.ImageDetail.class);
+                List<ServerStoredDetails.GenericDetail> details
+                    = refresh
+                        ? infoRetreiver.retrieveDetails(contact.getAddress())
+                        : infoRetreiver.getContactDetails(
+                                contact.getAddress());
 
-                if(iter.hasNext())
+                for (ServerStoredDetails.GenericDetail detail : details)
                 {
-                    ServerStoredDetails.ImageDetail imgDetail =
-                        (ServerStoredDetails.ImageDetail)iter.next();
-                    result = imgDetail.getBytes();
+                    if (ServerStoredDetails.ImageDetail.class.equals(
+                            detail.getClass()))
+                    {
+                        result
+                            = ((ServerStoredDetails.ImageDetail) detail)
+                                .getBytes();
+                        break;
+                    }
                 }
 
                 if(result == null)
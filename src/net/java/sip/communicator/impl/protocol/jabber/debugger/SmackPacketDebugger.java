@@ -17,7 +17,10 @@
  */
 package net.java.sip.communicator.impl.protocol.jabber.debugger;
 
+import java.io.*;
+
 import net.java.sip.communicator.impl.protocol.jabber.*;
+import net.java.sip.communicator.util.*;
 
 import org.jitsi.service.packetlogging.*;
 import org.jivesoftware.smack.*;
@@ -85,7 +88,8 @@ public class SmackPacketDebugger
         {
             if(packetLogging.isLoggingEnabled(
                     PacketLoggingService.ProtocolName.JABBER)
-                && packet != null && connection.getSocket() != null)
+                && packet != null && connection.getSocket() != null
+                && isSampled())
             {
                 if(remoteAddress == null)
                 {
@@ -95,28 +99,13 @@ public class SmackPacketDebugger
                         .getLocalAddress().getAddress();
                 }
 
-                byte[] packetBytes;
-
-                if(packet instanceof Message)
-                {
-                    packetBytes = cloneAnonyMessage(packet)
-                        .toXML().getBytes("UTF-8");
-                }
-                else
-                {
-                    packetBytes = packet.toXML().getBytes("UTF-8");
-                }
-
-                packetLogging.logPacket(
-                        PacketLoggingService.ProtocolName.JABBER,
+                logPacket(
+                        packet,
                         localAddress,
                         connection.getSocket().getLocalPort(),
                         remoteAddress,
                         connection.getPort(),
-                        PacketLoggingService.TransportName.TCP,
-                        true,
-                        packetBytes
-                    );
+                        true);
             }
         }
         catch(Throwable t)
@@ -125,6 +114,88 @@ public class SmackPacketDebugger
         }
     }
 
+    /**
+     * Logs a packet to the packet logging service. It is serialized by the
+     * thread saving the packets if the service allows it.
+     *
+     * @param packet the packet to log.
+     * @param sourceAddress the source address of the packet.
+     * @param sourcePort the source port of the packet.
+     * @param destinationAddress the destination address.
+     * @param destinationPort the destination port.
+     * @param sender are we the sender of the packet or not.
+     * @throws UnsupportedEncodingException never, UTF-8 is always supported.
+     */
+    private void logPacket(
+            final Packet packet,
+            byte[] sourceAddress,
+            int sourcePort,
+            byte[] destinationAddress,
+            int destinationPort,
+            boolean sender)
+        throws UnsupportedEncodingException
+    {
+        if(packetLogging instanceof DeferredPacketLoggingService)
+        {
+            ((DeferredPacketLoggingService) packetLogging).logPacket(
+                    PacketLoggingService.ProtocolName.JABBER,
+                    sourceAddress,
+                    sourcePort,
+                    destinationAddress,
+                    destinationPort,
+                    PacketLoggingService.TransportName.TCP,
+                    sender,
+                    new DeferredPacketLoggingService.PacketContent()
+                    {
+                        public CharSequence getText()
+                        {
+                            return getPacketText(packet);
+                        }
+                    });
+        }
+        else
+        {
+            packetLogging.logPacket(
+                    PacketLoggingService.ProtocolName.JABBER,
+                    sourceAddress,
+                    sourcePort,
+                    destinationAddress,
+                    destinationPort,
+                    PacketLoggingService.TransportName.TCP,
+                    sender,
+                    getPacketText(packet).getBytes("UTF-8"));
+        }
+    }
+
+    /**
+     * Determines whether the next packet is part of the sample of the XMPP
+     * packets to log.
+     *
+     * @return <tt>true</tt> if the packet is to be logged.
+     */
+    private boolean isSampled()
+    {
+        return
+            !(packetLogging instanceof DeferredPacketLoggingService)
+                || ((DeferredPacketLoggingService) packetLogging).isSampled(
+                        PacketLoggingService.ProtocolName.JABBER);
+    }
+
+    /**
+     * Returns the text of a packet as it is to be logged, the subjects and
+     * bodies of the messages being masked.
+     *
+     * @param packet the packet to log.
+     * @return the text to log.
+     */
+    private String getPacketText(Packet packet)
+    {
+        if(packet instanceof Message)
+            return cloneAnonyMessage(packet).toXML();
+        else
+            return packet.toXML();
+    }
+
     /**
      * Clones if messages and process subject and bodies.
      * @param packet
@@ -198,30 +269,16 @@ public class SmackPacketDebugger
         {
             if(packetLogging.isLoggingEnabled(
                     PacketLoggingService.ProtocolName.JABBER)
-                && packet != null && connection.getSocket() != null)
+                && packet != null && connection.getSocket() != null
+                && isSampled())
             {
-                byte[] packetBytes;
-
-                if(packet instanceof Message)
-                {
-                    packetBytes = cloneAnonyMessage(packet)
-                        .toXML().getBytes("UTF-8");
-                }
-                else
-                {
-                    packetBytes = packet.toXML().getBytes("UTF-8");
-                }
-
-                packetLogging.logPacket(
-                    PacketLoggingService.ProtocolName.JABBER,
+                logPacket(
+                    packet,
                     remoteAddress,
                     connection.getPort(),
                     localAddress,
                     connection.getSocket().getLocalPort(),
-                    PacketLoggingService.TransportName.TCP,
-                    false,
-                    packetBytes
-                );
+                    false);
             }
         }
         catch(Throwable t)
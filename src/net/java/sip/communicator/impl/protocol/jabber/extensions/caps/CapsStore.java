@@ -0,0 +1,530 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.jabber.extensions.caps;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.*;
+
+import net.java.sip.communicator.util.*;
+
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.fileaccess.*;
+
+/**
+ * Remembers the disco#info of entity capabilities across application
+ * instances, for all the accounts at once. The <tt>DiscoverInfo</tt>s are
+ * kept as the XML of their <tt>query</tt> element in a single compressed
+ * cache file, which is read the first time caps are looked up and rewritten
+ * a few seconds after they change, so that discovering the caps of a large
+ * roster costs one write.
+ * <p>
+ * The caps formerly remembered as <tt>ConfigurationService</tt> properties
+ * are moved to the file when it is first read.
+ * </p>
+ */
+class CapsStore
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>CapsStore</tt> class and its
+     * instances for logging output.
+     */
+    private static final Logger logger = Logger.getLogger(CapsStore.class);
+
+    /**
+     * The name of the cache file storing the caps.
+     */
+    private static final String FILE_NAME = "entitycaps";
+
+    /**
+     * The version of the format of the cache file, files of other versions
+     * are ignored.
+     */
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * The number of caps above which the least recently used ones are
+     * forgotten.
+     */
+    private static final int MAX_ENTRIES = 2048;
+
+    /**
+     * The number of milliseconds after a change at which the cache file is
+     * rewritten.
+     */
+    private static final long SAVE_DELAY = 5000;
+
+    /**
+     * The prefix of the <tt>ConfigurationService</tt> properties which used
+     * to remember the caps.
+     */
+    private final String legacyPropertyNamePrefix;
+
+    /**
+     * The <tt>ConfigurationService</tt> holding the caps remembered before
+     * there was a cache file.
+     */
+    private final ConfigurationService configService;
+
+    /**
+     * The <tt>FileAccessService</tt> giving access to the cache file.
+     */
+    private final FileAccessService fileAccessService;
+
+    /**
+     * The XML of the <tt>DiscoverInfo</tt>s by caps, the least recently used
+     * first.
+     */
+    private final Map<EntityCapsManager.Caps, String> entries
+        = new LinkedHashMap<EntityCapsManager.Caps, String>(16, 0.75f, true)
+        {
+            /**
+             * Serial version UID.
+             */
+            private static final long serialVersionUID = 0L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                Map.Entry<EntityCapsManager.Caps, String> eldest)
+            {
+                return size() > MAX_ENTRIES;
+            }
+        };
+
+    /**
+     * Whether the cache file was read.
+     */
+    private boolean loaded = false;
+
+    /**
+     * Whether {@link #entries} changed since the cache file was written.
+     */
+    private boolean dirty = false;
+
+    /**
+     * The timer writing the cache file, <tt>null</tt> until it is first
+     * written.
+     */
+    private Timer saveTimer;
+
+    /**
+     * The task of {@link #saveTimer} which is to write the cache file,
+     * <tt>null</tt> if none is scheduled.
+     */
+    private TimerTask saveTask;
+
+    /**
+     * Serializes the writes of the cache file.
+     */
+    private final Object saveLock = new Object();
+
+    /**
+     * Creates a store of caps.
+     *
+     * @param configService the <tt>ConfigurationService</tt> holding the
+     * caps remembered before there was a cache file
+     * @param legacyPropertyNamePrefix the prefix of the properties of
+     * <tt>configService</tt> remembering caps, followed by the node, the hash
+     * and the ver separated by the character '#'
+     * @param fileAccessService the <tt>FileAccessService</tt> giving access
+     * to the cache file
+     */
+    CapsStore(
+            ConfigurationService configService,
+            String legacyPropertyNamePrefix,
+            FileAccessService fileAccessService)
+    {
+        this.configService = configService;
+        this.legacyPropertyNamePrefix = legacyPropertyNamePrefix;
+        this.fileAccessService = fileAccessService;
+    }
+
+    /**
+     * Returns the XML of the <tt>DiscoverInfo</tt> remembered for caps.
+     *
+     * @param caps the caps
+     * @return the XML of the <tt>query</tt> element of the
+     * <tt>DiscoverInfo</tt> of <tt>caps</tt> or <tt>null</tt> if none is
+     * remembered
+     */
+    synchronized String get(EntityCapsManager.Caps caps)
+    {
+        load();
+        return entries.get(caps);
+    }
+
+    /**
+     * Remembers the XML of the <tt>DiscoverInfo</tt> of caps.
+     *
+     * @param caps the caps
+     * @param xml the XML of the <tt>query</tt> element of the
+     * <tt>DiscoverInfo</tt> of <tt>caps</tt>
+     */
+    synchronized void put(EntityCapsManager.Caps caps, String xml)
+    {
+        load();
+        if (!xml.equals(entries.put(caps, xml)))
+            scheduleSave();
+    }
+
+    /**
+     * Forgets the <tt>DiscoverInfo</tt> of caps.
+     *
+     * @param caps the caps
+     */
+    synchronized void remove(EntityCapsManager.Caps caps)
+    {
+        load();
+        if (entries.remove(caps) != null)
+            scheduleSave();
+    }
+
+    /**
+     * Writes the pending changes and stops the timer writing the cache file.
+     */
+    void close()
+    {
+        boolean save;
+
+        synchronized (this)
+        {
+            if (saveTimer != null)
+            {
+                saveTimer.cancel();
+                saveTimer = null;
+                saveTask = null;
+            }
+            save = dirty;
+        }
+        if (save)
+            save();
+    }
+
+    /**
+     * Reads the cache file and moves into it the caps remembered as
+     * <tt>ConfigurationService</tt> properties unless it was already done.
+     */
+    private void load()
+    {
+        if (loaded)
+            return;
+        loaded = true;
+
+        File file = getFile();
+
+        if ((file != null) && file.exists())
+        {
+            try
+            {
+                read(file);
+            }
+            catch (IOException ioex)
+            {
+                logger.warn("Failed to read entity caps from " + file, ioex);
+                entries.clear();
+            }
+        }
+
+        List<String> propertyNames
+            = configService.getPropertyNamesByPrefix(
+                    legacyPropertyNamePrefix,
+                    false);
+
+        if ((file != null)
+                && (propertyNames != null)
+                && !propertyNames.isEmpty())
+        {
+            Map<String, Object> removed = new HashMap<String, Object>();
+
+            for (String propertyName : propertyNames)
+            {
+                EntityCapsManager.Caps caps
+                    = parseCaps(
+                            propertyName.substring(
+                                    legacyPropertyNamePrefix.length()));
+                String xml = configService.getString(propertyName);
+
+                if ((caps != null)
+                        && (xml != null)
+                        && (xml.length() != 0)
+                        && !entries.containsKey(caps))
+                {
+                    entries.put(caps, xml);
+                }
+                removed.put(propertyName, null);
+            }
+            // Written before the properties are removed in order to not lose
+            // them if the application stops in between.
+            try
+            {
+                write(file, snapshot());
+                configService.setProperties(removed);
+            }
+            catch (IOException ioex)
+            {
+                logger.error("Failed to write entity caps to " + file, ioex);
+                dirty = true;
+            }
+        }
+    }
+
+    /**
+     * Parses the caps encoded in the name of a <tt>ConfigurationService</tt>
+     * property.
+     *
+     * @param nodeHashVer the node, the hash and the ver separated by the
+     * character '#'; the node may itself contain the character
+     * @return the caps or <tt>null</tt> if <tt>nodeHashVer</tt> is malformed
+     */
+    private static EntityCapsManager.Caps parseCaps(String nodeHashVer)
+    {
+        int verIndex = nodeHashVer.lastIndexOf('#');
+
+        if (verIndex <= 0)
+            return null;
+
+        int hashIndex = nodeHashVer.lastIndexOf('#', verIndex - 1);
+
+        if (hashIndex <= 0)
+            return null;
+        return
+            new EntityCapsManager.Caps(
+                    nodeHashVer.substring(0, hashIndex),
+                    nodeHashVer.substring(hashIndex + 1, verIndex),
+                    nodeHashVer.substring(verIndex + 1),
+                    null);
+    }
+
+    /**
+     * Reads the caps of the cache file into {@link #entries}.
+     *
+     * @param file the cache file
+     * @throws IOException if the file cannot be read
+     */
+    private void read(File file)
+        throws IOException
+    {
+        DataInputStream in
+            = new DataInputStream(
+                    new BufferedInputStream(
+                            new GZIPInputStream(new FileInputStream(file))));
+
+        try
+        {
+            int version = in.readInt();
+
+            if (version != FORMAT_VERSION)
+            {
+                logger.info(
+                        "Ignoring entity caps of format version " + version
+                            + " in " + file);
+                return;
+            }
+
+            for (int count = in.readInt(); count > 0; count--)
+            {
+                String node = in.readUTF();
+                String hash = in.readUTF();
+                String ver = in.readUTF();
+                byte[] xml = new byte[in.readInt()];
+
+                in.readFully(xml);
+                entries.put(
+                        new EntityCapsManager.Caps(node, hash, ver, null),
+                        new String(xml, "UTF-8"));
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Marks {@link #entries} as changed and schedules the writing of the
+     * cache file unless it already is.
+     */
+    private void scheduleSave()
+    {
+        dirty = true;
+        if (saveTask != null)
+            return;
+
+        if (saveTimer == null)
+            saveTimer = new Timer("Jabber entity caps saver", true);
+        saveTask
+            = new TimerTask()
+            {
+                @Override
+                public void run()
+                {
+                    synchronized (CapsStore.this)
+                    {
+                        saveTask = null;
+                    }
+                    save();
+                }
+            };
+        saveTimer.schedule(saveTask, SAVE_DELAY);
+    }
+
+    /**
+     * Writes the cache file if {@link #entries} changed since it was last
+     * written.
+     */
+    private void save()
+    {
+        synchronized (saveLock)
+        {
+            List<Map.Entry<EntityCapsManager.Caps, String>> snapshot;
+
+            synchronized (this)
+            {
+                if (!dirty)
+                    return;
+                snapshot = snapshot();
+            }
+
+            File file = getFile();
+
+            if (file == null)
+                return;
+
+            try
+            {
+                write(file, snapshot);
+            }
+            catch (IOException ioex)
+            {
+                logger.error("Failed to write entity caps to " + file, ioex);
+            }
+        }
+    }
+
+    /**
+     * Copies {@link #entries} to be written to the cache file and marks them
+     * as saved. The caller holds the lock of this instance.
+     *
+     * @return the caps and the XML of their <tt>DiscoverInfo</tt>s
+     */
+    private List<Map.Entry<EntityCapsManager.Caps, String>> snapshot()
+    {
+        List<Map.Entry<EntityCapsManager.Caps, String>> snapshot
+            = new ArrayList<Map.Entry<EntityCapsManager.Caps, String>>(
+                    entries.size());
+
+        for (Map.Entry<EntityCapsManager.Caps, String> e : entries.entrySet())
+        {
+            snapshot.add(
+                    new AbstractMap.SimpleImmutableEntry
+                            <EntityCapsManager.Caps, String>(e));
+        }
+        dirty = false;
+        return snapshot;
+    }
+
+    /**
+     * Writes caps to the cache file.
+     *
+     * @param file the cache file
+     * @param snapshot the caps and the XML of their <tt>DiscoverInfo</tt>s
+     * @throws IOException if the file cannot be written
+     */
+    private static void write(
+            File file,
+            List<Map.Entry<EntityCapsManager.Caps, String>> snapshot)
+        throws IOException
+    {
+        File dir = file.getParentFile();
+
+        if ((dir != null) && !dir.exists() && !dir.mkdirs())
+        {
+            throw
+                new IOException(
+                        "Failed to create directory: "
+                            + dir.getAbsolutePath());
+        }
+
+        // Written aside and moved so that a crash does not leave a truncated
+        // file behind.
+        File tmpFile = File.createTempFile(FILE_NAME, ".tmp", dir);
+
+        try
+        {
+            DataOutputStream out
+                = new DataOutputStream(
+                        new BufferedOutputStream(
+                                new GZIPOutputStream(
+                                        new FileOutputStream(tmpFile))));
+
+            try
+            {
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(snapshot.size());
+                for (Map.Entry<EntityCapsManager.Caps, String> e : snapshot)
+                {
+                    EntityCapsManager.Caps caps = e.getKey();
+                    byte[] xml = e.getValue().getBytes("UTF-8");
+
+                    out.writeUTF(caps.node);
+                    out.writeUTF(caps.hash);
+                    out.writeUTF(caps.ver);
+                    out.writeInt(xml.length);
+                    out.write(xml);
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+            Files.move(
+                    tmpFile.toPath(),
+                    file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+        finally
+        {
+            Files.deleteIfExists(tmpFile.toPath());
+        }
+    }
+
+    /**
+     * Returns the cache file.
+     *
+     * @return the cache file or <tt>null</tt> if it cannot be accessed
+     */
+    private File getFile()
+    {
+        if (fileAccessService == null)
+            return null;
+
+        try
+        {
+            return
+                fileAccessService.getPrivatePersistentFile(
+                        FILE_NAME,
+                        FileCategory.CACHE);
+        }
+        catch (Exception ex)
+        {
+            logger.error("Failed to access the entity caps file", ex);
+            return null;
+        }
+    }
+}
@@ -22,11 +22,13 @@ import java.lang.reflect.*;
 import java.security.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 import net.java.sip.communicator.service.protocol.*;
 import net.java.sip.communicator.util.*;
 
 import org.jitsi.service.configuration.*;
+import org.jitsi.service.fileaccess.*;
 import org.jitsi.util.OSUtils;
 import org.jivesoftware.smack.*;
 import org.jivesoftware.smack.filter.*;
@@ -68,8 +70,14 @@ public class EntityCapsManager
     private static ConfigurationService configService;
 
     /**
-     * The prefix of the <tt>ConfigurationService</tt> properties which persist
-     * {@link #caps2discoverInfo}.
+     * The store remembering {@link #caps2discoverInfo} across application
+     * instances, created on first use.
+     */
+    private static CapsStore capsStore;
+
+    /**
+     * The prefix of the <tt>ConfigurationService</tt> properties which used to
+     * persist {@link #caps2discoverInfo} before {@link CapsStore}.
      */
     private static final String CAPS_PROPERTY_NAME_PREFIX
         = "net.java.sip.communicator.impl.protocol.jabber.extensions.caps."
@@ -101,6 +109,31 @@ public class EntityCapsManager
     private static final Map<Caps, DiscoverInfo> caps2discoverInfo
         = new ConcurrentHashMap<Caps, DiscoverInfo>();
 
+    /**
+     * The queries for the <tt>DiscoverInfo</tt> of caps which are being sent,
+     * by caps. The lookups of the same caps wait for them instead of sending
+     * their own.
+     */
+    private static final Map<Caps, PendingQuery> pendingQueries
+        = new HashMap<Caps, PendingQuery>();
+
+    /**
+     * The number of disco#info queries sent for caps.
+     */
+    private static final AtomicLong queryCount = new AtomicLong();
+
+    /**
+     * The number of disco#info queries for caps which were not sent because
+     * the <tt>DiscoverInfo</tt> had been cached meanwhile.
+     */
+    private static final AtomicLong cacheHitCount = new AtomicLong();
+
+    /**
+     * The number of disco#info queries for caps which were not sent because
+     * the same caps were being queried.
+     */
+    private static final AtomicLong joinedQueryCount = new AtomicLong();
+
     /**
      * Map of Full JID -&gt; DiscoverInfo/null. In case of c2s connection the
      * key is formed as user@server/resource (resource is required) In case of
@@ -172,28 +205,30 @@ public class EntityCapsManager
                 String xml = info.getChildElementXML();
 
                 if ((xml != null) && (xml.length() != 0))
-                {
-                    getConfigService()
-                        .setProperty(getCapsPropertyName(caps), xml);
-                }
+                    getCapsStore().put(caps, xml);
             }
         }
     }
 
     /**
-     * Gets the name of the property in the <tt>ConfigurationService</tt> which
-     * is or is to be associated with a specific <tt>Caps</tt> value.
+     * Returns the store remembering {@link #caps2discoverInfo} across
+     * application instances, creating it if needed.
      *
-     * @param caps the <tt>Caps</tt> value for which the associated
-     * <tt>ConfigurationService</tt> property name is to be returned
-     * @return the name of the property in the <tt>ConfigurationService</tt>
-     * which is or is to be associated with a specific <tt>Caps</tt> value
+     * @return the store of the caps
      */
-    private static String getCapsPropertyName(Caps caps)
+    private static synchronized CapsStore getCapsStore()
     {
-        return
-            CAPS_PROPERTY_NAME_PREFIX
-                + caps.node + '#' + caps.hash + '#' + caps.ver;
+        if (capsStore == null)
+        {
+            capsStore
+                = new CapsStore(
+                        getConfigService(),
+                        CAPS_PROPERTY_NAME_PREFIX,
+                        ServiceUtils.getService(
+                                bundleContext,
+                                FileAccessService.class));
+        }
+        return capsStore;
     }
 
     /**
@@ -218,6 +253,23 @@ public class EntityCapsManager
     {
         if (bundleContext == null)
         {
+            synchronized (EntityCapsManager.class)
+            {
+                if (capsStore != null)
+                {
+                    capsStore.close();
+                    capsStore = null;
+                }
+            }
+            if (logger.isDebugEnabled())
+            {
+                logger.debug(
+                        "Entity caps disco#info queries sent: "
+                            + getQueryCount() + ", avoided: "
+                            + getAvoidedQueryCount() + " (cached: "
+                            + getCacheHitCount() + ", joined: "
+                            + getJoinedQueryCount() + ")");
+            }
             configService = null;
         }
         EntityCapsManager.bundleContext = bundleContext;
@@ -486,9 +538,14 @@ public class EntityCapsManager
      */
     public static DiscoverInfo getDiscoverInfoByCaps(Caps caps)
     {
+        DiscoverInfo discoverInfo = caps2discoverInfo.get(caps);
+
+        if (discoverInfo != null)
+            return discoverInfo;
+
         synchronized (caps2discoverInfo)
         {
-            DiscoverInfo discoverInfo = caps2discoverInfo.get(caps);
+            discoverInfo = caps2discoverInfo.get(caps);
 
             /*
              * If we don't have the discoverInfo in the runtime cache yet, we
@@ -496,81 +553,228 @@ public class EntityCapsManager
              */
             if (discoverInfo == null)
             {
-                ConfigurationService configurationService
-                    = getConfigService();
-                String capsPropertyName = getCapsPropertyName(caps);
-                String xml = configurationService.getString(capsPropertyName);
+                CapsStore capsStore = getCapsStore();
+                String xml = capsStore.get(caps);
 
                 if ((xml != null) && (xml.length() != 0))
                 {
-                    IQProvider discoverInfoProvider
-                        = (IQProvider)
-                            ProviderManager.getInstance().getIQProvider(
-                                    "query",
-                                    "http://jabber.org/protocol/disco#info");
-
-                    if (discoverInfoProvider != null)
+                    discoverInfo = parseDiscoverInfo(xml);
+                    if (discoverInfo != null)
                     {
-                        XmlPullParser parser = new MXParser();
-
-                        try
-                        {
-                            parser.setFeature(
-                                    XmlPullParser.FEATURE_PROCESS_NAMESPACES,
-                                    true);
-                            parser.setInput(new StringReader(xml));
-                            // Start the parser.
-                            parser.next();
-                        }
-                        catch (XmlPullParserException xppex)
-                        {
-                            parser = null;
-                        }
-                        catch (IOException ioex)
+                        if (caps.isValid(discoverInfo))
+                            caps2discoverInfo.put(caps, discoverInfo);
+                        else
                         {
-                            parser = null;
+                            logger.error(
+                                    "Invalid DiscoverInfo for "
+                                        + caps.getNodeVer()
+                                        + ": "
+                                        + discoverInfo);
+                            /*
+                             * The discoverInfo doesn't seem valid according
+                             * to the caps which means that we must have
+                             * stored invalid information. Delete the invalid
+                             * information in order to not try to validate it
+                             * again.
+                             */
+                            capsStore.remove(caps);
                         }
+                    }
+                }
+            }
+            return discoverInfo;
+        }
+    }
 
-                        if (parser != null)
-                        {
-                            try
-                            {
-                                discoverInfo
-                                    = (DiscoverInfo)
-                                        discoverInfoProvider.parseIQ(parser);
-                            }
-                            catch (Exception ex)
-                            {
-                            }
+    /**
+     * Retrieves the <tt>DiscoverInfo</tt> of an entity advertising specific
+     * caps, querying the entity only if it is not known yet. Concurrent
+     * lookups of the same caps, for the same account or not, send a single
+     * query: the other lookups wait for its result and ask their entity only
+     * if the result did not match the caps. A result matching the caps is
+     * added to our caps database.
+     *
+     * @param caps the <tt>Caps</tt> advertised by the entity
+     * @param query sends the disco#info query to the entity
+     * @return the <tt>DiscoverInfo</tt> of <tt>caps</tt> or, if the entity
+     * answered with one which does not match <tt>caps</tt>, the answer of the
+     * entity
+     * @throws XMPPException if the query failed
+     */
+    public static DiscoverInfo getDiscoverInfoByCaps(
+            Caps caps,
+            DiscoverInfoQuery query)
+        throws XMPPException
+    {
+        DiscoverInfo discoverInfo = getDiscoverInfoByCaps(caps);
 
-                            if (discoverInfo != null)
-                            {
-                                if (caps.isValid(discoverInfo))
-                                    caps2discoverInfo.put(caps, discoverInfo);
-                                else
-                                {
-                                    logger.error(
-                                            "Invalid DiscoverInfo for "
-                                                + caps.getNodeVer()
-                                                + ": "
-                                                + discoverInfo);
-                                    /*
-                                     * The discoverInfo doesn't seem valid
-                                     * according to the caps which means that we
-                                     * must have stored invalid information.
-                                     * Delete the invalid information in order
-                                     * to not try to validate it again.
-                                     */
-                                    configurationService.removeProperty(
-                                            capsPropertyName);
-                                }
-                            }
-                        }
-                    }
+        if (discoverInfo != null)
+        {
+            cacheHitCount.incrementAndGet();
+            return discoverInfo;
+        }
+
+        // Without hash, the answer cannot be validated and is not shared.
+        if (caps.hash.equals(""))
+        {
+            queryCount.incrementAndGet();
+            return query.query();
+        }
+
+        PendingQuery pendingQuery;
+        boolean send = false;
+
+        synchronized (pendingQueries)
+        {
+            pendingQuery = pendingQueries.get(caps);
+            if (pendingQuery == null)
+            {
+                /*
+                 * A query which was pending at the previous lookup may have
+                 * completed meanwhile, it adds its result before it stops
+                 * being pending.
+                 */
+                discoverInfo = caps2discoverInfo.get(caps);
+                if (discoverInfo != null)
+                {
+                    cacheHitCount.incrementAndGet();
+                    return discoverInfo;
                 }
+
+                pendingQuery = new PendingQuery();
+                pendingQueries.put(caps, pendingQuery);
+                send = true;
+            }
+        }
+
+        if (!send)
+        {
+            discoverInfo = pendingQuery.getDiscoverInfo();
+            if (discoverInfo != null)
+            {
+                joinedQueryCount.incrementAndGet();
+                return discoverInfo;
+            }
+
+            // The query failed or its answer did not match the caps.
+            queryCount.incrementAndGet();
+            return query.query();
+        }
+
+        DiscoverInfo validDiscoverInfo = null;
+
+        try
+        {
+            queryCount.incrementAndGet();
+            discoverInfo = query.query();
+            if (caps.isValid(discoverInfo))
+            {
+                addDiscoverInfoByCaps(caps, discoverInfo);
+                validDiscoverInfo = discoverInfo;
             }
             return discoverInfo;
         }
+        finally
+        {
+            synchronized (pendingQueries)
+            {
+                pendingQueries.remove(caps);
+            }
+            pendingQuery.completed(validDiscoverInfo);
+        }
+    }
+
+    /**
+     * Gets the number of disco#info queries sent for entity caps since the
+     * application started.
+     *
+     * @return the number of disco#info queries sent for entity caps
+     */
+    public static long getQueryCount()
+    {
+        return queryCount.get();
+    }
+
+    /**
+     * Gets the number of disco#info queries for entity caps which were not
+     * sent because the <tt>DiscoverInfo</tt> of the caps had been cached
+     * meanwhile.
+     *
+     * @return the number of lookups answered from the cache
+     */
+    public static long getCacheHitCount()
+    {
+        return cacheHitCount.get();
+    }
+
+    /**
+     * Gets the number of disco#info queries for entity caps which were not
+     * sent because the same caps were being queried.
+     *
+     * @return the number of lookups which joined a pending query
+     */
+    public static long getJoinedQueryCount()
+    {
+        return joinedQueryCount.get();
+    }
+
+    /**
+     * Gets the number of disco#info queries for entity caps which were not
+     * sent, either because the caps were cached or because they were being
+     * queried.
+     *
+     * @return the number of disco#info queries avoided
+     */
+    public static long getAvoidedQueryCount()
+    {
+        return getCacheHitCount() + getJoinedQueryCount();
+    }
+
+    /**
+     * Parses the XML of the <tt>query</tt> element of a
+     * <tt>DiscoverInfo</tt>.
+     *
+     * @param xml the XML to parse
+     * @return the <tt>DiscoverInfo</tt> or <tt>null</tt> if <tt>xml</tt>
+     * could not be parsed
+     */
+    private static DiscoverInfo parseDiscoverInfo(String xml)
+    {
+        IQProvider discoverInfoProvider
+            = (IQProvider)
+                ProviderManager.getInstance().getIQProvider(
+                        "query",
+                        "http://jabber.org/protocol/disco#info");
+
+        if (discoverInfoProvider == null)
+            return null;
+
+        XmlPullParser parser = new MXParser();
+
+        try
+        {
+            parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+            parser.setInput(new StringReader(xml));
+            // Start the parser.
+            parser.next();
+        }
+        catch (XmlPullParserException xppex)
+        {
+            return null;
+        }
+        catch (IOException ioex)
+        {
+            return null;
+        }
+
+        try
+        {
+            return (DiscoverInfo) discoverInfoProvider.parseIQ(parser);
+        }
+        catch (Exception ex)
+        {
+            return null;
+        }
     }
 
     /**
@@ -987,6 +1191,79 @@ public class EntityCapsManager
         }
     }
 
+    /**
+     * Sends the disco#info query for the caps of an entity.
+     *
+     * @see EntityCapsManager#getDiscoverInfoByCaps(Caps, DiscoverInfoQuery)
+     */
+    public interface DiscoverInfoQuery
+    {
+        /**
+         * Sends the disco#info query to the entity and waits for its answer.
+         *
+         * @return the <tt>DiscoverInfo</tt> answered by the entity
+         * @throws XMPPException if the query failed
+         */
+        public DiscoverInfo query()
+            throws XMPPException;
+    }
+
+    /**
+     * A disco#info query for caps being sent, which the other lookups of the
+     * same caps wait for.
+     */
+    private static class PendingQuery
+    {
+        /**
+         * Whether the query completed.
+         */
+        private boolean completed = false;
+
+        /**
+         * The answer to the query if it matched the caps.
+         */
+        private DiscoverInfo discoverInfo;
+
+        /**
+         * Sets the result of the query and wakes the waiting lookups.
+         *
+         * @param discoverInfo the answer to the query if it matched the caps,
+         * <tt>null</tt> if it did not or the query failed
+         */
+        synchronized void completed(DiscoverInfo discoverInfo)
+        {
+            this.discoverInfo = discoverInfo;
+            completed = true;
+            notifyAll();
+        }
+
+        /**
+         * Waits for the query to complete and returns its result.
+         *
+         * @return the answer to the query if it matched the caps,
+         * <tt>null</tt> if it did not or the query failed
+         */
+        synchronized DiscoverInfo getDiscoverInfo()
+        {
+            boolean interrupted = false;
+
+            while (!completed)
+            {
+                try
+                {
+                    wait();
+                }
+                catch (InterruptedException ie)
+                {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+            return discoverInfo;
+        }
+    }
+
     /**
      * Implements an immutable value which stands for a specific node, a
      * specific hash (algorithm) and a specific ver.
@@ -285,7 +285,10 @@ public class SipLogger
                 || !packetLogging.isLoggingEnabled(
                         PacketLoggingService.ProtocolName.SIP)
                 /* Via not present in CRLF packet on TCP - causes NPE */
-                || message.getTopmostVia() == null )
+                || message.getTopmostVia() == null
+                || (packetLogging instanceof DeferredPacketLoggingService
+                    && !((DeferredPacketLoggingService) packetLogging)
+                        .isSampled(PacketLoggingService.ProtocolName.SIP)))
                 return;
 
             String transport = message.getTopmostVia().getTransport();
@@ -372,41 +375,39 @@ public class SipLogger
                     srcAddr = new byte[dstAddr.length];
             }
 
-            byte[] msg = null;
-            if(message instanceof SIPRequest)
-            {
-                SIPRequest req = (SIPRequest)message;
-                if(req.getMethod().equals(SIPRequest.MESSAGE)
-                    && message.getContentTypeHeader() != null
-                    && message.getContentTypeHeader()
-                        .getContentType().equalsIgnoreCase("text"))
-                {
-                    int len = req.getContentLength().getContentLength();
-
-                    if(len > 0)
-                    {
-                        SIPRequest newReq = (SIPRequest)req.clone();
+            PacketLoggingService.TransportName transportName
+                = isTransportUDP
+                    ? PacketLoggingService.TransportName.UDP
+                    : PacketLoggingService.TransportName.TCP;
+            final SIPMessage loggedMessage = message;
 
-                        byte[] newContent =  new byte[len];
-                        Arrays.fill(newContent, (byte)'.');
-                        newReq.setMessageContent(newContent);
-                        msg = newReq.toString().getBytes("UTF-8");
-                    }
-                }
+            // serialize the message in the thread saving the packets
+            if(packetLogging instanceof DeferredPacketLoggingService)
+            {
+                ((DeferredPacketLoggingService) packetLogging).logPacket(
+                        PacketLoggingService.ProtocolName.SIP,
+                        srcAddr, srcPort,
+                        dstAddr, dstPort,
+                        transportName,
+                        sender,
+                        new DeferredPacketLoggingService.PacketContent()
+                        {
+                            public CharSequence getText()
+                            {
+                                return getLoggedText(loggedMessage);
+                            }
+                        });
             }
-
-            if(msg == null)
+            else
             {
-                msg = message.toString().getBytes("UTF-8");
+                packetLogging.logPacket(
+                        PacketLoggingService.ProtocolName.SIP,
+                        srcAddr, srcPort,
+                        dstAddr, dstPort,
+                        transportName,
+                        sender,
+                        getLoggedText(message).toString().getBytes("UTF-8"));
             }
-
-            packetLogging.logPacket(
-                    PacketLoggingService.ProtocolName.SIP,
-                    srcAddr, srcPort,
-                    dstAddr, dstPort,
-                    isTransportUDP ? PacketLoggingService.TransportName.UDP :
-                            PacketLoggingService.TransportName.TCP,
-                    sender, msg);
         }
         catch(Throwable e)
         {
@@ -414,6 +415,42 @@ public class SipLogger
         }
     }
 
+    /**
+     * Returns the text of a message as it is to be logged, the content of
+     * the text MESSAGE requests being masked.
+     *
+     * @param message the message to log
+     * @return the text to log
+     */
+    private static CharSequence getLoggedText(SIPMessage message)
+    {
+        if(message instanceof SIPRequest)
+        {
+            SIPRequest req = (SIPRequest)message;
+            if(req.getMethod().equals(SIPRequest.MESSAGE)
+                && message.getContentTypeHeader() != null
+                && message.getContentTypeHeader()
+                    .getContentType().equalsIgnoreCase("text"))
+            {
+                int len = req.getContentLength().getContentLength();
+
+                if(len > 0)
+                {
+                    // the request line and the headers, followed by as many
+                    // dots as there are bytes in the content
+                    StringBuilder masked
+                        = req.encodeMessage(new StringBuilder());
+
+                    for(int i = 0; i < len; i++)
+                        masked.append('.');
+                    return masked;
+                }
+            }
+        }
+
+        return message.toString();
+    }
+
     /**
      * Logs the specified message and details.
      *
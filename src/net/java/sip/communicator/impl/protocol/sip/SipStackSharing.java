@@ -87,12 +87,27 @@ public class SipStackSharing
     /**
      * The candidate recipients to choose from when dispatching messages
      * received from one the JAIN-SIP <tt>SipProvider</tt>-s. for thread safety
-     * issues reasons, better iterate on a copy of that set using
-     * <tt>getSipListeners()</tt>.
+     * issues reasons, better iterate on its copy <tt>listenerList</tt>.
      */
     private final Set<ProtocolProviderServiceSipImpl> listeners
         = new HashSet<ProtocolProviderServiceSipImpl>();
 
+    /**
+     * The <tt>listeners</tt> by user ID of their account, rebuilt whenever a
+     * listener is added or removed, so that finding the target of an incoming
+     * request does not go through all of them.
+     */
+    private volatile Map<String, List<ProtocolProviderServiceSipImpl>>
+        listenersByUserID
+            = Collections.emptyMap();
+
+    /**
+     * A copy of <tt>listeners</tt>, rebuilt whenever a listener is added or
+     * removed.
+     */
+    private volatile List<ProtocolProviderServiceSipImpl> listenerList
+        = Collections.emptyList();
+
     /**
      * The property indicating the preferred UDP and TCP
      * port to bind to for clear communications.
@@ -172,6 +187,7 @@ public class SipStackSharing
             if(this.listeners.size() == 0)
                 startListening();
             this.listeners.add(listener);
+            updateListenerIndex();
             if (logger.isTraceEnabled())
                 logger.trace(this.listeners.size() + " listeners now");
         }
@@ -189,6 +205,7 @@ public class SipStackSharing
         synchronized(this.listeners)
         {
             this.listeners.remove(listener);
+            updateListenerIndex();
 
             int listenerCount = listeners.size();
             if (logger.isTraceEnabled())
@@ -199,16 +216,31 @@ public class SipStackSharing
     }
 
     /**
-     * Returns a copy of the <tt>listeners</tt> (= candidate recipients) set.
-     *
-     * @return a copy of the <tt>listeners</tt> set.
+     * Rebuilds <tt>listenerList</tt> and <tt>listenersByUserID</tt> from
+     * <tt>listeners</tt>. The caller holds the lock of <tt>listeners</tt>.
      */
-    private Set<ProtocolProviderServiceSipImpl> getSipListeners()
+    private void updateListenerIndex()
     {
-        synchronized(this.listeners)
+        Map<String, List<ProtocolProviderServiceSipImpl>> byUserID
+            = new HashMap<String, List<ProtocolProviderServiceSipImpl>>();
+
+        for (ProtocolProviderServiceSipImpl listener : this.listeners)
         {
-            return new HashSet<ProtocolProviderServiceSipImpl>(this.listeners);
+            String userID = listener.getAccountID().getUserID();
+            List<ProtocolProviderServiceSipImpl> sameUserID
+                = byUserID.get(userID);
+
+            if (sameUserID == null)
+            {
+                sameUserID = new ArrayList<ProtocolProviderServiceSipImpl>(1);
+                byUserID.put(userID, sameUserID);
+            }
+            sameUserID.add(listener);
         }
+
+        this.listenersByUserID = byUserID;
+        this.listenerList
+            = new ArrayList<ProtocolProviderServiceSipImpl>(this.listeners);
     }
 
     /**
@@ -879,42 +911,40 @@ public class SipStackSharing
             return null;
         }
 
-        List<ProtocolProviderServiceSipImpl> currentListenersCopy
-            = new ArrayList<ProtocolProviderServiceSipImpl>(
-                                this.getSipListeners());
-
-        // Let's first narrow down candidate choice by comparing
-        // addresses and ports (no point in delivering to a provider with a
-        // non matching IP address  since they will reject it anyway).
-        filterByAddress(currentListenersCopy, request);
-
-        if(currentListenersCopy.size() == 0)
-        {
-            logger.error("no listeners");
-            return null;
-        }
-
         URI requestURI = request.getRequestURI();
 
         if(requestURI.isSipURI())
         {
             String requestUser = ((SipURI) requestURI).getUser();
 
-            List<ProtocolProviderServiceSipImpl> candidates =
-                new ArrayList<ProtocolProviderServiceSipImpl>();
-
             // check if the Request-URI username is
             // one of ours usernames
-            for(ProtocolProviderServiceSipImpl listener : currentListenersCopy)
+            List<ProtocolProviderServiceSipImpl> sameUserID
+                = (requestUser == null)
+                    ? null
+                    : listenersByUserID.get(requestUser);
+            List<ProtocolProviderServiceSipImpl> candidates;
+
+            if (sameUserID == null)
             {
-                String ourUserID = listener.getAccountID().getUserID();
-                //logger.trace(ourUserID + " *** " + requestUser);
-                if(ourUserID.equals(requestUser))
+                candidates = Collections.emptyList();
+            }
+            else
+            {
+                candidates
+                    = new ArrayList<ProtocolProviderServiceSipImpl>(
+                            sameUserID);
+
+                // Let's first narrow down candidate choice by comparing
+                // addresses and ports (no point in delivering to a provider
+                // with a non matching IP address  since they will reject it
+                // anyway).
+                filterByAddress(candidates, request);
+                if (logger.isTraceEnabled())
                 {
-                    if (logger.isTraceEnabled())
+                    for (ProtocolProviderServiceSipImpl candidate : candidates)
                         logger.trace("suitable candidate found: "
-                                + listener.getAccountID());
-                    candidates.add(listener);
+                                + candidate.getAccountID());
                 }
             }
 
@@ -935,20 +965,23 @@ public class SipStackSharing
             {
                 // check if a custom param exists in the contact
                 // address (set for registrar accounts)
-                for (ProtocolProviderServiceSipImpl candidate : candidates)
+                String hostValue = ((SipURI) requestURI).getParameter(
+                        SipStackSharing.CONTACT_ADDRESS_CUSTOM_PARAM_NAME);
+
+                if (hostValue != null)
                 {
-                    String hostValue = ((SipURI) requestURI).getParameter(
-                            SipStackSharing.CONTACT_ADDRESS_CUSTOM_PARAM_NAME);
-                    if (hostValue == null)
-                        continue;
-                    if (hostValue.equals(candidate
-                                .getContactAddressCustomParamValue()))
+                    for (ProtocolProviderServiceSipImpl candidate : candidates)
                     {
-                        if (logger.isTraceEnabled())
-                            logger.trace("Will dispatch to \""
-                                    + candidate.getAccountID() + "\" because "
-                                    + "\" the custom param was set");
-                        return candidate;
+                        if (hostValue.equals(candidate
+                                    .getContactAddressCustomParamValue()))
+                        {
+                            if (logger.isTraceEnabled())
+                                logger.trace("Will dispatch to \""
+                                        + candidate.getAccountID()
+                                        + "\" because "
+                                        + "\" the custom param was set");
+                            return candidate;
+                        }
                     }
                 }
 
@@ -957,30 +990,31 @@ public class SipStackSharing
 
                 // check if the To header field host part
                 // matches any of our SIP hosts
-                for(ProtocolProviderServiceSipImpl candidate : candidates)
+                URI fromURI = ((FromHeader) request
+                        .getHeader(FromHeader.NAME)).getAddress().getURI();
+                URI toURI = ((ToHeader) request
+                        .getHeader(ToHeader.NAME)).getAddress().getURI();
+
+                if (fromURI.isSipURI() && toURI.isSipURI())
                 {
-                    URI fromURI = ((FromHeader) request
-                            .getHeader(FromHeader.NAME)).getAddress().getURI();
-                    if(fromURI.isSipURI() == false)
-                        continue;
-                    SipURI ourURI = (SipURI) candidate
-                        .getOurSipAddress((SipURI) fromURI).getURI();
-                    String ourHost = ourURI.getHost();
-
-                    URI toURI = ((ToHeader) request
-                            .getHeader(ToHeader.NAME)).getAddress().getURI();
-                    if(toURI.isSipURI() == false)
-                        continue;
                     String toHost = ((SipURI) toURI).getHost();
 
-                    //logger.trace(toHost + "***" + ourHost);
-                    if(toHost.equals(ourHost))
+                    for(ProtocolProviderServiceSipImpl candidate : candidates)
                     {
-                        if (logger.isTraceEnabled())
-                            logger.trace("Will dispatch to \""
-                                    + candidate.getAccountID() + "\" because "
-                                    + "host in the To: is the same as in our AOR");
-                        return candidate;
+                        SipURI ourURI = (SipURI) candidate
+                            .getOurSipAddress((SipURI) fromURI).getURI();
+                        String ourHost = ourURI.getHost();
+
+                        //logger.trace(toHost + "***" + ourHost);
+                        if(toHost.equals(ourHost))
+                        {
+                            if (logger.isTraceEnabled())
+                                logger.trace("Will dispatch to \""
+                                        + candidate.getAccountID()
+                                        + "\" because host in the To: is the"
+                                        + " same as in our AOR");
+                            return candidate;
+                        }
                     }
                 }
 
@@ -997,8 +1031,21 @@ public class SipStackSharing
             }
 
             // fallback on any account
-            ProtocolProviderServiceSipImpl target =
-                currentListenersCopy.iterator().next();
+            ProtocolProviderServiceSipImpl target = null;
+
+            for (ProtocolProviderServiceSipImpl listener : listenerList)
+            {
+                if (isMatchingAddress(listener, request))
+                {
+                    target = listener;
+                    break;
+                }
+            }
+            if (target == null)
+            {
+                logger.error("no listeners");
+                return null;
+            }
             if (logger.isDebugEnabled())
                 logger.debug("Will randomly dispatch to \"" + target
                         .getAccountID()
@@ -1031,31 +1078,48 @@ public class SipStackSharing
             candidates.iterator();
         while (iterPP.hasNext())
         {
-            ProtocolProviderServiceSipImpl candidate = iterPP.next();
-            boolean forceProxyBypass
-                = candidate.getAccountID()
-                    .getAccountPropertyBoolean(
-                        ProtocolProviderFactory.FORCE_PROXY_BYPASS, false);
-            if(forceProxyBypass)
-            {
-                // Proxy check is disabled all connections are
-                // ok (HA sipXecs, sipXcom, ...)
-                continue;
-            } 
-            if(candidate.getRegistrarConnection() == null)
-            {
-                //RegistrarLess connections are ok
-                continue;
-            }
-
-            if (   !candidate.getRegistrarConnection().isRegistrarless()
-                && !candidate.getRegistrarConnection()
-                        .isRequestFromSameConnection(request))
-            {
+            if (!isMatchingAddress(iterPP.next(), request))
                 iterPP.remove();
-            }
+        }
+    }
+
+    /**
+     * Determines whether a provider may receive a request, that is whether
+     * it is not connected to a registrar or it is connected to the one the
+     * request is received from.
+     *
+     * @param candidate the provider
+     * @param request the request that we are currently dispatching
+     * @return <tt>false</tt> if <tt>candidate</tt> is connected to a
+     * registrar that does not match the IP address that we are receiving
+     * <tt>request</tt> from
+     */
+    private boolean isMatchingAddress(
+                    ProtocolProviderServiceSipImpl candidate,
+                    Request                        request)
+    {
+        boolean forceProxyBypass
+            = candidate.getAccountID()
+                .getAccountPropertyBoolean(
+                    ProtocolProviderFactory.FORCE_PROXY_BYPASS, false);
+        if(forceProxyBypass)
+        {
+            // Proxy check is disabled all connections are
+            // ok (HA sipXecs, sipXcom, ...)
+            return true;
+        }
+
+        SipRegistrarConnection registrarConnection
+            = candidate.getRegistrarConnection();
+
+        if(registrarConnection == null)
+        {
+            //RegistrarLess connections are ok
+            return true;
         }
 
+        return registrarConnection.isRegistrarless()
+            || registrarConnection.isRequestFromSameConnection(request);
     }
 
     /**
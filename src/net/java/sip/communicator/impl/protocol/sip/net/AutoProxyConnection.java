@@ -25,6 +25,8 @@ import static net.java.sip.communicator.service.protocol.ProtocolProviderFactory
 
 import java.net.*;
 import java.text.*;
+import java.util.*;
+import java.util.concurrent.*;
 
 import javax.sip.*;
 
@@ -34,7 +36,10 @@ import net.java.sip.communicator.util.*;
 
 /**
  * Implementation of the autodetect proxy connection. Tries to resolve a SIP-
- * server by querying DNS in this order: NAPTR-SRV-A; SRV-A; A.
+ * server by querying DNS in this order: NAPTR-SRV-A; SRV-A; A. The queries of
+ * a step (the SRV records of every NAPTR record or transport, the A/AAAA
+ * records of every SRV target) run concurrently, while their results are
+ * still returned in order of preference.
  *
  * @author Ingo Bauersachs
  */
@@ -119,6 +124,8 @@ public class AutoProxyConnection
     private int srvTransportIndex;
     private InetSocketAddress socketAddresses[];
     private int socketAddressIndex;
+    private List<Future<SRVRecord[]>> srvLookups;
+    private List<Future<InetSocketAddress[]>> hostLookups;
 
     /**
      * Creates a new instance of this class. Uses the server from the account.
@@ -235,23 +242,25 @@ public class AutoProxyConnection
                 {
                     state = State.NaptrSrv;
                     naptrIndex = 0;
+                    srvLookups = lookupNaptrSrvRecords();
                 }
                 else
                 {
                     hadSrvResults = false;
                     state = State.Srv;
                     srvTransportIndex = 0;
+                    srvLookups = null;
                 }
 
                 return getNextAddressFromDns();
             case NaptrSrv:
                 for(; naptrIndex < naptrRecords.length; naptrIndex++)
                 {
-                    srvRecords = nu.getSRVRecords(
-                        naptrRecords[naptrIndex][2]);
+                    srvRecords = getLookupResult(srvLookups.get(naptrIndex));
                     if(srvRecords != null && srvRecords.length > 0)
                     {
                         state = State.NaptrSrvHosts;
+                        hostLookups = lookupHosts();
                         if(TLS.equalsIgnoreCase(naptrRecords[naptrIndex][1]))
                             transport = TLS;
                         else if(TCP.equalsIgnoreCase(naptrRecords[naptrIndex][1]))
@@ -270,9 +279,8 @@ public class AutoProxyConnection
             case NaptrSrvHosts:
                 for(; srvRecordsIndex < srvRecords.length; srvRecordsIndex++)
                 {
-                    socketAddresses = nu.getAandAAAARecords(
-                        srvRecords[srvRecordsIndex].getTarget(),
-                        srvRecords[srvRecordsIndex].getPort());
+                    socketAddresses = getLookupResult(
+                        hostLookups.get(srvRecordsIndex));
                     if(socketAddresses != null && socketAddresses.length > 0)
                     {
                         state = State.NaptrSrvHostIPs;
@@ -296,21 +304,18 @@ public class AutoProxyConnection
                 socketAddressIndex++;
                 return true;
             case Srv:
+                if(srvLookups == null)
+                    srvLookups = lookupTransportSrvRecords();
                 for(;srvTransportIndex < transports.length; srvTransportIndex++)
                 {
-                    srvRecords = nu.getSRVRecords(
-                        (TLS.equals(transports[srvTransportIndex])
-                            ? "sips"
-                            : "sip"),
-                        (UDP.equalsIgnoreCase(transports[srvTransportIndex])
-                            ? UDP
-                            : TCP),
-                        address);
+                    srvRecords = getLookupResult(
+                        srvLookups.get(srvTransportIndex));
                     if(srvRecords != null && srvRecords.length > 0)
                     {
                         hadSrvResults = true;
                         state = State.SrvHosts;
                         srvRecordsIndex = 0;
+                        hostLookups = lookupHosts();
                         transport = transports[srvTransportIndex];
                         if(getNextAddressFromDns())
                         {
@@ -334,9 +339,8 @@ public class AutoProxyConnection
                 }
                 for(; srvRecordsIndex < srvRecords.length; srvRecordsIndex++)
                 {
-                    socketAddresses = nu.getAandAAAARecords(
-                        srvRecords[srvRecordsIndex].getTarget(),
-                        srvRecords[srvRecordsIndex].getPort());
+                    socketAddresses = getLookupResult(
+                        hostLookups.get(srvRecordsIndex));
                     if(socketAddresses != null && socketAddresses.length > 0)
                     {
                         state = State.SrvHostIPs;
@@ -379,6 +383,123 @@ public class AutoProxyConnection
         return false;
     }
 
+    /**
+     * Starts the lookups of the SRV records of all the NAPTR records.
+     *
+     * @return the lookups, in the order of the NAPTR records
+     */
+    private List<Future<SRVRecord[]>> lookupNaptrSrvRecords()
+    {
+        List<Future<SRVRecord[]>> lookups
+            = new ArrayList<Future<SRVRecord[]>>(naptrRecords.length);
+
+        for(String[] naptrRecord : naptrRecords)
+        {
+            final String domain = naptrRecord[2];
+
+            lookups.add(submitLookup(new Callable<SRVRecord[]>()
+            {
+                public SRVRecord[] call()
+                    throws ParseException, DnssecException
+                {
+                    return nu.getSRVRecords(domain);
+                }
+            }));
+        }
+        return lookups;
+    }
+
+    /**
+     * Starts the lookups of the SRV records of all the transports.
+     *
+     * @return the lookups, in the order of the transports
+     */
+    private List<Future<SRVRecord[]>> lookupTransportSrvRecords()
+    {
+        List<Future<SRVRecord[]>> lookups
+            = new ArrayList<Future<SRVRecord[]>>(transports.length);
+
+        for(String transport : transports)
+        {
+            final String service = TLS.equals(transport) ? "sips" : "sip";
+            final String proto = UDP.equalsIgnoreCase(transport) ? UDP : TCP;
+
+            lookups.add(submitLookup(new Callable<SRVRecord[]>()
+            {
+                public SRVRecord[] call()
+                    throws ParseException, DnssecException
+                {
+                    return nu.getSRVRecords(service, proto, address);
+                }
+            }));
+        }
+        return lookups;
+    }
+
+    /**
+     * Starts the lookups of the A/AAAA records of all the current SRV
+     * records.
+     *
+     * @return the lookups, in the order of the SRV records
+     */
+    private List<Future<InetSocketAddress[]>> lookupHosts()
+    {
+        List<Future<InetSocketAddress[]>> lookups
+            = new ArrayList<Future<InetSocketAddress[]>>(srvRecords.length);
+
+        for(SRVRecord srvRecord : srvRecords)
+        {
+            final String target = srvRecord.getTarget();
+            final int targetPort = srvRecord.getPort();
+
+            lookups.add(submitLookup(
+                new Callable<InetSocketAddress[]>()
+                {
+                    public InetSocketAddress[] call()
+                        throws ParseException, DnssecException
+                    {
+                        return nu.getAandAAAARecords(target, targetPort);
+                    }
+                }));
+        }
+        return lookups;
+    }
+
+    /**
+     * Starts a lookup, in a thread of the lookup pool of
+     * <tt>NetworkUtils</tt>.
+     *
+     * @param lookup the lookup to run
+     * @return the <tt>Future</tt> of the result of <tt>lookup</tt>
+     */
+    protected <T> Future<T> submitLookup(Callable<T> lookup)
+    {
+        return NetworkUtils.submitLookup(lookup);
+    }
+
+    /**
+     * Waits for the result of a lookup.
+     *
+     * @param lookup the lookup
+     * @return the result of the lookup, <tt>null</tt> if the current thread
+     * was interrupted
+     * @throws DnssecException When a DNSSEC failure occured during the lookup.
+     * @throws ParseException When a domain name is invalid.
+     */
+    private static <T> T getLookupResult(Future<T> lookup)
+        throws DnssecException, ParseException
+    {
+        try
+        {
+            return NetworkUtils.getLookupResult(lookup);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
     /*
      * (non-Javadoc)
      *
@@ -390,6 +511,8 @@ public class AutoProxyConnection
     {
         super.reset();
         state = State.New;
+        srvLookups = null;
+        hostLookups = null;
 
         //determine the hostname of the proxy for autodetection:
         //1) server part of the user ID
@@ -20,6 +20,7 @@ package net.java.sip.communicator.impl.protocol.sip.xcap;
 import java.io.*;
 import java.net.*;
 import java.net.URI;
+import java.util.concurrent.*;
 
 import javax.sip.address.*;
 
@@ -38,6 +39,8 @@ import org.apache.http.client.*;
 import org.apache.http.client.methods.*;
 import org.apache.http.entity.*;
 import org.apache.http.impl.client.*;
+import org.apache.http.impl.conn.*;
+import org.apache.http.util.*;
 import org.osgi.framework.*;
 
 /**
@@ -76,6 +79,19 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
     public static final String XCAP_ERROR_CONTENT_TYPE
             = "application/xcap-error+xml";
 
+    /**
+     * The maximum number of connections kept open to the XCAP server. The
+     * requests are mostly sequential, a second connection lets an image be
+     * fetched while a document is being saved.
+     */
+    private static final int MAX_CONNECTIONS = 2;
+
+    /**
+     * The number of seconds after which an unused connection is closed
+     * instead of being reused, as servers drop idle connections anyway.
+     */
+    private static final long IDLE_CONNECTION_TIMEOUT = 30;
+
     /**
      * Current server uri.
      */
@@ -106,6 +122,12 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
      */
     private CertificateService certificateVerification;
 
+    /**
+     * The HTTP client sending all the requests of the current connection,
+     * keeping its connections to the server alive between them.
+     */
+    private DefaultHttpClient httpClient;
+
     /**
      * Creates an instance of this XCAP client.
      */
@@ -141,6 +163,8 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
         this.userAddress = (Address) userAddress.clone();
         this.username = username;
         this.password = password == null ? "" : password;
+        // the client holds the credentials of the previous connection
+        shutdownHttpClient();
         connected = true;
     }
 
@@ -163,6 +187,7 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
         this.userAddress = null;
         this.password = null;
         connected = false;
+        shutdownHttpClient();
     }
 
     /**
@@ -190,16 +215,31 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
     protected XCapHttpResponse get(URI uri)
             throws XCapException
     {
-        DefaultHttpClient httpClient = null;
+        return get(uri, null);
+    }
+
+    /**
+     * Gets resource from the server unless it still has the given entity tag,
+     * in which case the server answers with a 304 (Not Modified) response
+     * without content.
+     *
+     * @param uri the resource uri.
+     * @param eTag the entity tag of the version of the resource we have or
+     * <tt>null</tt> to get the resource unconditionally.
+     * @return the server response.
+     * @throws XCapException if there is error during reading the resource's
+     *                       content.
+     */
+    protected XCapHttpResponse get(URI uri, String eTag)
+            throws XCapException
+    {
         try
         {
-            httpClient = createHttpClient();
-
             HttpGet getMethod = new HttpGet(uri);
-            getMethod.setHeader("Connection", "close");
+            if (eTag != null)
+                getMethod.setHeader(HEADER_IF_NONE_MATCH, eTag);
 
-            HttpResponse response = httpClient.execute(getMethod);
-            XCapHttpResponse result = createResponse(response);
+            XCapHttpResponse result = execute(getMethod);
             if (logger.isDebugEnabled())
             {
                 byte[] contentBytes = result.getContent();
@@ -238,11 +278,6 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
             showError(e, null, errorMessage);
             throw new XCapException(errorMessage, e);
         }
-        finally
-        {
-            if(httpClient != null)
-                httpClient.getConnectionManager().shutdown();
-        }
     }
 
     /**
@@ -287,14 +322,10 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
     public XCapHttpResponse put(XCapResource resource)
             throws XCapException
     {
-        DefaultHttpClient httpClient = null;
         try
         {
-            httpClient = createHttpClient();
-
             URI resourceUri = getResourceURI(resource.getId());
             HttpPut putMethod = new HttpPut(resourceUri);
-            putMethod.setHeader("Connection", "close");
             StringEntity stringEntity = new StringEntity(resource.getContent());
             stringEntity.setContentType(resource.getContentType());
             stringEntity.setContentEncoding("UTF-8");
@@ -309,8 +340,7 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
                 );
                 logger.debug(logMessage);
             }
-            HttpResponse response = httpClient.execute(putMethod);
-            return createResponse(response);
+            return execute(putMethod);
         }
         catch (IOException e)
         {
@@ -319,11 +349,6 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
                     resource.getId().toString());
             throw new XCapException(errorMessage, e);
         }
-        finally
-        {
-            if(httpClient != null)
-                httpClient.getConnectionManager().shutdown();
-        }
     }
 
     /**
@@ -338,14 +363,10 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
             throws XCapException
     {
         assertConnected();
-        DefaultHttpClient httpClient = null;
         try
         {
-            httpClient = createHttpClient();
-
             URI resourceUri = getResourceURI(resourceId);
             HttpDelete deleteMethod = new HttpDelete(resourceUri);
-            deleteMethod.setHeader("Connection", "close");
 
             if (logger.isDebugEnabled())
             {
@@ -355,8 +376,7 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
                 );
                 logger.debug(logMessage);
             }
-            HttpResponse response = httpClient.execute(deleteMethod);
-            return createResponse(response);
+            return execute(deleteMethod);
         }
         catch (IOException e)
         {
@@ -365,11 +385,6 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
                     resourceId.toString());
             throw new XCapException(errorMessage, e);
         }
-        finally
-        {
-            if(httpClient != null)
-                httpClient.getConnectionManager().shutdown();
-        }
     }
 
     /**
@@ -426,26 +441,89 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
     }
 
     /**
-     * Creates HTTP client with special parameters.
+     * Returns the HTTP client of the current connection, creating it with a
+     * pooling connection manager on first use so that the following requests
+     * reuse its connections instead of opening a new one, with a new TLS
+     * handshake, each.
      *
      * @return the HTTP client.
      */
-    private DefaultHttpClient createHttpClient()
+    private synchronized DefaultHttpClient getHttpClient()
+        throws IOException
+    {
+        if (httpClient == null)
+        {
+            XCapCredentialsProvider credentialsProvider
+                = new XCapCredentialsProvider();
+            credentialsProvider.setCredentials(
+                AuthScope.ANY,
+                new UsernamePasswordCredentials(getUserName(), password));
+
+            PoolingClientConnectionManager connectionManager
+                = new PoolingClientConnectionManager();
+            connectionManager.setMaxTotal(MAX_CONNECTIONS);
+            connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS);
+
+            httpClient = HttpUtils.getHttpClient(
+                null , null, uri.getHost(), credentialsProvider,
+                connectionManager);
+        }
+        else
+        {
+            httpClient.getConnectionManager().closeIdleConnections(
+                IDLE_CONNECTION_TIMEOUT, TimeUnit.SECONDS);
+        }
+        return httpClient;
+    }
+
+    /**
+     * Closes the connections of the current HTTP client and forgets it.
+     */
+    private synchronized void shutdownHttpClient()
+    {
+        if (httpClient != null)
+        {
+            httpClient.getConnectionManager().shutdown();
+            httpClient = null;
+        }
+    }
+
+    /**
+     * Executes a request and reads its response. The content of the response
+     * is always consumed, so that the connection can be reused by the next
+     * request.
+     *
+     * @param request the request to execute.
+     * @return the XCAP response.
+     * @throws IOException if the request fails or its response cannot be
+     * read.
+     */
+    private XCapHttpResponse execute(HttpUriRequest request)
         throws IOException
     {
-        XCapCredentialsProvider credentialsProvider
-            = new XCapCredentialsProvider();
-        credentialsProvider.setCredentials(
-            AuthScope.ANY,
-            new UsernamePasswordCredentials(getUserName(), password));
-
-        return HttpUtils.getHttpClient(
-            null , null, uri.getHost(), credentialsProvider);
+        HttpResponse response = getHttpClient().execute(request);
+        boolean consumed = false;
+
+        try
+        {
+            XCapHttpResponse result = createResponse(response);
+
+            EntityUtils.consume(response.getEntity());
+            consumed = true;
+            return result;
+        }
+        finally
+        {
+            // the connection cannot be reused as its state is unknown
+            if (!consumed)
+                request.abort();
+        }
     }
 
     /**
      * Creates XCAP response from HTTP response.
-     * If HTTP code is 200, 201 or 409 the HTTP content would be read.
+     * If HTTP code is 200, 201 or 409 the HTTP content would be read. If it is
+     * 304 only the entity tag is.
      *
      * @param response the HTTP response.
      * @return the XCAP response.
@@ -469,6 +547,11 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
             xcapHttpResponse.setContent(content);
             xcapHttpResponse.setETag(eTag);
         }
+        else if (statusCode == HttpStatus.SC_NOT_MODIFIED)
+        {
+            xcapHttpResponse.setETag(
+                    getSingleHeaderValue(response, HEADER_ETAG));
+        }
         xcapHttpResponse.setHttpCode(statusCode);
         return xcapHttpResponse;
     }
@@ -19,6 +19,7 @@ package net.java.sip.communicator.impl.protocol.sip.xcap;
 
 import java.io.*;
 import java.net.URI;
+import java.util.*;
 
 import javax.sip.address.*;
 
@@ -29,6 +30,7 @@ import net.java.sip.communicator.impl.protocol.sip.xcap.model.prescontent.*;
 import net.java.sip.communicator.impl.protocol.sip.xcap.model.resourcelists.*;
 import net.java.sip.communicator.impl.protocol.sip.xcap.model.xcapcaps.*;
 import net.java.sip.communicator.util.*;
+import net.java.sip.communicator.util.Base64; // disambiguation
 
 import org.apache.http.*;
 import org.jitsi.util.*;
@@ -63,6 +65,33 @@ public class XCapClientImpl extends BaseHttpXCapClient implements XCapClient
      */
     private boolean presContentSupported;
 
+    /**
+     * The maximum number of documents kept in {@link #documents}.
+     */
+    private static final int MAX_CACHED_DOCUMENTS = 32;
+
+    /**
+     * The last version of the documents read from or written to the server,
+     * by URI, the least recently used first. They are revalidated with their
+     * entity tag, so reloading a document which did not change costs a 304
+     * (Not Modified) response instead of its whole content.
+     */
+    private final Map<String, XCapHttpResponse> documents
+        = new LinkedHashMap<String, XCapHttpResponse>(16, 0.75f, true)
+        {
+            /**
+             * Serial version UID.
+             */
+            private static final long serialVersionUID = 0L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                Map.Entry<String, XCapHttpResponse> eldest)
+            {
+                return size() > MAX_CACHED_DOCUMENTS;
+            }
+        };
+
     /**
      * Connects user to XCap server. Loads xcap-caps server capabilities and
      * anaylyze if resource-lists, pres-rules, pres-content is supported.
@@ -113,6 +142,10 @@ public class XCapClientImpl extends BaseHttpXCapClient implements XCapClient
         super.disconnect();
         xCapCaps = null;
         resourceListsSupported = false;
+        synchronized (documents)
+        {
+            documents.clear();
+        }
     }
 
     /**
@@ -513,6 +546,83 @@ public class XCapClientImpl extends BaseHttpXCapClient implements XCapClient
         return content;
     }
 
+    /**
+     * Gets resource from the server, revalidating the version we already have
+     * if any. A 304 (Not Modified) answer is returned as the 200 (OK) response
+     * which brought that version.
+     *
+     * @param uri the resource uri.
+     * @return the server response.
+     * @throws XCapException if there is error during reading the resource's
+     *                       content.
+     */
+    @Override
+    protected XCapHttpResponse get(URI uri)
+            throws XCapException
+    {
+        String key = uri.toString();
+        XCapHttpResponse cached;
+
+        synchronized (documents)
+        {
+            cached = documents.get(key);
+        }
+
+        XCapHttpResponse response
+            = get(uri, (cached == null) ? null : cached.getETag());
+        int httpCode = response.getHttpCode();
+
+        if (httpCode == HttpStatus.SC_NOT_MODIFIED && cached != null)
+            return cached;
+
+        synchronized (documents)
+        {
+            if (httpCode == HttpStatus.SC_OK && response.getETag() != null)
+                documents.put(key, response);
+            else
+                documents.remove(key);
+        }
+        return response;
+    }
+
+    /**
+     * Remembers the version of a resource we put to the server if the server
+     * told its entity tag, so that reading it back costs no content.
+     *
+     * @param resource the resource put to the server.
+     * @param response the response of the server.
+     */
+    private void resourcePut(XCapResource resource, XCapHttpResponse response)
+    {
+        String key = getResourceURI(resource.getId()).toString();
+        String eTag = response.getETag();
+        XCapHttpResponse document = null;
+
+        if (eTag != null)
+        {
+            try
+            {
+                document = new XCapHttpResponse();
+                document.setHttpCode(HttpStatus.SC_OK);
+                document.setContentType(resource.getContentType());
+                document.setContent(resource.getContent().getBytes("UTF-8"));
+                document.setETag(eTag);
+            }
+            catch (UnsupportedEncodingException e)
+            {
+                document = null;
+            }
+        }
+
+        synchronized (documents)
+        {
+            if (document != null)
+                documents.put(key, document);
+            else
+                documents.remove(key);
+        }
+    }
+
     /**
      * Utility method throwing an exception if the resource-lists
      * is not supported.
@@ -591,6 +701,7 @@ public class XCapClientImpl extends BaseHttpXCapClient implements XCapClient
             }
             throw new XCapException(errorMessage);
         }
+        resourcePut(resource, response);
     }
 
     /**
@@ -687,6 +798,10 @@ public class XCapClientImpl extends BaseHttpXCapClient implements XCapClient
             throws XCapException
     {
         XCapHttpResponse response = this.delete(resourceId);
+        synchronized (documents)
+        {
+            documents.remove(getResourceURI(resourceId).toString());
+        }
         int httpCode = response.getHttpCode();
         if (httpCode != HttpStatus.SC_OK && httpCode != HttpStatus.SC_NOT_FOUND)
         {
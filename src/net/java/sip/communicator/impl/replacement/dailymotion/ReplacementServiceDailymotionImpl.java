@@ -54,6 +54,14 @@ public class ReplacementServiceDailymotionImpl
      */
     public static final String SOURCE_NAME = "DAILYMOTION";
 
+    /**
+     * Matches the video ID after <tt>/video/</tt> in a Dailymotion link.
+     */
+    private static final Pattern ID_PATTERN
+        = Pattern.compile(
+            "(.+\\/video\\/([a-zA-Z0-9_\\-]+))([?#]([a-zA-Z0-9_\\-]+))*",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
     /**
      * Constructor for <tt>ReplacementServiceDailymotionImpl</tt>.
      */
@@ -70,11 +78,7 @@ public class ReplacementServiceDailymotionImpl
      */
     public String getReplacement(String sourceString)
     {
-        final Pattern p =
-            Pattern.compile(
-                "(.+\\/video\\/([a-zA-Z0-9_\\-]+))([?#]([a-zA-Z0-9_\\-]+))*",
-                Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
-        Matcher m = p.matcher(sourceString);
+        Matcher m = ID_PATTERN.matcher(sourceString);
 
         String thumbUrl = sourceString;
 
@@ -63,6 +63,14 @@ public class ReplacementServiceFlickrImpl
      */
     public static final String SOURCE_NAME = "FLICKR";
 
+    /**
+     * Matches the photo ID after the user of a Flickr photo link.
+     */
+    private static final Pattern ID_PATTERN
+        = Pattern.compile(
+            "\\/photos\\/[0-9a-zA-Z_\\-\\@]+\\/([0-9]+)(\\/[^\"\\<]*)*",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
     /**
      * Constructor for <tt>ReplacementServiceFlickrImpl</tt>.
      */
@@ -80,11 +88,7 @@ public class ReplacementServiceFlickrImpl
      */
     public String getReplacement(String sourceString)
     {
-        final Pattern p =
-            Pattern.compile(
-                "\\/photos\\/[0-9a-zA-Z_\\-\\@]+\\/([0-9]+)(\\/[^\"\\<]*)*",
-                Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
-        Matcher m = p.matcher(sourceString);
+        Matcher m = ID_PATTERN.matcher(sourceString);
         String thumbUrl = sourceString;
 
         while (m.find())
@@ -54,6 +54,14 @@ public class ReplacementServiceMetacafeImpl
      */
     public static final String SOURCE_NAME = "METACAFE";
 
+    /**
+     * Matches the video ID after <tt>/watch/</tt> in a Metacafe link.
+     */
+    private static final Pattern ID_PATTERN
+        = Pattern.compile(
+            "\\/watch\\/([a-zA-Z0-9_\\-]+)(\\/[a-zA-Z0-9_\\-\\/]+)*",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
     /**
      * Constructor for <tt>ReplacementServiceMetacafeImpl</tt>.
      */
@@ -71,11 +79,7 @@ public class ReplacementServiceMetacafeImpl
      */
     public String getReplacement(String sourceString)
     {
-        final Pattern p =
-            Pattern.compile(
-                "\\/watch\\/([a-zA-Z0-9_\\-]+)(\\/[a-zA-Z0-9_\\-\\/]+)*",
-                Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
-        Matcher m = p.matcher(sourceString);
+        Matcher m = ID_PATTERN.matcher(sourceString);
 
         String thumbUrl = sourceString;
 
@@ -54,6 +54,14 @@ public class ReplacementServiceTwitpicImpl
      */
     public static final String SOURCE_NAME = "TWITPIC";
 
+    /**
+     * Matches the image ID after <tt>.com/</tt> in a Twitpic link.
+     */
+    private static final Pattern ID_PATTERN
+        = Pattern.compile(
+            "\\.com\\/([^\\/<]*)",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
     /**
      * Constructor for <tt>ReplacementServiceTwitpicImpl</tt>.
      */
@@ -71,11 +79,7 @@ public class ReplacementServiceTwitpicImpl
      */
     public String getReplacement(String sourceString)
     {
-        final Pattern p =
-            Pattern.compile("\\.com\\/([^\\/<]*)", Pattern.CASE_INSENSITIVE
-                | Pattern.DOTALL);
-
-        Matcher m = p.matcher(sourceString);
+        Matcher m = ID_PATTERN.matcher(sourceString);
         String thumbUrl = sourceString;
 
         while (m.find())
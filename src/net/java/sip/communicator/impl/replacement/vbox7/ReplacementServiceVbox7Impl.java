@@ -56,6 +56,14 @@ public class ReplacementServiceVbox7Impl
      */
     public static final String SOURCE_NAME = "VBOX7";
 
+    /**
+     * Matches the video ID after <tt>/play:</tt> in a Vbox7 link.
+     */
+    private static final Pattern ID_PATTERN
+        = Pattern.compile(
+            "\\/play\\:([a-zA-Z0-9_\\-]+)([?&]\\w+=[\\w-]*)*",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
     /**
      * Constructor for <tt>ReplacementServiceVbox7Impl</tt>.
      */
@@ -72,10 +80,7 @@ public class ReplacementServiceVbox7Impl
      */
     public String getReplacement(String sourceString)
     {
-        final Pattern p =
-            Pattern.compile("\\/play\\:([a-zA-Z0-9_\\-]+)([?&]\\w+=[\\w-]*)*",
-                Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
-        Matcher m = p.matcher(sourceString);
+        Matcher m = ID_PATTERN.matcher(sourceString);
         String thumbUrl = sourceString;
         String id = null;
 
@@ -58,6 +58,14 @@ public class ReplacementServiceVimeoImpl
      */
     public static final String SOURCE_NAME = "VIMEO";
 
+    /**
+     * Matches the video ID after <tt>.com/</tt> in a Vimeo link.
+     */
+    private static final Pattern ID_PATTERN
+        = Pattern.compile(
+            ".+\\.com\\/([a-zA-Z0-9_\\-]+)",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
     /**
      * Constructor for <tt>ReplacementServiceVimeoImpl</tt>.
      */
@@ -74,10 +82,7 @@ public class ReplacementServiceVimeoImpl
      */
     public String getReplacement(String sourceString)
     {
-        final Pattern p =
-            Pattern.compile(".+\\.com\\/([a-zA-Z0-9_\\-]+)",
-                Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
-        Matcher m = p.matcher(sourceString);
+        Matcher m = ID_PATTERN.matcher(sourceString);
 
         String thumbUrl = sourceString;
 
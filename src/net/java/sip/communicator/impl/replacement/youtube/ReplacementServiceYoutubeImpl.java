@@ -54,6 +54,16 @@ public class ReplacementServiceYoutubeImpl
      */
     public static final String SOURCE_NAME = "YOUTUBE";
 
+    /**
+     * Matches the 11 character video ID of a YouTube link.
+     */
+    private static final Pattern ID_PATTERN
+        = Pattern.compile(
+            "https?:\\/\\/(?:[0-9A-Z-]+\\.)?(?:youtu\\"
+            + ".be\\/|youtube\\.com\\S*[^\\w\\-\\s])([\\w\\-]{11})(?=[^\\"
+            + "w\\-]|$)(?![?=&+%\\w]*(?:['\"][^<>]*>|<\\/a>))[?=&+%\\w]*",
+            Pattern.CASE_INSENSITIVE);
+
     /**
      * Constructor for <tt>ReplacementServiceYoutubeImpl</tt>.
      */
@@ -70,12 +80,7 @@ public class ReplacementServiceYoutubeImpl
      */
     public String getReplacement(String sourceString)
     {
-        final String pattern = "https?:\\/\\/(?:[0-9A-Z-]+\\.)?(?:youtu\\"
-            + ".be\\/|youtube\\.com\\S*[^\\w\\-\\s])([\\w\\-]{11})(?=[^\\"
-            + "w\\-]|$)(?![?=&+%\\w]*(?:['\"][^<>]*>|<\\/a>))[?=&+%\\w]*";
-        final Pattern compiledPattern
-            = Pattern.compile(pattern, Pattern.CASE_INSENSITIVE);
-        Matcher matcher = compiledPattern.matcher(sourceString);
+        Matcher matcher = ID_PATTERN.matcher(sourceString);
         String thumbUrl = sourceString;
         
         while (matcher.find())
@@ -20,7 +20,9 @@ package net.java.sip.communicator.plugin.desktoputil;
 import java.awt.*;
 import java.awt.image.*;
 import java.io.*;
+import java.lang.ref.*;
 import java.net.*;
+import java.util.*;
 
 import javax.imageio.*;
 import javax.swing.*;
@@ -42,6 +44,34 @@ public class ImageUtils
      */
     private static final Logger logger = Logger.getLogger(ImageUtils.class);
 
+    /**
+     * The maximum number of scaled images kept by {@link #scaledImages}.
+     */
+    private static final int MAX_SCALED_IMAGES = 256;
+
+    /**
+     * The images scaled from image bytes, by shape, size and SHA-1 hash of
+     * the bytes, the least recently used first. The contact list and the
+     * notifications ask again and again for the same avatars at the same
+     * sizes, which are then decoded and scaled once. The images are softly
+     * referenced so that they are dropped when memory runs low.
+     */
+    private static final Map<String, SoftReference<Image>> scaledImages
+        = new LinkedHashMap<String, SoftReference<Image>>(16, 0.75f, true)
+        {
+            /**
+             * Serial version UID.
+             */
+            private static final long serialVersionUID = 0L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                Map.Entry<String, SoftReference<Image>> eldest)
+            {
+                return size() > MAX_SCALED_IMAGES;
+            }
+        };
+
     /**
      * Different shapes that an image can be cropped to.
      */
@@ -382,6 +412,23 @@ public class ImageUtils
         if (imageBytes == null || !(imageBytes.length > 0))
             return null;
 
+        String key = getScaledImageKey(imageBytes, shape, width, height);
+
+        if (key != null)
+        {
+            SoftReference<Image> ref;
+
+            synchronized (scaledImages)
+            {
+                ref = scaledImages.get(key);
+            }
+
+            Image scaledImage = (ref == null) ? null : ref.get();
+
+            if (scaledImage != null)
+                return new ImageIcon(scaledImage);
+        }
+
         ImageIcon imageIcon = null;
 
         try
@@ -425,9 +472,46 @@ public class ImageUtils
                 logger.debug("Could not create image.", e);
         }
 
+        if ((imageIcon != null) && (key != null))
+        {
+            synchronized (scaledImages)
+            {
+                scaledImages.put(
+                        key,
+                        new SoftReference<Image>(imageIcon.getImage()));
+            }
+        }
+
         return imageIcon;
     }
 
+    /**
+     * Returns the key of an image scaled from image bytes in
+     * {@link #scaledImages}.
+     *
+     * @param imageBytes the bytes of the image
+     * @param shape the shape of the scaled image
+     * @param width the maximum width of the scaled image
+     * @param height the maximum height of the scaled image
+     * @return the key of the scaled image or <tt>null</tt> if the bytes could
+     * not be hashed
+     */
+    private static String getScaledImageKey(byte[] imageBytes,
+                                            Shape shape,
+                                            int width,
+                                            int height)
+    {
+        try
+        {
+            return shape + "/" + width + "x" + height + "/"
+                + Sha1Crypto.encode(imageBytes);
+        }
+        catch (Exception e)
+        {
+            return null;
+        }
+    }
+
     /**
      * Returns the buffered image corresponding to the given url image path.
      *
@@ -0,0 +1,32 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.service.contactlist.event;
+
+/**
+ * A <tt>MetaContactListListener</tt> which does not need to be notified in
+ * the thread which changed the meta contact list. The
+ * <tt>MetaContactListService</tt> delivers its events in a thread of its own,
+ * in the order they were fired, so that a slow listener does not hold back
+ * the protocol providers. Redundant events which are still waiting to be
+ * delivered, such as the reorderings of a group caused by a burst of presence
+ * changes, may be replaced by the latest of them.
+ */
+public interface AsynchronousMetaContactListListener
+    extends MetaContactListListener
+{
+}
@@ -0,0 +1,116 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.service.dns;
+
+/**
+ * The DNS cache shared by all the lookups of the application. It is installed
+ * as the default cache of the dnsjava <tt>Lookup</tt> class, so the records
+ * it holds are reused whatever protocol asks for them. Besides the records
+ * and the negative answers honouring their TTL, it remembers for a short time
+ * the questions which timed out, so that a burst of reconnecting accounts
+ * does not send them again and again to an unresponsive server.
+ */
+public interface DnsCacheService
+{
+    /**
+     * The name of the property that sets the number of seconds during which
+     * negative answers (NXDOMAIN and empty answers) are cached at most.
+     */
+    public static final String PNAME_NEGATIVE_CACHE_TTL
+        = "net.java.sip.communicator.util.dns.NEGATIVE_CACHE_TTL";
+
+    /**
+     * The default number of seconds during which negative answers are cached
+     * at most.
+     */
+    public static final int DEFAULT_NEGATIVE_CACHE_TTL = 60;
+
+    /**
+     * The name of the property that sets the number of seconds during which
+     * a question which timed out is not asked again.
+     */
+    public static final String PNAME_FAILURE_CACHE_TTL
+        = "net.java.sip.communicator.util.dns.FAILURE_CACHE_TTL";
+
+    /**
+     * The default number of seconds during which a question which timed out
+     * is not asked again.
+     */
+    public static final int DEFAULT_FAILURE_CACHE_TTL = 10;
+
+    /**
+     * Records that a lookup timed out or failed without an answer.
+     *
+     * @param name the name which was looked up
+     * @param type the type of the records which were looked up
+     */
+    public void lookupFailed(String name, int type);
+
+    /**
+     * Determines whether a lookup failed recently enough not to be tried
+     * again yet.
+     *
+     * @param name the name to look up
+     * @param type the type of the records to look up
+     * @return <tt>true</tt> if the lookup is to be considered failed without
+     * being sent
+     */
+    public boolean isLookupFailing(String name, int type);
+
+    /**
+     * Removes all the records, negative answers and failures from the cache.
+     */
+    public void clear();
+
+    /**
+     * Returns the number of lookups answered with records by the cache.
+     *
+     * @return the number of positive hits
+     */
+    public long getHitCount();
+
+    /**
+     * Returns the number of lookups answered with a negative answer or a
+     * recent failure by the cache.
+     *
+     * @return the number of negative hits
+     */
+    public long getNegativeHitCount();
+
+    /**
+     * Returns the number of lookups the cache could not answer.
+     *
+     * @return the number of misses
+     */
+    public long getMissCount();
+
+    /**
+     * Returns the number of records refreshed before they expired.
+     *
+     * @return the number of prefetches
+     */
+    public long getPrefetchCount();
+
+    /**
+     * Returns the share of the lookups answered by the cache, positively or
+     * negatively.
+     *
+     * @return the hit rate, between <tt>0</tt> and <tt>1</tt>
+     */
+    public double getHitRate();
+}
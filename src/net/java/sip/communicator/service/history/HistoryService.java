@@ -41,6 +41,25 @@ public interface HistoryService {
     public static String CACHE_ENABLED_PROPERTY =
         "net.java.sip.communicator.service.history.CACHE_ENABLED";
 
+    /**
+     * Property used to limit the memory used by the cache of opened history
+     * documents, shared by all histories. The value is the estimated number
+     * of bytes retained by the cached documents, the least recently used
+     * documents are dropped when it is exceeded.
+     */
+    public static String CACHE_MAX_SIZE_PROPERTY =
+        "net.java.sip.communicator.service.history.CACHE_MAX_SIZE";
+
+    /**
+     * Property used to select the storage of newly opened histories. The
+     * default value <tt>xml</tt> keeps records in XML files, <tt>segment</tt>
+     * keeps them in indexed append-only segment files and migrates existing
+     * XML histories the first time they are opened. Histories already
+     * migrated keep using the segment storage whatever the value.
+     */
+    public static String STORAGE_ENGINE_PROPERTY =
+        "net.java.sip.communicator.service.history.STORAGE_ENGINE";
+
     /**
      * Date format used in the XML history database.
      */
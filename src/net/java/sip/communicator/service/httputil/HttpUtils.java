@@ -35,6 +35,7 @@ import org.apache.http.client.*;
 import org.apache.http.client.methods.*;
 import org.apache.http.client.params.*;
 import org.apache.http.client.utils.*;
+import org.apache.http.conn.*;
 import org.apache.http.conn.scheme.*;
 import org.apache.http.entity.*;
 import org.apache.http.entity.mime.*;
@@ -672,13 +673,48 @@ public class HttpUtils
         final String address,
         CredentialsProvider credentialsProvider)
         throws IOException
+    {
+        return getHttpClient(
+            usernamePropertyName,
+            passwordPropertyName,
+            address,
+            credentialsProvider,
+            null);
+    }
+
+    /**
+     * Returns the preconfigured http client using the given connection
+     * manager, so that clients sending many requests to the same server
+     * can keep their connections alive between them. The https scheme is
+     * registered in the scheme registry of the connection manager.
+     * @param usernamePropertyName the property to use to retrieve/store
+     * username value if protected site is hit, for username
+     * ConfigurationService service is used.
+     * @param passwordPropertyName the property to use to retrieve/store
+     * password value if protected site is hit, for password
+     * CredentialsStorageService service is used.
+     * @param address the address we will be connecting to
+     * @param credentialsProvider if not null provider will bre reused
+     * in the new client
+     * @param connectionManager the connection manager of the new client, if
+     * <tt>null</tt> a single connection one is created
+     * @see #getHttpClient(String, String, String, CredentialsProvider)
+     */
+    public static DefaultHttpClient getHttpClient(
+        String usernamePropertyName,
+        String passwordPropertyName,
+        final String address,
+        CredentialsProvider credentialsProvider,
+        ClientConnectionManager connectionManager)
+        throws IOException
     {
         HttpParams params = new BasicHttpParams();
         params.setParameter(CoreConnectionPNames.SO_TIMEOUT, 10000);
         params.setParameter(CoreConnectionPNames.CONNECTION_TIMEOUT, 10000);
         params.setParameter(ClientPNames.MAX_REDIRECTS, MAX_REDIRECTS);
 
-        DefaultHttpClient httpClient = new DefaultHttpClient(params);
+        DefaultHttpClient httpClient
+            = new DefaultHttpClient(connectionManager, params);
 
         HttpProtocolParams.setUserAgent(httpClient.getParams(),
             System.getProperty("sip-communicator.application.name")
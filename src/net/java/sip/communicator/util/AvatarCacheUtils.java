@@ -18,6 +18,7 @@
 package net.java.sip.communicator.util;
 
 import java.io.*;
+import java.nio.file.*;
 
 import org.jitsi.service.fileaccess.*;
 
@@ -43,6 +44,12 @@ public class AvatarCacheUtils
      */
     private final static String AVATAR_DIR = "avatarcache";
 
+    /**
+     * The name of the directory, within {@link #AVATAR_DIR}, in which the
+     * avatar images are stored by the SHA-1 hash of their bytes.
+     */
+    private final static String CONTENT_DIR = "content";
+
     /**
      *  Characters and their replacement in created folder names
      */
@@ -190,29 +197,7 @@ public class AvatarCacheUtils
                         .getPrivatePersistentFile(avatarPath,
                             FileCategory.CACHE);
 
-            if(avatarFile.exists())
-            {
-                FileInputStream avatarInputStream
-                    = new FileInputStream(avatarFile);
-                byte[] bs = null;
-
-                try
-                {
-                    int available = avatarInputStream.available();
-
-                    if (available > 0)
-                    {
-                        bs = new byte[available];
-                        avatarInputStream.read(bs);
-                    }
-                }
-                finally
-                {
-                    avatarInputStream.close();
-                }
-                if (bs != null)
-                    return bs;
-            }
+            return getLocallyStoredAvatar(avatarFile);
         }
         catch (Exception ex)
         {
@@ -223,6 +208,42 @@ public class AvatarCacheUtils
         return null;
     }
 
+    /**
+     * Returns the avatar image stored in the given file.
+     *
+     * @param avatarFile the file of the locally stored avatar
+     * @return the avatar image stored in <tt>avatarFile</tt> or <tt>null</tt>
+     * @throws IOException if the file could not be read
+     */
+    private static byte[] getLocallyStoredAvatar(File avatarFile)
+        throws IOException
+    {
+        if(avatarFile.exists())
+        {
+            FileInputStream avatarInputStream
+                = new FileInputStream(avatarFile);
+            byte[] bs = null;
+
+            try
+            {
+                int available = avatarInputStream.available();
+
+                if (available > 0)
+                {
+                    bs = new byte[available];
+                    avatarInputStream.read(bs);
+                }
+            }
+            finally
+            {
+                avatarInputStream.close();
+            }
+            if (bs != null)
+                return bs;
+        }
+        return null;
+    }
+
     /**
      * Replaces the characters that we must escape used for the created
      * filename.
@@ -290,7 +311,12 @@ public class AvatarCacheUtils
 
     /**
      * Stores avatar bytes for the account corresponding to the given
-     * <tt>protocolProvider</tt>.
+     * <tt>protocolProvider</tt>. The bytes are stored once in a file named
+     * after their SHA-1 hash, which the avatar file links to, so that the
+     * contacts sharing an avatar share its file and an avatar which did not
+     * change is not written again. Where the file system does not tell the
+     * number of links to a file, the bytes are stored in the avatar file
+     * itself, as a content file could not be removed with its last link.
      *
      * @param avatarDirPath the directory in which the file will be stored
      * @param avatarFileName the name of the avatar file
@@ -315,25 +341,27 @@ public class AvatarCacheUtils
                         new File(avatarDirPath, avatarFileName).toString(),
                         FileCategory.CACHE);
 
-            if(!avatarFile.exists())
+            if (!avatarDir.exists() && !avatarDir.mkdirs())
             {
-                if (!avatarDir.exists() && !avatarDir.mkdirs())
-                {
-                    throw
-                        new IOException(
-                                "Failed to create directory: "
-                                    + avatarDir.getAbsolutePath());
-                }
-
-                if (!avatarFile.createNewFile())
-                {
-                    throw
-                        new IOException(
-                                "Failed to create file"
-                                    + avatarFile.getAbsolutePath());
-                }
+                throw
+                    new IOException(
+                            "Failed to create directory: "
+                                + avatarDir.getAbsolutePath());
             }
 
+            File contentFile
+                = ((avatarBytes.length == 0) || !isLinkCountSupported())
+                    ? null
+                    : storeContent(fileAccessService, avatarBytes);
+
+            if ((contentFile != null)
+                    && linkContent(fileAccessService, avatarFile, contentFile))
+                return;
+
+            // The file may be a link to a content file, which is not to be
+            // overwritten.
+            removeAvatarFile(fileAccessService, avatarFile);
+
             FileOutputStream fileOutStream = new FileOutputStream(avatarFile);
 
             try
@@ -354,4 +382,211 @@ public class AvatarCacheUtils
                     ex);
         }
     }
+
+    /**
+     * Determines whether the file system of the cache tells the number of
+     * links to a file, which is needed to know when a content file is not
+     * linked to by any avatar file anymore.
+     *
+     * @return <tt>true</tt> if the number of links to a file is known
+     */
+    private static boolean isLinkCountSupported()
+    {
+        return
+            FileSystems.getDefault().supportedFileAttributeViews().contains(
+                    "unix");
+    }
+
+    /**
+     * Returns the file storing avatar bytes by their content.
+     *
+     * @param fileAccessService the service giving access to the cache
+     * @param avatarBytes the avatar image bytes
+     * @return the file named after the SHA-1 hash of <tt>avatarBytes</tt>
+     * @throws Exception if the hash cannot be computed or the file cannot be
+     * accessed
+     */
+    private static File getContentFile(
+            FileAccessService fileAccessService,
+            byte[] avatarBytes)
+        throws Exception
+    {
+        return
+            fileAccessService.getPrivatePersistentFile(
+                    AVATAR_DIR
+                        + File.separator
+                        + CONTENT_DIR
+                        + File.separator
+                        + Sha1Crypto.encode(avatarBytes),
+                    FileCategory.CACHE);
+    }
+
+    /**
+     * Stores avatar bytes in the file named after their SHA-1 hash unless
+     * they are already there.
+     *
+     * @param fileAccessService the service giving access to the cache
+     * @param avatarBytes the avatar image bytes
+     * @return the file storing <tt>avatarBytes</tt> or <tt>null</tt> if it
+     * could not be written
+     */
+    private static File storeContent(
+            FileAccessService fileAccessService,
+            byte[] avatarBytes)
+    {
+        File contentFile = null;
+
+        try
+        {
+            contentFile = getContentFile(fileAccessService, avatarBytes);
+            if (contentFile.length() == avatarBytes.length)
+                return contentFile;
+
+            File contentDir = contentFile.getParentFile();
+
+            if (!contentDir.exists() && !contentDir.mkdirs())
+            {
+                throw
+                    new IOException(
+                            "Failed to create directory: "
+                                + contentDir.getAbsolutePath());
+            }
+
+            // Written aside and moved so that a file named after a hash
+            // always holds the whole content.
+            File tmpFile
+                = File.createTempFile("avatar", ".tmp", contentDir);
+
+            try
+            {
+                FileOutputStream fileOutStream = new FileOutputStream(tmpFile);
+
+                try
+                {
+                    fileOutStream.write(avatarBytes);
+                    fileOutStream.flush();
+                }
+                finally
+                {
+                    fileOutStream.close();
+                }
+                Files.move(
+                        tmpFile.toPath(),
+                        contentFile.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+            finally
+            {
+                Files.deleteIfExists(tmpFile.toPath());
+            }
+            return contentFile;
+        }
+        catch (Exception ex)
+        {
+            logger.error("Failed to store avatar content " + contentFile, ex);
+            return null;
+        }
+    }
+
+    /**
+     * Makes an avatar file a link to a content file.
+     *
+     * @param fileAccessService the service giving access to the cache
+     * @param avatarFile the avatar file
+     * @param contentFile the content file
+     * @return <tt>true</tt> if <tt>avatarFile</tt> links to
+     * <tt>contentFile</tt>, <tt>false</tt> if links are not supported and
+     * the avatar is to be written in <tt>avatarFile</tt>
+     */
+    private static boolean linkContent(
+            FileAccessService fileAccessService,
+            File avatarFile,
+            File contentFile)
+    {
+        Path avatarPath = avatarFile.toPath();
+        Path contentPath = contentFile.toPath();
+
+        try
+        {
+            if (avatarFile.exists()
+                    && Files.isSameFile(avatarPath, contentPath))
+                return true;
+
+            removeAvatarFile(fileAccessService, avatarFile);
+            Files.createLink(avatarPath, contentPath);
+            return true;
+        }
+        catch (UnsupportedOperationException uoe)
+        {
+            return false;
+        }
+        catch (Exception ex)
+        {
+            if (logger.isDebugEnabled())
+            {
+                logger.debug(
+                        "Failed to link avatar " + avatarFile + " to "
+                            + contentFile,
+                        ex);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Removes an avatar file, and the content file it links to if no other
+     * avatar file links to it anymore.
+     *
+     * @param fileAccessService the service giving access to the cache
+     * @param avatarFile the avatar file
+     * @throws IOException if the avatar file could not be removed
+     */
+    private static void removeAvatarFile(
+            FileAccessService fileAccessService,
+            File avatarFile)
+        throws IOException
+    {
+        if (!avatarFile.exists())
+            return;
+
+        File contentFile = null;
+
+        try
+        {
+            byte[] avatarBytes = getLocallyStoredAvatar(avatarFile);
+
+            if ((avatarBytes != null) && (avatarBytes.length > 0))
+            {
+                contentFile = getContentFile(fileAccessService, avatarBytes);
+                if (!Files.isSameFile(
+                        avatarFile.toPath(),
+                        contentFile.toPath()))
+                    contentFile = null;
+            }
+        }
+        catch (Exception ex)
+        {
+            contentFile = null;
+        }
+
+        Files.delete(avatarFile.toPath());
+
+        if (contentFile != null)
+        {
+            try
+            {
+                Object linkCount
+                    = Files.getAttribute(contentFile.toPath(), "unix:nlink");
+
+                if ((linkCount instanceof Integer)
+                        && ((Integer) linkCount <= 1))
+                    Files.delete(contentFile.toPath());
+            }
+            catch (Exception ex)
+            {
+                // The number of links is not known on this file system, the
+                // content file is kept.
+            }
+        }
+    }
 }
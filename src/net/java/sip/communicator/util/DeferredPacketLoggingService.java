@@ -0,0 +1,97 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.util;
+
+import org.jitsi.service.packetlogging.*;
+
+/**
+ * A <tt>PacketLoggingService</tt> which also accepts packets whose content is
+ * written only when they are saved, by the thread saving them. The protocols
+ * which serialize their messages for the sole purpose of logging them, like
+ * SIP and XMPP, then neither delay their own threads with it nor serialize
+ * the packets which are dropped because they arrive faster than they can be
+ * saved.
+ * <p>
+ * It can also log only a sample of the packets of a protocol, one in the
+ * number set by the property made of
+ * {@link #PACKET_LOGGING_SAMPLING_PROPERTY_NAME_PREFIX} and the name of the
+ * protocol, for instance
+ * <tt>net.java.sip.communicator.packetlogging.SAMPLING.SIP</tt>. The callers
+ * check {@link #isSampled(PacketLoggingService.ProtocolName)} along with
+ * <tt>isLoggingEnabled</tt>, before building the packets.
+ */
+public interface DeferredPacketLoggingService
+    extends PacketLoggingService
+{
+    /**
+     * The prefix of the names of the properties setting, by protocol, the
+     * number of packets out of which only one is logged. All the packets are
+     * logged when the property is missing.
+     */
+    public static final String PACKET_LOGGING_SAMPLING_PROPERTY_NAME_PREFIX
+        = "net.java.sip.communicator.packetlogging.SAMPLING.";
+    /**
+     * The content of a packet logged with
+     * {@link DeferredPacketLoggingService#logPacket(
+     * PacketLoggingService.ProtocolName, byte[], int, byte[], int,
+     * PacketLoggingService.TransportName, boolean, PacketContent)}.
+     */
+    public interface PacketContent
+    {
+        /**
+         * Returns the text of the packet. It is called at most once, by the
+         * thread saving the packets, which encodes it in UTF-8 straight into
+         * the buffer it reuses for all of them.
+         *
+         * @return the text of the packet
+         */
+        public CharSequence getText();
+    }
+
+    /**
+     * Determines whether the next packet of a protocol is part of the sample
+     * to log. Every call counts as a packet, so it is to be called once per
+     * packet and only for the packets which would be logged otherwise.
+     *
+     * @param protocol the protocol of the packet.
+     * @return <tt>true</tt> if the packet is to be logged.
+     */
+    public boolean isSampled(ProtocolName protocol);
+
+    /**
+     * Logs a packet whose content is written when it is saved.
+     *
+     * @param protocol the source protocol that logs this packet.
+     * @param sourceAddress the source address of the packet.
+     * @param sourcePort the source port of the packet.
+     * @param destinationAddress the destination address.
+     * @param destinationPort the destination port.
+     * @param transport the transport this packet uses.
+     * @param sender are we the sender of the packet or not.
+     * @param packetContent gives the packet content.
+     */
+    public void logPacket(
+            ProtocolName protocol,
+            byte[] sourceAddress,
+            int sourcePort,
+            byte[] destinationAddress,
+            int destinationPort,
+            TransportName transport,
+            boolean sender,
+            PacketContent packetContent);
+}
@@ -20,6 +20,7 @@ package net.java.sip.communicator.util;
 import java.net.*;
 import java.text.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import net.java.sip.communicator.service.dns.*;
 
@@ -107,6 +108,55 @@ public class NetworkUtils
      */
     private static final Random random = new Random();
 
+    /**
+     * The time in milliseconds to wait for the answer of the second address
+     * family once the first has returned addresses, in the spirit of the
+     * resolution delay of RFC 8305.
+     */
+    public static final long RESOLUTION_DELAY = 250;
+
+    /**
+     * The cache used by the lookups which are not to use the shared DNS cache.
+     * It stores nothing, so that it can be shared.
+     */
+    private static final Cache noStoreCache = new Cache(DClass.IN);
+
+    static
+    {
+        noStoreCache.setMaxEntries(0);
+    }
+
+    /**
+     * The maximum number of DNS lookups running at once in
+     * {@link #lookupExecutor}, the others waiting in its queue.
+     */
+    private static final int MAX_LOOKUP_THREADS = 8;
+
+    /**
+     * The threads running the DNS lookups made concurrently.
+     */
+    private static final ThreadPoolExecutor lookupExecutor
+        = new ThreadPoolExecutor(
+            MAX_LOOKUP_THREADS, MAX_LOOKUP_THREADS,
+            60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory()
+            {
+                public Thread newThread(Runnable runnable)
+                {
+                    Thread thread
+                        = new Thread(runnable, "NetworkUtils DNS lookup");
+
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    static
+    {
+        lookupExecutor.allowCoreThreadTimeOut(true);
+    }
+
     /**
      * Determines whether the address is the result of windows auto configuration.
      * (i.e. One that is in the 169.254.0.0 network)
@@ -585,9 +635,13 @@ public class NetworkUtils
             // connectivity.
             if(!useDNSCache)
             {
-                lookup.setCache(new Cache());
+                lookup.setCache(noStoreCache);
+                records = lookup.run();
+            }
+            else
+            {
+                records = runLookup(lookup, domain, Type.SRV);
             }
-            records = lookup.run();
         }
         catch (TextParseException tpe)
         {
@@ -733,7 +787,7 @@ public class NetworkUtils
         try
         {
             Lookup lookup = createLookup(domain, Type.NAPTR);
-            records = lookup.run();
+            records = runLookup(lookup, domain, Type.NAPTR);
         }
         catch (TextParseException tpe)
         {
@@ -949,61 +1003,228 @@ public class NetworkUtils
             }
         }
 
-        List<InetSocketAddress> addresses = new LinkedList<InetSocketAddress>();
-        boolean v6lookup = Boolean.getBoolean("java.net.preferIPv6Addresses");
+        final String lookupDomain = domain;
+        final int lookupPort = port;
+        boolean v6first = Boolean.getBoolean("java.net.preferIPv6Addresses");
+        final boolean v6other = !v6first;
 
-        for(int i = 0; i < 2; i++)
-        {
-            Lookup lookup;
-            try
+        // query the other family in the background so that it does not wait
+        // for the preferred one, which is queried by the current thread
+        Future<List<InetSocketAddress>> otherLookup = lookupExecutor.submit(
+            new Callable<List<InetSocketAddress>>()
             {
-                lookup = createLookup(domain, v6lookup ? Type.AAAA : Type.A);
-            }
-            catch (TextParseException tpe)
+                public List<InetSocketAddress> call()
+                    throws ParseException, DnssecException
+                {
+                    return getAddresses(lookupDomain, lookupPort, v6other);
+                }
+            });
+        List<InetSocketAddress> preferred;
+        List<InetSocketAddress> other = null;
+        boolean preferredDone = false;
+
+        try
+        {
+            preferred = getAddresses(domain, port, v6first);
+            preferredDone = true;
+        }
+        finally
+        {
+            if (!preferredDone)
+                otherLookup.cancel(false);
+        }
+
+        try
+        {
+            if (!preferred.isEmpty())
             {
-                logger.error("Failed to parse domain <" + domain + ">", tpe);
-                throw new ParseException(tpe.getMessage(), 0);
+                other = getLookupResult(otherLookup, RESOLUTION_DELAY);
+                if (other == null && logger.isTraceEnabled())
+                    logger.trace("Not waiting any longer for the "
+                        + "second address family of " + domain);
             }
-            Record[] records = null;
-            try
+            else if (otherLookup.cancel(false))
             {
-                records = lookup.run();
+                // no thread of the pool has started the lookup yet, e.g.
+                // because all of them are waiting like the current one, so
+                // do not wait for one to become free
+                other = getAddresses(domain, port, v6other);
             }
-            catch(DnssecRuntimeException e)
+            else
             {
-                throw new DnssecException(e);
+                other = getLookupResult(otherLookup);
             }
-            if(records != null)
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        // interleave the families so that connecting through a broken one
+        // fails over to the other after one attempt, as RFC 8305 suggests
+        List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+        Iterator<InetSocketAddress> preferredIter = (preferred == null)
+            ? Collections.<InetSocketAddress>emptyList().iterator()
+            : preferred.iterator();
+        Iterator<InetSocketAddress> otherIter = (other == null)
+            ? Collections.<InetSocketAddress>emptyList().iterator()
+            : other.iterator();
+
+        while (preferredIter.hasNext() || otherIter.hasNext())
+        {
+            if (preferredIter.hasNext())
+                addresses.add(preferredIter.next());
+            if (otherIter.hasNext())
+                addresses.add(otherIter.next());
+        }
+
+        if(logger.isTraceEnabled())
+            logger.trace("A or AAAA addresses: " + addresses);
+        return addresses.toArray(new InetSocketAddress[0]);
+    }
+
+    /**
+     * Returns the hosts from the A or the AAAA records of the specified
+     * domain.
+     *
+     * @param domain the name of the domain we'd like to resolve.
+     * @param port the port number of the returned <tt>InetSocketAddress</tt>
+     * @param v6lookup <tt>true</tt> to query AAAA records, <tt>false</tt> to
+     * query A records
+     * @return the addresses returned by the DNS server
+     * @throws ParseException if <tt>domain</tt> is not a valid domain name.
+     * @throws DnssecException when a DNSSEC validation failure occurred.
+     */
+    private static List<InetSocketAddress> getAddresses(String domain,
+                                                        int port,
+                                                        boolean v6lookup)
+        throws ParseException, DnssecException
+    {
+        List<InetSocketAddress> addresses = new LinkedList<InetSocketAddress>();
+        Lookup lookup;
+        try
+        {
+            lookup = createLookup(domain, v6lookup ? Type.AAAA : Type.A);
+        }
+        catch (TextParseException tpe)
+        {
+            logger.error("Failed to parse domain <" + domain + ">", tpe);
+            throw new ParseException(tpe.getMessage(), 0);
+        }
+        Record[] records = null;
+        try
+        {
+            records = runLookup(
+                lookup, domain, v6lookup ? Type.AAAA : Type.A);
+        }
+        catch(DnssecRuntimeException e)
+        {
+            throw new DnssecException(e);
+        }
+        if(records != null)
+        {
+            for(Record r : records)
             {
-                for(Record r : records)
+                try
                 {
-                    try
-                    {
-                        addresses.add(
-                            new InetSocketAddress(
-                                // create a new InetAddress filled with the
-                                // domain name to avoid PTR queries
-                                InetAddress.getByAddress(
-                                    domain,
-                                    v6lookup
-                                      ? ((AAAARecord)r).getAddress().getAddress()
-                                      : ((ARecord)r).getAddress().getAddress()
-                                ),
-                                port
-                            )
-                        );
-                    }
-                    catch (UnknownHostException e)
-                    {
-                        logger.error("Invalid record returned from DNS", e);
-                    }
+                    addresses.add(
+                        new InetSocketAddress(
+                            // create a new InetAddress filled with the
+                            // domain name to avoid PTR queries
+                            InetAddress.getByAddress(
+                                domain,
+                                v6lookup
+                                  ? ((AAAARecord)r).getAddress().getAddress()
+                                  : ((ARecord)r).getAddress().getAddress()
+                            ),
+                            port
+                        )
+                    );
+                }
+                catch (UnknownHostException e)
+                {
+                    logger.error("Invalid record returned from DNS", e);
                 }
             }
-            v6lookup = !v6lookup;
         }
-        if(logger.isTraceEnabled())
-            logger.trace("A or AAAA addresses: " + addresses);
-        return addresses.toArray(new InetSocketAddress[0]);
+        return addresses;
+    }
+
+    /**
+     * Runs a DNS lookup in a thread of the pool used for concurrent lookups,
+     * so that the caller can wait for several of them at once.
+     *
+     * @param lookup the lookup to run
+     * @return the <tt>Future</tt> of the result of <tt>lookup</tt>, to pass
+     * to {@link #getLookupResult(Future)}
+     */
+    public static <T> Future<T> submitLookup(Callable<T> lookup)
+    {
+        return lookupExecutor.submit(lookup);
+    }
+
+    /**
+     * Waits for the result of a lookup submitted with
+     * {@link #submitLookup(Callable)} and rethrows the exceptions it threw.
+     *
+     * @param lookup the <tt>Future</tt> of the lookup
+     * @return the result of the lookup
+     * @throws ParseException if the lookup threw it.
+     * @throws DnssecException if the lookup threw it.
+     * @throws InterruptedException if the current thread was interrupted
+     * while waiting.
+     */
+    public static <T> T getLookupResult(Future<T> lookup)
+        throws ParseException, DnssecException, InterruptedException
+    {
+        return getLookupResult(lookup, -1);
+    }
+
+    /**
+     * Waits at most <tt>timeout</tt> milliseconds for the result of a lookup
+     * and rethrows the exceptions it threw. The lookup is cancelled if it has
+     * not started in time.
+     *
+     * @param lookup the <tt>Future</tt> of the lookup
+     * @param timeout the number of milliseconds to wait for the lookup,
+     * negative to wait until it completes
+     * @return the result of the lookup, <tt>null</tt> if it did not complete
+     * in time
+     * @throws ParseException if the lookup threw it.
+     * @throws DnssecException if the lookup threw it.
+     * @throws InterruptedException if the current thread was interrupted
+     * while waiting.
+     */
+    private static <T> T getLookupResult(Future<T> lookup, long timeout)
+        throws ParseException, DnssecException, InterruptedException
+    {
+        try
+        {
+            if (timeout < 0)
+                return lookup.get();
+            return lookup.get(timeout, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException e)
+        {
+            lookup.cancel(false);
+            return null;
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+
+            if (cause instanceof ParseException)
+                throw (ParseException) cause;
+            if (cause instanceof DnssecException)
+                throw (DnssecException) cause;
+            if (cause instanceof DnssecRuntimeException)
+                throw new DnssecException((DnssecRuntimeException) cause);
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IllegalStateException(cause);
+        }
     }
 
     /**
@@ -1044,7 +1265,7 @@ public class NetworkUtils
             //with SRV and NAPTR queries. We may then also adopt it for As
             //and AAAAs once it proves to be reliable (posted on: 2010-11-24)
             Lookup lookup = createLookup(domain, Type.A);
-            records = lookup.run();
+            records = runLookup(lookup, domain, Type.A);
         }
         catch (TextParseException tpe)
         {
@@ -1118,7 +1339,7 @@ public class NetworkUtils
             //with SRV and NAPTR queries. We may then also adopt it for As
             //and AAAAs once it proves to be reliable (posted on: 2010-11-24)
             Lookup lookup = createLookup(domain, Type.AAAA);
-            records = lookup.run();
+            records = runLookup(lookup, domain, Type.AAAA);
         }
         catch (TextParseException tpe)
         {
@@ -1301,6 +1522,38 @@ public class NetworkUtils
         return lookup;
     }
 
+    /**
+     * Runs a {@link Lookup} unless the shared DNS cache knows that the same
+     * question timed out a moment ago, in which case the lookup is considered
+     * failed at once. Lookups which time out are reported to the cache.
+     *
+     * @param lookup the lookup to run
+     * @param domain the domain the lookup resolves
+     * @param type the type of the records the lookup resolves
+     * @return the records found or <tt>null</tt> if there are none
+     */
+    private static Record[] runLookup(Lookup lookup, String domain, int type)
+    {
+        Cache cache = Lookup.getDefaultCache(DClass.IN);
+        DnsCacheService dnsCache = (cache instanceof DnsCacheService)
+            ? (DnsCacheService) cache
+            : null;
+
+        if (dnsCache != null && dnsCache.isLookupFailing(domain, type))
+        {
+            if (logger.isDebugEnabled())
+                logger.debug("Not resolving " + domain + "/"
+                    + Type.string(type) + " which timed out recently");
+            return null;
+        }
+
+        Record[] records = lookup.run();
+
+        if (dnsCache != null && lookup.getResult() == Lookup.TRY_AGAIN)
+            dnsCache.lookupFailed(domain, type);
+        return records;
+    }
+
     /**
      * Compares two DNS names against each other. Helper method to avoid the
      * export of DNSJava.
@@ -0,0 +1,264 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.certificate;
+
+import java.security.cert.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import junit.framework.*;
+
+public class ExpiringCacheTest
+    extends TestCase
+{
+    /**
+     * Loads a value with a fixed lifetime and counts the loads.
+     */
+    private static class CountingLoader
+        extends ExpiringCache.Loader<String>
+    {
+        final AtomicInteger loads = new AtomicInteger();
+
+        final String value;
+
+        final long lifetime;
+
+        CountingLoader(String value, long lifetime)
+        {
+            this.value = value;
+            this.lifetime = lifetime;
+        }
+
+        @Override
+        String load()
+            throws CertificateException
+        {
+            loads.incrementAndGet();
+            return value;
+        }
+
+        @Override
+        long getExpiry(String value)
+        {
+            return System.currentTimeMillis() + lifetime;
+        }
+    }
+
+    public void testValueIsLoadedOnce() throws Exception
+    {
+        ExpiringCache<String, String> cache
+            = new ExpiringCache<String, String>(10);
+        CountingLoader loader = new CountingLoader("value", 60000);
+
+        assertEquals("value", cache.get("key", loader));
+        assertEquals("value", cache.get("key", loader));
+        assertEquals(1, loader.loads.get());
+    }
+
+    public void testExpiredValueIsLoadedAgain() throws Exception
+    {
+        ExpiringCache<String, String> cache
+            = new ExpiringCache<String, String>(10);
+        CountingLoader loader = new CountingLoader("value", -1);
+
+        cache.get("key", loader);
+        cache.get("key", loader);
+        assertEquals(2, loader.loads.get());
+    }
+
+    public void testNullValueIsCached() throws Exception
+    {
+        ExpiringCache<String, String> cache
+            = new ExpiringCache<String, String>(10);
+        CountingLoader loader = new CountingLoader(null, 60000);
+
+        assertNull(cache.get("key", loader));
+        assertNull(cache.get("key", loader));
+        assertEquals(1, loader.loads.get());
+    }
+
+    public void testFailureIsNotCached() throws Exception
+    {
+        ExpiringCache<String, String> cache
+            = new ExpiringCache<String, String>(10);
+        final CertificateException failure
+            = new CertificateException("failure");
+        ExpiringCache.Loader<String> failing
+            = new ExpiringCache.Loader<String>()
+            {
+                @Override
+                String load()
+                    throws CertificateException
+                {
+                    throw failure;
+                }
+
+                @Override
+                long getExpiry(String value)
+                {
+                    return Long.MAX_VALUE;
+                }
+            };
+
+        try
+        {
+            cache.get("key", failing);
+            fail("the failure was not thrown");
+        }
+        catch (CertificateException e)
+        {
+            assertSame(failure, e);
+        }
+
+        CountingLoader loader = new CountingLoader("value", 60000);
+        assertEquals("value", cache.get("key", loader));
+        assertEquals(1, loader.loads.get());
+    }
+
+    public void testRuntimeExceptionIsWrapped() throws Exception
+    {
+        ExpiringCache<String, String> cache
+            = new ExpiringCache<String, String>(10);
+        final RuntimeException failure = new IllegalStateException();
+
+        try
+        {
+            cache.get("key", new ExpiringCache.Loader<String>()
+            {
+                @Override
+                String load()
+                {
+                    throw failure;
+                }
+
+                @Override
+                long getExpiry(String value)
+                {
+                    return Long.MAX_VALUE;
+                }
+            });
+            fail("the failure was not thrown");
+        }
+        catch (CertificateException e)
+        {
+            assertSame(failure, e.getCause());
+        }
+    }
+
+    public void testLeastRecentlyUsedIsDropped() throws Exception
+    {
+        ExpiringCache<String, String> cache
+            = new ExpiringCache<String, String>(2);
+        CountingLoader loader1 = new CountingLoader("value1", 60000);
+        CountingLoader loader2 = new CountingLoader("value2", 60000);
+        CountingLoader loader3 = new CountingLoader("value3", 60000);
+
+        cache.get("key1", loader1);
+        cache.get("key2", loader2);
+        // key1 is now used more recently than key2
+        cache.get("key1", loader1);
+        cache.get("key3", loader3);
+        cache.get("key1", loader1);
+        cache.get("key2", loader2);
+
+        assertEquals(1, loader1.loads.get());
+        assertEquals(2, loader2.loads.get());
+    }
+
+    public void testClearDropsTheValues() throws Exception
+    {
+        ExpiringCache<String, String> cache
+            = new ExpiringCache<String, String>(10);
+        CountingLoader loader = new CountingLoader("value", 60000);
+
+        cache.get("key", loader);
+        cache.clear();
+        cache.get("key", loader);
+        assertEquals(2, loader.loads.get());
+    }
+
+    public void testConcurrentLookupsWaitForTheLoad() throws Exception
+    {
+        final ExpiringCache<String, String> cache
+            = new ExpiringCache<String, String>(10);
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger loads = new AtomicInteger();
+        final ExpiringCache.Loader<String> loader
+            = new ExpiringCache.Loader<String>()
+            {
+                @Override
+                String load()
+                {
+                    loads.incrementAndGet();
+                    loading.countDown();
+                    try
+                    {
+                        release.await();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                    return "value";
+                }
+
+                @Override
+                long getExpiry(String value)
+                {
+                    return Long.MAX_VALUE;
+                }
+            };
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        try
+        {
+            Callable<String> lookup = new Callable<String>()
+            {
+                public String call()
+                    throws Exception
+                {
+                    return cache.get("key", loader);
+                }
+            };
+            Future<String> first = executor.submit(lookup);
+
+            assertTrue(loading.await(10, TimeUnit.SECONDS));
+
+            Future<?>[] others = new Future<?>[3];
+            for (int i = 0; i < others.length; i++)
+                others[i] = executor.submit(lookup);
+
+            // give the other lookups time to find the loading entry
+            Thread.sleep(100);
+            for (Future<?> other : others)
+                assertFalse(other.isDone());
+
+            release.countDown();
+            assertEquals("value", first.get(10, TimeUnit.SECONDS));
+            for (Future<?> other : others)
+                assertEquals("value", other.get(10, TimeUnit.SECONDS));
+            assertEquals(1, loads.get());
+        }
+        finally
+        {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+}
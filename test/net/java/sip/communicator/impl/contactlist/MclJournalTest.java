@@ -0,0 +1,182 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.io.*;
+import java.util.*;
+
+import javax.xml.parsers.*;
+
+import junit.framework.*;
+
+import org.w3c.dom.*;
+
+public class MclJournalTest
+    extends TestCase
+{
+    private File contactlistFile;
+
+    private MclJournal journal;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        contactlistFile = File.createTempFile("contactlist", ".xml");
+        journal = new MclJournal(contactlistFile);
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        journal.clear();
+        contactlistFile.delete();
+        super.tearDown();
+    }
+
+    private static MclJournal.Entry put(String uid, String xml)
+    {
+        return new MclJournal.Entry(
+            MclJournal.OP_PUT_CONTACT, uid, "group", "", xml);
+    }
+
+    private static MclJournal.Entry remove(String uid)
+    {
+        return new MclJournal.Entry(
+            MclJournal.OP_REMOVE_GROUP, uid, null, null, null);
+    }
+
+    public void testEmptyJournal() throws Exception
+    {
+        assertEquals(0, journal.length());
+        assertTrue(journal.read().isEmpty());
+    }
+
+    public void testEntriesAreReadInOrder() throws Exception
+    {
+        journal.append(Arrays.asList(
+            put("c1", "<meta-contact uid=\"c1\"/>"),
+            remove("g1")));
+        journal.append(Arrays.asList(
+            new MclJournal.Entry(MclJournal.OP_PUT_GROUP, "g2", "", "g3",
+                "<meta-group uid=\"g2\" name=\"\u00e9t\u00e9\"/>")));
+
+        assertTrue(journal.length() > 0);
+
+        List<MclJournal.Entry> entries = journal.read();
+        assertEquals(3, entries.size());
+
+        MclJournal.Entry first = entries.get(0);
+        assertEquals(MclJournal.OP_PUT_CONTACT, first.op);
+        assertEquals("c1", first.uid);
+        assertEquals("group", first.parentUID);
+        assertEquals("", first.nextUID);
+        assertEquals("<meta-contact uid=\"c1\"/>", first.xml);
+
+        MclJournal.Entry second = entries.get(1);
+        assertEquals(MclJournal.OP_REMOVE_GROUP, second.op);
+        assertEquals("g1", second.uid);
+        assertNull(second.xml);
+
+        MclJournal.Entry third = entries.get(2);
+        assertEquals(MclJournal.OP_PUT_GROUP, third.op);
+        assertEquals("", third.parentUID);
+        assertEquals("g3", third.nextUID);
+        assertEquals("<meta-group uid=\"g2\" name=\"\u00e9t\u00e9\"/>",
+            third.xml);
+    }
+
+    public void testTruncatedEntryIsIgnored() throws Exception
+    {
+        journal.append(Arrays.asList(
+            put("c1", "<meta-contact uid=\"c1\"/>"),
+            put("c2", "<meta-contact uid=\"c2\"/>")));
+
+        File file = new File(
+            contactlistFile.getPath() + MclJournal.JOURNAL_FILE_SUFFIX);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try
+        {
+            raf.setLength(raf.length() - 3);
+        }
+        finally
+        {
+            raf.close();
+        }
+
+        List<MclJournal.Entry> entries = journal.read();
+        assertEquals(1, entries.size());
+        assertEquals("c1", entries.get(0).uid);
+    }
+
+    public void testClearDeletesTheJournal() throws Exception
+    {
+        journal.append(Arrays.asList(remove("g1")));
+        journal.clear();
+
+        assertEquals(0, journal.length());
+        assertTrue(journal.read().isEmpty());
+    }
+
+    public void testNothingIsWrittenForNoEntries() throws Exception
+    {
+        journal.append(Collections.<MclJournal.Entry>emptyList());
+
+        assertEquals(0, journal.length());
+    }
+
+    public void testNodesAreSerializedAndParsed() throws Exception
+    {
+        Document document = DocumentBuilderFactory.newInstance()
+            .newDocumentBuilder().newDocument();
+        Element contact = document.createElement("meta-contact");
+        Element name = document.createElement("display-name");
+
+        contact.setAttribute("uid", "c1");
+        name.setTextContent("Alice & Bob");
+        contact.appendChild(name);
+        document.appendChild(contact);
+
+        String xml = journal.toXml(contact);
+        assertFalse(xml.startsWith("<?xml"));
+
+        Document other = DocumentBuilderFactory.newInstance()
+            .newDocumentBuilder().newDocument();
+        Element parsed = journal.fromXml(xml, other);
+
+        assertSame(other, parsed.getOwnerDocument());
+        assertEquals("meta-contact", parsed.getNodeName());
+        assertEquals("c1", parsed.getAttribute("uid"));
+        assertEquals("Alice & Bob", parsed.getTextContent());
+    }
+
+    public void testInvalidNodeFailsToParse() throws Exception
+    {
+        Document document = DocumentBuilderFactory.newInstance()
+            .newDocumentBuilder().newDocument();
+
+        try
+        {
+            journal.fromXml("<meta-contact", document);
+            fail("parsed invalid XML");
+        }
+        catch (IOException e)
+        {
+        }
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.lang.reflect.*;
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.service.contactlist.*;
+import net.java.sip.communicator.service.protocol.*;
+
+import org.easymock.*;
+import org.jitsi.service.resources.*;
+
+public class MetaContactListIndexTest
+    extends TestCase
+{
+    private static final PresenceStatus OFFLINE
+        = new PresenceStatus(0, "Offline")
+        {
+        };
+
+    private Field resourcesField;
+
+    private Object oldResources;
+
+    private MetaContactListServiceImpl mcl;
+
+    private MetaContactGroupImpl root;
+
+    private ProtocolProviderService provider;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        // the service names its root group after a resource
+        resourcesField
+            = ContactlistActivator.class.getDeclaredField("resourcesService");
+        resourcesField.setAccessible(true);
+        oldResources = resourcesField.get(null);
+        resourcesField.set(null,
+            EasyMock.createNiceMock(ResourceManagementService.class));
+
+        mcl = new MetaContactListServiceImpl();
+        root = (MetaContactGroupImpl) mcl.getRoot();
+        provider = createProvider("alice");
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        resourcesField.set(null, oldResources);
+        super.tearDown();
+    }
+
+    private static ProtocolProviderService createProvider(String userID)
+    {
+        AccountID accountID
+            = new AccountID(userID, new HashMap<String, String>(),
+                    "Test", "example.org")
+            {
+            };
+        ProtocolProviderService provider
+            = EasyMock.createNiceMock(ProtocolProviderService.class);
+
+        EasyMock.expect(provider.getAccountID())
+            .andReturn(accountID).anyTimes();
+        EasyMock.replay(provider);
+        return provider;
+    }
+
+    /**
+     * Creates a protocol contact whose display name is held by the first
+     * element of <tt>displayName</tt>, so that it can be renamed.
+     */
+    private static Contact createContact(ProtocolProviderService provider,
+                                         String address,
+                                         final String[] displayName)
+    {
+        Contact contact = EasyMock.createNiceMock(Contact.class);
+
+        EasyMock.expect(contact.getAddress()).andReturn(address).anyTimes();
+        EasyMock.expect(contact.getDisplayName())
+            .andAnswer(new IAnswer<String>()
+            {
+                public String answer()
+                {
+                    return displayName[0];
+                }
+            })
+            .anyTimes();
+        EasyMock.expect(contact.getProtocolProvider())
+            .andReturn(provider).anyTimes();
+        EasyMock.expect(contact.getPresenceStatus())
+            .andReturn(OFFLINE).anyTimes();
+        EasyMock.replay(contact);
+        return contact;
+    }
+
+    private MetaContactImpl addMetaContact(MetaContactGroupImpl group,
+                                           Contact... contacts)
+    {
+        MetaContactImpl metaContact = new MetaContactImpl();
+
+        group.addMetaContact(metaContact);
+        for (Contact contact : contacts)
+            metaContact.addProtoContact(contact);
+        return metaContact;
+    }
+
+    private MetaContactGroupImpl addSubgroup(MetaContactGroupImpl parent,
+                                             String name)
+    {
+        MetaContactGroupImpl group = new MetaContactGroupImpl(mcl, name);
+
+        // the lookups skip the groups without protocol groups
+        group.addProtoGroup(EasyMock.createNiceMock(ContactGroup.class));
+        parent.addSubgroup(group);
+        return group;
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean isIndexedByAddress(String address)
+        throws Exception
+    {
+        Field field = MetaContactListIndex.class
+            .getDeclaredField("metaContactsByAddress");
+
+        field.setAccessible(true);
+        return ((Map<String, ?>) field.get(mcl.index)).containsKey(address);
+    }
+
+    public void testFindByMetaUIDAndContact()
+    {
+        Contact contact
+            = createContact(provider, "bob@example.org", new String[] {"Bob"});
+        MetaContactImpl metaContact = addMetaContact(root, contact);
+
+        assertSame(metaContact,
+            mcl.findMetaContactByMetaUID(metaContact.getMetaUID()));
+        assertSame(metaContact, mcl.findMetaContactByContact(contact));
+        assertSame(metaContact,
+            mcl.findMetaContactByContact("bob@example.org",
+                provider.getAccountID().getAccountUniqueID()));
+        assertSame(root, mcl.findMetaContactGroupByMetaUID(root.getMetaUID()));
+    }
+
+    public void testRemovedContactIsPruned() throws Exception
+    {
+        Contact contact
+            = createContact(provider, "bob@example.org", new String[] {"Bob"});
+        MetaContactImpl metaContact = addMetaContact(root, contact);
+
+        assertTrue(isIndexedByAddress("bob@example.org"));
+        assertTrue(isIndexedByAddress("Bob"));
+
+        metaContact.removeProtoContact(contact);
+
+        assertNull(mcl.findMetaContactByContact(contact));
+        assertFalse(mcl.findAllMetaContactsForAddress("Bob").hasNext());
+        assertFalse(isIndexedByAddress("bob@example.org"));
+        assertFalse(isIndexedByAddress("Bob"));
+    }
+
+    public void testRemovedMetaContactIsPruned() throws Exception
+    {
+        Contact contact
+            = createContact(provider, "bob@example.org", new String[] {"Bob"});
+        MetaContactImpl metaContact = addMetaContact(root, contact);
+
+        root.removeMetaContact(metaContact);
+
+        assertNull(mcl.findMetaContactByMetaUID(metaContact.getMetaUID()));
+        assertNull(mcl.findMetaContactByContact(contact));
+        assertFalse(isIndexedByAddress("bob@example.org"));
+        assertFalse(isIndexedByAddress("Bob"));
+    }
+
+    public void testMovedContactIsIndexedOnce() throws Exception
+    {
+        Contact contact
+            = createContact(provider, "bob@example.org", new String[] {"Bob"});
+        MetaContactImpl from = addMetaContact(root, contact);
+        MetaContactImpl to = addMetaContact(root);
+
+        from.removeProtoContact(contact);
+        to.addProtoContact(contact);
+
+        assertSame(to, mcl.findMetaContactByContact(contact));
+
+        Iterator<MetaContact> found
+            = mcl.findAllMetaContactsForAddress("bob@example.org");
+        assertSame(to, found.next());
+        assertFalse(found.hasNext());
+    }
+
+    public void testSharedAddressIsKeptForTheOtherContact() throws Exception
+    {
+        ProtocolProviderService other = createProvider("carol");
+        Contact contact1
+            = createContact(provider, "bob@example.org", new String[] {"Bob"});
+        Contact contact2
+            = createContact(other, "bob@example.org", new String[] {"Bob"});
+        MetaContactImpl metaContact
+            = addMetaContact(root, contact1, contact2);
+
+        metaContact.removeProtoContact(contact1);
+
+        assertTrue(isIndexedByAddress("bob@example.org"));
+        assertSame(metaContact,
+            mcl.findAllMetaContactsForAddress("bob@example.org").next());
+        assertSame(metaContact, mcl.findMetaContactByContact(contact2));
+    }
+
+    public void testRenamedContactIsFoundByItsNewName() throws Exception
+    {
+        String[] displayName = new String[] {"Bob"};
+        Contact contact
+            = createContact(provider, "bob@example.org", displayName);
+        MetaContactImpl metaContact = addMetaContact(root, contact);
+
+        displayName[0] = "Robert";
+        mcl.index.contactRenamed(metaContact, contact, "Bob");
+
+        assertFalse(mcl.findAllMetaContactsForAddress("Bob").hasNext());
+        assertFalse(isIndexedByAddress("Bob"));
+        assertSame(metaContact,
+            mcl.findAllMetaContactsForAddress("Robert").next());
+    }
+
+    public void testAddressLookupKeepsTheTreeOrder()
+    {
+        MetaContactGroupImpl group1 = addSubgroup(root, "Group 1");
+        MetaContactGroupImpl group2 = addSubgroup(root, "Group 2");
+        MetaContactGroupImpl nested = addSubgroup(group1, "Nested");
+        List<MetaContactImpl> added = new ArrayList<MetaContactImpl>();
+
+        // added out of the tree order, to different accounts
+        MetaContactGroupImpl[] groups
+            = new MetaContactGroupImpl[] {nested, group2, group1, nested};
+        for (int i = 0; i < groups.length; i++)
+        {
+            added.add(
+                addMetaContact(groups[i],
+                    createContact(createProvider("user" + i),
+                        "bob@example.org", new String[] {"Bob " + i})));
+        }
+
+        List<MetaContact> expected = new ArrayList<MetaContact>();
+        for (MetaContactGroupImpl group
+                : new MetaContactGroupImpl[] {group1, nested, group2})
+        {
+            Iterator<MetaContact> children = group.getChildContacts();
+            while (children.hasNext())
+                expected.add(children.next());
+        }
+
+        List<MetaContact> found = new ArrayList<MetaContact>();
+        Iterator<MetaContact> iter
+            = mcl.findAllMetaContactsForAddress("bob@example.org");
+        while (iter.hasNext())
+            found.add(iter.next());
+
+        assertEquals(4, found.size());
+        assertTrue(found.containsAll(added));
+        assertEquals(expected, found);
+    }
+
+    public void testOneEntryPerMatchingContact()
+    {
+        MetaContactGroupImpl group = addSubgroup(root, "Group");
+        MetaContactImpl metaContact
+            = addMetaContact(group,
+                createContact(provider, "bob@example.org",
+                    new String[] {"Bob"}),
+                createContact(createProvider("carol"), "bob@example.net",
+                    new String[] {"Bob"}));
+
+        Iterator<MetaContact> found
+            = mcl.findAllMetaContactsForAddress("Bob");
+        assertSame(metaContact, found.next());
+        assertSame(metaContact, found.next());
+        assertFalse(found.hasNext());
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.gui.main.chat;
+
+import java.util.*;
+
+import junit.framework.*;
+
+/**
+ * Tests for the paging of the conversation kept by the ChatTranscriptWindow.
+ */
+public class ChatTranscriptWindowTest
+    extends TestCase
+{
+    /**
+     * Tests that a single page of older messages is loaded at a time, until
+     * the history has no more of them.
+     */
+    public void testLoadingOlderMessages()
+    {
+        ChatTranscriptWindow transcript = new ChatTranscriptWindow();
+
+        assertTrue(transcript.startLoadingOlder());
+        assertFalse(transcript.startLoadingOlder());
+
+        transcript.olderMessagesLoaded(true);
+        assertTrue(transcript.startLoadingOlder());
+
+        transcript.olderMessagesLoaded(false);
+        assertFalse(transcript.startLoadingOlder());
+
+        transcript.olderMessagesDropped();
+        assertTrue(transcript.startLoadingOlder());
+
+        transcript.loadingCancelled();
+        assertTrue(transcript.startLoadingOlder());
+    }
+
+    /**
+     * Tests that messages are only kept aside once the newest messages have
+     * been dropped, and are returned once, without those loaded again.
+     */
+    public void testDetachedMessages()
+    {
+        ChatTranscriptWindow transcript = new ChatTranscriptWindow();
+        Object component = new Object();
+
+        assertTrue(transcript.isShowingNewest());
+        assertFalse(transcript.startLoadingNewest());
+        assertFalse(transcript.addDetachedMessage(
+            new ChatTranscriptWindow.RenderedMessage("1", "<div/>")));
+
+        transcript.newestMessagesDropped();
+        assertFalse(transcript.isShowingNewest());
+        assertTrue(transcript.addDetachedMessage(
+            new ChatTranscriptWindow.RenderedMessage("2", "<div/>")));
+        assertTrue(transcript.addDetachedMessage(component));
+        assertTrue(transcript.addDetachedMessage(
+            new ChatTranscriptWindow.RenderedMessage("3", "<div/>")));
+        assertTrue(transcript.addDetachedMessage(
+            new ChatTranscriptWindow.RenderedMessage(null, "<p/>")));
+
+        assertTrue(transcript.startLoadingNewest());
+        assertFalse(transcript.startLoadingOlder());
+
+        List<Object> messages
+            = transcript.newestMessagesLoaded(Collections.singleton("2"));
+
+        assertEquals(3, messages.size());
+        assertSame(component, messages.get(0));
+        assertEquals(
+            "3",
+            ((ChatTranscriptWindow.RenderedMessage) messages.get(1))
+                .messageUID);
+        assertNull(
+            ((ChatTranscriptWindow.RenderedMessage) messages.get(2))
+                .messageUID);
+
+        assertTrue(transcript.isShowingNewest());
+        assertTrue(transcript.startLoadingOlder());
+        assertTrue(transcript.newestMessagesLoaded(
+            Collections.<String>emptySet()).isEmpty());
+    }
+
+    /**
+     * Tests that the oldest detached messages are dropped first.
+     */
+    public void testDetachedMessagesAreBounded()
+    {
+        ChatTranscriptWindow transcript = new ChatTranscriptWindow();
+
+        transcript.newestMessagesDropped();
+        for (int i = 0; i <= ChatTranscriptWindow.MAX_DETACHED_MESSAGES; i++)
+        {
+            transcript.addDetachedMessage(
+                new ChatTranscriptWindow.RenderedMessage(
+                    Integer.toString(i), "<div/>"));
+        }
+
+        List<Object> messages
+            = transcript.newestMessagesLoaded(Collections.<String>emptySet());
+
+        assertEquals(ChatTranscriptWindow.MAX_DETACHED_MESSAGES,
+            messages.size());
+        assertEquals(
+            "1",
+            ((ChatTranscriptWindow.RenderedMessage) messages.get(0))
+                .messageUID);
+    }
+}
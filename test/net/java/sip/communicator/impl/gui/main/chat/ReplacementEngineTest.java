@@ -0,0 +1,262 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.gui.main.chat;
+
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.regex.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.service.replacement.*;
+import net.java.sip.communicator.service.replacement.directimage.*;
+
+public class ReplacementEngineTest
+    extends TestCase
+{
+    /**
+     * A source replacing the texts matching its pattern with a prefixed copy,
+     * or leaving them if it has no prefix, and counting its requests.
+     */
+    private static class TestService
+        implements ReplacementService
+    {
+        final String name;
+
+        final String pattern;
+
+        final String prefix;
+
+        int requests = 0;
+
+        TestService(String name, String pattern, String prefix)
+        {
+            this.name = name;
+            this.pattern = pattern;
+            this.prefix = prefix;
+        }
+
+        public String getReplacement(String sourceString)
+        {
+            requests++;
+            return (prefix == null) ? sourceString : prefix + sourceString;
+        }
+
+        public String getSourceName()
+        {
+            return name;
+        }
+
+        public String getPattern()
+        {
+            return pattern;
+        }
+    }
+
+    /**
+     * A direct image source whose answer can be changed.
+     */
+    private static class TestDirectImageService
+        extends TestService
+        implements DirectImageReplacementService
+    {
+        boolean directImage = false;
+
+        TestDirectImageService()
+        {
+            super("DIRECTIMAGE", "https?://\\S+\\.png", null);
+        }
+
+        public int getImageSize(String sourceString)
+        {
+            return directImage ? 100 : -1;
+        }
+
+        public boolean isDirectImage(String sourceString)
+        {
+            requests++;
+            return directImage;
+        }
+    }
+
+    /**
+     * The sources share a cache between tests, so every test uses texts of
+     * its own.
+     */
+    private static String unique(String text)
+    {
+        return text + "-" + System.nanoTime();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void expireFailures(String fieldName)
+        throws Exception
+    {
+        Field field = ReplacementEngine.class.getDeclaredField(fieldName);
+
+        field.setAccessible(true);
+
+        Map<String, Long> failures = (Map<String, Long>) field.get(null);
+        synchronized (failures)
+        {
+            for (Map.Entry<String, Long> entry : failures.entrySet())
+                entry.setValue(0L);
+        }
+    }
+
+    public void testInstanceIsRebuiltOnlyWhenTheSourcesChange()
+    {
+        TestService a = new TestService("a", "a+", "A");
+        TestService b = new TestService("b", "b+", "B");
+
+        ReplacementEngine engine
+            = ReplacementEngine.getInstance(Arrays.<ReplacementService>asList(
+                b, a));
+
+        assertSame(engine,
+            ReplacementEngine.getInstance(Arrays.<ReplacementService>asList(
+                a, b)));
+        assertNotSame(engine,
+            ReplacementEngine.getInstance(Arrays.<ReplacementService>asList(
+                a)));
+    }
+
+    public void testDirectImageSourceComesLast()
+    {
+        TestDirectImageService direct = new TestDirectImageService();
+        TestService z = new TestService("z", "z+", "Z");
+        TestService y = new TestService("y", "y+", "Y");
+
+        ReplacementEngine engine
+            = ReplacementEngine.getInstance(Arrays.<ReplacementService>asList(
+                direct, z, y));
+
+        assertEquals(3, engine.getServiceCount());
+        assertSame(y, engine.getService(0));
+        assertSame(z, engine.getService(1));
+        assertSame(direct, engine.getService(2));
+    }
+
+    public void testMatchedServiceIsFound()
+    {
+        // the groups of the patterns must not confuse the engine
+        TestService a = new TestService("a", "(a)(a*)", "A");
+        TestService b = new TestService("b", "b(b*)", "B");
+        TestService c = new TestService("c", "c+", "C");
+
+        ReplacementEngine engine
+            = ReplacementEngine.getInstance(Arrays.<ReplacementService>asList(
+                a, b, c));
+        Matcher matcher = engine.matcher(0, "xx aa yy bbb cc");
+        List<Integer> matched = new ArrayList<Integer>();
+        List<String> texts = new ArrayList<String>();
+
+        while (matcher.find())
+        {
+            matched.add(engine.getMatchedService(matcher, 0));
+            texts.add(matcher.group());
+        }
+        assertEquals(Arrays.asList(0, 1, 2), matched);
+        assertEquals(Arrays.asList("aa", "bbb", "cc"), texts);
+
+        matcher = engine.matcher(1, "aa bb");
+        assertTrue(matcher.find());
+        assertEquals(1, engine.getMatchedService(matcher, 1));
+        assertEquals("bb", matcher.group());
+        assertFalse(matcher.find());
+
+        assertTrue(engine.getServicePattern(0).matcher("AA").matches());
+        assertFalse(engine.getServicePattern(0).matcher("bb").matches());
+    }
+
+    public void testFirstSourceWinsAtTheSamePosition()
+    {
+        TestService a = new TestService("a", "ab", "A");
+        TestService b = new TestService("b", "abc", "B");
+
+        ReplacementEngine engine
+            = ReplacementEngine.getInstance(Arrays.<ReplacementService>asList(
+                a, b));
+        Matcher matcher = engine.matcher(0, "abc");
+
+        assertTrue(matcher.find());
+        assertEquals(0, engine.getMatchedService(matcher, 0));
+    }
+
+    public void testReplacementIsAskedOnce()
+    {
+        TestService a = new TestService("replacing", "a+", "A");
+        ReplacementEngine engine
+            = ReplacementEngine.getInstance(Arrays.<ReplacementService>asList(
+                a));
+        String text = unique("aaa");
+
+        assertEquals("A" + text, engine.getReplacement(a, text));
+        assertEquals("A" + text, engine.getReplacement(a, text));
+        assertEquals(1, a.requests);
+    }
+
+    public void testUnreplacedTextIsAskedAgainLater() throws Exception
+    {
+        TestService a = new TestService("unreplacing", "a+", null);
+        ReplacementEngine engine
+            = ReplacementEngine.getInstance(Arrays.<ReplacementService>asList(
+                a));
+        String text = unique("aaa");
+
+        assertEquals(text, engine.getReplacement(a, text));
+        assertEquals(text, engine.getReplacement(a, text));
+        assertEquals(1, a.requests);
+
+        expireFailures("failedReplacements");
+        assertEquals(text, engine.getReplacement(a, text));
+        assertEquals(2, a.requests);
+    }
+
+    public void testDirectImageIsAskedOnce()
+    {
+        TestDirectImageService direct = new TestDirectImageService();
+        ReplacementEngine engine
+            = ReplacementEngine.getInstance(Arrays.<ReplacementService>asList(
+                direct));
+        String link = "http://example.org/" + unique("image") + ".png";
+
+        direct.directImage = true;
+        assertTrue(engine.isDirectImage(direct, link));
+        assertTrue(engine.isDirectImage(direct, link));
+        assertEquals(1, direct.requests);
+    }
+
+    public void testFailedDirectImageIsAskedAgainLater() throws Exception
+    {
+        TestDirectImageService direct = new TestDirectImageService();
+        ReplacementEngine engine
+            = ReplacementEngine.getInstance(Arrays.<ReplacementService>asList(
+                direct));
+        String link = "http://example.org/" + unique("image") + ".png";
+
+        assertFalse(engine.isDirectImage(direct, link));
+        assertFalse(engine.isDirectImage(direct, link));
+        assertEquals(1, direct.requests);
+
+        // the site is reachable again
+        direct.directImage = true;
+        expireFailures("failedDirectImages");
+        assertTrue(engine.isDirectImage(direct, link));
+        assertEquals(2, direct.requests);
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import javax.xml.parsers.*;
+
+import junit.framework.*;
+
+import org.w3c.dom.*;
+
+public class HistoryDocumentCacheTest
+    extends TestCase
+{
+    /**
+     * The length of the test files.
+     */
+    private static final int FILE_LENGTH = 100;
+
+    /**
+     * The estimated size of the documents of the test files.
+     */
+    private static final long DOCUMENT_SIZE
+        = FILE_LENGTH * HistoryDocumentCache.RETAINED_BYTES_PER_FILE_BYTE;
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        directory = HistoryTestUtils.createTempDirectory();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        HistoryTestUtils.deleteDirectory(directory);
+        super.tearDown();
+    }
+
+    private File createFile(File dir, String name, int length)
+        throws IOException
+    {
+        File file = new File(dir, name);
+        OutputStream out = new FileOutputStream(file);
+
+        try
+        {
+            out.write(new byte[length]);
+        }
+        finally
+        {
+            out.close();
+        }
+        return file;
+    }
+
+    private static Document createDocument()
+        throws ParserConfigurationException
+    {
+        return DocumentBuilderFactory.newInstance().newDocumentBuilder()
+            .newDocument();
+    }
+
+    public void testGetCountsHitsAndMisses() throws Exception
+    {
+        HistoryDocumentCache cache = new HistoryDocumentCache(10000);
+        File file = createFile(directory, "1.xml", FILE_LENGTH);
+        Document document = createDocument();
+
+        assertNull(cache.get(file));
+        cache.put(file, document);
+        assertSame(document, cache.get(file));
+        assertSame(document, cache.peek(file));
+
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getCount());
+        assertEquals(DOCUMENT_SIZE, cache.getSize());
+    }
+
+    public void testLeastRecentlyUsedIsEvicted() throws Exception
+    {
+        HistoryDocumentCache cache
+            = new HistoryDocumentCache(DOCUMENT_SIZE * 2);
+        File file1 = createFile(directory, "1.xml", FILE_LENGTH);
+        File file2 = createFile(directory, "2.xml", FILE_LENGTH);
+        File file3 = createFile(directory, "3.xml", FILE_LENGTH);
+
+        cache.put(file1, createDocument());
+        cache.put(file2, createDocument());
+        // file1 is now used more recently than file2
+        assertNotNull(cache.get(file1));
+        cache.put(file3, createDocument());
+
+        assertNotNull(cache.peek(file1));
+        assertNull(cache.peek(file2));
+        assertNotNull(cache.peek(file3));
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(DOCUMENT_SIZE * 2, cache.getSize());
+    }
+
+    public void testPeekIsNotCounted() throws Exception
+    {
+        HistoryDocumentCache cache = new HistoryDocumentCache(10000);
+        File file = createFile(directory, "1.xml", FILE_LENGTH);
+
+        assertNull(cache.peek(file));
+        cache.put(file, createDocument());
+        assertNotNull(cache.peek(file));
+
+        assertEquals(0, cache.getHitCount());
+        assertEquals(0, cache.getMissCount());
+    }
+
+    public void testDocumentBiggerThanCacheIsNotCached() throws Exception
+    {
+        HistoryDocumentCache cache
+            = new HistoryDocumentCache(DOCUMENT_SIZE * 2);
+        File small = createFile(directory, "1.xml", FILE_LENGTH);
+        File big = createFile(directory, "2.xml", FILE_LENGTH * 3);
+
+        cache.put(small, createDocument());
+        cache.put(big, createDocument());
+
+        assertNull(cache.peek(big));
+        assertNotNull(cache.peek(small));
+        assertEquals(0, cache.getEvictionCount());
+    }
+
+    public void testReplacedDocumentIsCountedOnce() throws Exception
+    {
+        HistoryDocumentCache cache = new HistoryDocumentCache(10000);
+        File file = createFile(directory, "1.xml", FILE_LENGTH);
+        Document document = createDocument();
+
+        cache.put(file, createDocument());
+        cache.put(file, document);
+
+        assertSame(document, cache.peek(file));
+        assertEquals(1, cache.getCount());
+        assertEquals(DOCUMENT_SIZE, cache.getSize());
+    }
+
+    public void testRemoveAllRemovesTheDocumentsOfADirectory()
+        throws Exception
+    {
+        HistoryDocumentCache cache = new HistoryDocumentCache(10000);
+        File other = new File(directory, "other");
+        assertTrue(other.mkdir());
+        File file1 = createFile(directory, "1.xml", FILE_LENGTH);
+        File file2 = createFile(other, "1.xml", FILE_LENGTH);
+
+        cache.put(file1, createDocument());
+        cache.put(file2, createDocument());
+        cache.removeAll(directory);
+
+        assertNull(cache.peek(file1));
+        assertNotNull(cache.peek(file2));
+        assertEquals(DOCUMENT_SIZE, cache.getSize());
+    }
+
+    public void testLocksAreBounded()
+    {
+        HistoryDocumentCache cache = new HistoryDocumentCache(10000);
+        Set<Object> locks = Collections.newSetFromMap(
+            new IdentityHashMap<Object, Boolean>());
+
+        for (int i = 0; i < 10000; i++)
+        {
+            File file = new File(directory, i + ".xml");
+
+            assertSame(cache.getLock(file),
+                cache.getLock(new File(directory, i + ".xml")));
+            locks.add(cache.getLock(file));
+        }
+        assertTrue(locks.size() > 1);
+        assertTrue(locks.size() < 1000);
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.service.history.records.*;
+
+import org.easymock.*;
+
+public class HistoryKeywordIndexTest
+    extends TestCase
+{
+    private static final String[] NAMES = { "msg", "dir" };
+
+    private static final String[] MESSAGES = {
+        "Hello world",
+        "say YELLOW",
+        "nothing to see",
+        "你好世界",
+        "see http://example.com/path?q=1",
+        "mail john.doe@example.org",
+        "cell phone"
+    };
+
+    private File directory;
+
+    private SegmentHistoryStore store;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        directory = HistoryTestUtils.createTempDirectory();
+        store = new SegmentHistoryStore(directory);
+        for (int i = 0; i < MESSAGES.length; i++)
+            append(MESSAGES[i], 1000 + i);
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        HistoryTestUtils.deleteDirectory(directory);
+        super.tearDown();
+    }
+
+    private void append(String msg, long time)
+        throws IOException
+    {
+        store.append(NAMES, new String[] { msg, "in" }, new Date(time));
+    }
+
+    private HistoryImpl createHistory()
+    {
+        HistoryImpl history = EasyMock.createNiceMock(HistoryImpl.class);
+
+        EasyMock.expect(history.getSegmentStore()).andReturn(store)
+            .anyTimes();
+        EasyMock.replay(history);
+        return history;
+    }
+
+    /**
+     * Returns the units of the records the index returns for a keyword.
+     */
+    private static Set<Long> find(HistoryKeywordIndex index, String keyword)
+    {
+        SortedMap<Long, SortedSet<Integer>> candidates
+            = index.findCandidates("msg", new String[] { keyword });
+
+        return (candidates == null) ? null : candidates.keySet();
+    }
+
+    /**
+     * Returns the units of the records the readers match with a keyword.
+     */
+    private Set<Long> scan(String keyword, boolean caseSensitive)
+        throws IOException
+    {
+        Set<Long> units = new TreeSet<Long>();
+        List<HistoryRecord> records = store.read(0, store.size());
+
+        for (int i = 0; i < records.size(); i++)
+        {
+            if (HistoryReaderImpl.matchKeyword(
+                    records.get(i).getPropertyValues()[0],
+                    new String[] { keyword },
+                    caseSensitive))
+                units.add(store.getIndexTimestamp(i));
+        }
+        return units;
+    }
+
+    public void testInfixMatchesAreUnchanged() throws Exception
+    {
+        HistoryKeywordIndex index = new HistoryKeywordIndex(
+            createHistory(), directory);
+        String[] keywords = {
+            "ell", "ELLO", "llow", "o w", "好世界",
+            "ample.com/pa", "doe@exa", "ath?q=", "nothing", "xyz"
+        };
+
+        for (String keyword : keywords)
+        {
+            Set<Long> expected = scan(keyword, false);
+
+            assertEquals(keyword, expected, find(index, keyword));
+            assertTrue(keyword,
+                find(index, keyword).containsAll(scan(keyword, true)));
+        }
+        assertEquals(3, find(index, "ell").size());
+    }
+
+    public void testShortKeywordsScanTheHistory()
+    {
+        HistoryKeywordIndex index = new HistoryKeywordIndex(
+            createHistory(), directory);
+
+        assertNull(find(index, "el"));
+        assertNull(find(index, "好世"));
+        assertNull(index.findCandidates("msg", null));
+    }
+
+    public void testAllKeywordsMustMatch()
+    {
+        HistoryKeywordIndex index = new HistoryKeywordIndex(
+            createHistory(), directory);
+
+        SortedMap<Long, SortedSet<Integer>> candidates
+            = index.findCandidates("msg", new String[] { "ell", "wor" });
+
+        assertEquals(Collections.singleton(1000L), candidates.keySet());
+
+        // a short keyword does not restrict the candidates
+        candidates
+            = index.findCandidates("msg", new String[] { "ell", "y" });
+        assertEquals(3, candidates.size());
+    }
+
+    public void testAddedRecordsAreIndexedAndWritten() throws Exception
+    {
+        HistoryImpl history = createHistory();
+        HistoryKeywordIndex index = new HistoryKeywordIndex(
+            history, directory);
+
+        assertTrue(index.isEmpty());
+        assertTrue(find(index, "jelly").isEmpty());
+        assertFalse(index.isEmpty());
+
+        append("Jelly beans", 2000);
+        index.recordAdded(2000, 0, NAMES,
+            new String[] { "Jelly beans", "in" });
+        assertEquals(Collections.singleton(2000L), find(index, "jelly"));
+
+        // the addition waits for the write queue
+        HistoryKeywordIndex reloaded = new HistoryKeywordIndex(
+            history, directory);
+        assertTrue(find(reloaded, "jelly").isEmpty());
+
+        index.writePending();
+        reloaded = new HistoryKeywordIndex(history, directory);
+        assertEquals(Collections.singleton(2000L), find(reloaded, "jelly"));
+        assertEquals(scan("ell", false), find(reloaded, "ell"));
+    }
+
+    public void testUnitChangedReplacesRecords() throws Exception
+    {
+        HistoryImpl history = createHistory();
+        HistoryKeywordIndex index = new HistoryKeywordIndex(
+            history, directory);
+
+        assertEquals(Collections.singleton(1006L), find(index, "cell"));
+
+        HistoryRecord record = new HistoryRecord(NAMES,
+            new String[] { "cellar door", "in" }, new Date(1006));
+        store.update(6, record.getPropertyNames(), record.getPropertyValues(),
+            record.getTimestamp());
+        index.unitChanged(1006, Arrays.asList(record));
+        index.writePending();
+
+        assertEquals(Collections.singleton(1006L), find(index, "llar"));
+        assertTrue(find(index, "phone").isEmpty());
+
+        HistoryKeywordIndex reloaded = new HistoryKeywordIndex(
+            history, directory);
+        assertEquals(Collections.singleton(1006L), find(reloaded, "llar"));
+        assertTrue(find(reloaded, "phone").isEmpty());
+    }
+
+    public void testFileInOlderFormatIsRebuilt() throws Exception
+    {
+        // a word of the former format
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(
+            new File(directory, HistoryKeywordIndex.INDEX_FILE_PREFIX + "msg"
+                + HistoryKeywordIndex.INDEX_FILETYPE)));
+        try
+        {
+            out.writeByte(1);
+            out.writeLong(1000);
+            out.writeInt(0);
+            out.writeInt(1);
+            out.writeUTF("hello");
+        }
+        finally
+        {
+            out.close();
+        }
+
+        HistoryKeywordIndex index = new HistoryKeywordIndex(
+            createHistory(), directory);
+
+        assertEquals(scan("ell", false), find(index, "ell"));
+    }
+
+    public void testIndexFileHoldsNoValues() throws Exception
+    {
+        HistoryImpl history = createHistory();
+        HistoryKeywordIndex index = new HistoryKeywordIndex(
+            history, directory);
+
+        assertEquals(scan("ell", false), find(index, "ell"));
+
+        append("Jelly beans", 2000);
+        index.recordAdded(2000, 0, NAMES,
+            new String[] { "Jelly beans", "in" });
+        index.writePending();
+
+        File file = new File(directory,
+            HistoryKeywordIndex.INDEX_FILE_PREFIX + "msg"
+                + HistoryKeywordIndex.INDEX_FILETYPE);
+        byte[] content = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try
+        {
+            in.readFully(content);
+        }
+        finally
+        {
+            in.close();
+        }
+
+        String text = new String(content, "UTF-16BE");
+        assertFalse(text.contains("jelly"));
+        assertFalse(text.contains("hello world"));
+    }
+
+    public void testManyAddedRecordsAreWrittenAgain() throws Exception
+    {
+        HistoryImpl history = createHistory();
+        HistoryKeywordIndex index = new HistoryKeywordIndex(
+            history, directory);
+
+        assertTrue(find(index, "item").isEmpty());
+
+        for (int i = 0; i <= HistoryKeywordIndex.MAX_ADDED_RECORDS; i++)
+        {
+            String msg = "item " + i;
+
+            append(msg, 2000 + i);
+            index.recordAdded(2000 + i, 0, NAMES, new String[] { msg, "in" });
+        }
+        index.writePending();
+
+        File file = new File(directory,
+            HistoryKeywordIndex.INDEX_FILE_PREFIX + "msg"
+                + HistoryKeywordIndex.INDEX_FILETYPE);
+        long length = file.length();
+
+        // the added records are read back and the file written again
+        HistoryKeywordIndex reloaded = new HistoryKeywordIndex(
+            history, directory);
+        assertEquals(scan("item", false), find(reloaded, "item"));
+        assertEquals(Collections.singleton(2999L), find(reloaded, "m 999"));
+        assertTrue(file.length() != length);
+
+        reloaded = new HistoryKeywordIndex(history, directory);
+        assertEquals(scan("item", false), find(reloaded, "item"));
+        assertEquals(scan("ell", false), find(reloaded, "ell"));
+    }
+
+    public void testRecordAddedDuringBuildIsIndexed() throws Exception
+    {
+        final CountDownLatch building = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        HistoryImpl history = EasyMock.createNiceMock(HistoryImpl.class);
+
+        EasyMock.expect(history.getSegmentStore()).andAnswer(
+            new IAnswer<SegmentHistoryStore>()
+            {
+                public SegmentHistoryStore answer() throws Throwable
+                {
+                    building.countDown();
+                    release.await();
+                    return store;
+                }
+            }).anyTimes();
+        EasyMock.replay(history);
+
+        final HistoryKeywordIndex index
+            = new HistoryKeywordIndex(history, directory);
+
+        Thread search = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                find(index, "ell");
+            }
+        };
+        search.start();
+        assertTrue(building.await(5, TimeUnit.SECONDS));
+
+        // neither the addition nor other searches wait for the build
+        index.recordAdded(3000, 0, NAMES,
+            new String[] { "well done", "in" });
+        assertNull(find(index, "ell"));
+
+        release.countDown();
+        search.join(5000);
+        assertFalse(search.isAlive());
+        assertTrue(find(index, "well").contains(3000L));
+        assertTrue(find(index, "ell").contains(3000L));
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+
+/**
+ * Temporary directories for the history tests.
+ */
+class HistoryTestUtils
+{
+    /**
+     * Creates an empty temporary directory.
+     *
+     * @return the new directory
+     * @throws IOException if the directory cannot be created
+     */
+    static File createTempDirectory()
+        throws IOException
+    {
+        File directory = File.createTempFile("history", ".test");
+
+        if (!directory.delete() || !directory.mkdirs())
+            throw new IOException("Cannot create " + directory);
+        return directory;
+    }
+
+    /**
+     * Deletes a directory and its content.
+     *
+     * @param directory the directory to delete
+     */
+    static void deleteDirectory(File directory)
+    {
+        File[] files = directory.listFiles();
+
+        if (files != null)
+        {
+            for (File f : files)
+            {
+                if (f.isDirectory())
+                    deleteDirectory(f);
+                else
+                    f.delete();
+            }
+        }
+        directory.delete();
+    }
+}
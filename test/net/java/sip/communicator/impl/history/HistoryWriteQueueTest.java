@@ -0,0 +1,157 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import junit.framework.*;
+
+import org.easymock.*;
+
+public class HistoryWriteQueueTest
+    extends TestCase
+{
+    private HistoryWriteQueue queue;
+
+    private final List<String> written
+        = Collections.synchronizedList(new ArrayList<String>());
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        queue = new HistoryWriteQueue();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        queue.stop();
+        super.tearDown();
+    }
+
+    /**
+     * Creates a history recording the files it writes, waiting for
+     * <tt>release</tt> before each write if it is not <tt>null</tt>.
+     */
+    private HistoryImpl createHistory(
+            final CountDownLatch started,
+            final CountDownLatch release)
+    {
+        HistoryImpl history = EasyMock.createNiceMock(HistoryImpl.class);
+
+        history.writeUnwrittenFile(EasyMock.<String>anyObject());
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>()
+        {
+            public Object answer() throws Throwable
+            {
+                if (started != null)
+                    started.countDown();
+                if (release != null)
+                    release.await();
+                written.add((String) EasyMock.getCurrentArguments()[0]);
+                return null;
+            }
+        }).anyTimes();
+        EasyMock.replay(history);
+        return history;
+    }
+
+    public void testFlushWritesEveryChangedFileOnce()
+    {
+        HistoryImpl history = createHistory(null, null);
+
+        queue.schedule(history, "1.xml");
+        queue.schedule(history, "1.xml");
+        queue.schedule(history, "2.xml");
+        assertEquals(3, queue.getQueueDepth());
+
+        queue.flush(history);
+
+        assertEquals(0, queue.getQueueDepth());
+        assertEquals(Arrays.asList("1.xml", "2.xml"), written);
+    }
+
+    public void testBatchIsWrittenAfterDelay() throws Exception
+    {
+        HistoryImpl history = createHistory(null, null);
+
+        queue.schedule(history, "1.xml");
+        Thread.sleep(HistoryWriteQueue.FLUSH_DELAY * 3);
+
+        assertEquals(Arrays.asList("1.xml"), written);
+        assertEquals(1, queue.getFlushCount());
+    }
+
+    public void testFullBatchIsWrittenAtOnce() throws Exception
+    {
+        CountDownLatch started = new CountDownLatch(1);
+        HistoryImpl history = createHistory(started, null);
+
+        for (int i = 0; i < HistoryWriteQueue.MAX_BATCH_SIZE; i++)
+            queue.schedule(history, "1.xml");
+
+        assertTrue(started.await(
+            HistoryWriteQueue.FLUSH_DELAY / 2, TimeUnit.MILLISECONDS));
+    }
+
+    public void testFlushWaitsForBatchBeingWritten() throws Exception
+    {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        final HistoryImpl history = createHistory(started, release);
+
+        for (int i = 0; i < HistoryWriteQueue.MAX_BATCH_SIZE; i++)
+            queue.schedule(history, "1.xml");
+        // the writing thread took the batch and is writing it
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertEquals(0, queue.getQueueDepth());
+
+        final CountDownLatch flushed = new CountDownLatch(1);
+        new Thread()
+        {
+            @Override
+            public void run()
+            {
+                queue.flush(history);
+                flushed.countDown();
+            }
+        }.start();
+
+        assertFalse(flushed.await(200, TimeUnit.MILLISECONDS));
+        assertTrue(written.isEmpty());
+
+        release.countDown();
+        assertTrue(flushed.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("1.xml"), written);
+    }
+
+    public void testStoppedQueueWritesAtOnce()
+    {
+        HistoryImpl history = createHistory(null, null);
+
+        queue.schedule(history, "1.xml");
+        queue.stop();
+        assertEquals(Arrays.asList("1.xml"), written);
+
+        queue.schedule(history, "2.xml");
+        assertEquals(Arrays.asList("1.xml", "2.xml"), written);
+        assertEquals(0, queue.getQueueDepth());
+    }
+}
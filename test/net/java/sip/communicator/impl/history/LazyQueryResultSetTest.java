@@ -0,0 +1,150 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.util.*;
+
+import junit.framework.*;
+
+public class LazyQueryResultSetTest
+    extends TestCase
+{
+    /**
+     * The pages of the test result set, with empty pages between them.
+     */
+    private static final List<List<String>> PAGES = Arrays.asList(
+        Collections.<String>emptyList(),
+        Arrays.asList("a", "b"),
+        Collections.<String>emptyList(),
+        Collections.<String>emptyList(),
+        Arrays.asList("c"),
+        Collections.<String>emptyList(),
+        Arrays.asList("d", "e"),
+        Collections.<String>emptyList());
+
+    /**
+     * The number of times each page was loaded.
+     */
+    private int[] loads;
+
+    private LazyQueryResultSet<String> createResultSet()
+    {
+        loads = new int[PAGES.size()];
+        return new LazyQueryResultSet<String>(PAGES.size())
+        {
+            @Override
+            protected List<String> loadPage(int index)
+            {
+                loads[index]++;
+                return PAGES.get(index);
+            }
+        };
+    }
+
+    private void assertLoadedAtMostOnce()
+    {
+        for (int i = 0; i < loads.length; i++)
+            assertTrue("page " + i + " loaded " + loads[i] + " times",
+                loads[i] <= 1);
+    }
+
+    public void testForwardIteration()
+    {
+        LazyQueryResultSet<String> result = createResultSet();
+        List<String> elements = new ArrayList<String>();
+
+        while (result.hasNext())
+            elements.add(result.next());
+
+        assertEquals(Arrays.asList("a", "b", "c", "d", "e"), elements);
+        assertLoadedAtMostOnce();
+    }
+
+    public void testRepeatedHasNextLoadsOnce()
+    {
+        LazyQueryResultSet<String> result = createResultSet();
+
+        for (int i = 0; i < 3; i++)
+            assertTrue(result.hasNext());
+        assertEquals("a", result.next());
+        assertEquals("b", result.next());
+        for (int i = 0; i < 3; i++)
+            assertTrue(result.hasNext());
+        assertEquals("c", result.next());
+        assertLoadedAtMostOnce();
+    }
+
+    public void testBackwardIteration()
+    {
+        LazyQueryResultSet<String> result = createResultSet();
+
+        while (result.hasNext())
+            result.next();
+        assertFalse(result.hasNext());
+
+        List<String> elements = new ArrayList<String>();
+        while (result.hasPrev())
+            elements.add(result.prev());
+
+        // prev() starts with the element before the current one
+        assertEquals(Arrays.asList("d", "c", "b", "a"), elements);
+
+        // the empty pages are not loaded again
+        for (int i = 0; i < loads.length; i++)
+        {
+            if (PAGES.get(i).isEmpty())
+                assertEquals("page " + i, 1, loads[i]);
+        }
+    }
+
+    public void testEndOfIteration()
+    {
+        LazyQueryResultSet<String> result = createResultSet();
+
+        while (result.hasNext())
+            result.next();
+        try
+        {
+            result.next();
+            fail("next() after the last element");
+        }
+        catch (NoSuchElementException e)
+        {
+        }
+
+        // after the end, prev() returns the last element
+        assertTrue(result.hasPrev());
+        assertEquals("e", result.prev());
+    }
+
+    public void testEmptyResult()
+    {
+        LazyQueryResultSet<String> result
+            = new LazyQueryResultSet<String>(3)
+            {
+                @Override
+                protected List<String> loadPage(int index)
+                {
+                    return Collections.emptyList();
+                }
+            };
+
+        assertFalse(result.hasNext());
+        assertFalse(result.hasPrev());
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.service.history.records.*;
+
+public class SegmentHistoryStoreTest
+    extends TestCase
+{
+    private static final String[] NAMES = { "msg", "dir" };
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        directory = HistoryTestUtils.createTempDirectory();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        HistoryTestUtils.deleteDirectory(directory);
+        super.tearDown();
+    }
+
+    private static String[] values(String msg)
+    {
+        return new String[] { msg, "in" };
+    }
+
+    private static List<String> messages(List<HistoryRecord> records)
+    {
+        List<String> result = new ArrayList<String>();
+        for (HistoryRecord record : records)
+            result.add(record.getPropertyValues()[0]);
+        return result;
+    }
+
+    public void testReadReturnsRecordsByTimestamp() throws Exception
+    {
+        SegmentHistoryStore store = new SegmentHistoryStore(directory);
+
+        store.append(NAMES, values("b"), new Date(2000));
+        store.append(NAMES, values("c"), new Date(3000));
+        store.append(NAMES, values("a"), new Date(1000));
+
+        assertEquals(3, store.size());
+        assertEquals(Arrays.asList("a", "b", "c"),
+            messages(store.read(0, store.size())));
+        assertEquals(Arrays.asList("b"), messages(store.read(1, 2)));
+        assertEquals(1000, store.read(0, 1).get(0).getTimestamp().getTime());
+    }
+
+    public void testIndexIsReloaded() throws Exception
+    {
+        assertFalse(SegmentHistoryStore.exists(directory));
+
+        SegmentHistoryStore store = new SegmentHistoryStore(directory);
+        for (int i = 0; i < 10; i++)
+            store.append(NAMES, values("m" + i), new Date(1000 + i));
+
+        assertTrue(SegmentHistoryStore.exists(directory));
+
+        SegmentHistoryStore reopened = new SegmentHistoryStore(directory);
+        assertEquals(10, reopened.size());
+        assertEquals(messages(store.read(0, 10)),
+            messages(reopened.read(0, 10)));
+
+        // appends continue after the reloaded records
+        reopened.append(NAMES, values("m10"), new Date(1010));
+        assertEquals("m10",
+            reopened.read(10, 11).get(0).getPropertyValues()[0]);
+    }
+
+    public void testUpdateKeepsPositionAndIndexTimestamp() throws Exception
+    {
+        SegmentHistoryStore store = new SegmentHistoryStore(directory);
+        store.append(NAMES, values("a"), new Date(1000));
+        store.append(NAMES, values("b"), new Date(2000));
+
+        store.update(0, NAMES, values("a2"), new Date(5000));
+
+        assertEquals(Arrays.asList("a2", "b"), messages(store.read(0, 2)));
+        assertEquals(1000, store.getIndexTimestamp(0));
+        assertEquals(5000, store.read(0, 1).get(0).getTimestamp().getTime());
+
+        SegmentHistoryStore reopened = new SegmentHistoryStore(directory);
+        assertEquals(Arrays.asList("a2", "b"), messages(reopened.read(0, 2)));
+    }
+
+    public void testRemove() throws Exception
+    {
+        SegmentHistoryStore store = new SegmentHistoryStore(directory);
+        store.append(NAMES, values("a"), new Date(1000));
+        store.append(NAMES, values("b"), new Date(2000));
+        store.append(NAMES, values("c"), new Date(3000));
+
+        store.remove(1);
+
+        assertEquals(Arrays.asList("a", "c"), messages(store.read(0, 5)));
+        SegmentHistoryStore reopened = new SegmentHistoryStore(directory);
+        assertEquals(Arrays.asList("a", "c"), messages(reopened.read(0, 5)));
+    }
+
+    public void testIndexOfDates() throws Exception
+    {
+        SegmentHistoryStore store = new SegmentHistoryStore(directory);
+        for (int i = 1; i <= 5; i++)
+            store.append(NAMES, values("m" + i), new Date(i * 1000));
+
+        assertEquals(0, store.indexOf(null));
+        assertEquals(5, store.endIndexOf(null));
+        assertEquals(1, store.indexOf(new Date(2000)));
+        assertEquals(2, store.indexOf(new Date(2500)));
+        assertEquals(3, store.endIndexOf(new Date(4000)));
+    }
+
+    public void testPartialIndexEntryIsDropped() throws Exception
+    {
+        SegmentHistoryStore store = new SegmentHistoryStore(directory);
+        store.append(NAMES, values("a"), new Date(1000));
+        store.append(NAMES, values("b"), new Date(2000));
+
+        RandomAccessFile index = new RandomAccessFile(
+            new File(directory, SegmentHistoryStore.INDEX_FILE), "rw");
+        try
+        {
+            index.setLength(index.length() - 5);
+        }
+        finally
+        {
+            index.close();
+        }
+
+        SegmentHistoryStore reopened = new SegmentHistoryStore(directory);
+        assertEquals(Arrays.asList("a"), messages(reopened.read(0, 5)));
+    }
+
+    public void testCdataSuffixIsNotStored() throws Exception
+    {
+        SegmentHistoryStore store = new SegmentHistoryStore(directory);
+        store.append(
+            new String[] { "msg" + HistoryWriterImpl.CDATA_SUFFIX, "dir" },
+            values("a"), new Date(1000));
+
+        assertEquals("msg", store.read(0, 1).get(0).getPropertyNames()[0]);
+    }
+
+    public void testNullValuesAreSkipped() throws Exception
+    {
+        SegmentHistoryStore store = new SegmentHistoryStore(directory);
+        store.append(NAMES, new String[] { "a", null }, new Date(1000));
+
+        HistoryRecord record = store.read(0, 1).get(0);
+        assertEquals(1, record.getPropertyNames().length);
+        assertEquals("a", record.getPropertyValues()[0]);
+    }
+}
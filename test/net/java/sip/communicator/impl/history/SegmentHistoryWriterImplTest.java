@@ -0,0 +1,134 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.service.history.records.*;
+
+import org.easymock.*;
+
+public class SegmentHistoryWriterImplTest
+    extends TestCase
+{
+    private static final String[] NAMES = { "msg", "msgUID" };
+
+    private static final long DAY = HistoryPropertyIndex.SEGMENT_UNIT_LENGTH;
+
+    private File directory;
+
+    private SegmentHistoryStore store;
+
+    private SegmentHistoryWriterImpl writer;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        directory = HistoryTestUtils.createTempDirectory();
+        store = new SegmentHistoryStore(directory);
+
+        HistoryImpl history = EasyMock.createNiceMock(HistoryImpl.class);
+        HistoryKeywordIndex keywordIndex
+            = new HistoryKeywordIndex(history, directory);
+        HistoryPropertyIndex propertyIndex
+            = new HistoryPropertyIndex(history, directory);
+
+        EasyMock.expect(history.getSegmentStore()).andReturn(store)
+            .anyTimes();
+        EasyMock.expect(history.getKeywordIndex()).andReturn(keywordIndex)
+            .anyTimes();
+        EasyMock.expect(history.getPropertyIndex()).andReturn(propertyIndex)
+            .anyTimes();
+        EasyMock.replay(history);
+
+        writer = new SegmentHistoryWriterImpl(history, store);
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        HistoryTestUtils.deleteDirectory(directory);
+        super.tearDown();
+    }
+
+    private void add(String msg, String uid, long time)
+        throws IOException
+    {
+        writer.addRecord(
+            new HistoryRecord(NAMES, new String[] { msg, uid },
+                new Date(time)));
+    }
+
+    private List<String> messages()
+        throws IOException
+    {
+        List<String> result = new ArrayList<String>();
+        for (HistoryRecord record : store.read(0, store.size()))
+            result.add(record.getPropertyValues()[0]);
+        return result;
+    }
+
+    public void testUpdateFindsTheRecordOfItsDay() throws Exception
+    {
+        for (int i = 0; i < 5; i++)
+            add("m" + i, "uid" + i, 10 * DAY + i * DAY / 2);
+
+        writer.updateRecord("msgUID", "uid1", "msg", "corrected");
+
+        assertEquals(Arrays.asList("m0", "corrected", "m2", "m3", "m4"),
+            messages());
+        assertEquals(10 * DAY + DAY / 2, store.getIndexTimestamp(1));
+    }
+
+    public void testRecordsAddedAfterTheIndexAreFound() throws Exception
+    {
+        add("m0", "uid0", 10 * DAY);
+        writer.updateRecord("msgUID", "uid0", "msg", "first");
+
+        add("m1", "uid1", 12 * DAY);
+        add("m2", "uid2", 11 * DAY);
+        writer.updateRecord("msgUID", "uid2", "msg", "second");
+        writer.updateRecord("msgUID", "uid1", "delivered", "true");
+
+        assertEquals(Arrays.asList("first", "second", "m1"), messages());
+        assertEquals("true", SegmentHistoryWriterImpl.getValue(
+            store.read(2, 3).get(0), "delivered"));
+    }
+
+    public void testOnlyTheOldestMatchingRecordIsUpdated() throws Exception
+    {
+        add("m0", "same", 10 * DAY);
+        add("m1", "same", 20 * DAY);
+
+        writer.updateRecord("msgUID", "same", "msg", "x");
+
+        assertEquals(Arrays.asList("x", "m1"), messages());
+    }
+
+    public void testUnknownValueChangesNothing() throws Exception
+    {
+        add("m0", "uid0", 10 * DAY);
+
+        writer.updateRecord("msgUID", "missing", "msg", "x");
+
+        assertEquals(Arrays.asList("m0"), messages());
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import javax.xml.parsers.*;
+
+import junit.framework.*;
+
+import org.easymock.*;
+import org.w3c.dom.*;
+
+public class XmlHistoryMigratorTest
+    extends TestCase
+{
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        directory = HistoryTestUtils.createTempDirectory();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        HistoryTestUtils.deleteDirectory(directory);
+        super.tearDown();
+    }
+
+    /**
+     * Creates a document with one record per message, the timestamps
+     * starting at <tt>time</tt>.
+     */
+    private static Document createDocument(long time, String... messages)
+        throws Exception
+    {
+        Document doc = DocumentBuilderFactory.newInstance()
+            .newDocumentBuilder().newDocument();
+        Element root = doc.createElement("history");
+
+        doc.appendChild(root);
+        for (String msg : messages)
+        {
+            Element record = doc.createElement("record");
+            Element property = doc.createElement("msg");
+
+            record.setAttribute("timestamp", Long.toString(time++));
+            property.appendChild(doc.createTextNode(msg));
+            record.appendChild(property);
+            root.appendChild(record);
+        }
+        return doc;
+    }
+
+    /**
+     * Creates a history with a file for each entry of <tt>documents</tt>,
+     * a <tt>null</tt> document standing for an unreadable file.
+     */
+    private HistoryImpl createHistory(final Map<String, Document> documents)
+        throws IOException
+    {
+        HistoryImpl history = EasyMock.createNiceMock(HistoryImpl.class);
+
+        for (Map.Entry<String, Document> e : documents.entrySet())
+        {
+            new File(directory, e.getKey()).createNewFile();
+            EasyMock.expect(history.getDocumentForFile(e.getKey()))
+                .andReturn(e.getValue()).anyTimes();
+        }
+        EasyMock.expect(history.getFileList()).andAnswer(
+            new IAnswer<Iterator<String>>()
+            {
+                public Iterator<String> answer()
+                {
+                    return new ArrayList<String>(documents.keySet())
+                        .iterator();
+                }
+            }).anyTimes();
+        EasyMock.replay(history);
+        return history;
+    }
+
+    public void testRecordsAreMovedToTheStore() throws Exception
+    {
+        Map<String, Document> documents
+            = new TreeMap<String, Document>();
+
+        documents.put("1000.xml", createDocument(1000, "a", "b"));
+        documents.put("2000.xml", createDocument(2000, "c"));
+
+        XmlHistoryMigrator.migrate(createHistory(documents), directory);
+
+        assertTrue(SegmentHistoryStore.exists(directory));
+        assertEquals(3, new SegmentHistoryStore(directory).size());
+        for (String file : documents.keySet())
+        {
+            assertFalse(new File(directory, file).exists());
+            assertTrue(new File(directory,
+                file + XmlHistoryMigrator.MIGRATED_SUFFIX).exists());
+        }
+    }
+
+    public void testUnreadableFileAbortsTheMigration() throws Exception
+    {
+        Map<String, Document> documents
+            = new TreeMap<String, Document>();
+
+        documents.put("1000.xml", createDocument(1000, "a", "b"));
+        documents.put("2000.xml", null);
+        documents.put("3000.xml", createDocument(3000, "c"));
+
+        HistoryImpl history = createHistory(documents);
+        try
+        {
+            XmlHistoryMigrator.migrate(history, directory);
+            fail("An unreadable file must fail the migration");
+        }
+        catch (IOException expected)
+        {
+        }
+
+        assertFalse(SegmentHistoryStore.exists(directory));
+        for (String file : documents.keySet())
+        {
+            assertTrue(new File(directory, file).exists());
+            assertFalse(new File(directory,
+                file + XmlHistoryMigrator.MIGRATED_SUFFIX).exists());
+        }
+
+        // once the file is readable again the migration is started over
+        documents.put("2000.xml", createDocument(2000, "x"));
+        XmlHistoryMigrator.migrate(createHistory(documents), directory);
+
+        assertEquals(4, new SegmentHistoryStore(directory).size());
+        assertFalse(
+            new File(directory, XmlHistoryMigrator.MIGRATION_DIRECTORY)
+                .exists());
+    }
+}
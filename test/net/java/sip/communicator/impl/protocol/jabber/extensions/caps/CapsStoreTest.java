@@ -0,0 +1,306 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.jabber.extensions.caps;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.*;
+
+import org.easymock.*;
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.fileaccess.*;
+
+public class CapsStoreTest
+    extends TestCase
+{
+    private static final String PREFIX = "net.java.sip.communicator.caps.";
+
+    private static final String XML
+        = "<query xmlns=\"http://jabber.org/protocol/disco#info\">"
+            + "<identity category=\"client\" type=\"pc\" name=\"J\u00eftsi\"/>"
+            + "<feature var=\"urn:xmpp:jingle:1\"/>"
+            + "</query>";
+
+    /**
+     * The properties of {@link #configService}.
+     */
+    private final Map<String, Object> properties
+        = new TreeMap<String, Object>();
+
+    private ConfigurationService configService;
+
+    private File dir;
+
+    private File file;
+
+    private FileAccessService fileAccessService;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        dir = File.createTempFile("caps", "");
+        dir.delete();
+        dir.mkdir();
+        file = new File(dir, "entitycaps");
+
+        configService = EasyMock.createNiceMock(ConfigurationService.class);
+        EasyMock.expect(
+                configService.getPropertyNamesByPrefix(
+                    EasyMock.anyObject(String.class), EasyMock.eq(false)))
+            .andAnswer(new IAnswer<List<String>>()
+            {
+                public List<String> answer()
+                {
+                    String prefix
+                        = (String) EasyMock.getCurrentArguments()[0];
+                    List<String> names = new ArrayList<String>();
+
+                    for (String name : properties.keySet())
+                    {
+                        if (name.startsWith(prefix))
+                            names.add(name);
+                    }
+                    return names;
+                }
+            })
+            .anyTimes();
+        EasyMock.expect(
+                configService.getString(EasyMock.anyObject(String.class)))
+            .andAnswer(new IAnswer<String>()
+            {
+                public String answer()
+                {
+                    return
+                        (String) properties.get(
+                            EasyMock.getCurrentArguments()[0]);
+                }
+            })
+            .anyTimes();
+        configService.setProperties(
+            EasyMock.<Map<String, Object>>anyObject());
+        EasyMock.expectLastCall()
+            .andAnswer(new IAnswer<Object>()
+            {
+                @SuppressWarnings("unchecked")
+                public Object answer()
+                {
+                    Map<String, Object> changes
+                        = (Map<String, Object>)
+                            EasyMock.getCurrentArguments()[0];
+
+                    for (Map.Entry<String, Object> e : changes.entrySet())
+                    {
+                        if (e.getValue() == null)
+                            properties.remove(e.getKey());
+                        else
+                            properties.put(e.getKey(), e.getValue());
+                    }
+                    return null;
+                }
+            })
+            .anyTimes();
+        EasyMock.replay(configService);
+
+        fileAccessService = EasyMock.createNiceMock(FileAccessService.class);
+        EasyMock.expect(
+                fileAccessService.getPrivatePersistentFile(
+                    "entitycaps", FileCategory.CACHE))
+            .andReturn(file).anyTimes();
+        EasyMock.replay(fileAccessService);
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        File[] files = dir.listFiles();
+
+        if (files != null)
+        {
+            for (File f : files)
+                f.delete();
+        }
+        dir.delete();
+        super.tearDown();
+    }
+
+    private CapsStore createStore()
+    {
+        return new CapsStore(configService, PREFIX, fileAccessService);
+    }
+
+    private static EntityCapsManager.Caps caps(String ver)
+    {
+        return
+            new EntityCapsManager.Caps("http://jitsi.org", "sha-1", ver, null);
+    }
+
+    public void testCapsAreRememberedAcrossInstances()
+    {
+        CapsStore store = createStore();
+
+        assertNull(store.get(caps("ver1")));
+        store.put(caps("ver1"), XML);
+        store.put(caps("ver2"), "<query/>");
+        assertEquals(XML, store.get(caps("ver1")));
+        store.close();
+
+        assertTrue(file.exists());
+
+        CapsStore other = createStore();
+
+        assertEquals(XML, other.get(caps("ver1")));
+        assertEquals("<query/>", other.get(caps("ver2")));
+        assertNull(other.get(caps("ver3")));
+        other.close();
+    }
+
+    public void testNothingIsWrittenWithoutChanges()
+    {
+        CapsStore store = createStore();
+
+        assertNull(store.get(caps("ver1")));
+        store.close();
+
+        assertFalse(file.exists());
+    }
+
+    public void testRemovedCapsAreForgotten()
+    {
+        CapsStore store = createStore();
+
+        store.put(caps("ver1"), XML);
+        store.put(caps("ver2"), XML);
+        store.close();
+
+        store = createStore();
+        store.remove(caps("ver1"));
+        assertNull(store.get(caps("ver1")));
+        store.close();
+
+        CapsStore other = createStore();
+
+        assertNull(other.get(caps("ver1")));
+        assertEquals(XML, other.get(caps("ver2")));
+        other.close();
+    }
+
+    public void testLegacyPropertiesAreMovedToTheFile()
+    {
+        properties.put(PREFIX + "http://jitsi.org#sha-1#ver1", XML);
+        // the node may contain the separator
+        properties.put(PREFIX + "http://jitsi.org/#x#sha-1#ver2", "<query/>");
+        properties.put(PREFIX + "malformed", XML);
+        properties.put("net.java.sip.communicator.other", "value");
+
+        CapsStore store = createStore();
+
+        assertEquals(XML, store.get(caps("ver1")));
+        assertEquals(
+            "<query/>",
+            store.get(
+                new EntityCapsManager.Caps(
+                    "http://jitsi.org/#x", "sha-1", "ver2", null)));
+        store.close();
+
+        assertEquals(
+            Collections.singleton("net.java.sip.communicator.other"),
+            properties.keySet());
+
+        CapsStore other = createStore();
+
+        assertEquals(XML, other.get(caps("ver1")));
+        other.close();
+    }
+
+    public void testFileWinsOverLegacyProperties()
+    {
+        CapsStore store = createStore();
+
+        store.put(caps("ver1"), XML);
+        store.close();
+
+        properties.put(PREFIX + "http://jitsi.org#sha-1#ver1", "<query/>");
+
+        CapsStore other = createStore();
+
+        assertEquals(XML, other.get(caps("ver1")));
+        other.close();
+        assertTrue(properties.isEmpty());
+    }
+
+    public void testUnreadableFileIsIgnored() throws Exception
+    {
+        FileOutputStream out = new FileOutputStream(file);
+
+        try
+        {
+            out.write("not a cache file".getBytes("UTF-8"));
+        }
+        finally
+        {
+            out.close();
+        }
+
+        CapsStore store = createStore();
+
+        assertNull(store.get(caps("ver1")));
+        store.put(caps("ver1"), XML);
+        store.close();
+
+        CapsStore other = createStore();
+
+        assertEquals(XML, other.get(caps("ver1")));
+        other.close();
+    }
+
+    public void testWithoutFileAccessCapsAreOnlyInMemory()
+    {
+        properties.put(PREFIX + "http://jitsi.org#sha-1#ver1", XML);
+
+        CapsStore store = new CapsStore(configService, PREFIX, null);
+
+        store.put(caps("ver2"), XML);
+        assertEquals(XML, store.get(caps("ver2")));
+        store.close();
+
+        // the legacy properties are kept for lack of a place to move them to
+        assertEquals(1, properties.size());
+        assertFalse(file.exists());
+    }
+
+    public void testLeastRecentlyUsedCapsAreForgotten()
+    {
+        CapsStore store = createStore();
+
+        store.put(caps("ver0"), XML);
+        for (int i = 1; i <= 2048; i++)
+        {
+            store.put(caps("ver" + i), XML);
+            // keeps ver1 recently used
+            store.get(caps("ver1"));
+        }
+
+        assertNull(store.get(caps("ver0")));
+        assertEquals(XML, store.get(caps("ver1")));
+        assertEquals(XML, store.get(caps("ver2048")));
+        store.close();
+    }
+}
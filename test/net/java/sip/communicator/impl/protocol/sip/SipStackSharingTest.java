@@ -0,0 +1,441 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.sip;
+
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import javax.sip.*;
+import javax.sip.address.*;
+import javax.sip.message.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.service.protocol.*;
+
+import org.easymock.*;
+import org.jitsi.service.configuration.*;
+import org.objenesis.*;
+
+public class SipStackSharingTest
+    extends TestCase
+{
+    /**
+     * The number of accounts of the tests with many accounts.
+     */
+    private static final int ACCOUNT_COUNT = 200;
+
+    /**
+     * The stack sharing, created without a JAIN-SIP stack as routing does
+     * not use it.
+     */
+    private SipStackSharing sipStackSharing;
+
+    private MessageFactory messageFactory;
+
+    private AddressFactory addressFactory;
+
+    /**
+     * The number of times the registrar connection of a provider was asked
+     * for, that is the number of providers inspected while dispatching.
+     */
+    private final AtomicInteger inspections = new AtomicInteger();
+
+    private Field configurationServiceField;
+
+    private Object oldConfigurationService;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        // the account properties fall back to defaults from the configuration
+        configurationServiceField
+            = ProtocolProviderActivator.class.getDeclaredField(
+                    "configurationService");
+        configurationServiceField.setAccessible(true);
+        oldConfigurationService = configurationServiceField.get(null);
+
+        ConfigurationService configurationService
+            = EasyMock.createNiceMock(ConfigurationService.class);
+
+        EasyMock.replay(configurationService);
+        configurationServiceField.set(null, configurationService);
+
+        createSipStackSharing();
+
+        SipFactory sipFactory = SipFactory.getInstance();
+
+        sipFactory.setPathName("gov.nist");
+        messageFactory = sipFactory.createMessageFactory();
+        addressFactory = sipFactory.createAddressFactory();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        configurationServiceField.set(null, oldConfigurationService);
+        super.tearDown();
+    }
+
+    /**
+     * Creates a stack sharing without listeners.
+     */
+    private void createSipStackSharing()
+        throws Exception
+    {
+        sipStackSharing
+            = (SipStackSharing) new ObjenesisStd().newInstance(
+                    SipStackSharing.class);
+        setField("listeners",
+            new HashSet<ProtocolProviderServiceSipImpl>());
+        setField("listenersByUserID",
+            Collections.<String, List<ProtocolProviderServiceSipImpl>>
+                emptyMap());
+        setField("listenerList",
+            Collections.<ProtocolProviderServiceSipImpl>emptyList());
+    }
+
+    private void setField(String name, Object value)
+        throws Exception
+    {
+        Field field = SipStackSharing.class.getDeclaredField(name);
+
+        field.setAccessible(true);
+        field.set(sipStackSharing, value);
+    }
+
+    /**
+     * Adds listeners the way <tt>addSipListener</tt> does, without starting
+     * to listen.
+     */
+    @SuppressWarnings("unchecked")
+    private void addListeners(ProtocolProviderServiceSipImpl... providers)
+        throws Exception
+    {
+        Field field = SipStackSharing.class.getDeclaredField("listeners");
+
+        field.setAccessible(true);
+
+        Set<ProtocolProviderServiceSipImpl> listeners
+            = (Set<ProtocolProviderServiceSipImpl>) field.get(sipStackSharing);
+
+        synchronized (listeners)
+        {
+            listeners.addAll(Arrays.asList(providers));
+
+            Method update
+                = SipStackSharing.class.getDeclaredMethod(
+                        "updateListenerIndex");
+
+            update.setAccessible(true);
+            update.invoke(sipStackSharing);
+        }
+    }
+
+    private ProtocolProviderServiceSipImpl findTargetFor(Request request)
+        throws Exception
+    {
+        Method find
+            = SipStackSharing.class.getDeclaredMethod(
+                    "findTargetFor", Request.class);
+
+        find.setAccessible(true);
+        return (ProtocolProviderServiceSipImpl)
+            find.invoke(sipStackSharing, request);
+    }
+
+    private static AccountID createAccountID(String userID, String host)
+    {
+        return new AccountID(userID, new HashMap<String, String>(), "SIP",
+                host)
+        {
+        };
+    }
+
+    /**
+     * Creates a provider of an account.
+     *
+     * @param userID the user ID of the account
+     * @param host the host of the address of the account
+     * @param fromSameConnection whether the requests come from the
+     * connection to the registrar of the account, <tt>null</tt> if it has no
+     * registrar
+     * @param customParamValue the value of the custom parameter of the
+     * contact address of the account
+     */
+    private ProtocolProviderServiceSipImpl createProvider(
+            String userID,
+            String host,
+            Boolean fromSameConnection,
+            String customParamValue)
+        throws Exception
+    {
+        ProtocolProviderServiceSipImpl provider
+            = EasyMock.createNiceMock(ProtocolProviderServiceSipImpl.class);
+        SipRegistrarConnection registrarConnection = null;
+
+        if (fromSameConnection != null)
+        {
+            registrarConnection
+                = EasyMock.createNiceMock(SipRegistrarConnection.class);
+            EasyMock.expect(registrarConnection.isRegistrarless())
+                .andReturn(false).anyTimes();
+            EasyMock.expect(
+                    registrarConnection.isRequestFromSameConnection(
+                        EasyMock.anyObject(Request.class)))
+                .andReturn(fromSameConnection).anyTimes();
+            EasyMock.replay(registrarConnection);
+        }
+
+        EasyMock.expect(provider.getAccountID())
+            .andReturn(createAccountID(userID, host)).anyTimes();
+        final SipRegistrarConnection finalRegistrarConnection
+            = registrarConnection;
+
+        EasyMock.expect(provider.getRegistrarConnection())
+            .andAnswer(new IAnswer<SipRegistrarConnection>()
+            {
+                public SipRegistrarConnection answer()
+                {
+                    inspections.incrementAndGet();
+                    return finalRegistrarConnection;
+                }
+            })
+            .anyTimes();
+        EasyMock.expect(provider.getContactAddressCustomParamValue())
+            .andReturn(customParamValue).anyTimes();
+        EasyMock.expect(
+                provider.getOurSipAddress(EasyMock.anyObject(SipURI.class)))
+            .andReturn(
+                addressFactory.createAddress(
+                    addressFactory.createSipURI(userID, host)))
+            .anyTimes();
+        EasyMock.replay(provider);
+        return provider;
+    }
+
+    private ProtocolProviderServiceSipImpl createProvider(
+            String userID,
+            String host)
+        throws Exception
+    {
+        return createProvider(userID, host, null, null);
+    }
+
+    private Request createRequest(String requestURI, String toURI)
+        throws Exception
+    {
+        return messageFactory.createRequest(
+            "INVITE " + requestURI + " SIP/2.0\r\n"
+                + "Via: SIP/2.0/UDP 192.0.2.1:5060;branch=z9hG4bK776asdhds\r\n"
+                + "Max-Forwards: 70\r\n"
+                + "To: <" + toURI + ">\r\n"
+                + "From: <sip:caller@example.net>;tag=1928301774\r\n"
+                + "Call-ID: a84b4c76e66710@192.0.2.1\r\n"
+                + "CSeq: 314159 INVITE\r\n"
+                + "Content-Length: 0\r\n"
+                + "\r\n");
+    }
+
+    public void testManyAccountsWithDistinctUserIDs() throws Exception
+    {
+        ProtocolProviderServiceSipImpl[] providers
+            = new ProtocolProviderServiceSipImpl[ACCOUNT_COUNT];
+
+        for (int i = 0; i < providers.length; i++)
+            providers[i] = createProvider("user" + i, "example.org");
+        addListeners(providers);
+
+        for (int i = 0; i < providers.length; i += 17)
+        {
+            Request request
+                = createRequest(
+                    "sip:user" + i + "@192.0.2.2:5060",
+                    "sip:user" + i + "@example.org");
+
+            assertSame(providers[i], findTargetFor(request));
+        }
+    }
+
+    public void testAccountsSharingAUserIDAreToldApartByTheirRegistrar()
+        throws Exception
+    {
+        ProtocolProviderServiceSipImpl[] providers
+            = new ProtocolProviderServiceSipImpl[ACCOUNT_COUNT];
+
+        // the same user at many registrars, a single one of which the
+        // request comes from
+        for (int i = 0; i < providers.length; i++)
+        {
+            providers[i]
+                = createProvider("alice", "host" + i + ".example.org",
+                    i == 42, null);
+        }
+        addListeners(providers);
+
+        Request request
+            = createRequest(
+                "sip:alice@192.0.2.2:5060",
+                "sip:alice@host0.example.org");
+
+        assertSame(providers[42], findTargetFor(request));
+    }
+
+    public void testCustomParamTellsAccountsSharingAUserIDApart()
+        throws Exception
+    {
+        ProtocolProviderServiceSipImpl[] providers
+            = new ProtocolProviderServiceSipImpl[ACCOUNT_COUNT];
+
+        for (int i = 0; i < providers.length; i++)
+        {
+            providers[i]
+                = createProvider("alice", "host" + i + ".example.org",
+                    true, "acc" + i);
+        }
+        addListeners(providers);
+
+        Request request
+            = createRequest(
+                "sip:alice@192.0.2.2:5060;"
+                    + SipStackSharing.CONTACT_ADDRESS_CUSTOM_PARAM_NAME
+                    + "=acc123",
+                "sip:alice@host7.example.org");
+
+        assertSame(providers[123], findTargetFor(request));
+    }
+
+    public void testToHostTellsAccountsSharingAUserIDApart()
+        throws Exception
+    {
+        ProtocolProviderServiceSipImpl[] providers
+            = new ProtocolProviderServiceSipImpl[ACCOUNT_COUNT];
+
+        for (int i = 0; i < providers.length; i++)
+        {
+            providers[i]
+                = createProvider("alice", "host" + i + ".example.org");
+        }
+        addListeners(providers);
+
+        Request request
+            = createRequest(
+                "sip:alice@192.0.2.2:5060",
+                "sip:alice@host77.example.org");
+
+        assertSame(providers[77], findTargetFor(request));
+    }
+
+    public void testAmbiguousRequestGoesToOneOfTheCandidates()
+        throws Exception
+    {
+        ProtocolProviderServiceSipImpl alice1
+            = createProvider("alice", "a.example.org");
+        ProtocolProviderServiceSipImpl alice2
+            = createProvider("alice", "b.example.org");
+        ProtocolProviderServiceSipImpl bob
+            = createProvider("bob", "c.example.org");
+
+        addListeners(alice1, alice2, bob);
+
+        ProtocolProviderServiceSipImpl target
+            = findTargetFor(
+                createRequest(
+                    "sip:alice@192.0.2.2:5060",
+                    "sip:alice@d.example.org"));
+
+        assertTrue((target == alice1) || (target == alice2));
+    }
+
+    public void testUnknownUserGoesToAMatchingAccount() throws Exception
+    {
+        ProtocolProviderServiceSipImpl other
+            = createProvider("alice", "a.example.org", false, null);
+        ProtocolProviderServiceSipImpl matching
+            = createProvider("bob", "b.example.org", true, null);
+
+        addListeners(other, matching);
+
+        assertSame(matching,
+            findTargetFor(
+                createRequest(
+                    "sip:carol@192.0.2.2:5060",
+                    "sip:carol@example.org")));
+        assertSame(matching,
+            findTargetFor(
+                createRequest(
+                    "sip:192.0.2.2:5060",
+                    "sip:example.org")));
+    }
+
+    public void testNoMatchingAccount() throws Exception
+    {
+        addListeners(createProvider("alice", "a.example.org", false, null));
+
+        assertNull(
+            findTargetFor(
+                createRequest(
+                    "sip:carol@192.0.2.2:5060",
+                    "sip:carol@example.org")));
+    }
+
+    public void testRemovedListenerIsNotATarget() throws Exception
+    {
+        ProtocolProviderServiceSipImpl alice
+            = createProvider("alice", "a.example.org");
+        ProtocolProviderServiceSipImpl bob
+            = createProvider("bob", "b.example.org");
+
+        addListeners(alice, bob);
+        sipStackSharing.removeSipListener(alice);
+
+        assertSame(bob,
+            findTargetFor(
+                createRequest(
+                    "sip:alice@192.0.2.2:5060",
+                    "sip:alice@a.example.org")));
+    }
+
+    public void testDispatchInspectsOnlyTheAccountsOfTheUserID()
+        throws Exception
+    {
+        ProtocolProviderServiceSipImpl[] providers
+            = new ProtocolProviderServiceSipImpl[100];
+
+        for (int i = 0; i < providers.length; i++)
+        {
+            providers[i]
+                = createProvider("user" + i, "example.org", true, null);
+        }
+        addListeners(providers);
+
+        inspections.set(0);
+        for (int i = 0; i < providers.length; i++)
+        {
+            Request request
+                = createRequest(
+                    "sip:user" + i + "@192.0.2.2:5060",
+                    "sip:user" + i + "@example.org");
+
+            assertSame(providers[i], findTargetFor(request));
+        }
+        assertEquals(providers.length, inspections.get());
+    }
+}
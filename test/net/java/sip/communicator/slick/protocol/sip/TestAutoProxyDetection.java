@@ -25,6 +25,7 @@ import static org.easymock.EasyMock.verify;
 
 import java.net.*;
 import java.text.*;
+import java.util.concurrent.*;
 
 import junit.framework.*;
 import net.java.sip.communicator.impl.protocol.sip.*;
@@ -54,6 +55,20 @@ public class TestAutoProxyDetection
             super.setNetworkUtils(nu);
         }
 
+        /**
+         * Runs the lookups in the calling thread, so that the mocked
+         * <tt>NetworkUtils</tt> are called in order and have been called
+         * when the tests verify them.
+         */
+        @Override
+        protected <T> Future<T> submitLookup(Callable<T> lookup)
+        {
+            FutureTask<T> task = new FutureTask<T>(lookup);
+
+            task.run();
+            return task;
+        }
+
         public static class NetworkUtils extends LocalNetworkUtils
         {
         }